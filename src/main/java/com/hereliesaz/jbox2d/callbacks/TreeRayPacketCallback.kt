@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.callbacks;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.DynamicTree;
+
+/**
+ * callback for batched ray-casts of a {@link DynamicTree}
+ */
+public interface TreeRayPacketCallback
+{
+    /**
+     * Called for each proxy that a ray of the batch may hit. May be called
+     * from several threads at once for different rays.
+     *
+     * @param input The ray, clipped to its current maximum fraction.
+     * @param proxyId The id of the proxy.
+     * @param rayIndex The index of the ray in the batch.
+     *
+     * @return -1 to ignore the proxy, 0 to terminate the ray, otherwise the
+     *     fraction the ray is clipped to.
+     */
+    float raycastCallback(RayCastInput input, int proxyId, int rayIndex);
+}
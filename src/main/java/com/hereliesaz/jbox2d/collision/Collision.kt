@@ -71,18 +71,42 @@ public class Collision
      */
     public final boolean testOverlap(Shape shapeA, int indexA, Shape shapeB,
             int indexB, Transform xfA, Transform xfB)
+    {
+        cache.count = 0;
+        return testOverlap(shapeA, indexA, shapeB, indexB, xfA, xfB, cache);
+    }
+
+    /**
+     * Determine if two generic shapes overlap, starting from the simplex cache
+     * of an earlier query for the same pair of shapes.
+     */
+    public final boolean testOverlap(Shape shapeA, int indexA, Shape shapeB,
+            int indexB, Transform xfA, Transform xfB, SimplexCache cache)
     {
         input.proxyA.set(shapeA, indexA);
         input.proxyB.set(shapeB, indexB);
         input.transformA.set(xfA);
         input.transformB.set(xfB);
         input.useRadii = true;
-        cache.count = 0;
         pool.getDistance().distance(output, cache, input);
         // djm note: anything significant about 10.0f?
         return output.distance < 10.0f * Settings.EPSILON;
     }
 
+    private float speculativeDistance;
+
+    /**
+     * Set a distance that the collide functions add to the contact radius of
+     * the shapes, so they also report points of shapes that are apart by less
+     * than this distance. These speculative points have a positive
+     * separation.
+     */
+    public final void setSpeculativeDistance(float distance)
+    {
+        speculativeDistance = distance;
+        collider.speculativeDistance = distance;
+    }
+
     /**
      * Compute the point states given two manifolds. The states pertain to the
      * transition from manifold1 to manifold2. So state1 is either persist or
@@ -199,7 +223,8 @@ public class Collision
         float dy = pBy - pAy;
         float distSqr = dx * dx + dy * dy;
         // end inline
-        final float radius = circle1.radius + circle2.radius;
+        final float radius = circle1.radius + circle2.radius
+                + speculativeDistance;
         if (distSqr > radius * radius)
         {
             return;
@@ -242,7 +267,8 @@ public class Collision
         // Find the min separating edge.
         int normalIndex = 0;
         float separation = -Float.MAX_VALUE;
-        final float radius = polygon.radius + circle.radius;
+        final float radius = polygon.radius + circle.radius
+                + speculativeDistance;
         final int vertexCount = polygon.count;
         float s;
         final Vec2[] vertices = polygon.vertices;
@@ -410,6 +436,44 @@ public class Collision
     public final void findMaxSeparation(EdgeResults results,
             final PolygonShape poly1, final Transform xf1,
             final PolygonShape poly2, final Transform xf2)
+    {
+        findMaxSeparation(results, poly1, xf1, poly2, xf2, -Float.MAX_VALUE);
+    }
+
+    /**
+     * Compute the separation of poly2 along the normal of one edge of poly1.
+     */
+    public final float edgeSeparation(final PolygonShape poly1,
+            final Transform xf1, int edge1, final PolygonShape poly2,
+            final Transform xf2)
+    {
+        Transform.mulTransToOutUnsafe(xf2, xf1, xf);
+        Rot.mulToOutUnsafe(xf.q, poly1.normals[edge1], n);
+        Transform.mulToOutUnsafe(xf, poly1.vertices[edge1], v1);
+        final Vec2[] v2s = poly2.vertices;
+        float separation = Float.MAX_VALUE;
+        for (int j = 0; j < poly2.count; ++j)
+        {
+            Vec2 v2sj = v2s[j];
+            float sj = n.x * (v2sj.x - v1.x) + n.y * (v2sj.y - v1.y);
+            if (sj < separation)
+            {
+                separation = sj;
+            }
+        }
+        return separation;
+    }
+
+    /**
+     * Find the max separation like
+     * {@link #findMaxSeparation(EdgeResults, PolygonShape, Transform, PolygonShape, Transform)}
+     * given a lower bound of the result, e.g. the separation along the edge
+     * that was found in the last step. Edges that fall below the bound are
+     * dropped after the first vertex that proves it. The result is the same.
+     */
+    private void findMaxSeparation(EdgeResults results,
+            final PolygonShape poly1, final Transform xf1,
+            final PolygonShape poly2, final Transform xf2, float bound)
     {
         int count1 = poly1.count;
         int count2 = poly2.count;
@@ -434,6 +498,11 @@ public class Collision
                 if (sij < si)
                 {
                     si = sij;
+                    if (si < bound)
+                    {
+                        // This edge cannot be the one of max separation.
+                        break;
+                    }
                 }
             }
             if (si > maxSeparation)
@@ -536,6 +605,23 @@ public class Collision
     public final void collidePolygons(Manifold manifold,
             final PolygonShape polyA, final Transform xfA,
             final PolygonShape polyB, final Transform xfB)
+    {
+        collidePolygons(manifold, polyA, xfA, polyB, xfB, null);
+    }
+
+    /**
+     * Compute the collision manifold between two polygons, using the edges of
+     * max separation of the last call for the same pair. An edge that still
+     * separates the polygons ends the test early. Otherwise its separation
+     * bounds the search for the new edges. The manifold is the same as without
+     * a cache.
+     *
+     * @param cache The separation cache of the polygon pair, or null.
+     */
+    public final void collidePolygons(Manifold manifold,
+            final PolygonShape polyA, final Transform xfA,
+            final PolygonShape polyB, final Transform xfB,
+            final SeparationCache cache)
     {
         // Find edge normal of max separation on A - return if separating axis
         // is found
@@ -546,13 +632,45 @@ public class Collision
         // Clip
         // The normal points from 1 to 2
         manifold.pointCount = 0;
-        float totalRadius = polyA.radius + polyB.radius;
-        findMaxSeparation(results1, polyA, xfA, polyB, xfB);
+        final float skinRadius = polyA.radius + polyB.radius;
+        float totalRadius = skinRadius + speculativeDistance;
+        float boundA = -Float.MAX_VALUE;
+        float boundB = -Float.MAX_VALUE;
+        if (cache != null)
+        {
+            // Shapes that were apart in the last step are usually still
+            // separated by the same edge.
+            if (cache.edgeA >= 0 && cache.edgeA < polyA.count)
+            {
+                boundA = edgeSeparation(polyA, xfA, cache.edgeA, polyB, xfB);
+                if (boundA > totalRadius)
+                {
+                    return;
+                }
+            }
+            if (cache.edgeB >= 0 && cache.edgeB < polyB.count)
+            {
+                boundB = edgeSeparation(polyB, xfB, cache.edgeB, polyA, xfA);
+                if (boundB > totalRadius)
+                {
+                    return;
+                }
+            }
+        }
+        findMaxSeparation(results1, polyA, xfA, polyB, xfB, boundA);
+        if (cache != null)
+        {
+            cache.edgeA = results1.edgeIndex;
+        }
         if (results1.separation > totalRadius)
         {
             return;
         }
-        findMaxSeparation(results2, polyB, xfB, polyA, xfA);
+        findMaxSeparation(results2, polyB, xfB, polyA, xfA, boundB);
+        if (cache != null)
+        {
+            cache.edgeB = results2.edgeIndex;
+        }
         if (results2.separation > totalRadius)
         {
             return;
@@ -613,12 +731,13 @@ public class Collision
         // Face offset
         // float frontOffset = Vec2.dot(normal, v11);
         float frontOffset = normalx * v11.x + normaly * v11.y;
-        // Side offsets, extended by polytope skin thickness.
+        // Side offsets, extended by polytope skin thickness. The speculative
+        // distance does not widen the reference face.
         // float sideOffset1 = -Vec2.dot(tangent, v11) + totalRadius;
         // float sideOffset2 = Vec2.dot(tangent, v12) + totalRadius;
         float sideOffset1 = -(tangent.x * v11.x + tangent.y * v11.y)
-                + totalRadius;
-        float sideOffset2 = tangent.x * v12.x + tangent.y * v12.y + totalRadius;
+                + skinRadius;
+        float sideOffset2 = tangent.x * v12.x + tangent.y * v12.y + skinRadius;
         // Clip incident edge against extruded edge1 side edges.
         // ClipVertex clipPoints1[2];
         // ClipVertex clipPoints2[2];
@@ -698,7 +817,7 @@ public class Collision
         // Barycentric coordinates
         float u = Vec2.dot(e, temp.set(B).subLocal(Q));
         float v = Vec2.dot(e, temp.set(Q).subLocal(A));
-        float radius = edgeA.radius + circleB.radius;
+        float radius = edgeA.radius + circleB.radius + speculativeDistance;
         // ContactFeature cf;
         cf.indexB = 0;
         cf.typeB = (byte) ContactID.Type.VERTEX.ordinal();
@@ -816,6 +935,30 @@ public class Collision
         public int edgeIndex;
     }
 
+    /**
+     * The edges of max separation of a polygon pair from the last collision
+     * test, see
+     * {@link Collision#collidePolygons(Manifold, PolygonShape, Transform, PolygonShape, Transform, SeparationCache)}.
+     */
+    public static class SeparationCache
+    {
+        /**
+         * The edge of polygon A, or -1 if unknown.
+         */
+        public int edgeA = -1;
+
+        /**
+         * The edge of polygon B, or -1 if unknown.
+         */
+        public int edgeB = -1;
+
+        public void reset()
+        {
+            edgeA = -1;
+            edgeB = -1;
+        }
+    }
+
     /**
      * Used for computing contact manifolds.
      */
@@ -970,6 +1113,8 @@ public class Collision
 
         float radius;
 
+        float speculativeDistance;
+
         boolean front;
 
         public EPCollider()
@@ -1256,7 +1401,7 @@ public class Collision
                 Rot.mulToOutUnsafe(xf.q, polygonB.normals[i],
                         this.polygonB.normals[i]);
             }
-            radius = 2.0f * Settings.polygonRadius;
+            radius = 2.0f * Settings.polygonRadius + speculativeDistance;
             manifold.pointCount = 0;
             computeEdgeSeparation(edgeAxis);
             // If no valid normal can be found than this edge should not
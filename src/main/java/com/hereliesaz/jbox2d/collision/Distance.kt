@@ -25,9 +25,11 @@ package de.pirckheimer_gymnasium.jbox2d.collision;
 
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ChainShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CircleShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CompoundShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.EdgeShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.TileMapShape;
 import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
 import de.pirckheimer_gymnasium.jbox2d.common.Rot;
 import de.pirckheimer_gymnasium.jbox2d.common.Settings;
@@ -592,6 +594,25 @@ public class Distance
                 radius = edge.radius;
                 break;
 
+            case TILEMAP:
+                final TileMapShape map = (TileMapShape) shape;
+                final float size = map.getCellSize();
+                final float lx = (index % map.getColumnCount()) * size;
+                final float ly = (index / map.getColumnCount()) * size;
+                vertices[0].set(lx, ly);
+                vertices[1].set(lx + size, ly);
+                vertices[2].set(lx + size, ly + size);
+                vertices[3].set(lx, ly + size);
+                count = 4;
+                radius = map.radius;
+                break;
+
+            case COMPOUND:
+                final CompoundShape compound = (CompoundShape) shape;
+                count = compound.getChildVertices(index, vertices);
+                radius = compound.radius;
+                break;
+
             default:
                 assert (false);
             }
@@ -668,6 +689,46 @@ public class Distance
 
     private final Vec2 normal = new Vec2();
 
+    /**
+     * Does this instance keep its counters to itself until
+     * {@link #mergeCounters()}?
+     */
+    private final boolean localCounters;
+
+    private int calls;
+
+    private int iters;
+
+    private int maxIters;
+
+    public Distance()
+    {
+        this(false);
+    }
+
+    /**
+     * @param localCounters Keep the calls and iterations in counters of this
+     *     instance instead of adding them to the static counters right away,
+     *     so that it can run next to other instances.
+     */
+    public Distance(boolean localCounters)
+    {
+        this.localCounters = localCounters;
+    }
+
+    /**
+     * Add the counters of this instance to the static counters.
+     */
+    public void mergeCounters()
+    {
+        GJK_CALLS += calls;
+        GJK_ITERS += iters;
+        GJK_MAX_ITERS = MathUtils.max(GJK_MAX_ITERS, maxIters);
+        calls = 0;
+        iters = 0;
+        maxIters = 0;
+    }
+
     /**
      * Compute the closest points between two shapes. Supports any combination
      * of: CircleShape and PolygonShape. The simplex cache is input/output. On
@@ -676,7 +737,7 @@ public class Distance
     public final void distance(final DistanceOutput output,
             final SimplexCache cache, final DistanceInput input)
     {
-        GJK_CALLS++;
+        ++calls;
         final DistanceProxy proxyA = input.proxyA;
         final DistanceProxy proxyB = input.proxyB;
         Transform transformA = input.transformA;
@@ -763,7 +824,7 @@ public class Distance
             vertex.w.set(vertex.wB).subLocal(vertex.wA);
             // Iteration count is equated to the number of support point calls.
             ++iter;
-            ++GJK_ITERS;
+            ++iters;
             // Check for duplicate support points. This is the main termination
             // criteria.
             boolean duplicate = false;
@@ -784,7 +845,11 @@ public class Distance
             // New vertex is ok and needed.
             ++simplex.count;
         }
-        GJK_MAX_ITERS = MathUtils.max(GJK_MAX_ITERS, iter);
+        maxIters = MathUtils.max(maxIters, iter);
+        if (!localCounters)
+        {
+            mergeCounters();
+        }
         // Prepare output.
         simplex.getWitnessPoints(output.pointA, output.pointB);
         output.distance = MathUtils.distance(output.pointA, output.pointB);
@@ -115,9 +115,56 @@ public class TimeOfImpact
 
     private final WorldPool pool;
 
+    private final Distance distance;
+
+    private int calls;
+
+    private int iters;
+
+    private int maxIters;
+
+    private int rootIters;
+
+    private int maxRootIters;
+
     public TimeOfImpact(WorldPool argPool)
     {
         pool = argPool;
+        distance = null;
+    }
+
+    /**
+     * Create a time of impact solver with its own distance solver, so it can
+     * run next to other solvers of the same world. The solver keeps its
+     * counters to itself until {@link #mergeCounters()}, the distance solver
+     * should be created with local counters as well.
+     */
+    public TimeOfImpact(Distance argDistance)
+    {
+        pool = null;
+        distance = argDistance;
+    }
+
+    /**
+     * Add the counters of this solver and of its own distance solver, if any,
+     * to the static counters.
+     */
+    public void mergeCounters()
+    {
+        toiCalls += calls;
+        toiIters += iters;
+        toiMaxIters = MathUtils.max(toiMaxIters, maxIters);
+        toiRootIters += rootIters;
+        toiMaxRootIters = MathUtils.max(toiMaxRootIters, maxRootIters);
+        calls = 0;
+        iters = 0;
+        maxIters = 0;
+        rootIters = 0;
+        maxRootIters = 0;
+        if (distance != null)
+        {
+            distance.mergeCounters();
+        }
     }
 
     /**
@@ -135,10 +182,26 @@ public class TimeOfImpact
      * @repolink https://github.com/erincatto/box2d/blob/411acc32eb6d4f2e96fc70ddbdf01fe5f9b16230/src/collision/b2_time_of_impact.cpp#L258-L490
      */
     public final void timeOfImpact(TOIOutput output, TOIInput input)
+    {
+        cache.count = 0;
+        timeOfImpact(output, input, cache);
+    }
+
+    /**
+     * Compute the time of impact like {@link #timeOfImpact(TOIOutput,
+     * TOIInput)}, but start the distance queries from a simplex cache of an
+     * earlier call for the same pair of proxies. When the shapes move
+     * coherently the cached simplex is close to the solution.
+     *
+     * @param cache The simplex cache of the proxy pair, with a count of zero if
+     *     there is no earlier result. It receives the last simplex.
+     */
+    public final void timeOfImpact(TOIOutput output, TOIInput input,
+            SimplexCache cache)
     {
         // CCD via the local separating axis method. This seeks progression
         // by computing the largest time at which separation is maintained.
-        ++toiCalls;
+        ++calls;
         output.state = TOIOutputState.UNKNOWN;
         output.t = input.tMax;
         final DistanceProxy proxyA = input.proxyA;
@@ -158,7 +221,6 @@ public class TimeOfImpact
         assert (target > tolerance);
         float t1 = 0f;
         int iter = 0;
-        cache.count = 0;
         distanceInput.proxyA = input.proxyA;
         distanceInput.proxyB = input.proxyB;
         distanceInput.useRadii = false;
@@ -174,7 +236,8 @@ public class TimeOfImpact
             // to get a separating axis
             distanceInput.transformA = xfA;
             distanceInput.transformB = xfB;
-            pool.getDistance().distance(distanceOutput, cache, distanceInput);
+            (distance != null ? distance : pool.getDistance())
+                    .distance(distanceOutput, cache, distanceInput);
             // System.out.printf("Dist: %f at points %f, %f and %f, %f. %d
             // iterations\n",
             // distanceOutput.distance, distanceOutput.pointA.x,
@@ -270,7 +333,7 @@ public class TimeOfImpact
                         t = 0.5f * (a1 + a2);
                     }
                     ++rootIterCount;
-                    ++toiRootIters;
+                    ++rootIters;
                     float s = fcn.evaluate(indexes[0], indexes[1], t);
                     if (MathUtils.abs(s - target) < tolerance)
                     {
@@ -294,7 +357,7 @@ public class TimeOfImpact
                         break;
                     }
                 }
-                toiMaxRootIters = MathUtils.max(toiMaxRootIters, rootIterCount);
+                maxRootIters = MathUtils.max(maxRootIters, rootIterCount);
                 ++pushBackIter;
                 if (pushBackIter == Settings.maxPolygonVertices
                         || rootIterCount == MAX_ROOT_ITERATIONS)
@@ -303,7 +366,7 @@ public class TimeOfImpact
                 }
             }
             ++iter;
-            ++toiIters;
+            ++iters;
             if (done)
             {
                 // System.out.println("done");
@@ -319,7 +382,11 @@ public class TimeOfImpact
             }
         }
         // System.out.printf("final sweeps: %f, %f, %f; %f, %f, %f", input.s)
-        toiMaxIters = MathUtils.max(toiMaxIters, iter);
+        maxIters = MathUtils.max(maxIters, iter);
+        if (pool != null)
+        {
+            mergeCounters();
+        }
     }
 }
 
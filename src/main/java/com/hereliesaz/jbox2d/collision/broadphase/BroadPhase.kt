@@ -26,7 +26,9 @@ package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.PairCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
@@ -70,6 +72,12 @@ public interface BroadPhase
      */
     int createProxy(AABB aabb, Object userData);
 
+    /**
+     * Create a proxy that is marked as static or dynamic. Static proxies never
+     * form pairs with each other.
+     */
+    int createProxy(AABB aabb, Object userData, boolean isStatic);
+
     /**
      * Destroy a proxy. It is up to the client to remove any pairs.
      */
@@ -126,6 +134,20 @@ public interface BroadPhase
      */
     void raycast(TreeRayCastCallback callback, RayCastInput input);
 
+    /**
+     * Ray-cast a batch of rays, see
+     * {@link BroadPhaseStrategy#raycast(TreeRayPacketCallback, float[], float[], int, int)}.
+     */
+    void raycast(TreeRayPacketCallback callback, float[] rays,
+            float[] maxFractions, int start, int end);
+
+    /**
+     * Query a batch of AABBs, see
+     * {@link BroadPhaseStrategy#query(TreeQueryPacketCallback, float[], int, int)}.
+     */
+    void query(TreeQueryPacketCallback callback, float[] aabbs, int start,
+            int end);
+
     /**
      * Get the height of the embedded tree.
      *
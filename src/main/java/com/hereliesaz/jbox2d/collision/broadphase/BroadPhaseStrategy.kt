@@ -25,7 +25,9 @@ package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
 
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
@@ -84,6 +86,29 @@ public interface BroadPhaseStrategy
      */
     void raycast(TreeRayCastCallback callback, RayCastInput input);
 
+    /**
+     * Ray-cast a batch of rays. Ray i runs from (rays[4i], rays[4i + 1]) to
+     * (rays[4i + 2], rays[4i + 3]) and is clipped to maxFractions[i], which is
+     * lowered whenever the callback clips the ray. Rays with a maximum fraction
+     * of zero are skipped. Disjoint ranges of a batch may be cast from several
+     * threads at once.
+     *
+     * @param start The index of the first ray.
+     * @param end The index after the last ray.
+     */
+    void raycast(TreeRayPacketCallback callback, float[] rays,
+            float[] maxFractions, int start, int end);
+
+    /**
+     * Query a batch of AABBs packed as lower x, lower y, upper x, upper y.
+     * Disjoint ranges of a batch may be queried from several threads at once.
+     *
+     * @param start The index of the first AABB.
+     * @param end The index after the last AABB.
+     */
+    void query(TreeQueryPacketCallback callback, float[] aabbs, int start,
+            int end);
+
     /**
      * Compute the height of the tree.
      */
@@ -107,5 +132,20 @@ public interface BroadPhaseStrategy
      */
     float getAreaRatio();
 
+    /**
+     * Rebuild the whole structure from scratch for best query performance.
+     * Proxy ids and fat AABBs are preserved. This is expensive and should only
+     * be called when the quality has degraded noticeably.
+     */
+    void rebuild();
+
+    /**
+     * Spend a bounded amount of work on incrementally improving the structure.
+     * Called once per step by the broad-phase.
+     *
+     * @param maxNodes The maximum number of nodes to visit.
+     */
+    void optimize(int maxNodes);
+
     void drawTree(DebugDraw draw);
 }
@@ -24,13 +24,20 @@
 package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
 
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.PairCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.RadixSort;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.TaskBatch;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
 
 /**
@@ -39,12 +46,32 @@ import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
  * potentially new pairs. It is up to the client to consume the new pairs and to
  * track subsequent overlap.
  *
+ * Static proxies live in their own tree. It is rebuilt with the surface area
+ * heuristic after bulk changes and is only queried by moved dynamic proxies,
+ * so static-static pairs are never generated. The lowest bit of a proxy id
+ * tells which tree the proxy belongs to.
+ *
  * @author Daniel Murphy
  */
 public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
 {
     private final BroadPhaseStrategy tree;
 
+    private final BroadPhaseStrategy staticTree;
+
+    private int staticProxyCount;
+
+    /**
+     * Static proxies created, destroyed or moved since the last rebuild of the
+     * static tree.
+     */
+    private int staticChanges;
+
+    /**
+     * The tree bit of the proxies reported to treeCallback.
+     */
+    private int queryTreeBit;
+
     private int proxyCount;
 
     private int[] moveBuffer;
@@ -61,7 +88,49 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
 
     private int queryProxyId;
 
+    /**
+     * Scratch buffer for the radix sort of the pairs.
+     */
+    private long[] sortBuffer = new long[0];
+
+    private final int[] sortHistograms = new int[RadixSort.HISTOGRAM_LENGTH];
+
+    /**
+     * Below this many pairs a comparison sort is faster than a radix sort.
+     */
+    private static final int RADIX_SORT_THRESHOLD = 256;
+
+    /**
+     * Below this many moved proxies per worker the pairs are found on the
+     * calling thread.
+     */
+    private static final int MIN_MOVES_PER_WORKER = 256;
+
+    private Executor executor;
+
+    private PairWorker[] workers = new PairWorker[0];
+
+    private Runnable[] workerTasks = new Runnable[0];
+
+    /**
+     * The area ratio at the first quality check after the last rebuild, or
+     * zero if it still has to be measured.
+     */
+    private float referenceAreaRatio;
+
+    private int stepsSinceQualityCheck;
+
     public DefaultBroadPhaseBuffer(BroadPhaseStrategy strategy)
+    {
+        this(strategy, new DynamicTree());
+    }
+
+    /**
+     * @param strategy The structure for the dynamic proxies.
+     * @param staticStrategy The structure for the static proxies.
+     */
+    public DefaultBroadPhaseBuffer(BroadPhaseStrategy strategy,
+            BroadPhaseStrategy staticStrategy)
     {
         proxyCount = 0;
         pairCapacity = 16;
@@ -75,13 +144,41 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
         moveCount = 0;
         moveBuffer = new int[moveCapacity];
         tree = strategy;
+        staticTree = staticStrategy;
         queryProxyId = NULL_PROXY;
     }
 
+    private static boolean isStatic(int proxyId)
+    {
+        return (proxyId & 1) != 0;
+    }
+
+    private BroadPhaseStrategy treeOf(int proxyId)
+    {
+        return (proxyId & 1) != 0 ? staticTree : tree;
+    }
+
     @Override
     public final int createProxy(final AABB aabb, Object userData)
     {
-        int proxyId = tree.createProxy(aabb, userData);
+        return createProxy(aabb, userData, false);
+    }
+
+    @Override
+    public final int createProxy(final AABB aabb, Object userData,
+            boolean isStatic)
+    {
+        int proxyId;
+        if (isStatic)
+        {
+            proxyId = staticTree.createProxy(aabb, userData) << 1 | 1;
+            ++staticProxyCount;
+            ++staticChanges;
+        }
+        else
+        {
+            proxyId = tree.createProxy(aabb, userData) << 1;
+        }
         ++proxyCount;
         bufferMove(proxyId);
         return proxyId;
@@ -92,16 +189,26 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
     {
         unbufferMove(proxyId);
         --proxyCount;
-        tree.destroyProxy(proxyId);
+        if (isStatic(proxyId))
+        {
+            --staticProxyCount;
+            ++staticChanges;
+        }
+        treeOf(proxyId).destroyProxy(proxyId >> 1);
     }
 
     @Override
     public final void moveProxy(int proxyId, final AABB aabb,
             final Vec2 displacement)
     {
-        boolean buffer = tree.moveProxy(proxyId, aabb, displacement);
+        boolean buffer = treeOf(proxyId).moveProxy(proxyId >> 1, aabb,
+                displacement);
         if (buffer)
         {
+            if (isStatic(proxyId))
+            {
+                ++staticChanges;
+            }
             bufferMove(proxyId);
         }
     }
@@ -115,13 +222,13 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
     @Override
     public Object getUserData(int proxyId)
     {
-        return tree.getUserData(proxyId);
+        return treeOf(proxyId).getUserData(proxyId >> 1);
     }
 
     @Override
     public AABB getFatAABB(int proxyId)
     {
-        return tree.getFatAABB(proxyId);
+        return treeOf(proxyId).getFatAABB(proxyId >> 1);
     }
 
     @Override
@@ -129,8 +236,8 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
     {
         // return AABB.testOverlap(proxyA.aabb, proxyB.aabb);
         // return tree.overlap(proxyIdA, proxyIdB);
-        final AABB a = tree.getFatAABB(proxyIdA);
-        final AABB b = tree.getFatAABB(proxyIdB);
+        final AABB a = getFatAABB(proxyIdA);
+        final AABB b = getFatAABB(proxyIdB);
         if (b.lowerBound.x - a.upperBound.x > 0.0f
                 || b.lowerBound.y - a.upperBound.y > 0.0f)
         {
@@ -149,41 +256,61 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
     @Override
     public void drawTree(DebugDraw argDraw)
     {
+        staticTree.drawTree(argDraw);
         tree.drawTree(argDraw);
     }
 
+    /**
+     * Find pairs on the given executor when many proxies moved. Each worker
+     * queries the trees for a slice of the moved proxies and collects its own
+     * pairs, which are merged and sorted afterwards, so the pairs are reported
+     * in the same order as without workers. The strategies must support
+     * concurrent batched queries, which the trees do.
+     *
+     * @param executor The executor for the workers, or null to find all pairs
+     *     on the calling thread.
+     * @param workerCount The maximum number of workers.
+     */
+    public void setExecutor(Executor executor, int workerCount)
+    {
+        this.executor = executor;
+        workers = new PairWorker[executor == null ? 0 : workerCount];
+        workerTasks = new Runnable[workers.length];
+        for (int i = 0; i < workers.length; ++i)
+        {
+            workers[i] = new PairWorker();
+            workerTasks[i] = workers[i];
+        }
+    }
+
     @Override
     public final void updatePairs(PairCallback callback)
     {
+        optimizeTree();
         // Reset pair buffer
         pairCount = 0;
-        // Perform tree queries for all moving proxies.
-        for (int i = 0; i < moveCount; ++i)
+        final int workerCount = MathUtils.min(workers.length,
+                moveCount / MIN_MOVES_PER_WORKER);
+        if (workerCount > 1)
         {
-            queryProxyId = moveBuffer[i];
-            if (queryProxyId == NULL_PROXY)
-            {
-                continue;
-            }
-            // We have to query the tree with the fat AABB so that
-            // we don't fail to create a pair that may touch later.
-            final AABB fatAABB = tree.getFatAABB(queryProxyId);
-            // Query tree, create pairs and add them pair buffer.
-            // log.debug("quering aabb: "+queryProxy.aabb);
-            tree.query(this, fatAABB);
+            findPairsParallel(workerCount);
+        }
+        else
+        {
+            findPairs();
         }
         // log.debug("Number of pairs found: "+pairCount);
         // Reset move buffer
         moveCount = 0;
         // Sort the pair buffer to expose duplicates.
-        Arrays.sort(pairBuffer, 0, pairCount);
+        sortPairs();
         // Send the pairs back to the client.
         int i = 0;
         while (i < pairCount)
         {
             long primaryPair = pairBuffer[i];
-            Object userDataA = tree.getUserData((int) (primaryPair >> 32));
-            Object userDataB = tree.getUserData((int) (primaryPair));
+            Object userDataA = getUserData((int) (primaryPair >> 32));
+            Object userDataB = getUserData((int) (primaryPair));
             // log.debug("returning pair: "+userDataA+", "+userDataB);
             callback.addPair(userDataA, userDataB);
             ++i;
@@ -200,17 +327,374 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
         }
     }
 
+    private void findPairs()
+    {
+        // Perform tree queries for all moving proxies.
+        for (int i = 0; i < moveCount; ++i)
+        {
+            queryProxyId = moveBuffer[i];
+            if (queryProxyId == NULL_PROXY)
+            {
+                continue;
+            }
+            // We have to query the tree with the fat AABB so that
+            // we don't fail to create a pair that may touch later.
+            final AABB fatAABB = getFatAABB(queryProxyId);
+            // Query tree, create pairs and add them pair buffer.
+            // log.debug("quering aabb: "+queryProxy.aabb);
+            queryTreeBit = 0;
+            tree.query(this, fatAABB);
+            if (!isStatic(queryProxyId))
+            {
+                queryTreeBit = 1;
+                staticTree.query(this, fatAABB);
+            }
+        }
+    }
+
+    private void findPairsParallel(int workerCount)
+    {
+        final int slice = (moveCount + workerCount - 1) / workerCount;
+        for (int i = 0; i < workerCount; ++i)
+        {
+            workers[i].start = i * slice;
+            workers[i].end = MathUtils.min(moveCount, (i + 1) * slice);
+        }
+        TaskBatch.run(executor, workerTasks, workerCount);
+        // Merge the worker buffers.
+        int total = 0;
+        for (int i = 0; i < workerCount; ++i)
+        {
+            total += workers[i].pairCount;
+        }
+        if (total > pairCapacity)
+        {
+            pairCapacity = MathUtils.max(total, pairCapacity * 2);
+            pairBuffer = new long[pairCapacity];
+        }
+        for (int i = 0; i < workerCount; ++i)
+        {
+            final PairWorker worker = workers[i];
+            System.arraycopy(worker.pairs, 0, pairBuffer, pairCount,
+                    worker.pairCount);
+            pairCount += worker.pairCount;
+        }
+    }
+
+    private void sortPairs()
+    {
+        if (pairCount < RADIX_SORT_THRESHOLD)
+        {
+            Arrays.sort(pairBuffer, 0, pairCount);
+            return;
+        }
+        if (sortBuffer.length < pairCount)
+        {
+            sortBuffer = new long[pairBuffer.length];
+        }
+        final long[] sorted = RadixSort.sort(pairBuffer, sortBuffer,
+                sortHistograms, pairCount);
+        if (sorted != pairBuffer)
+        {
+            sortBuffer = pairBuffer;
+            pairBuffer = sorted;
+            pairCapacity = sorted.length;
+        }
+    }
+
+    /**
+     * Finds the pairs of a slice of the move buffer with its own pair buffer.
+     */
+    private final class PairWorker implements Runnable, TreeQueryPacketCallback
+    {
+        int start;
+
+        int end;
+
+        long[] pairs = new long[64];
+
+        int pairCount;
+
+        /**
+         * The fat AABBs of the slice, packed for the batched tree query.
+         */
+        float[] aabbs = new float[64];
+
+        int treeBit;
+
+        @Override
+        public void run()
+        {
+            pairCount = 0;
+            final int count = end - start;
+            if (aabbs.length < 4 * count)
+            {
+                aabbs = new float[4 * count];
+            }
+            boolean hasStaticMoves = false;
+            for (int i = 0; i < count; ++i)
+            {
+                final int proxyId = moveBuffer[start + i];
+                if (proxyId == NULL_PROXY)
+                {
+                    setEmpty(i);
+                    continue;
+                }
+                hasStaticMoves |= isStatic(proxyId);
+                final AABB fatAABB = getFatAABB(proxyId);
+                aabbs[4 * i] = fatAABB.lowerBound.x;
+                aabbs[4 * i + 1] = fatAABB.lowerBound.y;
+                aabbs[4 * i + 2] = fatAABB.upperBound.x;
+                aabbs[4 * i + 3] = fatAABB.upperBound.y;
+            }
+            treeBit = 0;
+            tree.query(this, aabbs, 0, count);
+            if (hasStaticMoves)
+            {
+                // Static proxies do not query the static tree.
+                for (int i = 0; i < count; ++i)
+                {
+                    final int proxyId = moveBuffer[start + i];
+                    if (proxyId != NULL_PROXY && isStatic(proxyId))
+                    {
+                        setEmpty(i);
+                    }
+                }
+            }
+            treeBit = 1;
+            staticTree.query(this, aabbs, 0, count);
+        }
+
+        /**
+         * An inverted box overlaps nothing.
+         */
+        private void setEmpty(int i)
+        {
+            aabbs[4 * i] = Float.MAX_VALUE;
+            aabbs[4 * i + 1] = Float.MAX_VALUE;
+            aabbs[4 * i + 2] = -Float.MAX_VALUE;
+            aabbs[4 * i + 3] = -Float.MAX_VALUE;
+        }
+
+        @Override
+        public boolean treeCallback(int proxyId, int queryIndex)
+        {
+            proxyId = proxyId << 1 | treeBit;
+            final int queryId = moveBuffer[start + queryIndex];
+            // A proxy cannot form a pair with itself.
+            if (proxyId == queryId)
+            {
+                return true;
+            }
+            if (pairCount == pairs.length)
+            {
+                long[] oldBuffer = pairs;
+                pairs = new long[pairCount * 2];
+                System.arraycopy(oldBuffer, 0, pairs, 0, pairCount);
+            }
+            if (proxyId < queryId)
+            {
+                pairs[pairCount] = ((long) proxyId << 32) | queryId;
+            }
+            else
+            {
+                pairs[pairCount] = ((long) queryId << 32) | proxyId;
+            }
+            ++pairCount;
+            return true;
+        }
+    }
+
     @Override
     public final void query(final TreeCallback callback, final AABB aabb)
     {
-        tree.query(callback, aabb);
+        queryWrapper.callback = callback;
+        queryWrapper.treeBit = 0;
+        tree.query(queryWrapper, aabb);
+        if (!queryWrapper.terminated)
+        {
+            queryWrapper.treeBit = 1;
+            staticTree.query(queryWrapper, aabb);
+        }
+        queryWrapper.callback = null;
+        queryWrapper.terminated = false;
     }
 
     @Override
     public final void raycast(final TreeRayCastCallback callback,
             final RayCastInput input)
     {
-        tree.raycast(callback, input);
+        queryWrapper.rayCallback = callback;
+        queryWrapper.treeBit = 0;
+        queryWrapper.maxFraction = input.maxFraction;
+        tree.raycast(queryWrapper, input);
+        if (!queryWrapper.terminated)
+        {
+            // Clip the ray against the closest hit in the dynamic tree.
+            staticInput.p1.set(input.p1);
+            staticInput.p2.set(input.p2);
+            staticInput.maxFraction = queryWrapper.maxFraction;
+            queryWrapper.treeBit = 1;
+            staticTree.raycast(queryWrapper, staticInput);
+        }
+        queryWrapper.rayCallback = null;
+        queryWrapper.terminated = false;
+    }
+
+    /**
+     * Casts the batch into the dynamic tree and then into the static tree,
+     * where each ray is already clipped to its closest dynamic hit.
+     */
+    @Override
+    public void raycast(TreeRayPacketCallback callback, float[] rays,
+            float[] maxFractions, int start, int end)
+    {
+        final PacketWrapper wrapper = new PacketWrapper();
+        wrapper.rayCallback = callback;
+        tree.raycast(wrapper, rays, maxFractions, start, end);
+        wrapper.treeBit = 1;
+        staticTree.raycast(wrapper, rays, maxFractions, start, end);
+    }
+
+    @Override
+    public void query(TreeQueryPacketCallback callback, float[] aabbs,
+            int start, int end)
+    {
+        final PacketWrapper wrapper = new PacketWrapper();
+        wrapper.queryCallback = callback;
+        wrapper.start = start;
+        wrapper.terminated = new boolean[end - start];
+        tree.query(wrapper, aabbs, start, end);
+        wrapper.treeBit = 1;
+        staticTree.query(wrapper, aabbs, start, end);
+    }
+
+    /**
+     * Turns the tree local ids of a batch into broad-phase proxy ids. Created
+     * per batch, so batches can run concurrently.
+     */
+    private static final class PacketWrapper
+            implements TreeQueryPacketCallback, TreeRayPacketCallback
+    {
+        TreeQueryPacketCallback queryCallback;
+
+        TreeRayPacketCallback rayCallback;
+
+        int treeBit;
+
+        int start;
+
+        /**
+         * Queries the client stopped in the dynamic tree.
+         */
+        boolean[] terminated;
+
+        @Override
+        public boolean treeCallback(int proxyId, int queryIndex)
+        {
+            if (terminated[queryIndex - start])
+            {
+                return false;
+            }
+            if (queryCallback.treeCallback(proxyId << 1 | treeBit, queryIndex))
+            {
+                return true;
+            }
+            terminated[queryIndex - start] = true;
+            return false;
+        }
+
+        @Override
+        public float raycastCallback(RayCastInput input, int proxyId,
+                int rayIndex)
+        {
+            return rayCallback.raycastCallback(input, proxyId << 1 | treeBit,
+                    rayIndex);
+        }
+    }
+
+    private final RayCastInput staticInput = new RayCastInput();
+
+    private final TreeQueryWrapper queryWrapper = new TreeQueryWrapper();
+
+    /**
+     * Turns the tree local ids into broad-phase proxy ids for the client
+     * callbacks and remembers whether the client stopped the traversal.
+     */
+    private static final class TreeQueryWrapper
+            implements TreeCallback, TreeRayCastCallback
+    {
+        TreeCallback callback;
+
+        TreeRayCastCallback rayCallback;
+
+        int treeBit;
+
+        boolean terminated;
+
+        float maxFraction;
+
+        @Override
+        public boolean treeCallback(int proxyId)
+        {
+            if (callback.treeCallback(proxyId << 1 | treeBit))
+            {
+                return true;
+            }
+            terminated = true;
+            return false;
+        }
+
+        @Override
+        public float raycastCallback(RayCastInput input, int nodeId)
+        {
+            float value = rayCallback.raycastCallback(input,
+                    nodeId << 1 | treeBit);
+            if (value == 0.0f)
+            {
+                terminated = true;
+            }
+            else if (value > 0.0f)
+            {
+                maxFraction = value;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Rebuild the static tree after bulk changes. Let both trees swap in a
+     * finished background rebuild, spend the per-step rotation budget, if any,
+     * on the dynamic tree and rebuild it when its quality has degraded too
+     * far.
+     */
+    private void optimizeTree()
+    {
+        if (staticChanges > 0 && staticChanges >= staticProxyCount
+                * Settings.staticTreeRebuildFraction)
+        {
+            staticTree.rebuild();
+            staticChanges = 0;
+        }
+        // Also called without a budget, since it commits pending rebuilds.
+        staticTree.optimize(0);
+        tree.optimize(Settings.treeRotationBudget);
+        if (Settings.treeRebuildAreaRatio <= 0
+                || ++stepsSinceQualityCheck < Settings.treeQualityCheckInterval)
+        {
+            return;
+        }
+        stepsSinceQualityCheck = 0;
+        float areaRatio = tree.getAreaRatio();
+        if (referenceAreaRatio == 0)
+        {
+            referenceAreaRatio = areaRatio;
+        }
+        else if (areaRatio > referenceAreaRatio * Settings.treeRebuildAreaRatio)
+        {
+            tree.rebuild();
+            referenceAreaRatio = 0;
+        }
     }
 
     @Override
@@ -260,6 +744,7 @@ public class DefaultBroadPhaseBuffer implements TreeCallback, BroadPhase
      */
     public final boolean treeCallback(int proxyId)
     {
+        proxyId = proxyId << 1 | queryTreeBit;
         // A proxy cannot form a pair with itself.
         if (proxyId == queryProxyId)
         {
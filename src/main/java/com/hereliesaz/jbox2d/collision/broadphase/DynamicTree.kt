@@ -25,7 +25,10 @@ package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
 
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.common.BufferUtils;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.common.Color3f;
@@ -333,6 +336,102 @@ public class DynamicTree implements BroadPhaseStrategy
         }
     }
 
+    @Override
+    public void raycast(TreeRayPacketCallback callback, float[] rays,
+            float[] maxFractions, int start, int end)
+    {
+        if (root == null)
+        {
+            return;
+        }
+        final RayPacket packet = new RayPacket();
+        DynamicTreeNode[] stack = new DynamicTreeNode[32];
+        int[] masks = new int[32];
+        for (int base = start; base < end; base += RayPacket.SIZE)
+        {
+            int top = 0;
+            stack[top] = root;
+            masks[top++] = packet.loadRays(rays, maxFractions, base,
+                    MathUtils.min(end, base + RayPacket.SIZE));
+            while (top > 0 && packet.active != 0)
+            {
+                final DynamicTreeNode node = stack[--top];
+                final int mask = packet.overlapRays(node.aabb,
+                        masks[top] & packet.active);
+                if (mask == 0)
+                {
+                    continue;
+                }
+                if (node.child1 == null)
+                {
+                    packet.reportRays(callback, node.id, mask, maxFractions);
+                    continue;
+                }
+                if (top + 2 > stack.length)
+                {
+                    DynamicTreeNode[] newStack = new DynamicTreeNode[stack.length
+                            * 2];
+                    System.arraycopy(stack, 0, newStack, 0, stack.length);
+                    stack = newStack;
+                    masks = BufferUtils.reallocateBuffer(masks, masks.length,
+                            masks.length * 2);
+                }
+                stack[top] = node.child1;
+                masks[top++] = mask;
+                stack[top] = node.child2;
+                masks[top++] = mask;
+            }
+        }
+    }
+
+    @Override
+    public void query(TreeQueryPacketCallback callback, float[] aabbs,
+            int start, int end)
+    {
+        if (root == null)
+        {
+            return;
+        }
+        final RayPacket packet = new RayPacket();
+        DynamicTreeNode[] stack = new DynamicTreeNode[32];
+        int[] masks = new int[32];
+        for (int base = start; base < end; base += RayPacket.SIZE)
+        {
+            int top = 0;
+            stack[top] = root;
+            masks[top++] = packet.loadBoxes(aabbs, base,
+                    MathUtils.min(end, base + RayPacket.SIZE));
+            while (top > 0 && packet.active != 0)
+            {
+                final DynamicTreeNode node = stack[--top];
+                final int mask = packet.overlapBoxes(node.aabb,
+                        masks[top] & packet.active);
+                if (mask == 0)
+                {
+                    continue;
+                }
+                if (node.child1 == null)
+                {
+                    packet.reportBoxes(callback, node.id, mask);
+                    continue;
+                }
+                if (top + 2 > stack.length)
+                {
+                    DynamicTreeNode[] newStack = new DynamicTreeNode[stack.length
+                            * 2];
+                    System.arraycopy(stack, 0, newStack, 0, stack.length);
+                    stack = newStack;
+                    masks = BufferUtils.reallocateBuffer(masks, masks.length,
+                            masks.length * 2);
+                }
+                stack[top] = node.child1;
+                masks[top++] = mask;
+                stack[top] = node.child2;
+                masks[top++] = mask;
+            }
+        }
+    }
+
     @Override
     public final int computeHeight()
     {
@@ -493,6 +592,261 @@ public class DynamicTree implements BroadPhaseStrategy
         validate();
     }
 
+    private SAHTreeBuilder builder;
+
+    private DynamicTreeNode[] topologyMap = new DynamicTreeNode[16];
+
+    private int optimizeCursor;
+
+    /**
+     * Rebuild the tree top-down with a binned surface area heuristic. Proxy
+     * ids and fat AABBs are preserved.
+     */
+    @Override
+    public void rebuild()
+    {
+        if (builder == null)
+        {
+            builder = new SAHTreeBuilder(nodeCount / 2 + 1);
+        }
+        builder.reset(nodeCount / 2 + 1);
+        for (int i = 0; i < nodeCapacity; ++i)
+        {
+            final DynamicTreeNode node = nodes[i];
+            if (node.height < 0)
+            {
+                continue;
+            }
+            if (node.child1 == null)
+            {
+                builder.addLeaf(i, node.aabb);
+            }
+            else
+            {
+                freeNode(node);
+            }
+        }
+        builder.build();
+        final int count = builder.getNodeCount();
+        final int sourceRoot = builder.getRoot();
+        if (sourceRoot == SAHTreeBuilder.NULL_NODE)
+        {
+            root = null;
+            return;
+        }
+        if (SAHTreeBuilder.isLeaf(sourceRoot))
+        {
+            root = nodes[SAHTreeBuilder.getLeafId(sourceRoot)];
+            root.parent = null;
+            return;
+        }
+        if (topologyMap.length < count)
+        {
+            topologyMap = new DynamicTreeNode[count];
+        }
+        for (int i = 0; i < count; ++i)
+        {
+            topologyMap[i] = allocateNode();
+        }
+        root = topologyMap[0];
+        // Children have larger indices than their parents, so walking
+        // backwards refits every node after its children.
+        for (int i = count - 1; i >= 0; --i)
+        {
+            final DynamicTreeNode node = topologyMap[i];
+            node.child1 = mapChild(builder.getChild1(i));
+            node.child2 = mapChild(builder.getChild2(i));
+            node.child1.parent = node;
+            node.child2.parent = node;
+            refit(node);
+        }
+        optimizeCursor = 0;
+    }
+
+    private DynamicTreeNode mapChild(int child)
+    {
+        return SAHTreeBuilder.isLeaf(child)
+                ? nodes[SAHTreeBuilder.getLeafId(child)]
+                : topologyMap[child];
+    }
+
+    /**
+     * Incrementally improve the tree by visiting up to the given number of
+     * node slots and applying the tree rotation that reduces the surface area
+     * the most at each internal node.
+     *
+     * @param maxNodes The number of node slots to visit during this call.
+     */
+    @Override
+    public void optimize(int maxNodes)
+    {
+        if (nodeCount < 3)
+        {
+            return;
+        }
+        int visits = MathUtils.min(maxNodes, nodeCapacity);
+        while (visits-- > 0)
+        {
+            if (optimizeCursor >= nodeCapacity)
+            {
+                optimizeCursor = 0;
+            }
+            final DynamicTreeNode node = nodes[optimizeCursor++];
+            if (node.height >= 2 && rotate(node))
+            {
+                // The bounds of the rotated node stay the same, only the
+                // heights above it can change.
+                DynamicTreeNode index = node.parent;
+                while (index != null)
+                {
+                    int newHeight = 1 + MathUtils.max(index.child1.height,
+                            index.child2.height);
+                    if (newHeight == index.height)
+                    {
+                        break;
+                    }
+                    index.height = newHeight;
+                    index = index.parent;
+                }
+            }
+        }
+    }
+
+    private final AABB rotationAABB1 = new AABB();
+
+    private final AABB rotationAABB2 = new AABB();
+
+    /**
+     * Perform the rotation below node A that lowers the summed perimeter of
+     * its children the most.
+     *
+     * <pre>
+     *         A
+     *       /   \
+     *      B     C
+     *     / \   / \
+     *    D   E F   G
+     * </pre>
+     *
+     * @return true if a rotation was performed.
+     */
+    private boolean rotate(DynamicTreeNode a)
+    {
+        final DynamicTreeNode b = a.child1;
+        final DynamicTreeNode c = a.child2;
+        final AABB temp = rotationAABB1;
+        final AABB temp2 = rotationAABB2;
+        float bestCost = 0.0f;
+        DynamicTreeNode swapX = null;
+        DynamicTreeNode swapY = null;
+        if (b.child1 != null)
+        {
+            bestCost += b.aabb.getPerimeter();
+        }
+        if (c.child1 != null)
+        {
+            bestCost += c.aabb.getPerimeter();
+        }
+        if (c.child1 != null)
+        {
+            final float areaB = b.child1 != null ? b.aabb.getPerimeter() : 0.0f;
+            temp.combine(b.aabb, c.child2.aabb);
+            float cost = areaB + temp.getPerimeter();
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                swapX = b;
+                swapY = c.child1;
+            }
+            temp.combine(b.aabb, c.child1.aabb);
+            cost = areaB + temp.getPerimeter();
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                swapX = b;
+                swapY = c.child2;
+            }
+        }
+        if (b.child1 != null)
+        {
+            final float areaC = c.child1 != null ? c.aabb.getPerimeter() : 0.0f;
+            temp.combine(c.aabb, b.child2.aabb);
+            float cost = areaC + temp.getPerimeter();
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                swapX = c;
+                swapY = b.child1;
+            }
+            temp.combine(c.aabb, b.child1.aabb);
+            cost = areaC + temp.getPerimeter();
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                swapX = c;
+                swapY = b.child2;
+            }
+        }
+        if (b.child1 != null && c.child1 != null)
+        {
+            temp.combine(c.child1.aabb, b.child2.aabb);
+            temp2.combine(b.child1.aabb, c.child2.aabb);
+            float cost = temp.getPerimeter() + temp2.getPerimeter();
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                swapX = b.child1;
+                swapY = c.child1;
+            }
+            temp.combine(c.child2.aabb, b.child2.aabb);
+            temp2.combine(c.child1.aabb, b.child1.aabb);
+            cost = temp.getPerimeter() + temp2.getPerimeter();
+            if (cost < bestCost)
+            {
+                swapX = b.child1;
+                swapY = c.child2;
+            }
+        }
+        if (swapX == null)
+        {
+            return false;
+        }
+        final DynamicTreeNode parentX = swapX.parent;
+        final DynamicTreeNode parentY = swapY.parent;
+        if (parentX.child1 == swapX)
+        {
+            parentX.child1 = swapY;
+        }
+        else
+        {
+            parentX.child2 = swapY;
+        }
+        if (parentY.child1 == swapY)
+        {
+            parentY.child1 = swapX;
+        }
+        else
+        {
+            parentY.child2 = swapX;
+        }
+        swapX.parent = parentY;
+        swapY.parent = parentX;
+        refit(parentY);
+        if (parentX != a)
+        {
+            refit(parentX);
+        }
+        a.height = 1 + MathUtils.max(a.child1.height, a.child2.height);
+        return true;
+    }
+
+    private void refit(DynamicTreeNode node)
+    {
+        node.aabb.combine(node.child1.aabb, node.child2.aabb);
+        node.height = 1 + MathUtils.max(node.child1.height,
+                node.child2.height);
+    }
+
     private DynamicTreeNode allocateNode()
     {
         if (freeList == NULL_NODE)
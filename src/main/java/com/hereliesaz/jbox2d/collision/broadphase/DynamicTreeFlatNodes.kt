@@ -23,9 +23,13 @@
  */
 package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
 
+import java.util.concurrent.Executor;
+
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.common.BufferUtils;
@@ -45,6 +49,20 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
 
     public static final int INITIAL_BUFFER_LENGTH = 16;
 
+    private static final int ROTATE_NONE = 0;
+
+    private static final int ROTATE_BF = 1;
+
+    private static final int ROTATE_BG = 2;
+
+    private static final int ROTATE_CD = 3;
+
+    private static final int ROTATE_CE = 4;
+
+    private static final int ROTATE_DF = 5;
+
+    private static final int ROTATE_DG = 6;
+
     public int root;
 
     public AABB[] memberAabb;
@@ -67,6 +85,22 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
 
     private final Vec2[] drawVecs = new Vec2[4];
 
+    /**
+     * Incremented whenever a leaf is created or destroyed. A background
+     * rebuild is only committed if no leaves changed in the meantime.
+     */
+    private int leafStamp;
+
+    private int optimizeCursor;
+
+    private final SAHTreeBuilder builder = new SAHTreeBuilder();
+
+    private Executor rebuildExecutor;
+
+    private SAHTreeBuilder pendingRebuild;
+
+    private int pendingStamp;
+
     public DynamicTreeFlatNodes()
     {
         root = NULL_NODE;
@@ -113,6 +147,7 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
         nodeAABB.upperBound.y = aabb.upperBound.y + Settings.aabbExtension;
         this.userData[node] = userData;
         insertLeaf(node);
+        ++leafStamp;
         return node;
     }
 
@@ -123,6 +158,7 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
         assert (child1[proxyId] == NULL_NODE);
         removeLeaf(proxyId);
         freeNode(proxyId);
+        ++leafStamp;
     }
 
     @Override
@@ -276,7 +312,7 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
         nodeStack[nodeStackIndex++] = root;
         while (nodeStackIndex > 0)
         {
-            int node = nodeStack[--nodeStackIndex] = root;
+            int node = nodeStack[--nodeStackIndex];
             if (node == NULL_NODE)
             {
                 continue;
@@ -333,12 +369,105 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
             }
             else
             {
+                if (nodeStack.length - nodeStackIndex - 2 <= 0)
+                {
+                    nodeStack = BufferUtils.reallocateBuffer(nodeStack,
+                            nodeStack.length, nodeStack.length * 2);
+                }
                 nodeStack[nodeStackIndex++] = child1;
                 nodeStack[nodeStackIndex++] = child2[node];
             }
         }
     }
 
+    @Override
+    public void raycast(TreeRayPacketCallback callback, float[] rays,
+            float[] maxFractions, int start, int end)
+    {
+        if (root == NULL_NODE)
+        {
+            return;
+        }
+        final RayPacket packet = new RayPacket();
+        int[] stack = new int[64];
+        for (int base = start; base < end; base += RayPacket.SIZE)
+        {
+            int mask = packet.loadRays(rays, maxFractions, base,
+                    MathUtils.min(end, base + RayPacket.SIZE));
+            int top = 0;
+            stack[top++] = root;
+            stack[top++] = mask;
+            while (top > 0 && packet.active != 0)
+            {
+                mask = stack[--top] & packet.active;
+                final int node = stack[--top];
+                mask = packet.overlapRays(memberAabb[node], mask);
+                if (mask == 0)
+                {
+                    continue;
+                }
+                if (child1[node] == NULL_NODE)
+                {
+                    packet.reportRays(callback, node, mask, maxFractions);
+                    continue;
+                }
+                if (top + 4 > stack.length)
+                {
+                    stack = BufferUtils.reallocateBuffer(stack, stack.length,
+                            stack.length * 2);
+                }
+                stack[top++] = child1[node];
+                stack[top++] = mask;
+                stack[top++] = child2[node];
+                stack[top++] = mask;
+            }
+        }
+    }
+
+    @Override
+    public void query(TreeQueryPacketCallback callback, float[] aabbs,
+            int start, int end)
+    {
+        if (root == NULL_NODE)
+        {
+            return;
+        }
+        final RayPacket packet = new RayPacket();
+        int[] stack = new int[64];
+        for (int base = start; base < end; base += RayPacket.SIZE)
+        {
+            int mask = packet.loadBoxes(aabbs, base,
+                    MathUtils.min(end, base + RayPacket.SIZE));
+            int top = 0;
+            stack[top++] = root;
+            stack[top++] = mask;
+            while (top > 0 && packet.active != 0)
+            {
+                mask = stack[--top] & packet.active;
+                final int node = stack[--top];
+                mask = packet.overlapBoxes(memberAabb[node], mask);
+                if (mask == 0)
+                {
+                    continue;
+                }
+                if (child1[node] == NULL_NODE)
+                {
+                    packet.reportBoxes(callback, node, mask);
+                    continue;
+                }
+                if (top + 4 > stack.length)
+                {
+                    stack = BufferUtils.reallocateBuffer(stack, stack.length,
+                            stack.length * 2);
+                }
+                stack[top++] = child1[node];
+                stack[top++] = mask;
+                stack[top++] = child2[node];
+                stack[top++] = mask;
+            }
+        }
+    }
+
     @Override
     public final int computeHeight()
     {
@@ -494,6 +623,407 @@ public class DynamicTreeFlatNodes implements BroadPhaseStrategy
     // validate();
     // }
 
+    /**
+     * Run full rebuilds on the given executor instead of on the calling
+     * thread. The rebuild works on a snapshot of the leaf bounds and is
+     * swapped in by a later call to {@link #optimize(int)}, provided no proxy
+     * was created or destroyed in the meantime. Pass null to rebuild
+     * synchronously again.
+     */
+    public void setRebuildExecutor(Executor executor)
+    {
+        rebuildExecutor = executor;
+    }
+
+    /**
+     * Is a background rebuild waiting to be swapped in?
+     */
+    public boolean isRebuildPending()
+    {
+        return pendingRebuild != null;
+    }
+
+    /**
+     * Rebuild the tree top-down with a binned surface area heuristic. Proxy
+     * ids and fat AABBs are preserved.
+     */
+    @Override
+    public void rebuild()
+    {
+        if (rebuildExecutor == null)
+        {
+            collectLeaves(builder);
+            builder.build();
+            applyTopology(builder);
+            return;
+        }
+        if (pendingRebuild != null)
+        {
+            return;
+        }
+        SAHTreeBuilder snapshot = new SAHTreeBuilder(nodeCount / 2 + 1);
+        collectLeaves(snapshot);
+        pendingRebuild = snapshot;
+        pendingStamp = leafStamp;
+        rebuildExecutor.execute(snapshot);
+    }
+
+    private void collectLeaves(SAHTreeBuilder target)
+    {
+        target.reset(nodeCount / 2 + 1);
+        for (int i = 0; i < nodeCapacity; ++i)
+        {
+            if (height[i] == 0)
+            {
+                target.addLeaf(i, memberAabb[i]);
+            }
+        }
+    }
+
+    /**
+     * Swap in the hierarchy of a finished builder. All internal nodes are
+     * replaced, the leaves keep their ids. Internal bounds are refitted from
+     * the current leaf bounds, so leaves may have moved since the builder was
+     * fed.
+     */
+    private void applyTopology(SAHTreeBuilder source)
+    {
+        for (int i = 0; i < nodeCapacity; ++i)
+        {
+            if (height[i] > 0)
+            {
+                freeNode(i);
+            }
+        }
+        final int count = source.getNodeCount();
+        final int sourceRoot = source.getRoot();
+        if (sourceRoot == SAHTreeBuilder.NULL_NODE)
+        {
+            root = NULL_NODE;
+            return;
+        }
+        if (SAHTreeBuilder.isLeaf(sourceRoot))
+        {
+            root = SAHTreeBuilder.getLeafId(sourceRoot);
+            parent[root] = NULL_NODE;
+            return;
+        }
+        if (topologyMap.length < count)
+        {
+            topologyMap = new int[count];
+        }
+        for (int i = 0; i < count; ++i)
+        {
+            topologyMap[i] = allocateNode();
+            userData[topologyMap[i]] = null;
+        }
+        root = topologyMap[0];
+        parent[root] = NULL_NODE;
+        // Children have larger indices than their parents, so walking
+        // backwards refits every node after its children.
+        for (int i = count - 1; i >= 0; --i)
+        {
+            final int node = topologyMap[i];
+            final int c1 = mapChild(source.getChild1(i));
+            final int c2 = mapChild(source.getChild2(i));
+            child1[node] = c1;
+            child2[node] = c2;
+            parent[c1] = node;
+            parent[c2] = node;
+            height[node] = 1 + MathUtils.max(height[c1], height[c2]);
+            memberAabb[node].combine(memberAabb[c1], memberAabb[c2]);
+        }
+        optimizeCursor = 0;
+    }
+
+    private int[] topologyMap = new int[16];
+
+    private int mapChild(int child)
+    {
+        return SAHTreeBuilder.isLeaf(child) ? SAHTreeBuilder.getLeafId(child)
+                : topologyMap[child];
+    }
+
+    /**
+     * Incrementally improve the tree. Swaps in a finished background rebuild
+     * and then visits up to the given number of node slots, applying the
+     * tree rotation that reduces the surface area the most at each internal
+     * node. Cheap enough to be called every step.
+     *
+     * @param maxNodes The number of node slots to visit during this call.
+     */
+    @Override
+    public void optimize(int maxNodes)
+    {
+        if (pendingRebuild != null && pendingRebuild.isComplete())
+        {
+            if (pendingStamp == leafStamp)
+            {
+                applyTopology(pendingRebuild);
+            }
+            pendingRebuild = null;
+        }
+        if (nodeCount < 3)
+        {
+            return;
+        }
+        int visits = MathUtils.min(maxNodes, nodeCapacity);
+        while (visits-- > 0)
+        {
+            if (optimizeCursor >= nodeCapacity)
+            {
+                optimizeCursor = 0;
+            }
+            final int node = optimizeCursor++;
+            if (height[node] >= 2 && rotate(node))
+            {
+                // The bounds of the rotated node stay the same, only the
+                // heights above it can change.
+                int index = parent[node];
+                while (index != NULL_NODE)
+                {
+                    int newHeight = 1 + MathUtils.max(height[child1[index]],
+                            height[child2[index]]);
+                    if (newHeight == height[index])
+                    {
+                        break;
+                    }
+                    height[index] = newHeight;
+                    index = parent[index];
+                }
+            }
+        }
+    }
+
+    private final AABB rotationAABB1 = new AABB();
+
+    private final AABB rotationAABB2 = new AABB();
+
+    /**
+     * Perform the rotation below node A that lowers the summed perimeter of
+     * its children the most. See "Fast, Effective BVH Updates for Animated
+     * Scenes" (Kopta et al.) and Box2D v3.
+     *
+     * <pre>
+     *         A
+     *       /   \
+     *      B     C
+     *     / \   / \
+     *    D   E F   G
+     * </pre>
+     *
+     * @return true if a rotation was performed.
+     */
+    private boolean rotate(int iA)
+    {
+        final int iB = child1[iA];
+        final int iC = child2[iA];
+        final AABB aabbB = memberAabb[iB];
+        final AABB aabbC = memberAabb[iC];
+        final AABB temp = rotationAABB1;
+        if (height[iB] == 0)
+        {
+            // B is a leaf and C is internal.
+            final int iF = child1[iC];
+            final int iG = child2[iC];
+            final float costBase = aabbC.getPerimeter();
+            temp.combine(aabbB, memberAabb[iG]);
+            final float costBF = temp.getPerimeter();
+            temp.combine(aabbB, memberAabb[iF]);
+            final float costBG = temp.getPerimeter();
+            if (costBase <= costBF && costBase <= costBG)
+            {
+                return false;
+            }
+            if (costBF < costBG)
+            {
+                // Swap B and F.
+                child1[iA] = iF;
+                child1[iC] = iB;
+                parent[iF] = iA;
+                parent[iB] = iC;
+                aabbC.combine(aabbB, memberAabb[iG]);
+                height[iC] = 1 + MathUtils.max(height[iB], height[iG]);
+                height[iA] = 1 + MathUtils.max(height[iC], height[iF]);
+            }
+            else
+            {
+                // Swap B and G.
+                child1[iA] = iG;
+                child2[iC] = iB;
+                parent[iG] = iA;
+                parent[iB] = iC;
+                aabbC.combine(aabbB, memberAabb[iF]);
+                height[iC] = 1 + MathUtils.max(height[iB], height[iF]);
+                height[iA] = 1 + MathUtils.max(height[iC], height[iG]);
+            }
+            return true;
+        }
+        if (height[iC] == 0)
+        {
+            // C is a leaf and B is internal.
+            final int iD = child1[iB];
+            final int iE = child2[iB];
+            final float costBase = aabbB.getPerimeter();
+            temp.combine(aabbC, memberAabb[iE]);
+            final float costCD = temp.getPerimeter();
+            temp.combine(aabbC, memberAabb[iD]);
+            final float costCE = temp.getPerimeter();
+            if (costBase <= costCD && costBase <= costCE)
+            {
+                return false;
+            }
+            if (costCD < costCE)
+            {
+                // Swap C and D.
+                child2[iA] = iD;
+                child1[iB] = iC;
+                parent[iD] = iA;
+                parent[iC] = iB;
+                aabbB.combine(aabbC, memberAabb[iE]);
+                height[iB] = 1 + MathUtils.max(height[iC], height[iE]);
+                height[iA] = 1 + MathUtils.max(height[iB], height[iD]);
+            }
+            else
+            {
+                // Swap C and E.
+                child2[iA] = iE;
+                child2[iB] = iC;
+                parent[iE] = iA;
+                parent[iC] = iB;
+                aabbB.combine(aabbC, memberAabb[iD]);
+                height[iB] = 1 + MathUtils.max(height[iC], height[iD]);
+                height[iA] = 1 + MathUtils.max(height[iB], height[iE]);
+            }
+            return true;
+        }
+        final int iD = child1[iB];
+        final int iE = child2[iB];
+        final int iF = child1[iC];
+        final int iG = child2[iC];
+        final AABB aabbD = memberAabb[iD];
+        final AABB aabbE = memberAabb[iE];
+        final AABB aabbF = memberAabb[iF];
+        final AABB aabbG = memberAabb[iG];
+        final float areaB = aabbB.getPerimeter();
+        final float areaC = aabbC.getPerimeter();
+        float bestCost = areaB + areaC;
+        int bestRotation = ROTATE_NONE;
+        temp.combine(aabbB, aabbG);
+        float cost = areaB + temp.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_BF;
+            bestCost = cost;
+        }
+        temp.combine(aabbB, aabbF);
+        cost = areaB + temp.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_BG;
+            bestCost = cost;
+        }
+        temp.combine(aabbC, aabbE);
+        cost = areaC + temp.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_CD;
+            bestCost = cost;
+        }
+        temp.combine(aabbC, aabbD);
+        cost = areaC + temp.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_CE;
+            bestCost = cost;
+        }
+        final AABB temp2 = rotationAABB2;
+        temp.combine(aabbF, aabbE);
+        temp2.combine(aabbD, aabbG);
+        cost = temp.getPerimeter() + temp2.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_DF;
+            bestCost = cost;
+        }
+        temp.combine(aabbG, aabbE);
+        temp2.combine(aabbF, aabbD);
+        cost = temp.getPerimeter() + temp2.getPerimeter();
+        if (cost < bestCost)
+        {
+            bestRotation = ROTATE_DG;
+        }
+        switch (bestRotation)
+        {
+        case ROTATE_BF:
+            child1[iA] = iF;
+            child1[iC] = iB;
+            parent[iF] = iA;
+            parent[iB] = iC;
+            aabbC.combine(aabbB, aabbG);
+            height[iC] = 1 + MathUtils.max(height[iB], height[iG]);
+            height[iA] = 1 + MathUtils.max(height[iC], height[iF]);
+            return true;
+
+        case ROTATE_BG:
+            child1[iA] = iG;
+            child2[iC] = iB;
+            parent[iG] = iA;
+            parent[iB] = iC;
+            aabbC.combine(aabbB, aabbF);
+            height[iC] = 1 + MathUtils.max(height[iB], height[iF]);
+            height[iA] = 1 + MathUtils.max(height[iC], height[iG]);
+            return true;
+
+        case ROTATE_CD:
+            child2[iA] = iD;
+            child1[iB] = iC;
+            parent[iD] = iA;
+            parent[iC] = iB;
+            aabbB.combine(aabbC, aabbE);
+            height[iB] = 1 + MathUtils.max(height[iC], height[iE]);
+            height[iA] = 1 + MathUtils.max(height[iB], height[iD]);
+            return true;
+
+        case ROTATE_CE:
+            child2[iA] = iE;
+            child2[iB] = iC;
+            parent[iE] = iA;
+            parent[iC] = iB;
+            aabbB.combine(aabbC, aabbD);
+            height[iB] = 1 + MathUtils.max(height[iC], height[iD]);
+            height[iA] = 1 + MathUtils.max(height[iB], height[iE]);
+            return true;
+
+        case ROTATE_DF:
+            child1[iB] = iF;
+            child1[iC] = iD;
+            parent[iF] = iB;
+            parent[iD] = iC;
+            aabbB.combine(aabbF, aabbE);
+            aabbC.combine(aabbD, aabbG);
+            height[iB] = 1 + MathUtils.max(height[iF], height[iE]);
+            height[iC] = 1 + MathUtils.max(height[iD], height[iG]);
+            height[iA] = 1 + MathUtils.max(height[iB], height[iC]);
+            return true;
+
+        case ROTATE_DG:
+            child1[iB] = iG;
+            child2[iC] = iD;
+            parent[iG] = iB;
+            parent[iD] = iC;
+            aabbB.combine(aabbG, aabbE);
+            aabbC.combine(aabbF, aabbD);
+            height[iB] = 1 + MathUtils.max(height[iG], height[iE]);
+            height[iC] = 1 + MathUtils.max(height[iF], height[iD]);
+            height[iA] = 1 + MathUtils.max(height[iB], height[iC]);
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
     private int allocateNode()
     {
         if (freeList == NULL_NODE)
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+
+/**
+ * A bundle of up to 32 rays or AABBs that traverse a tree together. A node is
+ * tested against all active members at once and entered with the bit mask of
+ * the members that overlap it, so coherent rays share the tests of the upper
+ * tree levels. Each traversal allocates its own packet, which makes batched
+ * queries safe to run from several threads.
+ */
+final class RayPacket
+{
+    static final int SIZE = 32;
+
+    private final float[] p1x = new float[SIZE];
+
+    private final float[] p1y = new float[SIZE];
+
+    private final float[] p2x = new float[SIZE];
+
+    private final float[] p2y = new float[SIZE];
+
+    private final float[] vx = new float[SIZE];
+
+    private final float[] vy = new float[SIZE];
+
+    private final float[] absVx = new float[SIZE];
+
+    private final float[] absVy = new float[SIZE];
+
+    /**
+     * Bounding box of each clipped segment or query AABB.
+     */
+    private final float[] lowerX = new float[SIZE];
+
+    private final float[] lowerY = new float[SIZE];
+
+    private final float[] upperX = new float[SIZE];
+
+    private final float[] upperY = new float[SIZE];
+
+    private final RayCastInput input = new RayCastInput();
+
+    /**
+     * Index of the first member in the batch.
+     */
+    private int base;
+
+    /**
+     * Members that are still looking for proxies.
+     */
+    int active;
+
+    /**
+     * Load rays base to end - 1 of a batch. Rays with a maximum fraction of
+     * zero are skipped.
+     *
+     * @return The mask of the active rays.
+     */
+    int loadRays(float[] rays, float[] maxFractions, int base, int end)
+    {
+        this.base = base;
+        active = 0;
+        for (int i = 0; i < end - base; ++i)
+        {
+            final int ray = base + i;
+            if (maxFractions[ray] <= 0.0f)
+            {
+                continue;
+            }
+            p1x[i] = rays[4 * ray];
+            p1y[i] = rays[4 * ray + 1];
+            p2x[i] = rays[4 * ray + 2];
+            p2y[i] = rays[4 * ray + 3];
+            final float rx = p2x[i] - p1x[i];
+            final float ry = p2y[i] - p1y[i];
+            final float length = MathUtils.sqrt(rx * rx + ry * ry);
+            if (length == 0.0f)
+            {
+                continue;
+            }
+            // v is perpendicular to the segment.
+            vx[i] = -ry / length;
+            vy[i] = rx / length;
+            absVx[i] = MathUtils.abs(vx[i]);
+            absVy[i] = MathUtils.abs(vy[i]);
+            clip(i, maxFractions[ray]);
+            active |= 1 << i;
+        }
+        return active;
+    }
+
+    /**
+     * Load AABBs base to end - 1 of a batch, packed as lower x, lower y, upper
+     * x, upper y.
+     *
+     * @return The mask of the active queries.
+     */
+    int loadBoxes(float[] aabbs, int base, int end)
+    {
+        this.base = base;
+        active = 0;
+        for (int i = 0; i < end - base; ++i)
+        {
+            final int box = base + i;
+            lowerX[i] = aabbs[4 * box];
+            lowerY[i] = aabbs[4 * box + 1];
+            upperX[i] = aabbs[4 * box + 2];
+            upperY[i] = aabbs[4 * box + 3];
+            active |= 1 << i;
+        }
+        return active;
+    }
+
+    private void clip(int i, float maxFraction)
+    {
+        final float tempX = (p2x[i] - p1x[i]) * maxFraction + p1x[i];
+        final float tempY = (p2y[i] - p1y[i]) * maxFraction + p1y[i];
+        lowerX[i] = Math.min(p1x[i], tempX);
+        lowerY[i] = Math.min(p1y[i], tempY);
+        upperX[i] = Math.max(p1x[i], tempX);
+        upperY[i] = Math.max(p1y[i], tempY);
+    }
+
+    /**
+     * @return The members of the mask whose bounds overlap the AABB.
+     */
+    int overlapBoxes(AABB aabb, int mask)
+    {
+        final float aLowerX = aabb.lowerBound.x;
+        final float aLowerY = aabb.lowerBound.y;
+        final float aUpperX = aabb.upperBound.x;
+        final float aUpperY = aabb.upperBound.y;
+        int result = 0;
+        while (mask != 0)
+        {
+            final int i = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            if (lowerX[i] <= aUpperX && aLowerX <= upperX[i]
+                    && lowerY[i] <= aUpperY && aLowerY <= upperY[i])
+            {
+                result |= 1 << i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The rays of the mask that may hit the AABB.
+     */
+    int overlapRays(AABB aabb, int mask)
+    {
+        mask = overlapBoxes(aabb, mask);
+        if (mask == 0)
+        {
+            return 0;
+        }
+        final float cx = (aabb.lowerBound.x + aabb.upperBound.x) * .5f;
+        final float cy = (aabb.lowerBound.y + aabb.upperBound.y) * .5f;
+        final float hx = (aabb.upperBound.x - aabb.lowerBound.x) * .5f;
+        final float hy = (aabb.upperBound.y - aabb.lowerBound.y) * .5f;
+        int result = 0;
+        while (mask != 0)
+        {
+            final int i = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            // Separating axis for segment (Gino, p80).
+            // |dot(v, p1 - c)| > dot(|v|, h)
+            float separation = MathUtils
+                    .abs(vx[i] * (p1x[i] - cx) + vy[i] * (p1y[i] - cy))
+                    - (absVx[i] * hx + absVy[i] * hy);
+            if (separation <= 0.0f)
+            {
+                result |= 1 << i;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Report a proxy to the rays of the mask and clip or terminate them
+     * according to the callback.
+     */
+    void reportRays(TreeRayPacketCallback callback, int proxyId, int mask,
+            float[] maxFractions)
+    {
+        while (mask != 0)
+        {
+            final int i = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            final int ray = base + i;
+            input.p1.x = p1x[i];
+            input.p1.y = p1y[i];
+            input.p2.x = p2x[i];
+            input.p2.y = p2y[i];
+            input.maxFraction = maxFractions[ray];
+            float value = callback.raycastCallback(input, proxyId, ray);
+            if (value == 0.0f)
+            {
+                // The client has terminated this ray.
+                maxFractions[ray] = 0.0f;
+                active &= ~(1 << i);
+            }
+            else if (value > 0.0f)
+            {
+                maxFractions[ray] = value;
+                clip(i, value);
+            }
+        }
+    }
+
+    /**
+     * Report a proxy to the queries of the mask.
+     */
+    void reportBoxes(TreeQueryPacketCallback callback, int proxyId, int mask)
+    {
+        while (mask != 0)
+        {
+            final int i = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            if (!callback.treeCallback(proxyId, base + i))
+            {
+                active &= ~(1 << i);
+            }
+        }
+    }
+}
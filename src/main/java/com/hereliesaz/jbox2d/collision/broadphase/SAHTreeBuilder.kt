@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+
+/**
+ * Builds the topology of a bounding volume hierarchy top-down using a binned
+ * surface area heuristic (SAH). In 2D the "surface area" of a box is its
+ * perimeter.
+ *
+ * <p>
+ * The builder only works on copies of the leaf bounds, so it can run on a
+ * background thread while the tree it was fed from keeps being used. The
+ * result is a list of internal nodes. Internal node {@code 0} is the root and
+ * children always have a larger index than their parent. A child is either
+ * the index of another internal node (&gt;= 0) or an encoded leaf id (&lt;
+ * 0), see {@link #isLeaf(int)} and {@link #getLeafId(int)}.
+ * </p>
+ */
+public class SAHTreeBuilder implements Runnable
+{
+    /**
+     * The number of bins the centroids are sorted into per split.
+     */
+    public static final int BIN_COUNT = 16;
+
+    /**
+     * The root of a build without leaves. This differs from
+     * {@link DynamicTree#NULL_NODE}, which is the encoding of leaf id 0.
+     */
+    public static final int NULL_NODE = Integer.MAX_VALUE;
+
+    private int leafCount;
+
+    private int[] leafIds;
+
+    private float[] lowerX;
+
+    private float[] lowerY;
+
+    private float[] upperX;
+
+    private float[] upperY;
+
+    private float[] centerX;
+
+    private float[] centerY;
+
+    private int[] order;
+
+    private int nodeCount;
+
+    private int[] child1;
+
+    private int[] child2;
+
+    private int root;
+
+    private int[] stack;
+
+    private final float[] binLowerX = new float[BIN_COUNT];
+
+    private final float[] binLowerY = new float[BIN_COUNT];
+
+    private final float[] binUpperX = new float[BIN_COUNT];
+
+    private final float[] binUpperY = new float[BIN_COUNT];
+
+    private final int[] binCount = new int[BIN_COUNT];
+
+    private final float[] rightCost = new float[BIN_COUNT];
+
+    private volatile boolean complete;
+
+    public SAHTreeBuilder()
+    {
+        this(16);
+    }
+
+    public SAHTreeBuilder(int initialCapacity)
+    {
+        allocate(Math.max(initialCapacity, 2));
+        root = NULL_NODE;
+    }
+
+    private void allocate(int capacity)
+    {
+        leafIds = new int[capacity];
+        lowerX = new float[capacity];
+        lowerY = new float[capacity];
+        upperX = new float[capacity];
+        upperY = new float[capacity];
+        centerX = new float[capacity];
+        centerY = new float[capacity];
+        order = new int[capacity];
+        child1 = new int[capacity];
+        child2 = new int[capacity];
+        stack = new int[3 * capacity];
+    }
+
+    /**
+     * Remove all leaves and make room for at least the given number of them.
+     */
+    public void reset(int capacity)
+    {
+        if (leafIds.length < capacity)
+        {
+            allocate(capacity);
+        }
+        leafCount = 0;
+        nodeCount = 0;
+        root = NULL_NODE;
+        complete = false;
+    }
+
+    public void addLeaf(int id, AABB aabb)
+    {
+        addLeaf(id, aabb.lowerBound.x, aabb.lowerBound.y, aabb.upperBound.x,
+                aabb.upperBound.y);
+    }
+
+    public void addLeaf(int id, float lx, float ly, float ux, float uy)
+    {
+        if (leafCount == leafIds.length)
+        {
+            int oldCapacity = leafIds.length;
+            int newCapacity = oldCapacity * 2;
+            leafIds = copyOf(leafIds, newCapacity);
+            lowerX = copyOf(lowerX, newCapacity);
+            lowerY = copyOf(lowerY, newCapacity);
+            upperX = copyOf(upperX, newCapacity);
+            upperY = copyOf(upperY, newCapacity);
+            centerX = copyOf(centerX, newCapacity);
+            centerY = copyOf(centerY, newCapacity);
+            order = new int[newCapacity];
+            child1 = new int[newCapacity];
+            child2 = new int[newCapacity];
+            stack = new int[3 * newCapacity];
+        }
+        int i = leafCount++;
+        leafIds[i] = id;
+        lowerX[i] = lx;
+        lowerY[i] = ly;
+        upperX[i] = ux;
+        upperY[i] = uy;
+        centerX[i] = (lx + ux) * .5f;
+        centerY[i] = (ly + uy) * .5f;
+        complete = false;
+    }
+
+    private static int[] copyOf(int[] a, int length)
+    {
+        int[] b = new int[length];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static float[] copyOf(float[] a, int length)
+    {
+        float[] b = new float[length];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    public int getLeafCount()
+    {
+        return leafCount;
+    }
+
+    /**
+     * Get the number of internal nodes. This is one less than the number of
+     * leaves (or zero for an empty tree).
+     */
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * Get the root. This is internal node 0, a single encoded leaf or
+     * {@link #NULL_NODE} when there are no leaves.
+     */
+    public int getRoot()
+    {
+        return root;
+    }
+
+    public int getChild1(int node)
+    {
+        return child1[node];
+    }
+
+    public int getChild2(int node)
+    {
+        return child2[node];
+    }
+
+    public static boolean isLeaf(int child)
+    {
+        return child < 0;
+    }
+
+    public static int getLeafId(int child)
+    {
+        return ~child;
+    }
+
+    /**
+     * Has the last build finished? This is safe to call from a thread other
+     * than the one running the build.
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    @Override
+    public void run()
+    {
+        build();
+    }
+
+    /**
+     * Build the hierarchy over all leaves added since the last reset.
+     */
+    public void build()
+    {
+        nodeCount = 0;
+        if (leafCount == 0)
+        {
+            root = NULL_NODE;
+            complete = true;
+            return;
+        }
+        for (int i = 0; i < leafCount; ++i)
+        {
+            order[i] = i;
+        }
+        // Each stack entry is a range of leaf slots and the child reference
+        // (2 * parent + side) that receives the subtree built from it.
+        int stackCount = 0;
+        stack[stackCount++] = 0;
+        stack[stackCount++] = leafCount;
+        stack[stackCount++] = -1;
+        while (stackCount > 0)
+        {
+            int reference = stack[--stackCount];
+            int end = stack[--stackCount];
+            int start = stack[--stackCount];
+            int node;
+            if (end - start == 1)
+            {
+                node = ~leafIds[order[start]];
+            }
+            else
+            {
+                int mid = partition(start, end);
+                node = nodeCount++;
+                stack[stackCount++] = mid;
+                stack[stackCount++] = end;
+                stack[stackCount++] = 2 * node + 1;
+                stack[stackCount++] = start;
+                stack[stackCount++] = mid;
+                stack[stackCount++] = 2 * node;
+            }
+            if (reference == -1)
+            {
+                root = node;
+            }
+            else if ((reference & 1) == 0)
+            {
+                child1[reference >> 1] = node;
+            }
+            else
+            {
+                child2[reference >> 1] = node;
+            }
+        }
+        assert (nodeCount == leafCount - 1);
+        complete = true;
+    }
+
+    /**
+     * Sort the leaves in [start, end) into two non-empty halves with the
+     * lowest SAH cost and return the index of the first leaf of the second
+     * half.
+     */
+    private int partition(int start, int end)
+    {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = start; i < end; ++i)
+        {
+            int s = order[i];
+            minX = Math.min(minX, centerX[s]);
+            minY = Math.min(minY, centerY[s]);
+            maxX = Math.max(maxX, centerX[s]);
+            maxY = Math.max(maxY, centerY[s]);
+        }
+        final boolean splitX = maxX - minX >= maxY - minY;
+        final float[] center = splitX ? centerX : centerY;
+        final float min = splitX ? minX : minY;
+        final float extent = splitX ? maxX - minX : maxY - minY;
+        if (!(extent > 0.0f))
+        {
+            // All centroids coincide, any split is as good as another.
+            return (start + end) >>> 1;
+        }
+        final float scale = BIN_COUNT / extent;
+        for (int b = 0; b < BIN_COUNT; ++b)
+        {
+            binCount[b] = 0;
+            binLowerX[b] = Float.MAX_VALUE;
+            binLowerY[b] = Float.MAX_VALUE;
+            binUpperX[b] = -Float.MAX_VALUE;
+            binUpperY[b] = -Float.MAX_VALUE;
+        }
+        for (int i = start; i < end; ++i)
+        {
+            int s = order[i];
+            int b = bin(center[s], min, scale);
+            ++binCount[b];
+            binLowerX[b] = Math.min(binLowerX[b], lowerX[s]);
+            binLowerY[b] = Math.min(binLowerY[b], lowerY[s]);
+            binUpperX[b] = Math.max(binUpperX[b], upperX[s]);
+            binUpperY[b] = Math.max(binUpperY[b], upperY[s]);
+        }
+        // Sweep from the right, rightCost[b] is the cost of bins [b, BIN_COUNT).
+        float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE;
+        float ux = -Float.MAX_VALUE, uy = -Float.MAX_VALUE;
+        int count = 0;
+        for (int b = BIN_COUNT - 1; b > 0; --b)
+        {
+            if (binCount[b] > 0)
+            {
+                count += binCount[b];
+                lx = Math.min(lx, binLowerX[b]);
+                ly = Math.min(ly, binLowerY[b]);
+                ux = Math.max(ux, binUpperX[b]);
+                uy = Math.max(uy, binUpperY[b]);
+            }
+            rightCost[b] = count == 0 ? 0.0f
+                    : count * 2.0f * ((ux - lx) + (uy - ly));
+        }
+        // Sweep from the left and pick the cheapest plane. The first and last
+        // bins are never empty, so every plane has leaves on both sides.
+        lx = Float.MAX_VALUE;
+        ly = Float.MAX_VALUE;
+        ux = -Float.MAX_VALUE;
+        uy = -Float.MAX_VALUE;
+        count = 0;
+        float bestCost = Float.MAX_VALUE;
+        int bestSplit = 1;
+        for (int b = 1; b < BIN_COUNT; ++b)
+        {
+            final int left = b - 1;
+            if (binCount[left] > 0)
+            {
+                count += binCount[left];
+                lx = Math.min(lx, binLowerX[left]);
+                ly = Math.min(ly, binLowerY[left]);
+                ux = Math.max(ux, binUpperX[left]);
+                uy = Math.max(uy, binUpperY[left]);
+            }
+            float cost = count * 2.0f * ((ux - lx) + (uy - ly)) + rightCost[b];
+            if (cost < bestCost)
+            {
+                bestCost = cost;
+                bestSplit = b;
+            }
+        }
+        int i = start;
+        int j = end - 1;
+        while (i <= j)
+        {
+            int s = order[i];
+            if (bin(center[s], min, scale) < bestSplit)
+            {
+                ++i;
+            }
+            else
+            {
+                order[i] = order[j];
+                order[j] = s;
+                --j;
+            }
+        }
+        assert (start < i && i < end);
+        return i;
+    }
+
+    private static int bin(float c, float min, float scale)
+    {
+        int b = (int) ((c - min) * scale);
+        return b < BIN_COUNT ? b : BIN_COUNT - 1;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+
+/**
+ * Runs a batch one member at a time through the single ray-cast and query of
+ * a strategy. Used by strategies without a packet traversal.
+ */
+final class SerialPacketQuery implements TreeCallback, TreeRayCastCallback
+{
+    private TreeRayPacketCallback rayCallback;
+
+    private TreeQueryPacketCallback queryCallback;
+
+    private float[] maxFractions;
+
+    private int index;
+
+    static void raycast(BroadPhaseStrategy strategy,
+            TreeRayPacketCallback callback, float[] rays, float[] maxFractions,
+            int start, int end)
+    {
+        final SerialPacketQuery query = new SerialPacketQuery();
+        query.rayCallback = callback;
+        query.maxFractions = maxFractions;
+        final RayCastInput input = new RayCastInput();
+        for (int i = start; i < end; ++i)
+        {
+            if (maxFractions[i] <= 0.0f)
+            {
+                continue;
+            }
+            input.p1.set(rays[4 * i], rays[4 * i + 1]);
+            input.p2.set(rays[4 * i + 2], rays[4 * i + 3]);
+            if (input.p1.x == input.p2.x && input.p1.y == input.p2.y)
+            {
+                continue;
+            }
+            input.maxFraction = maxFractions[i];
+            query.index = i;
+            strategy.raycast(query, input);
+        }
+    }
+
+    static void query(BroadPhaseStrategy strategy,
+            TreeQueryPacketCallback callback, float[] aabbs, int start,
+            int end)
+    {
+        final SerialPacketQuery query = new SerialPacketQuery();
+        query.queryCallback = callback;
+        final AABB aabb = new AABB();
+        for (int i = start; i < end; ++i)
+        {
+            aabb.lowerBound.set(aabbs[4 * i], aabbs[4 * i + 1]);
+            aabb.upperBound.set(aabbs[4 * i + 2], aabbs[4 * i + 3]);
+            query.index = i;
+            strategy.query(query, aabb);
+        }
+    }
+
+    @Override
+    public boolean treeCallback(int proxyId)
+    {
+        return queryCallback.treeCallback(proxyId, index);
+    }
+
+    @Override
+    public float raycastCallback(RayCastInput input, int nodeId)
+    {
+        float value = rayCallback.raycastCallback(input, nodeId, index);
+        if (value == 0.0f)
+        {
+            maxFractions[index] = 0.0f;
+        }
+        else if (value > 0.0f)
+        {
+            maxFractions[index] = value;
+        }
+        return value;
+    }
+}
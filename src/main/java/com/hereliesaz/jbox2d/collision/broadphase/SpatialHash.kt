@@ -0,0 +1,793 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.common.BufferUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Color3f;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * A loose uniform grid stored in a spatial hash. Each proxy is filed in the
+ * single cell that contains the center of its fat AABB. As long as the fat
+ * AABB is not larger than a cell, it stays within the 3x3 neighborhood of that
+ * cell, so queries only have to look half a cell beyond their own bounds.
+ * Larger proxies are kept in a separate list that is tested linearly.
+ *
+ * Cells are kept in an open-addressed hash table of primitive arrays, the
+ * proxies of a cell form an intrusive doubly linked list. Moving a proxy
+ * within its cell costs nothing beyond updating the fat AABB. This suits
+ * scenes with many bodies of similar size. Choose a cell size somewhat larger
+ * than the typical fat AABB.
+ */
+public class SpatialHash implements BroadPhaseStrategy
+{
+    public static final int NULL_PROXY = -1;
+
+    /**
+     * Marks a proxy that is too large for a cell.
+     */
+    private static final int OVERSIZED = -2;
+
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+
+    private final float cellSize;
+
+    private final float invCellSize;
+
+    private AABB[] fatAABBs;
+
+    private Object[] userData;
+
+    /**
+     * The hash slot of the cell each proxy is filed in, or OVERSIZED.
+     */
+    private int[] proxySlot;
+
+    private int[] next;
+
+    private int[] prev;
+
+    private int proxyCapacity;
+
+    private int proxyCount;
+
+    private int freeList;
+
+    /**
+     * Proxies that are too large for a cell, with each proxy's index into the
+     * list kept in prev.
+     */
+    private int[] oversized = new int[16];
+
+    private int oversizedCount;
+
+    private long[] slotKeys;
+
+    private int[] slotHeads;
+
+    private int slotMask;
+
+    /**
+     * Number of slots holding a key, including cells that became empty.
+     */
+    private int usedSlots;
+
+    /**
+     * Number of slots whose cell holds at least one proxy.
+     */
+    private int occupiedSlots;
+
+    /**
+     * Per-proxy stamp so that a raycast tests every proxy only once.
+     */
+    private int[] rayStamps;
+
+    private int rayStamp;
+
+    private final Vec2[] drawVecs = new Vec2[4];
+
+    /**
+     * @param cellSize The edge length of a grid cell.
+     */
+    public SpatialHash(float cellSize)
+    {
+        assert (cellSize > 0);
+        this.cellSize = cellSize;
+        invCellSize = 1.0f / cellSize;
+        proxyCapacity = 16;
+        expandBuffers(0, proxyCapacity);
+        allocateSlots(64);
+        for (int i = 0; i < drawVecs.length; i++)
+        {
+            drawVecs[i] = new Vec2();
+        }
+    }
+
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+
+    private void expandBuffers(int oldSize, int newSize)
+    {
+        fatAABBs = BufferUtils.reallocateBuffer(AABB.class, fatAABBs, oldSize,
+                newSize);
+        userData = BufferUtils.reallocateBuffer(Object.class, userData, oldSize,
+                newSize);
+        proxySlot = BufferUtils.reallocateBuffer(proxySlot, oldSize, newSize);
+        next = BufferUtils.reallocateBuffer(next, oldSize, newSize);
+        prev = BufferUtils.reallocateBuffer(prev, oldSize, newSize);
+        rayStamps = BufferUtils.reallocateBuffer(rayStamps, oldSize, newSize);
+        // Build a linked list for the free list.
+        for (int i = oldSize; i < newSize; i++)
+        {
+            fatAABBs[i] = new AABB();
+            next[i] = (i == newSize - 1) ? NULL_PROXY : i + 1;
+        }
+        freeList = oldSize;
+    }
+
+    private void allocateSlots(int capacity)
+    {
+        slotKeys = new long[capacity];
+        slotHeads = new int[capacity];
+        slotMask = capacity - 1;
+        for (int i = 0; i < capacity; ++i)
+        {
+            slotKeys[i] = EMPTY_KEY;
+            slotHeads[i] = NULL_PROXY;
+        }
+        usedSlots = 0;
+        occupiedSlots = 0;
+    }
+
+    private int cellCoordinate(float x)
+    {
+        return MathUtils.floor(x * invCellSize);
+    }
+
+    private static long cellKey(int x, int y)
+    {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & slotMask;
+    }
+
+    /**
+     * Find the slot of a cell, or NULL_PROXY if the cell was never used.
+     */
+    private int findSlot(long key)
+    {
+        int slot = hash(key);
+        while (true)
+        {
+            final long slotKey = slotKeys[slot];
+            if (slotKey == key)
+            {
+                return slot;
+            }
+            if (slotKey == EMPTY_KEY)
+            {
+                return NULL_PROXY;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Find or create the slot of a cell.
+     */
+    private int acquireSlot(long key)
+    {
+        if ((usedSlots + 1) * 2 > slotKeys.length)
+        {
+            rehash();
+        }
+        int slot = hash(key);
+        while (true)
+        {
+            final long slotKey = slotKeys[slot];
+            if (slotKey == key)
+            {
+                return slot;
+            }
+            if (slotKey == EMPTY_KEY)
+            {
+                slotKeys[slot] = key;
+                ++usedSlots;
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Rebuild the hash table, dropping cells that became empty and growing it
+     * if needed.
+     */
+    private void rehash()
+    {
+        final long[] oldKeys = slotKeys;
+        final int[] oldHeads = slotHeads;
+        int capacity = 64;
+        while (capacity < occupiedSlots * 4)
+        {
+            capacity *= 2;
+        }
+        allocateSlots(capacity);
+        for (int i = 0; i < oldKeys.length; ++i)
+        {
+            int head = oldHeads[i];
+            if (head == NULL_PROXY)
+            {
+                continue;
+            }
+            int slot = hash(oldKeys[i]);
+            while (slotKeys[slot] != EMPTY_KEY)
+            {
+                slot = (slot + 1) & slotMask;
+            }
+            slotKeys[slot] = oldKeys[i];
+            slotHeads[slot] = head;
+            ++usedSlots;
+            ++occupiedSlots;
+            for (int proxyId = head; proxyId != NULL_PROXY; proxyId = next[proxyId])
+            {
+                proxySlot[proxyId] = slot;
+            }
+        }
+    }
+
+    /**
+     * File the proxy in the cell of its center or in the oversized list.
+     */
+    private void insert(int proxyId)
+    {
+        final AABB aabb = fatAABBs[proxyId];
+        if (aabb.upperBound.x - aabb.lowerBound.x > cellSize
+                || aabb.upperBound.y - aabb.lowerBound.y > cellSize)
+        {
+            if (oversizedCount == oversized.length)
+            {
+                oversized = BufferUtils.reallocateBuffer(oversized,
+                        oversizedCount, oversizedCount * 2);
+            }
+            proxySlot[proxyId] = OVERSIZED;
+            prev[proxyId] = oversizedCount;
+            oversized[oversizedCount++] = proxyId;
+            return;
+        }
+        final int slot = acquireSlot(cellKey(
+                cellCoordinate((aabb.lowerBound.x + aabb.upperBound.x) * .5f),
+                cellCoordinate((aabb.lowerBound.y + aabb.upperBound.y) * .5f)));
+        final int head = slotHeads[slot];
+        if (head == NULL_PROXY)
+        {
+            ++occupiedSlots;
+        }
+        else
+        {
+            prev[head] = proxyId;
+        }
+        next[proxyId] = head;
+        prev[proxyId] = NULL_PROXY;
+        slotHeads[slot] = proxyId;
+        proxySlot[proxyId] = slot;
+    }
+
+    private void remove(int proxyId)
+    {
+        final int slot = proxySlot[proxyId];
+        if (slot == OVERSIZED)
+        {
+            // Swap with the last entry.
+            final int index = prev[proxyId];
+            final int last = oversized[--oversizedCount];
+            oversized[index] = last;
+            prev[last] = index;
+            return;
+        }
+        final int p = prev[proxyId];
+        final int n = next[proxyId];
+        if (p == NULL_PROXY)
+        {
+            slotHeads[slot] = n;
+            if (n == NULL_PROXY)
+            {
+                --occupiedSlots;
+            }
+        }
+        else
+        {
+            next[p] = n;
+        }
+        if (n != NULL_PROXY)
+        {
+            prev[n] = p;
+        }
+    }
+
+    @Override
+    public final int createProxy(final AABB aabb, Object userData)
+    {
+        assert (aabb.isValid());
+        if (freeList == NULL_PROXY)
+        {
+            assert (proxyCount == proxyCapacity);
+            proxyCapacity *= 2;
+            expandBuffers(proxyCount, proxyCapacity);
+        }
+        final int proxyId = freeList;
+        freeList = next[proxyId];
+        ++proxyCount;
+        // Fatten the aabb
+        final AABB fatAABB = fatAABBs[proxyId];
+        fatAABB.lowerBound.x = aabb.lowerBound.x - Settings.aabbExtension;
+        fatAABB.lowerBound.y = aabb.lowerBound.y - Settings.aabbExtension;
+        fatAABB.upperBound.x = aabb.upperBound.x + Settings.aabbExtension;
+        fatAABB.upperBound.y = aabb.upperBound.y + Settings.aabbExtension;
+        this.userData[proxyId] = userData;
+        insert(proxyId);
+        return proxyId;
+    }
+
+    @Override
+    public final void destroyProxy(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        remove(proxyId);
+        userData[proxyId] = null;
+        next[proxyId] = freeList;
+        freeList = proxyId;
+        --proxyCount;
+    }
+
+    @Override
+    public final boolean moveProxy(int proxyId, final AABB aabb,
+            Vec2 displacement)
+    {
+        assert (aabb.isValid());
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        final AABB fatAABB = fatAABBs[proxyId];
+        if (fatAABB.lowerBound.x <= aabb.lowerBound.x
+                && fatAABB.lowerBound.y <= aabb.lowerBound.y
+                && aabb.upperBound.x <= fatAABB.upperBound.x
+                && aabb.upperBound.y <= fatAABB.upperBound.y)
+        {
+            return false;
+        }
+        // Extend AABB
+        final Vec2 lowerBound = fatAABB.lowerBound;
+        final Vec2 upperBound = fatAABB.upperBound;
+        lowerBound.x = aabb.lowerBound.x - Settings.aabbExtension;
+        lowerBound.y = aabb.lowerBound.y - Settings.aabbExtension;
+        upperBound.x = aabb.upperBound.x + Settings.aabbExtension;
+        upperBound.y = aabb.upperBound.y + Settings.aabbExtension;
+        // Predict AABB displacement.
+        final float dx = displacement.x * Settings.aabbMultiplier;
+        final float dy = displacement.y * Settings.aabbMultiplier;
+        if (dx < 0.0f)
+        {
+            lowerBound.x += dx;
+        }
+        else
+        {
+            upperBound.x += dx;
+        }
+        if (dy < 0.0f)
+        {
+            lowerBound.y += dy;
+        }
+        else
+        {
+            upperBound.y += dy;
+        }
+        final int slot = proxySlot[proxyId];
+        if (slot != OVERSIZED && upperBound.x - lowerBound.x <= cellSize
+                && upperBound.y - lowerBound.y <= cellSize
+                && slotKeys[slot] == cellKey(
+                        cellCoordinate((lowerBound.x + upperBound.x) * .5f),
+                        cellCoordinate((lowerBound.y + upperBound.y) * .5f)))
+        {
+            // Still in the same cell.
+            return true;
+        }
+        remove(proxyId);
+        insert(proxyId);
+        return true;
+    }
+
+    @Override
+    public final Object getUserData(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        return userData[proxyId];
+    }
+
+    @Override
+    public final AABB getFatAABB(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        return fatAABBs[proxyId];
+    }
+
+    @Override
+    public final void query(TreeCallback callback, AABB aabb)
+    {
+        for (int i = 0; i < oversizedCount; ++i)
+        {
+            final int proxyId = oversized[i];
+            if (AABB.testOverlap(fatAABBs[proxyId], aabb)
+                    && !callback.treeCallback(proxyId))
+            {
+                return;
+            }
+        }
+        // Proxies reach up to half a cell into the neighboring cells.
+        final float margin = cellSize * .5f;
+        final int lowerX = cellCoordinate(aabb.lowerBound.x - margin);
+        final int lowerY = cellCoordinate(aabb.lowerBound.y - margin);
+        final int upperX = cellCoordinate(aabb.upperBound.x + margin);
+        final int upperY = cellCoordinate(aabb.upperBound.y + margin);
+        final long cellCount = (long) (upperX - lowerX + 1)
+                * (upperY - lowerY + 1);
+        if (cellCount > slotHeads.length)
+        {
+            // Large query, walking the table is cheaper than probing every
+            // cell.
+            for (int slot = 0; slot < slotHeads.length; ++slot)
+            {
+                if (slotHeads[slot] == NULL_PROXY)
+                {
+                    continue;
+                }
+                final long key = slotKeys[slot];
+                final int x = (int) (key >> 32);
+                final int y = (int) key;
+                if (x < lowerX || x > upperX || y < lowerY || y > upperY)
+                {
+                    continue;
+                }
+                if (!queryCell(callback, aabb, slot))
+                {
+                    return;
+                }
+            }
+            return;
+        }
+        for (int y = lowerY; y <= upperY; ++y)
+        {
+            for (int x = lowerX; x <= upperX; ++x)
+            {
+                final int slot = findSlot(cellKey(x, y));
+                if (slot != NULL_PROXY && !queryCell(callback, aabb, slot))
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean queryCell(TreeCallback callback, AABB aabb, int slot)
+    {
+        for (int proxyId = slotHeads[slot]; proxyId != NULL_PROXY;)
+        {
+            // Fetch the successor first in case the callback moves the proxy.
+            final int nextId = next[proxyId];
+            if (AABB.testOverlap(fatAABBs[proxyId], aabb)
+                    && !callback.treeCallback(proxyId))
+            {
+                return false;
+            }
+            proxyId = nextId;
+        }
+        return true;
+    }
+
+    private final AABB segAABB = new AABB();
+
+    private final RayCastInput subInput = new RayCastInput();
+
+    private float rayP1x, rayP1y, rayP2x, rayP2y;
+
+    private float rayVx, rayVy, rayAbsVx, rayAbsVy;
+
+    private float rayMaxFraction;
+
+    /**
+     * Walk the cells along the segment with a 3D-DDA (Amanatides and Woo)
+     * restricted to two dimensions. Every visited cell tests the proxies of
+     * its 3x3 neighborhood, each proxy is tested only once per ray cast.
+     */
+    @Override
+    public void raycast(TreeRayCastCallback callback, RayCastInput input)
+    {
+        rayP1x = input.p1.x;
+        rayP1y = input.p1.y;
+        rayP2x = input.p2.x;
+        rayP2y = input.p2.y;
+        final float dx = rayP2x - rayP1x;
+        final float dy = rayP2y - rayP1y;
+        final float length = MathUtils.sqrt(dx * dx + dy * dy);
+        assert (length > 0f);
+        // v is perpendicular to the segment.
+        rayVx = -dy / length;
+        rayVy = dx / length;
+        rayAbsVx = MathUtils.abs(rayVx);
+        rayAbsVy = MathUtils.abs(rayVy);
+        rayMaxFraction = input.maxFraction;
+        updateSegment();
+        if (++rayStamp == 0)
+        {
+            // Wrapped around, forget old stamps.
+            for (int i = 0; i < proxyCapacity; ++i)
+            {
+                rayStamps[i] = 0;
+            }
+            rayStamp = 1;
+        }
+        for (int i = 0; i < oversizedCount; ++i)
+        {
+            if (!raycastProxy(callback, oversized[i]))
+            {
+                return;
+            }
+        }
+        int x = cellCoordinate(rayP1x);
+        int y = cellCoordinate(rayP1y);
+        final int stepX = dx > 0 ? 1 : (dx < 0 ? -1 : 0);
+        final int stepY = dy > 0 ? 1 : (dy < 0 ? -1 : 0);
+        // Ray parameter per cell and up to the first cell border.
+        final float deltaX = stepX != 0 ? cellSize / MathUtils.abs(dx)
+                : Float.MAX_VALUE;
+        final float deltaY = stepY != 0 ? cellSize / MathUtils.abs(dy)
+                : Float.MAX_VALUE;
+        float tMaxX = stepX > 0 ? ((x + 1) * cellSize - rayP1x) / dx
+                : (stepX < 0 ? (x * cellSize - rayP1x) / dx : Float.MAX_VALUE);
+        float tMaxY = stepY > 0 ? ((y + 1) * cellSize - rayP1y) / dy
+                : (stepY < 0 ? (y * cellSize - rayP1y) / dy : Float.MAX_VALUE);
+        float t = 0.0f;
+        while (t <= rayMaxFraction)
+        {
+            for (int ny = y - 1; ny <= y + 1; ++ny)
+            {
+                for (int nx = x - 1; nx <= x + 1; ++nx)
+                {
+                    final int slot = findSlot(cellKey(nx, ny));
+                    if (slot == NULL_PROXY)
+                    {
+                        continue;
+                    }
+                    for (int proxyId = slotHeads[slot]; proxyId != NULL_PROXY;
+                            proxyId = next[proxyId])
+                    {
+                        if (!raycastProxy(callback, proxyId))
+                        {
+                            return;
+                        }
+                    }
+                }
+            }
+            if (tMaxX < tMaxY)
+            {
+                t = tMaxX;
+                tMaxX += deltaX;
+                x += stepX;
+            }
+            else
+            {
+                t = tMaxY;
+                tMaxY += deltaY;
+                y += stepY;
+            }
+        }
+    }
+
+    private void updateSegment()
+    {
+        final float tempX = (rayP2x - rayP1x) * rayMaxFraction + rayP1x;
+        final float tempY = (rayP2y - rayP1y) * rayMaxFraction + rayP1y;
+        segAABB.lowerBound.x = Math.min(rayP1x, tempX);
+        segAABB.lowerBound.y = Math.min(rayP1y, tempY);
+        segAABB.upperBound.x = Math.max(rayP1x, tempX);
+        segAABB.upperBound.y = Math.max(rayP1y, tempY);
+    }
+
+    /**
+     * @return false if the client terminated the ray cast.
+     */
+    private boolean raycastProxy(TreeRayCastCallback callback, int proxyId)
+    {
+        if (rayStamps[proxyId] == rayStamp)
+        {
+            return true;
+        }
+        rayStamps[proxyId] = rayStamp;
+        final AABB fatAABB = fatAABBs[proxyId];
+        if (!AABB.testOverlap(fatAABB, segAABB))
+        {
+            return true;
+        }
+        // Separating axis for segment (Gino, p80).
+        // |dot(v, p1 - c)| > dot(|v|, h)
+        final float cx = (fatAABB.lowerBound.x + fatAABB.upperBound.x) * .5f;
+        final float cy = (fatAABB.lowerBound.y + fatAABB.upperBound.y) * .5f;
+        final float hx = (fatAABB.upperBound.x - fatAABB.lowerBound.x) * .5f;
+        final float hy = (fatAABB.upperBound.y - fatAABB.lowerBound.y) * .5f;
+        float separation = MathUtils
+                .abs(rayVx * (rayP1x - cx) + rayVy * (rayP1y - cy))
+                - (rayAbsVx * hx + rayAbsVy * hy);
+        if (separation > 0.0f)
+        {
+            return true;
+        }
+        subInput.p1.x = rayP1x;
+        subInput.p1.y = rayP1y;
+        subInput.p2.x = rayP2x;
+        subInput.p2.y = rayP2y;
+        subInput.maxFraction = rayMaxFraction;
+        float value = callback.raycastCallback(subInput, proxyId);
+        if (value == 0.0f)
+        {
+            // The client has terminated the ray cast.
+            return false;
+        }
+        if (value > 0.0f)
+        {
+            // Update segment bounding box.
+            rayMaxFraction = value;
+            updateSegment();
+        }
+        return true;
+    }
+
+    /**
+     * Casts the rays one after another. Batches are serialized, since the
+     * single ray-cast is not reentrant.
+     */
+    @Override
+    public synchronized void raycast(TreeRayPacketCallback callback,
+            float[] rays, float[] maxFractions, int start, int end)
+    {
+        SerialPacketQuery.raycast(this, callback, rays, maxFractions, start,
+                end);
+    }
+
+    /**
+     * Runs the queries one after another. Batches are serialized, since the
+     * single query is not reentrant.
+     */
+    @Override
+    public synchronized void query(TreeQueryPacketCallback callback,
+            float[] aabbs, int start, int end)
+    {
+        SerialPacketQuery.query(this, callback, aabbs, start, end);
+    }
+
+    /**
+     * A grid has no hierarchy.
+     */
+    @Override
+    public final int computeHeight()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getMaxBalance()
+    {
+        return 0;
+    }
+
+    /**
+     * Always zero, so the broad-phase never requests a rebuild.
+     */
+    @Override
+    public float getAreaRatio()
+    {
+        return 0;
+    }
+
+    /**
+     * Rebuild the hash table without the cells that became empty.
+     */
+    @Override
+    public void rebuild()
+    {
+        rehash();
+    }
+
+    /**
+     * Compacts the hash table once most of its keys belong to empty cells.
+     */
+    @Override
+    public void optimize(int maxNodes)
+    {
+        if (usedSlots > 64 && occupiedSlots * 4 < usedSlots)
+        {
+            rehash();
+        }
+    }
+
+    public int getProxyCount()
+    {
+        return proxyCount;
+    }
+
+    private final Color3f color = new Color3f();
+
+    @Override
+    public void drawTree(DebugDraw argDraw)
+    {
+        color.set(0.3f, 0.3f, 0.9f);
+        for (int slot = 0; slot < slotHeads.length; ++slot)
+        {
+            if (slotHeads[slot] == NULL_PROXY)
+            {
+                continue;
+            }
+            final float x = (int) (slotKeys[slot] >> 32) * cellSize;
+            final float y = (int) slotKeys[slot] * cellSize;
+            drawVecs[0].set(x, y);
+            drawVecs[1].set(x + cellSize, y);
+            drawVecs[2].set(x + cellSize, y + cellSize);
+            drawVecs[3].set(x, y + cellSize);
+            argDraw.drawPolygon(drawVecs, 4, color);
+        }
+        color.set(0.9f, 0.9f, 0.3f);
+        for (int slot = 0; slot < slotHeads.length; ++slot)
+        {
+            for (int proxyId = slotHeads[slot]; proxyId != NULL_PROXY;
+                    proxyId = next[proxyId])
+            {
+                fatAABBs[proxyId].getVertices(drawVecs);
+                argDraw.drawPolygon(drawVecs, 4, color);
+            }
+        }
+        for (int i = 0; i < oversizedCount; ++i)
+        {
+            fatAABBs[oversized[i]].getVertices(drawVecs);
+            argDraw.drawPolygon(drawVecs, 4, color);
+        }
+    }
+}
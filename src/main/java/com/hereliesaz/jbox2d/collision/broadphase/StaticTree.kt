@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import java.util.Arrays;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+
+/**
+ * An immutable bounding volume hierarchy over a fixed set of leaves, e.g. the
+ * edges of a large static chain. The tree is built once with the
+ * {@link SAHTreeBuilder} and stored in flat arrays. The leaf ids are the
+ * indices of the leaf bounds it was built from.
+ *
+ * <p>
+ * Queries do not modify the tree, so it can be shared between shapes and
+ * queried from several threads at once.
+ * </p>
+ */
+public class StaticTree
+{
+    private final int leafCount;
+
+    /**
+     * The number of internal nodes. Nodes {@code [0, nodeCount)} are internal,
+     * the nodes from {@code nodeCount} on are the leaves in id order.
+     */
+    private final int nodeCount;
+
+    /**
+     * The bounds of all nodes, four floats (lower x, lower y, upper x, upper
+     * y) per node.
+     */
+    private final float[] bounds;
+
+    private final int[] child1;
+
+    private final int[] child2;
+
+    private final int root;
+
+    /**
+     * Build a tree.
+     *
+     * @param leafBounds The bounds of the leaves, four floats (lower x, lower
+     *     y, upper x, upper y) per leaf. They are copied.
+     * @param leafCount The number of leaves.
+     */
+    public StaticTree(final float[] leafBounds, int leafCount)
+    {
+        this.leafCount = leafCount;
+        final SAHTreeBuilder builder = new SAHTreeBuilder(
+                MathUtils.max(leafCount, 1));
+        for (int i = 0; i < leafCount; ++i)
+        {
+            final int b = 4 * i;
+            builder.addLeaf(i, leafBounds[b], leafBounds[b + 1],
+                    leafBounds[b + 2], leafBounds[b + 3]);
+        }
+        builder.build();
+        nodeCount = builder.getNodeCount();
+        child1 = new int[nodeCount];
+        child2 = new int[nodeCount];
+        bounds = new float[4 * (nodeCount + leafCount)];
+        System.arraycopy(leafBounds, 0, bounds, 4 * nodeCount, 4 * leafCount);
+        for (int i = 0; i < nodeCount; ++i)
+        {
+            child1[i] = toNode(builder.getChild1(i));
+            child2[i] = toNode(builder.getChild2(i));
+        }
+        final int builderRoot = builder.getRoot();
+        root = builderRoot == SAHTreeBuilder.NULL_NODE ? -1
+                : toNode(builderRoot);
+        // Children have larger indices than their parents.
+        for (int i = nodeCount - 1; i >= 0; --i)
+        {
+            final int b = 4 * i;
+            final int b1 = 4 * child1[i];
+            final int b2 = 4 * child2[i];
+            bounds[b] = Math.min(bounds[b1], bounds[b2]);
+            bounds[b + 1] = Math.min(bounds[b1 + 1], bounds[b2 + 1]);
+            bounds[b + 2] = Math.max(bounds[b1 + 2], bounds[b2 + 2]);
+            bounds[b + 3] = Math.max(bounds[b1 + 3], bounds[b2 + 3]);
+        }
+    }
+
+    private int toNode(int builderChild)
+    {
+        return SAHTreeBuilder.isLeaf(builderChild)
+                ? nodeCount + SAHTreeBuilder.getLeafId(builderChild)
+                : builderChild;
+    }
+
+    public int getLeafCount()
+    {
+        return leafCount;
+    }
+
+    /**
+     * Get the bounds of all leaves.
+     *
+     * @return False if the tree has no leaves.
+     */
+    public boolean getBounds(AABB aabb)
+    {
+        if (root == -1)
+        {
+            return false;
+        }
+        final int b = 4 * root;
+        aabb.lowerBound.x = bounds[b];
+        aabb.lowerBound.y = bounds[b + 1];
+        aabb.upperBound.x = bounds[b + 2];
+        aabb.upperBound.y = bounds[b + 3];
+        return true;
+    }
+
+    /**
+     * Get the bounds of a leaf.
+     */
+    public void getLeafBounds(int leafId, AABB aabb)
+    {
+        assert (0 <= leafId && leafId < leafCount);
+        final int b = 4 * (nodeCount + leafId);
+        aabb.lowerBound.x = bounds[b];
+        aabb.lowerBound.y = bounds[b + 1];
+        aabb.upperBound.x = bounds[b + 2];
+        aabb.upperBound.y = bounds[b + 3];
+    }
+
+    /**
+     * Query the leaves that overlap a box. The callback gets the leaf ids.
+     *
+     * @return False if the callback has terminated the query.
+     */
+    public boolean query(TreeCallback callback, float lowerX, float lowerY,
+            float upperX, float upperY)
+    {
+        if (root == -1)
+        {
+            return true;
+        }
+        return query(callback, root, lowerX, lowerY, upperX, upperY);
+    }
+
+    public boolean query(TreeCallback callback, AABB aabb)
+    {
+        return query(callback, aabb.lowerBound.x, aabb.lowerBound.y,
+                aabb.upperBound.x, aabb.upperBound.y);
+    }
+
+    private boolean query(TreeCallback callback, int node, float lowerX,
+            float lowerY, float upperX, float upperY)
+    {
+        final int b = 4 * node;
+        if (bounds[b] > upperX || bounds[b + 1] > upperY
+                || lowerX > bounds[b + 2] || lowerY > bounds[b + 3])
+        {
+            return true;
+        }
+        if (node >= nodeCount)
+        {
+            return callback.treeCallback(node - nodeCount);
+        }
+        return query(callback, child1[node], lowerX, lowerY, upperX, upperY)
+                && query(callback, child2[node], lowerX, lowerY, upperX,
+                        upperY);
+    }
+
+    /**
+     * Cast a ray against the leaves. The callback gets the leaf ids and
+     * returns the new max fraction like the callback of
+     * {@link DynamicTree#raycast(TreeRayCastCallback, RayCastInput)}: zero
+     * terminates the ray cast, a negative value keeps the max fraction. The
+     * children closer to the start of the ray are visited first.
+     *
+     * @param state The traversal state of the caller, so that several
+     *     threads can cast rays against the tree.
+     */
+    public void raycast(TreeRayCastCallback callback, RayCastInput input,
+            RayCastState state)
+    {
+        if (root == -1)
+        {
+            return;
+        }
+        final float p1x = input.p1.x;
+        final float p1y = input.p1.y;
+        final float p2x = input.p2.x;
+        final float p2y = input.p2.y;
+        final float dx = p2x - p1x;
+        final float dy = p2y - p1y;
+        final float length = MathUtils.sqrt(dx * dx + dy * dy);
+        assert (length > 0.0f);
+        // v is perpendicular to the segment.
+        final float vx = -dy / length;
+        final float vy = dx / length;
+        final float absVx = MathUtils.abs(vx);
+        final float absVy = MathUtils.abs(vy);
+        final RayCastInput subInput = state.subInput;
+        float maxFraction = input.maxFraction;
+        float tx = p1x + dx * maxFraction;
+        float ty = p1y + dy * maxFraction;
+        int[] stack = state.stack;
+        int stackIndex = 0;
+        stack[stackIndex++] = root;
+        while (stackIndex > 0)
+        {
+            final int node = stack[--stackIndex];
+            final int b = 4 * node;
+            if (bounds[b] > Math.max(p1x, tx)
+                    || bounds[b + 1] > Math.max(p1y, ty)
+                    || Math.min(p1x, tx) > bounds[b + 2]
+                    || Math.min(p1y, ty) > bounds[b + 3])
+            {
+                continue;
+            }
+            // Separating axis for segment (Gino, p80).
+            // |dot(v, p1 - c)| > dot(|v|, h)
+            final float cx = (bounds[b] + bounds[b + 2]) * .5f;
+            final float cy = (bounds[b + 1] + bounds[b + 3]) * .5f;
+            final float hx = (bounds[b + 2] - bounds[b]) * .5f;
+            final float hy = (bounds[b + 3] - bounds[b + 1]) * .5f;
+            if (MathUtils.abs(vx * (p1x - cx) + vy * (p1y - cy))
+                    - (absVx * hx + absVy * hy) > 0.0f)
+            {
+                continue;
+            }
+            if (node >= nodeCount)
+            {
+                subInput.p1.x = p1x;
+                subInput.p1.y = p1y;
+                subInput.p2.x = p2x;
+                subInput.p2.y = p2y;
+                subInput.maxFraction = maxFraction;
+                final float value = callback.raycastCallback(subInput,
+                        node - nodeCount);
+                if (value == 0.0f)
+                {
+                    // The client has terminated the ray cast.
+                    return;
+                }
+                if (value > 0.0f)
+                {
+                    maxFraction = value;
+                    tx = p1x + dx * maxFraction;
+                    ty = p1y + dy * maxFraction;
+                }
+                continue;
+            }
+            if (stack.length - stackIndex < 2)
+            {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                state.stack = stack;
+            }
+            // Visit the child closer to the start of the ray first, hits in
+            // it shorten the ray for the other one.
+            int near = child1[node];
+            int far = child2[node];
+            final int b1 = 4 * near;
+            final int b2 = 4 * far;
+            final float d1 = dx * (bounds[b1] + bounds[b1 + 2])
+                    + dy * (bounds[b1 + 1] + bounds[b1 + 3]);
+            final float d2 = dx * (bounds[b2] + bounds[b2 + 2])
+                    + dy * (bounds[b2 + 1] + bounds[b2 + 3]);
+            if (d2 < d1)
+            {
+                near = far;
+                far = child1[node];
+            }
+            stack[stackIndex++] = far;
+            stack[stackIndex++] = near;
+        }
+    }
+
+    /**
+     * The scratch objects of a ray cast, see {@link StaticTree#raycast}. The
+     * tree itself is immutable, so each thread that casts rays keeps a
+     * state of its own.
+     */
+    public static class RayCastState
+    {
+        private final RayCastInput subInput = new RayCastInput();
+
+        private int[] stack = new int[20];
+    }
+}
@@ -0,0 +1,726 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.common.BufferUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Color3f;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * A sweep-and-prune broad-phase strategy. Proxies are kept sorted by the lower
+ * x bound of their fat AABB in primitive arrays. Because bodies move only a
+ * little between steps, the arrays stay nearly sorted and are repaired with an
+ * insertion sort. Queries binary search into the sorted arrays and scan along
+ * the x axis.
+ *
+ * For large worlds the plane can be split into a grid of boxes, each running
+ * its own sweep-and-prune (multi-SAP). Proxies are registered with every box
+ * they overlap. Proxies outside the world bounds go to the border boxes.
+ *
+ * Fat AABBs and proxy ids behave exactly like in {@link DynamicTree}, so this
+ * strategy can be passed to
+ * {@code World(Vec2, WorldPool, BroadPhaseStrategy)}.
+ */
+public class SweepAndPrune implements BroadPhaseStrategy
+{
+    public static final int NULL_PROXY = -1;
+
+    /**
+     * One sweep-and-prune axis. Entries are sorted by key, which is the lower x
+     * bound of the proxy's fat AABB. Entries whose generation does not match
+     * the proxy's generation are stale and removed on the next refresh.
+     */
+    private static final class Box
+    {
+        float lowerX, lowerY, upperX, upperY;
+
+        float[] keys = new float[16];
+
+        int[] proxies = new int[16];
+
+        int[] generations = new int[16];
+
+        int count;
+
+        /**
+         * The largest x extent of any proxy in this box. Bounds how far a query
+         * has to look to the left of its own lower bound.
+         */
+        float maxExtent;
+
+        boolean dirty;
+    }
+
+    private final Box[] boxes;
+
+    private final int boxesX;
+
+    private final int boxesY;
+
+    private final float worldLowerX;
+
+    private final float worldLowerY;
+
+    private final float invBoxWidth;
+
+    private final float invBoxHeight;
+
+    private AABB[] fatAABBs;
+
+    private Object[] userData;
+
+    private int[] generation;
+
+    private int[] next;
+
+    /**
+     * The range of boxes each proxy is registered with.
+     */
+    private int[] boxLowerX, boxLowerY, boxUpperX, boxUpperY;
+
+    private int proxyCapacity;
+
+    private int proxyCount;
+
+    private int freeList;
+
+    private int rangeLowerX, rangeLowerY, rangeUpperX, rangeUpperY;
+
+    private final Vec2[] drawVecs = new Vec2[4];
+
+    /**
+     * Create a sweep-and-prune over a single box covering the whole plane.
+     */
+    public SweepAndPrune()
+    {
+        this(null, 1, 1);
+    }
+
+    /**
+     * Create a multi-SAP that splits the given world bounds into a grid of
+     * boxes.
+     *
+     * @param worldBounds The region to subdivide.
+     * @param boxesX The number of boxes along the x axis.
+     * @param boxesY The number of boxes along the y axis.
+     */
+    public SweepAndPrune(AABB worldBounds, int boxesX, int boxesY)
+    {
+        assert (boxesX > 0 && boxesY > 0);
+        assert (worldBounds != null || (boxesX == 1 && boxesY == 1));
+        this.boxesX = boxesX;
+        this.boxesY = boxesY;
+        boxes = new Box[boxesX * boxesY];
+        if (worldBounds != null)
+        {
+            worldLowerX = worldBounds.lowerBound.x;
+            worldLowerY = worldBounds.lowerBound.y;
+            float boxWidth = (worldBounds.upperBound.x - worldLowerX) / boxesX;
+            float boxHeight = (worldBounds.upperBound.y - worldLowerY)
+                    / boxesY;
+            invBoxWidth = boxWidth > 0 ? 1.0f / boxWidth : 0.0f;
+            invBoxHeight = boxHeight > 0 ? 1.0f / boxHeight : 0.0f;
+            for (int y = 0; y < boxesY; ++y)
+            {
+                for (int x = 0; x < boxesX; ++x)
+                {
+                    Box box = new Box();
+                    box.lowerX = worldLowerX + x * boxWidth;
+                    box.lowerY = worldLowerY + y * boxHeight;
+                    box.upperX = box.lowerX + boxWidth;
+                    box.upperY = box.lowerY + boxHeight;
+                    boxes[y * boxesX + x] = box;
+                }
+            }
+        }
+        else
+        {
+            worldLowerX = worldLowerY = 0.0f;
+            invBoxWidth = invBoxHeight = 0.0f;
+            boxes[0] = new Box();
+        }
+        proxyCapacity = 16;
+        expandBuffers(0, proxyCapacity);
+        for (int i = 0; i < drawVecs.length; i++)
+        {
+            drawVecs[i] = new Vec2();
+        }
+    }
+
+    private void expandBuffers(int oldSize, int newSize)
+    {
+        fatAABBs = BufferUtils.reallocateBuffer(AABB.class, fatAABBs, oldSize,
+                newSize);
+        userData = BufferUtils.reallocateBuffer(Object.class, userData, oldSize,
+                newSize);
+        generation = BufferUtils.reallocateBuffer(generation, oldSize, newSize);
+        next = BufferUtils.reallocateBuffer(next, oldSize, newSize);
+        boxLowerX = BufferUtils.reallocateBuffer(boxLowerX, oldSize, newSize);
+        boxLowerY = BufferUtils.reallocateBuffer(boxLowerY, oldSize, newSize);
+        boxUpperX = BufferUtils.reallocateBuffer(boxUpperX, oldSize, newSize);
+        boxUpperY = BufferUtils.reallocateBuffer(boxUpperY, oldSize, newSize);
+        // Build a linked list for the free list.
+        for (int i = oldSize; i < newSize; i++)
+        {
+            fatAABBs[i] = new AABB();
+            next[i] = (i == newSize - 1) ? NULL_PROXY : i + 1;
+        }
+        freeList = oldSize;
+    }
+
+    private int boxIndexX(float x)
+    {
+        float f = (x - worldLowerX) * invBoxWidth;
+        if (f < 0)
+        {
+            return 0;
+        }
+        int i = (int) f;
+        return i < boxesX ? i : boxesX - 1;
+    }
+
+    private int boxIndexY(float y)
+    {
+        float f = (y - worldLowerY) * invBoxHeight;
+        if (f < 0)
+        {
+            return 0;
+        }
+        int i = (int) f;
+        return i < boxesY ? i : boxesY - 1;
+    }
+
+    private void computeRange(AABB aabb)
+    {
+        rangeLowerX = boxIndexX(aabb.lowerBound.x);
+        rangeLowerY = boxIndexY(aabb.lowerBound.y);
+        rangeUpperX = boxIndexX(aabb.upperBound.x);
+        rangeUpperY = boxIndexY(aabb.upperBound.y);
+    }
+
+    /**
+     * Register the proxy with every box in the current range.
+     */
+    private void addToBoxes(int proxyId)
+    {
+        boxLowerX[proxyId] = rangeLowerX;
+        boxLowerY[proxyId] = rangeLowerY;
+        boxUpperX[proxyId] = rangeUpperX;
+        boxUpperY[proxyId] = rangeUpperY;
+        final float key = fatAABBs[proxyId].lowerBound.x;
+        final int gen = generation[proxyId];
+        for (int y = rangeLowerY; y <= rangeUpperY; ++y)
+        {
+            for (int x = rangeLowerX; x <= rangeUpperX; ++x)
+            {
+                Box box = boxes[y * boxesX + x];
+                if (box.count == box.keys.length)
+                {
+                    int newCapacity = box.count * 2;
+                    box.keys = BufferUtils.reallocateBuffer(box.keys, box.count,
+                            newCapacity);
+                    box.proxies = BufferUtils.reallocateBuffer(box.proxies,
+                            box.count, newCapacity);
+                    box.generations = BufferUtils.reallocateBuffer(
+                            box.generations, box.count, newCapacity);
+                }
+                box.keys[box.count] = key;
+                box.proxies[box.count] = proxyId;
+                box.generations[box.count] = gen;
+                ++box.count;
+                box.dirty = true;
+            }
+        }
+    }
+
+    private void markBoxesDirty(int proxyId)
+    {
+        for (int y = boxLowerY[proxyId]; y <= boxUpperY[proxyId]; ++y)
+        {
+            for (int x = boxLowerX[proxyId]; x <= boxUpperX[proxyId]; ++x)
+            {
+                boxes[y * boxesX + x].dirty = true;
+            }
+        }
+    }
+
+    @Override
+    public final int createProxy(final AABB aabb, Object userData)
+    {
+        assert (aabb.isValid());
+        if (freeList == NULL_PROXY)
+        {
+            assert (proxyCount == proxyCapacity);
+            proxyCapacity *= 2;
+            expandBuffers(proxyCount, proxyCapacity);
+        }
+        final int proxyId = freeList;
+        freeList = next[proxyId];
+        ++proxyCount;
+        // Fatten the aabb
+        final AABB fatAABB = fatAABBs[proxyId];
+        fatAABB.lowerBound.x = aabb.lowerBound.x - Settings.aabbExtension;
+        fatAABB.lowerBound.y = aabb.lowerBound.y - Settings.aabbExtension;
+        fatAABB.upperBound.x = aabb.upperBound.x + Settings.aabbExtension;
+        fatAABB.upperBound.y = aabb.upperBound.y + Settings.aabbExtension;
+        this.userData[proxyId] = userData;
+        computeRange(fatAABB);
+        addToBoxes(proxyId);
+        return proxyId;
+    }
+
+    @Override
+    public final void destroyProxy(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        // Invalidate all box entries, they are removed lazily.
+        ++generation[proxyId];
+        markBoxesDirty(proxyId);
+        userData[proxyId] = null;
+        next[proxyId] = freeList;
+        freeList = proxyId;
+        --proxyCount;
+    }
+
+    @Override
+    public final boolean moveProxy(int proxyId, final AABB aabb,
+            Vec2 displacement)
+    {
+        assert (aabb.isValid());
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        final AABB fatAABB = fatAABBs[proxyId];
+        if (fatAABB.lowerBound.x <= aabb.lowerBound.x
+                && fatAABB.lowerBound.y <= aabb.lowerBound.y
+                && aabb.upperBound.x <= fatAABB.upperBound.x
+                && aabb.upperBound.y <= fatAABB.upperBound.y)
+        {
+            return false;
+        }
+        // Extend AABB
+        final Vec2 lowerBound = fatAABB.lowerBound;
+        final Vec2 upperBound = fatAABB.upperBound;
+        lowerBound.x = aabb.lowerBound.x - Settings.aabbExtension;
+        lowerBound.y = aabb.lowerBound.y - Settings.aabbExtension;
+        upperBound.x = aabb.upperBound.x + Settings.aabbExtension;
+        upperBound.y = aabb.upperBound.y + Settings.aabbExtension;
+        // Predict AABB displacement.
+        final float dx = displacement.x * Settings.aabbMultiplier;
+        final float dy = displacement.y * Settings.aabbMultiplier;
+        if (dx < 0.0f)
+        {
+            lowerBound.x += dx;
+        }
+        else
+        {
+            upperBound.x += dx;
+        }
+        if (dy < 0.0f)
+        {
+            lowerBound.y += dy;
+        }
+        else
+        {
+            upperBound.y += dy;
+        }
+        markBoxesDirty(proxyId);
+        computeRange(fatAABB);
+        if (rangeLowerX != boxLowerX[proxyId]
+                || rangeLowerY != boxLowerY[proxyId]
+                || rangeUpperX != boxUpperX[proxyId]
+                || rangeUpperY != boxUpperY[proxyId])
+        {
+            // The proxy crossed a box border. Drop the old entries and
+            // register again.
+            ++generation[proxyId];
+            addToBoxes(proxyId);
+        }
+        return true;
+    }
+
+    @Override
+    public final Object getUserData(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        return userData[proxyId];
+    }
+
+    @Override
+    public final AABB getFatAABB(int proxyId)
+    {
+        assert (0 <= proxyId && proxyId < proxyCapacity);
+        return fatAABBs[proxyId];
+    }
+
+    /**
+     * Remove stale entries, update the keys from the fat AABBs and restore the
+     * order with an insertion sort. Cheap when only few entries moved past
+     * each other since the last refresh.
+     */
+    private void refresh(Box box)
+    {
+        final float[] keys = box.keys;
+        final int[] proxies = box.proxies;
+        final int[] generations = box.generations;
+        int count = 0;
+        float maxExtent = 0.0f;
+        for (int i = 0; i < box.count; ++i)
+        {
+            final int proxyId = proxies[i];
+            if (generations[i] != generation[proxyId])
+            {
+                continue;
+            }
+            final AABB fatAABB = fatAABBs[proxyId];
+            final float key = fatAABB.lowerBound.x;
+            maxExtent = MathUtils.max(maxExtent, fatAABB.upperBound.x - key);
+            // Insertion sort.
+            int j = count;
+            while (j > 0 && keys[j - 1] > key)
+            {
+                keys[j] = keys[j - 1];
+                proxies[j] = proxies[j - 1];
+                generations[j] = generations[j - 1];
+                --j;
+            }
+            keys[j] = key;
+            proxies[j] = proxyId;
+            generations[j] = generation[proxyId];
+            ++count;
+        }
+        box.count = count;
+        box.maxExtent = maxExtent;
+        box.dirty = false;
+    }
+
+    /**
+     * Find the first entry whose key is not less than the given value.
+     */
+    private static int lowerBound(float[] keys, int count, float value)
+    {
+        int low = 0;
+        int high = count;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < value)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public final void query(TreeCallback callback, AABB aabb)
+    {
+        computeRange(aabb);
+        final int queryLowerX = rangeLowerX;
+        final int queryLowerY = rangeLowerY;
+        final int queryUpperX = rangeUpperX;
+        final int queryUpperY = rangeUpperY;
+        for (int y = queryLowerY; y <= queryUpperY; ++y)
+        {
+            for (int x = queryLowerX; x <= queryUpperX; ++x)
+            {
+                final Box box = boxes[y * boxesX + x];
+                if (box.dirty)
+                {
+                    refresh(box);
+                }
+                final float[] keys = box.keys;
+                final int[] proxies = box.proxies;
+                final int count = box.count;
+                final float upperX = aabb.upperBound.x;
+                int i = lowerBound(keys, count,
+                        aabb.lowerBound.x - box.maxExtent);
+                for (; i < count && keys[i] <= upperX; ++i)
+                {
+                    final int proxyId = proxies[i];
+                    if (!AABB.testOverlap(fatAABBs[proxyId], aabb))
+                    {
+                        continue;
+                    }
+                    // Report each proxy only in the first box it shares with
+                    // the query.
+                    if (MathUtils.max(boxLowerX[proxyId], queryLowerX) != x
+                            || MathUtils.max(boxLowerY[proxyId],
+                                    queryLowerY) != y)
+                    {
+                        continue;
+                    }
+                    if (!callback.treeCallback(proxyId))
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private final AABB segAABB = new AABB();
+
+    private final RayCastInput subInput = new RayCastInput();
+
+    @Override
+    public void raycast(TreeRayCastCallback callback, RayCastInput input)
+    {
+        final float p1x = input.p1.x, p1y = input.p1.y;
+        final float p2x = input.p2.x, p2y = input.p2.y;
+        float rx = p2x - p1x;
+        float ry = p2y - p1y;
+        final float length = MathUtils.sqrt(rx * rx + ry * ry);
+        assert (length > 0f);
+        rx /= length;
+        ry /= length;
+        // v is perpendicular to the segment.
+        final float vx = -ry;
+        final float vy = rx;
+        final float absVx = MathUtils.abs(vx);
+        final float absVy = MathUtils.abs(vy);
+        float maxFraction = input.maxFraction;
+        // Build a bounding box for the segment.
+        float tempX = (p2x - p1x) * maxFraction + p1x;
+        float tempY = (p2y - p1y) * maxFraction + p1y;
+        segAABB.lowerBound.x = Math.min(p1x, tempX);
+        segAABB.lowerBound.y = Math.min(p1y, tempY);
+        segAABB.upperBound.x = Math.max(p1x, tempX);
+        segAABB.upperBound.y = Math.max(p1y, tempY);
+        computeRange(segAABB);
+        final int rayLowerX = rangeLowerX;
+        final int rayLowerY = rangeLowerY;
+        final int rayUpperX = rangeUpperX;
+        final int rayUpperY = rangeUpperY;
+        // Visit the boxes along the ray direction so that early hits shrink
+        // the segment for the remaining boxes.
+        final int stepX = rx >= 0 ? 1 : -1;
+        final int stepY = ry >= 0 ? 1 : -1;
+        final int startX = rx >= 0 ? rayLowerX : rayUpperX;
+        final int startY = ry >= 0 ? rayLowerY : rayUpperY;
+        final int countX = rayUpperX - rayLowerX + 1;
+        final int countY = rayUpperY - rayLowerY + 1;
+        for (int iy = 0, y = startY; iy < countY; ++iy, y += stepY)
+        {
+            for (int ix = 0, x = startX; ix < countX; ++ix, x += stepX)
+            {
+                final Box box = boxes[y * boxesX + x];
+                if (box.dirty)
+                {
+                    refresh(box);
+                }
+                final float[] keys = box.keys;
+                final int[] proxies = box.proxies;
+                final int count = box.count;
+                int i = lowerBound(keys, count,
+                        segAABB.lowerBound.x - box.maxExtent);
+                for (; i < count && keys[i] <= segAABB.upperBound.x; ++i)
+                {
+                    final int proxyId = proxies[i];
+                    final AABB fatAABB = fatAABBs[proxyId];
+                    if (!AABB.testOverlap(fatAABB, segAABB))
+                    {
+                        continue;
+                    }
+                    if (MathUtils.max(boxLowerX[proxyId], rayLowerX) != x
+                            || MathUtils.max(boxLowerY[proxyId],
+                                    rayLowerY) != y)
+                    {
+                        continue;
+                    }
+                    // Separating axis for segment (Gino, p80).
+                    // |dot(v, p1 - c)| > dot(|v|, h)
+                    final float cx = (fatAABB.lowerBound.x
+                            + fatAABB.upperBound.x) * .5f;
+                    final float cy = (fatAABB.lowerBound.y
+                            + fatAABB.upperBound.y) * .5f;
+                    final float hx = (fatAABB.upperBound.x
+                            - fatAABB.lowerBound.x) * .5f;
+                    final float hy = (fatAABB.upperBound.y
+                            - fatAABB.lowerBound.y) * .5f;
+                    float separation = MathUtils
+                            .abs(vx * (p1x - cx) + vy * (p1y - cy))
+                            - (absVx * hx + absVy * hy);
+                    if (separation > 0.0f)
+                    {
+                        continue;
+                    }
+                    subInput.p1.x = p1x;
+                    subInput.p1.y = p1y;
+                    subInput.p2.x = p2x;
+                    subInput.p2.y = p2y;
+                    subInput.maxFraction = maxFraction;
+                    float value = callback.raycastCallback(subInput, proxyId);
+                    if (value == 0.0f)
+                    {
+                        // The client has terminated the ray cast.
+                        return;
+                    }
+                    if (value > 0.0f)
+                    {
+                        // Update segment bounding box.
+                        maxFraction = value;
+                        tempX = (p2x - p1x) * maxFraction + p1x;
+                        tempY = (p2y - p1y) * maxFraction + p1y;
+                        segAABB.lowerBound.x = Math.min(p1x, tempX);
+                        segAABB.lowerBound.y = Math.min(p1y, tempY);
+                        segAABB.upperBound.x = Math.max(p1x, tempX);
+                        segAABB.upperBound.y = Math.max(p1y, tempY);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Casts the rays one after another. Batches are serialized, since the
+     * single ray-cast is not reentrant.
+     */
+    @Override
+    public synchronized void raycast(TreeRayPacketCallback callback,
+            float[] rays, float[] maxFractions, int start, int end)
+    {
+        SerialPacketQuery.raycast(this, callback, rays, maxFractions, start,
+                end);
+    }
+
+    /**
+     * Runs the queries one after another. Batches are serialized, since the
+     * single query is not reentrant.
+     */
+    @Override
+    public synchronized void query(TreeQueryPacketCallback callback,
+            float[] aabbs, int start, int end)
+    {
+        SerialPacketQuery.query(this, callback, aabbs, start, end);
+    }
+
+    /**
+     * A sweep-and-prune has no hierarchy.
+     */
+    @Override
+    public final int computeHeight()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getMaxBalance()
+    {
+        return 0;
+    }
+
+    /**
+     * Always zero, so the broad-phase never requests a rebuild.
+     */
+    @Override
+    public float getAreaRatio()
+    {
+        return 0;
+    }
+
+    /**
+     * Re-sort every box.
+     */
+    @Override
+    public void rebuild()
+    {
+        for (Box box : boxes)
+        {
+            refresh(box);
+        }
+    }
+
+    /**
+     * Repair the order of all boxes touched since the last call, so that the
+     * pair queries of this step find them sorted. The budget is ignored since
+     * a refresh is linear in the box size anyway.
+     */
+    @Override
+    public void optimize(int maxNodes)
+    {
+        for (Box box : boxes)
+        {
+            if (box.dirty)
+            {
+                refresh(box);
+            }
+        }
+    }
+
+    public int getProxyCount()
+    {
+        return proxyCount;
+    }
+
+    private final Color3f color = new Color3f();
+
+    @Override
+    public void drawTree(DebugDraw argDraw)
+    {
+        if (boxes.length > 1)
+        {
+            color.set(0.3f, 0.3f, 0.9f);
+            for (Box box : boxes)
+            {
+                drawVecs[0].set(box.lowerX, box.lowerY);
+                drawVecs[1].set(box.upperX, box.lowerY);
+                drawVecs[2].set(box.upperX, box.upperY);
+                drawVecs[3].set(box.lowerX, box.upperY);
+                argDraw.drawPolygon(drawVecs, 4, color);
+            }
+        }
+        color.set(0.9f, 0.9f, 0.3f);
+        for (Box box : boxes)
+        {
+            for (int i = 0; i < box.count; ++i)
+            {
+                final int proxyId = box.proxies[i];
+                if (box.generations[i] != generation[proxyId])
+                {
+                    continue;
+                }
+                fatAABBs[proxyId].getVertices(drawVecs);
+                argDraw.drawPolygon(drawVecs, 4, color);
+            }
+        }
+    }
+}
@@ -23,9 +23,12 @@
  */
 package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
 
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.StaticTree;
 import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
 import de.pirckheimer_gymnasium.jbox2d.common.Rot;
 import de.pirckheimer_gymnasium.jbox2d.common.Settings;
@@ -55,6 +58,15 @@ public class ChainShape extends Shape
 
     private final EdgeShape pool0 = new EdgeShape();
 
+    private final EdgeRayCastCallback pool1 = new EdgeRayCastCallback();
+
+    private final AABB pool2 = new AABB();
+
+    /**
+     * The tree over the edges in terrain mode, in local coordinates.
+     */
+    private StaticTree edgeTree;
+
     public ChainShape()
     {
         super(ShapeType.CHAIN);
@@ -67,6 +79,7 @@ public class ChainShape extends Shape
     {
         vertices = null;
         count = 0;
+        edgeTree = null;
     }
 
     @Override
@@ -75,6 +88,74 @@ public class ChainShape extends Shape
         return count - 1;
     }
 
+    @Override
+    public int getProxyCount()
+    {
+        return edgeTree != null ? 1 : count - 1;
+    }
+
+    /**
+     * Switch the static terrain mode on or off. In terrain mode the chain
+     * keeps its edges in a tree of its own. A fixture of the chain then has a
+     * single broad-phase proxy, and the edges near other shapes are found in
+     * the tree. This keeps the broad-phase small for chains with many
+     * vertices. Set the mode after creating the chain and before creating a
+     * fixture with it.
+     */
+    public void setTerrain(boolean flag)
+    {
+        if (!flag)
+        {
+            edgeTree = null;
+            return;
+        }
+        if (edgeTree != null)
+        {
+            return;
+        }
+        assert (count >= 2);
+        final int edgeCount = count - 1;
+        final float[] bounds = new float[4 * edgeCount];
+        for (int i = 0; i < edgeCount; ++i)
+        {
+            final Vec2 v1 = vertices[i];
+            final Vec2 v2 = vertices[i + 1];
+            bounds[4 * i] = Math.min(v1.x, v2.x);
+            bounds[4 * i + 1] = Math.min(v1.y, v2.y);
+            bounds[4 * i + 2] = Math.max(v1.x, v2.x);
+            bounds[4 * i + 3] = Math.max(v1.y, v2.y);
+        }
+        edgeTree = new StaticTree(bounds, edgeCount);
+    }
+
+    public boolean isTerrain()
+    {
+        return edgeTree != null;
+    }
+
+    /**
+     * Get the tree over the edges, or null if the chain is not in terrain
+     * mode. The leaf ids are the child indices.
+     */
+    public StaticTree getEdgeTree()
+    {
+        return edgeTree;
+    }
+
+    @Override
+    public void queryChildren(TreeCallback callback, final AABB aabb,
+            final Transform xf)
+    {
+        if (edgeTree == null)
+        {
+            super.queryChildren(callback, aabb, xf);
+            return;
+        }
+        final AABB localAABB = pool2;
+        toLocalAABB(aabb, xf, localAABB);
+        edgeTree.query(callback, localAABB);
+    }
+
     /**
      * Get a child edge.
      */
@@ -135,28 +216,108 @@ public class ChainShape extends Shape
     public boolean raycast(RayCastOutput output, RayCastInput input,
             Transform xf, int childIndex)
     {
+        return raycast(output, input, xf, childIndex, pool1);
+    }
+
+    @Override
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, ShapeQueryPool pool)
+    {
+        return raycast(output, input, xf, childIndex, pool.edgeRayCast);
+    }
+
+    private boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, EdgeRayCastCallback callback)
+    {
+        if (childIndex == ALL_CHILDREN)
+        {
+            return raycastEdges(output, input, xf, callback);
+        }
         assert (childIndex < count);
-        final EdgeShape edgeShape = pool0;
         int i2 = childIndex + 1;
         if (i2 == count)
         {
             i2 = 0;
         }
-        Vec2 v = vertices[childIndex];
-        edgeShape.vertex1.x = v.x;
-        edgeShape.vertex1.y = v.y;
-        Vec2 v1 = vertices[i2];
-        edgeShape.vertex2.x = v1.x;
-        edgeShape.vertex2.y = v1.y;
-        return edgeShape.raycast(output, input, xf, 0);
+        return EdgeShape.raycast(output, input, xf, vertices[childIndex],
+                vertices[i2]);
+    }
+
+    /**
+     * Cast a ray against all edges in terrain mode and report the closest
+     * hit within the max fraction of the input.
+     */
+    private boolean raycastEdges(RayCastOutput output, RayCastInput input,
+            Transform xf, EdgeRayCastCallback callback)
+    {
+        toLocalRay(input, xf, callback.localInput);
+        callback.vertices = vertices;
+        callback.output = output;
+        callback.input = input;
+        callback.xf = xf;
+        callback.hit = false;
+        edgeTree.raycast(callback, callback.localInput, callback.state);
+        callback.vertices = null;
+        callback.output = null;
+        callback.input = null;
+        callback.xf = null;
+        return callback.hit;
+    }
+
+    /**
+     * Casts a ray against the edges found in the tree and keeps the closest
+     * hit. The chain and the ray are set for each ray cast.
+     */
+    static class EdgeRayCastCallback implements TreeRayCastCallback
+    {
+        /**
+         * The ray in the frame of the chain.
+         */
+        final RayCastInput localInput = new RayCastInput();
+
+        final StaticTree.RayCastState state = new StaticTree.RayCastState();
+
+        Vec2[] vertices;
+
+        RayCastOutput output;
+
+        RayCastInput input;
+
+        Transform xf;
+
+        private final RayCastOutput edgeOutput = new RayCastOutput();
+
+        boolean hit;
+
+        @Override
+        public float raycastCallback(RayCastInput subInput, int edge)
+        {
+            if (EdgeShape.raycast(edgeOutput, input, xf, vertices[edge],
+                    vertices[edge + 1])
+                    && edgeOutput.fraction <= subInput.maxFraction)
+            {
+                output.fraction = edgeOutput.fraction;
+                output.normal.set(edgeOutput.normal);
+                hit = true;
+                return edgeOutput.fraction;
+            }
+            return -1.0f;
+        }
     }
 
     @Override
     public void computeAABB(AABB aabb, Transform xf, int childIndex)
     {
-        assert (childIndex < count);
         final Vec2 lower = aabb.lowerBound;
         final Vec2 upper = aabb.upperBound;
+        if (childIndex == ALL_CHILDREN)
+        {
+            // Bound the box of all edges in the world frame.
+            edgeTree.getBounds(aabb);
+            toWorldAABB(aabb, xf);
+            return;
+        }
+        assert (childIndex < count);
         int i2 = childIndex + 1;
         if (i2 == count)
         {
@@ -193,6 +354,8 @@ public class ChainShape extends Shape
         clone.nextVertex.set(nextVertex);
         clone.hasPrevVertex = hasPrevVertex;
         clone.hasNextVertex = hasNextVertex;
+        // The tree is immutable, so the clone can share it.
+        clone.edgeTree = edgeTree;
         return clone;
     }
 
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.StaticTree;
+import de.pirckheimer_gymnasium.jbox2d.common.Rot;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * An immutable set of convex polygons and edges for static geometry, e.g. the
+ * baked level geometry of {@code StaticGeometry}. The parts are stored in flat
+ * arrays and kept in a {@link StaticTree}. Each part is a child of the shape,
+ * and the fixture of a compound shape has a single broad-phase proxy.
+ *
+ * <p>
+ * Copies of the shape share the parts and the tree, so creating fixtures with
+ * it is cheap.
+ * </p>
+ */
+public class CompoundShape extends Shape
+{
+    private static final int EDGE_FLAG = 0x0001;
+
+    private static final int VERTEX0_FLAG = 0x0002;
+
+    private static final int VERTEX3_FLAG = 0x0004;
+
+    private int partCount;
+
+    /**
+     * Part i has the vertices {@code [partStart[i], partStart[i + 1])}. An edge
+     * has four vertices, the adjacent vertex 0, the vertices 1 and 2 and the
+     * adjacent vertex 3.
+     */
+    private int[] partStart;
+
+    private int[] partFlags;
+
+    /**
+     * The x and y coordinates of the vertices.
+     */
+    private float[] vertices;
+
+    /**
+     * The x and y coordinates of the polygon normals. Edges have none.
+     */
+    private float[] normals;
+
+    private StaticTree tree;
+
+    private final PolygonShape pool0 = new PolygonShape();
+
+    private final EdgeShape pool1 = new EdgeShape();
+
+    private final PointQuery pool2 = new PointQuery();
+
+    private final PartRayCastCallback pool3 = new PartRayCastCallback();
+
+    private final AABB pool4 = new AABB();
+
+    public CompoundShape()
+    {
+        super(ShapeType.COMPOUND);
+        radius = Settings.polygonRadius;
+    }
+
+    /**
+     * Create the parts of the shape. The shapes are copied. All of them should
+     * have the radius of this shape.
+     */
+    public void create(final PolygonShape[] polygons, int polygonCount,
+            final EdgeShape[] edges, int edgeCount)
+    {
+        assert (partCount == 0);
+        partCount = polygonCount + edgeCount;
+        partStart = new int[partCount + 1];
+        partFlags = new int[partCount];
+        int vertexCount = 4 * edgeCount;
+        for (int i = 0; i < polygonCount; ++i)
+        {
+            vertexCount += polygons[i].count;
+        }
+        vertices = new float[2 * vertexCount];
+        normals = new float[2 * vertexCount];
+        final float[] bounds = new float[4 * partCount];
+        int v = 0;
+        for (int i = 0; i < polygonCount; ++i)
+        {
+            final PolygonShape polygon = polygons[i];
+            assert (polygon.radius == radius);
+            partStart[i] = v;
+            for (int j = 0; j < polygon.count; ++j)
+            {
+                vertices[2 * v] = polygon.vertices[j].x;
+                vertices[2 * v + 1] = polygon.vertices[j].y;
+                normals[2 * v] = polygon.normals[j].x;
+                normals[2 * v + 1] = polygon.normals[j].y;
+                ++v;
+            }
+            computeBounds(bounds, i, partStart[i], v);
+        }
+        for (int i = 0; i < edgeCount; ++i)
+        {
+            final EdgeShape edge = edges[i];
+            final int part = polygonCount + i;
+            assert (edge.radius == radius);
+            partStart[part] = v;
+            partFlags[part] = EDGE_FLAG
+                    | (edge.hasVertex0 ? VERTEX0_FLAG : 0)
+                    | (edge.hasVertex3 ? VERTEX3_FLAG : 0);
+            setVertex(v++, edge.vertex0);
+            setVertex(v++, edge.vertex1);
+            setVertex(v++, edge.vertex2);
+            setVertex(v++, edge.vertex3);
+            computeBounds(bounds, part, v - 3, v - 1);
+        }
+        partStart[partCount] = v;
+        tree = new StaticTree(bounds, partCount);
+    }
+
+    private void setVertex(int v, final Vec2 vertex)
+    {
+        vertices[2 * v] = vertex.x;
+        vertices[2 * v + 1] = vertex.y;
+    }
+
+    /**
+     * Compute the bounds of the vertices [start, end) extended by the radius.
+     */
+    private void computeBounds(float[] bounds, int part, int start, int end)
+    {
+        float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE;
+        float ux = -Float.MAX_VALUE, uy = -Float.MAX_VALUE;
+        for (int v = start; v < end; ++v)
+        {
+            lx = Math.min(lx, vertices[2 * v]);
+            ly = Math.min(ly, vertices[2 * v + 1]);
+            ux = Math.max(ux, vertices[2 * v]);
+            uy = Math.max(uy, vertices[2 * v + 1]);
+        }
+        bounds[4 * part] = lx - radius;
+        bounds[4 * part + 1] = ly - radius;
+        bounds[4 * part + 2] = ux + radius;
+        bounds[4 * part + 3] = uy + radius;
+    }
+
+    @Override
+    public int getChildCount()
+    {
+        return partCount;
+    }
+
+    @Override
+    public int getProxyCount()
+    {
+        return 1;
+    }
+
+    /**
+     * Get the tree over the parts. The leaf ids are the child indices.
+     */
+    public StaticTree getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * Is the part an edge? Otherwise it is a polygon.
+     */
+    public boolean isEdge(int childIndex)
+    {
+        return (partFlags[childIndex] & EDGE_FLAG) != 0;
+    }
+
+    /**
+     * Get a polygon part.
+     */
+    public void getChildPolygon(PolygonShape polygon, int childIndex)
+    {
+        assert (!isEdge(childIndex));
+        final int start = partStart[childIndex];
+        final int count = partStart[childIndex + 1] - start;
+        float cx = 0.0f;
+        float cy = 0.0f;
+        for (int j = 0; j < count; ++j)
+        {
+            final int v = 2 * (start + j);
+            polygon.vertices[j].x = vertices[v];
+            polygon.vertices[j].y = vertices[v + 1];
+            polygon.normals[j].x = normals[v];
+            polygon.normals[j].y = normals[v + 1];
+            cx += vertices[v];
+            cy += vertices[v + 1];
+        }
+        polygon.count = count;
+        // The centroid is only used as a reference point in collisions.
+        polygon.centroid.set(cx / count, cy / count);
+        polygon.radius = radius;
+    }
+
+    /**
+     * Get an edge part.
+     */
+    public void getChildEdge(EdgeShape edge, int childIndex)
+    {
+        assert (isEdge(childIndex));
+        final int v = 2 * partStart[childIndex];
+        final int flags = partFlags[childIndex];
+        edge.vertex0.set(vertices[v], vertices[v + 1]);
+        edge.vertex1.set(vertices[v + 2], vertices[v + 3]);
+        edge.vertex2.set(vertices[v + 4], vertices[v + 5]);
+        edge.vertex3.set(vertices[v + 6], vertices[v + 7]);
+        edge.hasVertex0 = (flags & VERTEX0_FLAG) != 0;
+        edge.hasVertex3 = (flags & VERTEX3_FLAG) != 0;
+        edge.radius = radius;
+    }
+
+    /**
+     * Copy the vertices of a part, the two vertices of an edge or the vertices
+     * of a polygon.
+     *
+     * @return The number of vertices.
+     */
+    public int getChildVertices(int childIndex, final Vec2[] out)
+    {
+        int start = partStart[childIndex];
+        int end = partStart[childIndex + 1];
+        if (isEdge(childIndex))
+        {
+            ++start;
+            --end;
+        }
+        for (int v = start; v < end; ++v)
+        {
+            out[v - start].set(vertices[2 * v], vertices[2 * v + 1]);
+        }
+        return end - start;
+    }
+
+    @Override
+    public void queryChildren(TreeCallback callback, final AABB aabb,
+            final Transform xf)
+    {
+        final AABB localAABB = pool4;
+        toLocalAABB(aabb, xf, localAABB);
+        tree.query(callback, localAABB);
+    }
+
+    @Override
+    public boolean testPoint(final Transform xf, final Vec2 p)
+    {
+        return testPoint(xf, p, pool2);
+    }
+
+    @Override
+    public boolean testPoint(final Transform xf, final Vec2 p,
+            ShapeQueryPool pool)
+    {
+        return testPoint(xf, p, pool.pointQuery);
+    }
+
+    private boolean testPoint(final Transform xf, final Vec2 p,
+            PointQuery query)
+    {
+        final Rot q = xf.q;
+        final float tx = p.x - xf.p.x;
+        final float ty = p.y - xf.p.y;
+        final float px = q.c * tx + q.s * ty;
+        final float py = -q.s * tx + q.c * ty;
+        query.shape = this;
+        query.px = px;
+        query.py = py;
+        query.inside = false;
+        tree.query(query, px, py, px, py);
+        query.shape = null;
+        return query.inside;
+    }
+
+    /**
+     * Tests a point in local coordinates against the polygons found in the
+     * tree. The shape and the point are set for each test.
+     */
+    static class PointQuery implements TreeCallback
+    {
+        CompoundShape shape;
+
+        float px;
+
+        float py;
+
+        boolean inside;
+
+        @Override
+        public boolean treeCallback(int part)
+        {
+            if (shape.isEdge(part))
+            {
+                return true;
+            }
+            final float[] vertices = shape.vertices;
+            final float[] normals = shape.normals;
+            final int end = shape.partStart[part + 1];
+            for (int v = shape.partStart[part]; v < end; ++v)
+            {
+                final float dot = normals[2 * v] * (px - vertices[2 * v])
+                        + normals[2 * v + 1] * (py - vertices[2 * v + 1]);
+                if (dot > 0.0f)
+                {
+                    return true;
+                }
+            }
+            inside = true;
+            return false;
+        }
+    }
+
+    @Override
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex)
+    {
+        return raycast(output, input, xf, childIndex, pool3);
+    }
+
+    @Override
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, ShapeQueryPool pool)
+    {
+        return raycast(output, input, xf, childIndex, pool.partRayCast);
+    }
+
+    private boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, PartRayCastCallback callback)
+    {
+        if (childIndex == ALL_CHILDREN)
+        {
+            toLocalRay(input, xf, callback.localInput);
+            callback.shape = this;
+            callback.output = output;
+            callback.input = input;
+            callback.xf = xf;
+            callback.hit = false;
+            tree.raycast(callback, callback.localInput, callback.state);
+            callback.shape = null;
+            callback.output = null;
+            callback.input = null;
+            callback.xf = null;
+            return callback.hit;
+        }
+        return raycastPart(output, input, xf, childIndex, callback.polygon,
+                callback.edge);
+    }
+
+    private boolean raycastPart(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, PolygonShape polygon,
+            EdgeShape edge)
+    {
+        if (isEdge(childIndex))
+        {
+            getChildEdge(edge, childIndex);
+            return edge.raycast(output, input, xf, 0);
+        }
+        getChildPolygon(polygon, childIndex);
+        return polygon.raycast(output, input, xf, 0);
+    }
+
+    /**
+     * Casts a ray against the parts found in the tree and keeps the closest
+     * hit. The shape and the ray are set for each ray cast.
+     */
+    static class PartRayCastCallback implements TreeRayCastCallback
+    {
+        /**
+         * The ray in the frame of the shape.
+         */
+        final RayCastInput localInput = new RayCastInput();
+
+        final StaticTree.RayCastState state = new StaticTree.RayCastState();
+
+        CompoundShape shape;
+
+        RayCastOutput output;
+
+        RayCastInput input;
+
+        Transform xf;
+
+        private final RayCastOutput partOutput = new RayCastOutput();
+
+        final PolygonShape polygon = new PolygonShape();
+
+        final EdgeShape edge = new EdgeShape();
+
+        boolean hit;
+
+        @Override
+        public float raycastCallback(RayCastInput subInput, int part)
+        {
+            if (shape.raycastPart(partOutput, input, xf, part, polygon, edge)
+                    && partOutput.fraction <= subInput.maxFraction)
+            {
+                output.fraction = partOutput.fraction;
+                output.normal.set(partOutput.normal);
+                hit = true;
+                return partOutput.fraction;
+            }
+            return -1.0f;
+        }
+    }
+
+    @Override
+    public void computeAABB(final AABB aabb, final Transform xf,
+            int childIndex)
+    {
+        if (childIndex == ALL_CHILDREN)
+        {
+            tree.getBounds(aabb);
+        }
+        else
+        {
+            tree.getLeafBounds(childIndex, aabb);
+        }
+        toWorldAABB(aabb, xf);
+    }
+
+    @Override
+    public void computeMass(final MassData massData, final float density)
+    {
+        massData.mass = 0.0f;
+        massData.center.setZero();
+        massData.I = 0.0f;
+    }
+
+    @Override
+    public float computeDistanceToOut(Transform xf, Vec2 p, int childIndex,
+            Vec2 normalOut)
+    {
+        if (isEdge(childIndex))
+        {
+            getChildEdge(pool1, childIndex);
+            return pool1.computeDistanceToOut(xf, p, 0, normalOut);
+        }
+        getChildPolygon(pool0, childIndex);
+        return pool0.computeDistanceToOut(xf, p, 0, normalOut);
+    }
+
+    @Override
+    public Shape clone()
+    {
+        CompoundShape clone = new CompoundShape();
+        // The parts are immutable, so the clone can share them.
+        clone.radius = radius;
+        clone.partCount = partCount;
+        clone.partStart = partStart;
+        clone.partFlags = partFlags;
+        clone.vertices = vertices;
+        clone.normals = normals;
+        clone.tree = tree;
+        return clone;
+    }
+}
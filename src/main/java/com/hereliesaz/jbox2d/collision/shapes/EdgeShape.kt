@@ -91,8 +91,6 @@ public class EdgeShape extends Shape
     }
 
     // for pooling
-    private final Vec2 normal = new Vec2();
-
     @Override
     public float computeDistanceToOut(Transform xf, Vec2 p, int childIndex,
             Vec2 normalOut)
@@ -145,10 +143,18 @@ public class EdgeShape extends Shape
     @Override
     public boolean raycast(RayCastOutput output, RayCastInput input,
             Transform xf, int childIndex)
+    {
+        return raycast(output, input, xf, vertex1, vertex2);
+    }
+
+    /**
+     * Cast a ray against the segment from v1 to v2. Uses no shared state, so
+     * it may be called from several threads.
+     */
+    static boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, Vec2 v1, Vec2 v2)
     {
         float tempx, tempy;
-        final Vec2 v1 = vertex1;
-        final Vec2 v2 = vertex2;
         final Rot xfq = xf.q;
         final Vec2 xfp = xf.p;
         // Put the ray into the edge's frame of reference.
@@ -166,11 +172,16 @@ public class EdgeShape extends Shape
         final float dy = p2y - p1y;
         // final Vec2 normal = pool2.set(v2).subLocal(v1);
         // normal.set(normal.y, -normal.x);
-        normal.x = v2.y - v1.y;
-        normal.y = v1.x - v2.x;
-        normal.normalize();
-        final float normalx = normal.x;
-        final float normaly = normal.y;
+        float normalx = v2.y - v1.y;
+        float normaly = v1.x - v2.x;
+        final float length = MathUtils.sqrt(normalx * normalx
+                + normaly * normaly);
+        if (length >= Settings.EPSILON)
+        {
+            final float invLength = 1.0f / length;
+            normalx *= invLength;
+            normaly *= invLength;
+        }
         // q = p1 + t * d
         // dot(normal, q - v1) = 0
         // dot(normal, p1 - v1) + t * dot(normal, d) = 0
@@ -212,14 +223,14 @@ public class EdgeShape extends Shape
         if (numerator > 0.0f)
         {
             // output.normal = -b2Mul(xf.q, normal);
-            output.normal.x = -xfq.c * normal.x + xfq.s * normal.y;
-            output.normal.y = -xfq.s * normal.x - xfq.c * normal.y;
+            output.normal.x = -xfq.c * normalx + xfq.s * normaly;
+            output.normal.y = -xfq.s * normalx - xfq.c * normaly;
         }
         else
         {
             // output->normal = b2Mul(xf.q, normal);
-            output.normal.x = xfq.c * normal.x - xfq.s * normal.y;
-            output.normal.y = xfq.s * normal.x + xfq.c * normal.y;
+            output.normal.x = xfq.c * normalx - xfq.s * normaly;
+            output.normal.y = xfq.s * normalx + xfq.c * normaly;
         }
         return true;
     }
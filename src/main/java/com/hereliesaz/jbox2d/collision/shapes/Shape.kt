@@ -23,9 +23,12 @@
  */
 package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
 
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Rot;
 import de.pirckheimer_gymnasium.jbox2d.common.Transform;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
 
@@ -38,6 +41,12 @@ import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
  */
 public abstract class Shape
 {
+    /**
+     * The child index of a proxy that covers all children of a shape, see
+     * {@link #getProxyCount()}.
+     */
+    public static final int ALL_CHILDREN = -1;
+
     public final ShapeType type;
 
     public float radius;
@@ -81,6 +90,41 @@ public abstract class Shape
      */
     public abstract int getChildCount();
 
+    /**
+     * Get the number of broad-phase proxies of this shape. By default each
+     * child has its own proxy. A shape that keeps its children in a tree of its
+     * own has a single proxy with the child index {@link #ALL_CHILDREN}
+     * instead, and the contacts of its children are found with
+     * {@link #queryChildren(TreeCallback, AABB, Transform)}.
+     */
+    public int getProxyCount()
+    {
+        return getChildCount();
+    }
+
+    /**
+     * Query the children whose bounding boxes overlap a box.
+     *
+     * @param callback Gets the child indices.
+     * @param aabb The box in world coordinates.
+     * @param xf The shape world transform.
+     */
+    public void queryChildren(TreeCallback callback, final AABB aabb,
+            final Transform xf)
+    {
+        final AABB childAABB = new AABB();
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; ++i)
+        {
+            computeAABB(childAABB, xf, i);
+            if (AABB.testOverlap(aabb, childAABB)
+                    && !callback.treeCallback(i))
+            {
+                return;
+            }
+        }
+    }
+
     /**
      * Test a point for containment in this shape. This only works for convex
      * shapes.
@@ -90,6 +134,18 @@ public abstract class Shape
      */
     public abstract boolean testPoint(final Transform xf, final Vec2 p);
 
+    /**
+     * Test a point for containment with the scratch objects of the caller,
+     * so that several threads can test the same shape at once.
+     *
+     * @see #testPoint(Transform, Vec2)
+     */
+    public boolean testPoint(final Transform xf, final Vec2 p,
+            ShapeQueryPool pool)
+    {
+        return testPoint(xf, p);
+    }
+
     /**
      * Cast a ray against a child shape.
      *
@@ -103,6 +159,19 @@ public abstract class Shape
     public abstract boolean raycast(RayCastOutput output, RayCastInput input,
             Transform transform, int childIndex);
 
+    /**
+     * Cast a ray against a child shape with the scratch objects of the
+     * caller, so that several threads can cast rays against the same shape at
+     * once.
+     *
+     * @see #raycast(RayCastOutput, RayCastInput, Transform, int)
+     */
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform transform, int childIndex, ShapeQueryPool pool)
+    {
+        return raycast(output, input, transform, childIndex);
+    }
+
     /**
      * Given a transform, compute the associated axis aligned bounding box for a
      * child shape.
@@ -137,4 +206,78 @@ public abstract class Shape
             int childIndex, Vec2 normalOut);
 
     public abstract Shape clone();
+
+    /**
+     * Bound a box in world coordinates in the frame of a shape, e.g. to query
+     * the children of the shape in local coordinates.
+     *
+     * @param aabb The box in world coordinates.
+     * @param xf The shape world transform.
+     * @param out Receives the box in the frame of the shape.
+     */
+    static void toLocalAABB(final AABB aabb, final Transform xf,
+            final AABB out)
+    {
+        final Rot q = xf.q;
+        final float cx = (aabb.lowerBound.x + aabb.upperBound.x) * .5f
+                - xf.p.x;
+        final float cy = (aabb.lowerBound.y + aabb.upperBound.y) * .5f
+                - xf.p.y;
+        final float hx = (aabb.upperBound.x - aabb.lowerBound.x) * .5f;
+        final float hy = (aabb.upperBound.y - aabb.lowerBound.y) * .5f;
+        final float lx = q.c * cx + q.s * cy;
+        final float ly = -q.s * cx + q.c * cy;
+        final float ex = MathUtils.abs(q.c) * hx + MathUtils.abs(q.s) * hy;
+        final float ey = MathUtils.abs(q.s) * hx + MathUtils.abs(q.c) * hy;
+        out.lowerBound.x = lx - ex;
+        out.lowerBound.y = ly - ey;
+        out.upperBound.x = lx + ex;
+        out.upperBound.y = ly + ey;
+    }
+
+    /**
+     * Bound a box in the frame of a shape in world coordinates. The box is
+     * transformed in place.
+     */
+    static void toWorldAABB(final AABB aabb, final Transform xf)
+    {
+        final Vec2 lower = aabb.lowerBound;
+        final Vec2 upper = aabb.upperBound;
+        final Rot q = xf.q;
+        final float cx = (lower.x + upper.x) * .5f;
+        final float cy = (lower.y + upper.y) * .5f;
+        final float hx = (upper.x - lower.x) * .5f;
+        final float hy = (upper.y - lower.y) * .5f;
+        final float wx = q.c * cx - q.s * cy + xf.p.x;
+        final float wy = q.s * cx + q.c * cy + xf.p.y;
+        final float ex = MathUtils.abs(q.c) * hx + MathUtils.abs(q.s) * hy;
+        final float ey = MathUtils.abs(q.s) * hx + MathUtils.abs(q.c) * hy;
+        lower.x = wx - ex;
+        lower.y = wy - ey;
+        upper.x = wx + ex;
+        upper.y = wy + ey;
+    }
+
+    /**
+     * Put a ray in world coordinates into the frame of a shape. The max
+     * fraction is kept.
+     *
+     * @param input The ray in world coordinates.
+     * @param xf The shape world transform.
+     * @param out Receives the ray in the frame of the shape.
+     */
+    static void toLocalRay(final RayCastInput input, final Transform xf,
+            final RayCastInput out)
+    {
+        final Rot q = xf.q;
+        float tempx = input.p1.x - xf.p.x;
+        float tempy = input.p1.y - xf.p.y;
+        out.p1.x = q.c * tempx + q.s * tempy;
+        out.p1.y = -q.s * tempx + q.c * tempy;
+        tempx = input.p2.x - xf.p.x;
+        tempy = input.p2.y - xf.p.y;
+        out.p2.x = q.c * tempx + q.s * tempy;
+        out.p2.y = -q.s * tempx + q.c * tempy;
+        out.maxFraction = input.maxFraction;
+    }
 }
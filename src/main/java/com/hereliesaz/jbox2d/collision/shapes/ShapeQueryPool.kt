@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * The scratch objects of point tests and ray casts against shapes that keep
+ * their children in a tree or a grid, i.e. terrain chains, compound shapes
+ * and tile maps. The plain calls use the scratch objects of the shape, so
+ * they must not run on several threads at once. Threads that share a shape
+ * pass a pool of their own to
+ * {@link Shape#testPoint(Transform, Vec2, ShapeQueryPool)} and
+ * {@link Shape#raycast(RayCastOutput, RayCastInput, Transform, int,
+ * ShapeQueryPool)} instead.
+ */
+public class ShapeQueryPool
+{
+    final ChainShape.EdgeRayCastCallback edgeRayCast =
+            new ChainShape.EdgeRayCastCallback();
+
+    final CompoundShape.PointQuery pointQuery =
+            new CompoundShape.PointQuery();
+
+    final CompoundShape.PartRayCastCallback partRayCast =
+            new CompoundShape.PartRayCastCallback();
+
+    /**
+     * The ray in the frame of a tile map.
+     */
+    final RayCastInput localRay = new RayCastInput();
+}
@@ -30,5 +30,5 @@ package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
  */
 public enum ShapeType
 {
-    CIRCLE, EDGE, POLYGON, CHAIN
+    CIRCLE, EDGE, POLYGON, CHAIN, TILEMAP, COMPOUND
 }
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.shapes;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Rot;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * A tile map is a grid of square cells that are either solid or empty, e.g.
+ * the level of a tile based game or a height field. The cells are stored as
+ * bits, one row after the other. Cell (0, 0) has its lower left corner at the
+ * origin of the shape.
+ *
+ * <p>
+ * Each cell is a child of the shape, the child index is
+ * {@code row * columnCount + column}. The fixture of a tile map has a single
+ * broad-phase proxy, and the cells under another proxy are looked up directly
+ * in the grid. Solid cells collide like boxes, except that contacts through
+ * the faces between two solid cells are dropped. Tile maps are meant for
+ * static bodies.
+ * </p>
+ *
+ * <p>
+ * Tiles can be changed at any time, which costs a bit flip. Change the tiles of
+ * the shape of the fixture, which is a copy of the shape the fixture was
+ * created with, and call {@code Fixture.refilter()} afterwards, so that shapes
+ * near new solid tiles get their contacts.
+ * </p>
+ */
+public class TileMapShape extends Shape
+{
+    private int columnCount;
+
+    private int rowCount;
+
+    private float cellSize;
+
+    private long[] tiles;
+
+    private final RayCastInput pool0 = new RayCastInput();
+
+    private final AABB pool1 = new AABB();
+
+    public TileMapShape()
+    {
+        super(ShapeType.TILEMAP);
+        radius = Settings.polygonRadius;
+        tiles = new long[0];
+    }
+
+    /**
+     * Create a map with empty cells.
+     *
+     * @param columnCount The number of columns.
+     * @param rowCount The number of rows.
+     * @param cellSize The edge length of a cell.
+     */
+    public void create(int columnCount, int rowCount, float cellSize)
+    {
+        assert (columnCount > 0 && rowCount > 0 && cellSize > 0.0f);
+        this.columnCount = columnCount;
+        this.rowCount = rowCount;
+        this.cellSize = cellSize;
+        tiles = new long[(columnCount * rowCount + 63) >>> 6];
+    }
+
+    public int getColumnCount()
+    {
+        return columnCount;
+    }
+
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+
+    public int getChildIndex(int column, int row)
+    {
+        return row * columnCount + column;
+    }
+
+    /**
+     * Is a cell solid? Cells outside the map are empty.
+     */
+    public boolean isSolid(int column, int row)
+    {
+        if (column < 0 || column >= columnCount || row < 0 || row >= rowCount)
+        {
+            return false;
+        }
+        return isSolid(row * columnCount + column);
+    }
+
+    /**
+     * Is the cell with the given child index solid?
+     */
+    public boolean isSolid(int childIndex)
+    {
+        return (tiles[childIndex >>> 6] & (1L << childIndex)) != 0;
+    }
+
+    public void setSolid(int column, int row, boolean solid)
+    {
+        assert (0 <= column && column < columnCount);
+        assert (0 <= row && row < rowCount);
+        final int i = row * columnCount + column;
+        if (solid)
+        {
+            tiles[i >>> 6] |= 1L << i;
+        }
+        else
+        {
+            tiles[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    @Override
+    public int getChildCount()
+    {
+        return columnCount * rowCount;
+    }
+
+    @Override
+    public int getProxyCount()
+    {
+        return 1;
+    }
+
+    /**
+     * Get the box of a cell.
+     *
+     * @return False if the cell is empty.
+     */
+    public boolean getCellBox(PolygonShape box, int childIndex)
+    {
+        if (!isSolid(childIndex))
+        {
+            return false;
+        }
+        final float lx = (childIndex % columnCount) * cellSize;
+        final float ly = (childIndex / columnCount) * cellSize;
+        final float ux = lx + cellSize;
+        final float uy = ly + cellSize;
+        box.count = 4;
+        box.vertices[0].set(lx, ly);
+        box.vertices[1].set(ux, ly);
+        box.vertices[2].set(ux, uy);
+        box.vertices[3].set(lx, uy);
+        box.normals[0].set(0.0f, -1.0f);
+        box.normals[1].set(1.0f, 0.0f);
+        box.normals[2].set(0.0f, 1.0f);
+        box.normals[3].set(-1.0f, 0.0f);
+        box.centroid.set(lx + cellSize * .5f, ly + cellSize * .5f);
+        box.radius = radius;
+        return true;
+    }
+
+    /**
+     * Does a contact normal of a cell pass through a face that it shares with
+     * another solid cell? Such contacts are artifacts of the boxes, e.g. a box
+     * that slides over a flat floor catches on the corners between the tiles.
+     *
+     * @param childIndex The cell.
+     * @param q The rotation of the map.
+     * @param normal The contact normal in world coordinates, pointing from the
+     *     cell to the other shape.
+     */
+    public boolean isInternalNormal(int childIndex, final Rot q,
+            final Vec2 normal)
+    {
+        final float nx = q.c * normal.x + q.s * normal.y;
+        final float ny = -q.s * normal.x + q.c * normal.y;
+        int column = childIndex % columnCount;
+        int row = childIndex / columnCount;
+        if (MathUtils.abs(nx) > MathUtils.abs(ny))
+        {
+            column += nx > 0.0f ? 1 : -1;
+        }
+        else
+        {
+            row += ny > 0.0f ? 1 : -1;
+        }
+        return isSolid(column, row);
+    }
+
+    @Override
+    public void queryChildren(TreeCallback callback, final AABB aabb,
+            final Transform xf)
+    {
+        final AABB localAABB = pool1;
+        toLocalAABB(aabb, xf, localAABB);
+        // The cell boxes are extended by the radius.
+        final float inverseSize = 1.0f / cellSize;
+        final int column1 = MathUtils.max(0, MathUtils.floor(
+                (localAABB.lowerBound.x - radius) * inverseSize));
+        final int row1 = MathUtils.max(0, MathUtils.floor(
+                (localAABB.lowerBound.y - radius) * inverseSize));
+        final int column2 = MathUtils.min(columnCount - 1, MathUtils.floor(
+                (localAABB.upperBound.x + radius) * inverseSize));
+        final int row2 = MathUtils.min(rowCount - 1, MathUtils.floor(
+                (localAABB.upperBound.y + radius) * inverseSize));
+        for (int row = row1; row <= row2; ++row)
+        {
+            for (int column = column1; column <= column2; ++column)
+            {
+                final int i = row * columnCount + column;
+                if (isSolid(i) && !callback.treeCallback(i))
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean testPoint(final Transform xf, final Vec2 p)
+    {
+        final Rot q = xf.q;
+        final float tx = p.x - xf.p.x;
+        final float ty = p.y - xf.p.y;
+        final float px = q.c * tx + q.s * ty;
+        final float py = -q.s * tx + q.c * ty;
+        return isSolid(MathUtils.floor(px / cellSize),
+                MathUtils.floor(py / cellSize));
+    }
+
+    /**
+     * Cast a ray against a cell, or with {@link #ALL_CHILDREN} against the
+     * map. The map is traversed cell by cell along the ray (a DDA walk) until
+     * the ray enters a solid cell from an empty one.
+     */
+    @Override
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex)
+    {
+        return raycast(output, input, xf, childIndex, pool0);
+    }
+
+    @Override
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, ShapeQueryPool pool)
+    {
+        return raycast(output, input, xf, childIndex, pool.localRay);
+    }
+
+    private boolean raycast(RayCastOutput output, RayCastInput input,
+            Transform xf, int childIndex, RayCastInput localRay)
+    {
+        final Rot q = xf.q;
+        toLocalRay(input, xf, localRay);
+        final float p1x = localRay.p1.x;
+        final float p1y = localRay.p1.y;
+        final float dx = localRay.p2.x - p1x;
+        final float dy = localRay.p2.y - p1y;
+        float lx, ly, ux, uy;
+        if (childIndex == ALL_CHILDREN)
+        {
+            lx = 0.0f;
+            ly = 0.0f;
+            ux = columnCount * cellSize;
+            uy = rowCount * cellSize;
+        }
+        else
+        {
+            if (!isSolid(childIndex))
+            {
+                return false;
+            }
+            lx = (childIndex % columnCount) * cellSize;
+            ly = (childIndex / columnCount) * cellSize;
+            ux = lx + cellSize;
+            uy = ly + cellSize;
+        }
+        // Clip the ray to the box (slab test).
+        float tMin = -Float.MAX_VALUE;
+        float tMax = Float.MAX_VALUE;
+        float nx = 0.0f;
+        float ny = 0.0f;
+        if (MathUtils.abs(dx) < Settings.EPSILON)
+        {
+            if (p1x < lx || ux < p1x)
+            {
+                return false;
+            }
+        }
+        else
+        {
+            final float inv = 1.0f / dx;
+            float t1 = (lx - p1x) * inv;
+            float t2 = (ux - p1x) * inv;
+            float s = -1.0f;
+            if (t1 > t2)
+            {
+                final float temp = t1;
+                t1 = t2;
+                t2 = temp;
+                s = 1.0f;
+            }
+            tMin = t1;
+            nx = s;
+            tMax = t2;
+        }
+        if (MathUtils.abs(dy) < Settings.EPSILON)
+        {
+            if (p1y < ly || uy < p1y)
+            {
+                return false;
+            }
+        }
+        else
+        {
+            final float inv = 1.0f / dy;
+            float t1 = (ly - p1y) * inv;
+            float t2 = (uy - p1y) * inv;
+            float s = -1.0f;
+            if (t1 > t2)
+            {
+                final float temp = t1;
+                t1 = t2;
+                t2 = temp;
+                s = 1.0f;
+            }
+            if (t1 > tMin)
+            {
+                tMin = t1;
+                nx = 0.0f;
+                ny = s;
+            }
+            tMax = MathUtils.min(tMax, t2);
+        }
+        if (tMin > tMax || tMax < 0.0f || input.maxFraction < tMin)
+        {
+            return false;
+        }
+        if (childIndex != ALL_CHILDREN)
+        {
+            // A ray that starts inside the cell does not hit it.
+            if (tMin < 0.0f)
+            {
+                return false;
+            }
+            return reportHit(output, q, tMin, nx, ny);
+        }
+        // Walk the cells along the ray, starting with the cell where it
+        // enters the map.
+        final float tEnd = MathUtils.min(tMax, input.maxFraction);
+        boolean inside = tMin <= 0.0f;
+        final float t0 = inside ? 0.0f : tMin;
+        final float inverseSize = 1.0f / cellSize;
+        int column = MathUtils.floor((p1x + dx * t0) * inverseSize);
+        int row = MathUtils.floor((p1y + dy * t0) * inverseSize);
+        column = MathUtils.max(0, MathUtils.min(columnCount - 1, column));
+        row = MathUtils.max(0, MathUtils.min(rowCount - 1, row));
+        if (isSolid(row * columnCount + column))
+        {
+            if (!inside)
+            {
+                return reportHit(output, q, t0, nx, ny);
+            }
+        }
+        else
+        {
+            // The ray has left the solid cells it may have started in.
+            inside = false;
+        }
+        final int stepX = dx > 0.0f ? 1 : -1;
+        final int stepY = dy > 0.0f ? 1 : -1;
+        final float deltaX = dx != 0.0f ? cellSize / MathUtils.abs(dx)
+                : Float.MAX_VALUE;
+        final float deltaY = dy != 0.0f ? cellSize / MathUtils.abs(dy)
+                : Float.MAX_VALUE;
+        // The fractions where the ray crosses the next column and row.
+        float nextX = dx != 0.0f
+                ? ((column + (stepX > 0 ? 1 : 0)) * cellSize - p1x) / dx
+                : Float.MAX_VALUE;
+        float nextY = dy != 0.0f
+                ? ((row + (stepY > 0 ? 1 : 0)) * cellSize - p1y) / dy
+                : Float.MAX_VALUE;
+        for (;;)
+        {
+            final float t;
+            if (nextX < nextY)
+            {
+                t = nextX;
+                column += stepX;
+                nextX += deltaX;
+                nx = -stepX;
+                ny = 0.0f;
+            }
+            else
+            {
+                t = nextY;
+                row += stepY;
+                nextY += deltaY;
+                nx = 0.0f;
+                ny = -stepY;
+            }
+            if (t > tEnd || column < 0 || column >= columnCount || row < 0
+                    || row >= rowCount)
+            {
+                return false;
+            }
+            if (isSolid(row * columnCount + column))
+            {
+                if (!inside)
+                {
+                    return reportHit(output, q, t, nx, ny);
+                }
+            }
+            else
+            {
+                inside = false;
+            }
+        }
+    }
+
+    private static boolean reportHit(RayCastOutput output, final Rot q,
+            float fraction, float nx, float ny)
+    {
+        output.fraction = fraction;
+        output.normal.x = q.c * nx - q.s * ny;
+        output.normal.y = q.s * nx + q.c * ny;
+        return true;
+    }
+
+    /**
+     * Compute the box of a cell, or with {@link #ALL_CHILDREN} of the map. The
+     * box of an empty cell is empty and overlaps nothing.
+     */
+    @Override
+    public void computeAABB(final AABB aabb, final Transform xf,
+            int childIndex)
+    {
+        float lx, ly, ux, uy;
+        if (childIndex == ALL_CHILDREN)
+        {
+            lx = 0.0f;
+            ly = 0.0f;
+            ux = columnCount * cellSize;
+            uy = rowCount * cellSize;
+        }
+        else
+        {
+            if (!isSolid(childIndex))
+            {
+                aabb.lowerBound.set(Float.MAX_VALUE, Float.MAX_VALUE);
+                aabb.upperBound.set(-Float.MAX_VALUE, -Float.MAX_VALUE);
+                return;
+            }
+            lx = (childIndex % columnCount) * cellSize;
+            ly = (childIndex / columnCount) * cellSize;
+            ux = lx + cellSize;
+            uy = ly + cellSize;
+        }
+        aabb.lowerBound.x = lx;
+        aabb.lowerBound.y = ly;
+        aabb.upperBound.x = ux;
+        aabb.upperBound.y = uy;
+        toWorldAABB(aabb, xf);
+        // The cell boxes are extended by the radius.
+        aabb.lowerBound.x -= radius;
+        aabb.lowerBound.y -= radius;
+        aabb.upperBound.x += radius;
+        aabb.upperBound.y += radius;
+    }
+
+    @Override
+    public void computeMass(final MassData massData, final float density)
+    {
+        massData.mass = 0.0f;
+        massData.center.setZero();
+        massData.I = 0.0f;
+    }
+
+    /**
+     * Compute the distance to the box of a cell. Empty cells are infinitely
+     * far away.
+     */
+    @Override
+    public float computeDistanceToOut(Transform xf, Vec2 p, int childIndex,
+            Vec2 normalOut)
+    {
+        if (!isSolid(childIndex))
+        {
+            normalOut.setZero();
+            return Float.MAX_VALUE;
+        }
+        final Rot q = xf.q;
+        final float h = cellSize * .5f;
+        final float tx = p.x - xf.p.x;
+        final float ty = p.y - xf.p.y;
+        // The point relative to the center of the cell.
+        final float px = q.c * tx + q.s * ty
+                - ((childIndex % columnCount) * cellSize + h);
+        final float py = -q.s * tx + q.c * ty
+                - ((childIndex / columnCount) * cellSize + h);
+        final float sx = MathUtils.abs(px) - h;
+        final float sy = MathUtils.abs(py) - h;
+        float nx, ny, distance;
+        if (sx > 0.0f && sy > 0.0f)
+        {
+            // Closest to a corner.
+            distance = MathUtils.sqrt(sx * sx + sy * sy);
+            nx = (px > 0.0f ? sx : -sx) / distance;
+            ny = (py > 0.0f ? sy : -sy) / distance;
+        }
+        else if (sx > sy)
+        {
+            distance = sx;
+            nx = px > 0.0f ? 1.0f : -1.0f;
+            ny = 0.0f;
+        }
+        else
+        {
+            distance = sy;
+            nx = 0.0f;
+            ny = py > 0.0f ? 1.0f : -1.0f;
+        }
+        normalOut.x = q.c * nx - q.s * ny;
+        normalOut.y = q.s * nx + q.c * ny;
+        return distance;
+    }
+
+    @Override
+    public Shape clone()
+    {
+        TileMapShape clone = new TileMapShape();
+        clone.radius = radius;
+        clone.columnCount = columnCount;
+        clone.rowCount = rowCount;
+        clone.cellSize = cellSize;
+        clone.tiles = tiles.clone();
+        return clone;
+    }
+}
@@ -87,6 +87,21 @@ public class BufferUtils
         return newBuffer;
     }
 
+    /**
+     * Reallocate a buffer.
+     */
+    public static long[] reallocateBuffer(long[] oldBuffer, int oldCapacity,
+            int newCapacity)
+    {
+        assert (newCapacity > oldCapacity);
+        long[] newBuffer = new long[newCapacity];
+        if (oldBuffer != null)
+        {
+            System.arraycopy(oldBuffer, 0, newBuffer, 0, oldCapacity);
+        }
+        return newBuffer;
+    }
+
     /**
      * Reallocate a buffer. A 'deferred' buffer is reallocated only if it is not
      * NULL. If 'userSuppliedCapacity' is not zero, buffer is user supplied and
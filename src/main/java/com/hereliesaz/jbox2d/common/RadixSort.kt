@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.common;
+
+import java.util.Arrays;
+
+/**
+ * Least significant digit radix sort for primitive keys. Sorts 8 bits per
+ * pass and skips passes in which all keys share the same digit, so keys that
+ * only use their low bits are sorted in few passes. The caller owns all
+ * buffers, so sorting does not allocate.
+ */
+public final class RadixSort
+{
+    private static final int RADIX_BITS = 8;
+
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private static final int PASSES = 64 / RADIX_BITS;
+
+    /**
+     * The number of elements of the histogram buffer of a sort.
+     */
+    public static final int HISTOGRAM_LENGTH = PASSES * RADIX;
+
+    private RadixSort()
+    {
+    }
+
+    /**
+     * Sort the first count signed keys in ascending order.
+     *
+     * @param temp A scratch buffer of at least count elements.
+     * @param histograms A scratch buffer of at least
+     *     {@link #HISTOGRAM_LENGTH} elements.
+     *
+     * @return The array holding the sorted keys, either keys or temp.
+     */
+    public static long[] sort(long[] keys, long[] temp, int[] histograms,
+            int count)
+    {
+        assert (temp.length >= count);
+        return sortPasses(keys, null, temp, null, histograms, count);
+    }
+
+    /**
+     * Sort the first count signed keys in ascending order and move the values
+     * along with them. The sort is stable, so equal keys keep the order of
+     * their values.
+     *
+     * @param tempKeys A scratch buffer of at least count elements.
+     * @param tempValues A scratch buffer of at least count elements.
+     * @param histograms A scratch buffer of at least
+     *     {@link #HISTOGRAM_LENGTH} elements.
+     */
+    public static void sort(long[] keys, int[] values, long[] tempKeys,
+            int[] tempValues, int[] histograms, int count)
+    {
+        assert (tempKeys.length >= count && tempValues.length >= count);
+        if (sortPasses(keys, values, tempKeys, tempValues, histograms,
+                count) != keys)
+        {
+            System.arraycopy(tempKeys, 0, keys, 0, count);
+            System.arraycopy(tempValues, 0, values, 0, count);
+        }
+    }
+
+    /**
+     * Run the passes of both sorts. The values are moved along with the keys
+     * unless they are null.
+     *
+     * @return The array holding the sorted keys, either keys or tempKeys. The
+     *     sorted values are in the matching array.
+     */
+    private static long[] sortPasses(long[] keys, int[] values,
+            long[] tempKeys, int[] tempValues, int[] histograms, int count)
+    {
+        assert (histograms.length >= HISTOGRAM_LENGTH);
+        Arrays.fill(histograms, 0, HISTOGRAM_LENGTH, 0);
+        for (int i = 0; i < count; ++i)
+        {
+            // Flipping the sign bit orders negative keys first.
+            long key = keys[i] ^ Long.MIN_VALUE;
+            for (int pass = 0; pass < PASSES; ++pass)
+            {
+                ++histograms[pass * RADIX + (int) (key & (RADIX - 1))];
+                key >>>= RADIX_BITS;
+            }
+        }
+        long[] sourceKeys = keys;
+        int[] sourceValues = values;
+        long[] targetKeys = tempKeys;
+        int[] targetValues = tempValues;
+        for (int pass = 0; pass < PASSES; ++pass)
+        {
+            final int offset = pass * RADIX;
+            final int shift = pass * RADIX_BITS;
+            // Skip the pass if every key has the same digit.
+            if (count == 0 || histograms[offset + (int) (((sourceKeys[0]
+                    ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1))] == count)
+            {
+                continue;
+            }
+            // Turn the counts into start positions.
+            int sum = 0;
+            for (int digit = 0; digit < RADIX; ++digit)
+            {
+                final int digitCount = histograms[offset + digit];
+                histograms[offset + digit] = sum;
+                sum += digitCount;
+            }
+            if (values == null)
+            {
+                for (int i = 0; i < count; ++i)
+                {
+                    final long key = sourceKeys[i];
+                    final int position = histograms[offset + (int) (((key
+                            ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1))]++;
+                    targetKeys[position] = key;
+                }
+            }
+            else
+            {
+                for (int i = 0; i < count; ++i)
+                {
+                    final long key = sourceKeys[i];
+                    final int position = histograms[offset + (int) (((key
+                            ^ Long.MIN_VALUE) >>> shift) & (RADIX - 1))]++;
+                    targetKeys[position] = key;
+                    targetValues[position] = sourceValues[i];
+                }
+                final int[] swapValues = sourceValues;
+                sourceValues = targetValues;
+                targetValues = swapValues;
+            }
+            final long[] swapKeys = sourceKeys;
+            sourceKeys = targetKeys;
+            targetKeys = swapKeys;
+        }
+        return sourceKeys;
+    }
+}
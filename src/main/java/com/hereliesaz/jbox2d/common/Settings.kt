@@ -108,6 +108,33 @@ object Settings {
      */
     var aabbMultiplier = 2.0f
 
+    /**
+     * The number of tree nodes the broad-phase visits per step to apply tree
+     * rotations. Zero, the default, disables incremental optimization, so
+     * only the rebuilds below keep the tree quality.
+     */
+    var treeRotationBudget = 0
+
+    /**
+     * The broad-phase rebuilds its tree when the area ratio grows beyond this
+     * factor of the ratio measured at the first quality check after the last
+     * rebuild. Set to zero to disable automatic rebuilds.
+     */
+    var treeRebuildAreaRatio = 1.5f
+
+    /**
+     * The number of steps between two tree quality checks. Computing the area
+     * ratio visits every node, so it should not be done every step.
+     */
+    var treeQualityCheckInterval = 60
+
+    /**
+     * The broad-phase rebuilds its static tree once this fraction of the
+     * static proxies has been created, destroyed or moved since the last
+     * rebuild.
+     */
+    var staticTreeRebuildFraction = 0.1f
+
     /**
      * A small length used as a collision and constraint tolerance. Usually it
      * is chosen to be numerically significant, but visually insignificant.
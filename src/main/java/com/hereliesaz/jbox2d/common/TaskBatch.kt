@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a set of independent tasks on an executor and waits for all of them.
+ * Without an executor the tasks run one after another on the calling thread.
+ */
+public final class TaskBatch implements Runnable
+{
+    private final Runnable[] tasks;
+
+    private final int count;
+
+    /**
+     * The index of the next task that has not been claimed by a thread.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final CountDownLatch latch;
+
+    private Throwable error;
+
+    private TaskBatch(Runnable[] tasks, int count)
+    {
+        this.tasks = tasks;
+        this.count = count;
+        latch = new CountDownLatch(count);
+    }
+
+    /**
+     * Run the first count tasks and block until they are done. The first
+     * exception thrown by a task is rethrown on the calling thread.
+     *
+     * <p>
+     * The calling thread runs tasks as well and only waits for tasks that
+     * other threads have already started. So the tasks are done even if no
+     * thread of the executor is free, and a task may start a batch on the
+     * executor it runs on.
+     * </p>
+     */
+    public static void run(Executor executor, Runnable[] tasks, int count)
+    {
+        if (executor == null || count == 1)
+        {
+            for (int i = 0; i < count; ++i)
+            {
+                tasks[i].run();
+            }
+            return;
+        }
+        final TaskBatch batch = new TaskBatch(tasks, count);
+        for (int i = 1; i < count; ++i)
+        {
+            executor.execute(batch);
+        }
+        batch.run();
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                batch.latch.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (batch)
+        {
+            if (batch.error instanceof RuntimeException)
+            {
+                throw (RuntimeException) batch.error;
+            }
+            if (batch.error instanceof Error)
+            {
+                throw (Error) batch.error;
+            }
+            if (batch.error != null)
+            {
+                throw new RuntimeException(batch.error);
+            }
+        }
+    }
+
+    /**
+     * Run the unclaimed tasks. Threads that arrive after all tasks have been
+     * claimed return right away.
+     */
+    @Override
+    public void run()
+    {
+        int i;
+        while ((i = next.getAndIncrement()) < count)
+        {
+            try
+            {
+                tasks[i].run();
+            }
+            catch (Throwable t)
+            {
+                synchronized (this)
+                {
+                    if (error == null)
+                    {
+                        error = t;
+                    }
+                }
+            }
+            finally
+            {
+                latch.countDown();
+            }
+        }
+    }
+}
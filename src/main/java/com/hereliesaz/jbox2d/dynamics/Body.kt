@@ -60,6 +60,12 @@ public class Body
 
     public static final int toiFlag = 0x0040;
 
+    /**
+     * Set while the body is in the list of bodies whose previous transform
+     * has to catch up.
+     */
+    public static final int movedFlag = 0x0080;
+
     /**
      * The body type: static, kinematic, or dynamic. Note: if a dynamic body
      * would have zero mass, the mass is set to one.
@@ -72,6 +78,19 @@ public class Body
 
     public int islandIndex;
 
+    /**
+     * The persistent island of an active dynamic or kinematic body, else null.
+     */
+    PersistentIsland persistentIsland;
+
+    int persistentIslandIndex;
+
+    /**
+     * The index in the array of awake bodies of the world, or -1 if the body
+     * sleeps or is static.
+     */
+    int awakeIndex = -1;
+
     /**
      * The body origin transform.
      */
@@ -230,6 +249,7 @@ public class Body
         this.world = world;
         xf.p.set(bd.position);
         xf.q.set(bd.angle);
+        xf0.set(xf);
         sweep.localCenter.setZero();
         sweep.c0.set(xf.p);
         sweep.c.set(xf.p);
@@ -438,6 +458,7 @@ public class Body
         {
             f.synchronize(broadPhase, xf, xf);
         }
+        world.addMovedBody(this);
     }
 
     /**
@@ -1049,8 +1070,22 @@ public class Body
         {
             return;
         }
+        final boolean staticChanged = (this.type == BodyType.STATIC)
+                != (type == BodyType.STATIC);
         this.type = type;
         resetMassData();
+        world.updateAwakeBody(this);
+        if (staticChanged && isActive())
+        {
+            if (type == BodyType.STATIC)
+            {
+                world.removeFromIsland(this);
+            }
+            else
+            {
+                world.createIsland(this);
+            }
+        }
         if (this.type == BodyType.STATIC)
         {
             linearVelocity.setZero();
@@ -1076,6 +1111,14 @@ public class Body
         BroadPhase broadPhase = world.contactManager.broadPhase;
         for (Fixture f = fixtureList; f != null; f = f.next)
         {
+            if (staticChanged && f.proxyCount > 0)
+            {
+                // Static and dynamic proxies live in different trees, so
+                // recreate them. New proxies are buffered as moved.
+                f.destroyProxies(broadPhase);
+                f.createProxies(broadPhase, xf);
+                continue;
+            }
             int proxyCount = f.proxyCount;
             for (int i = 0; i < proxyCount; ++i)
             {
@@ -1157,16 +1200,26 @@ public class Body
             {
                 flags |= awakeFlag;
                 sleepTime = 0.0f;
+                world.updateAwakeBody(this);
+            }
+            if (persistentIsland != null && persistentIsland.index < 0)
+            {
+                world.wakeIsland(persistentIsland);
             }
         }
         else
         {
+            final boolean wasAwake = (flags & awakeFlag) != 0;
             flags &= ~awakeFlag;
             sleepTime = 0.0f;
             linearVelocity.setZero();
             angularVelocity = 0.0f;
             force.setZero();
             torque = 0.0f;
+            if (wasAwake)
+            {
+                world.updateAwakeBody(this);
+            }
         }
     }
 
@@ -1212,6 +1265,10 @@ public class Body
             {
                 f.createProxies(broadPhase, xf);
             }
+            if (type != BodyType.STATIC)
+            {
+                world.createIsland(this);
+            }
             // Contacts are created the next time step.
         }
         else
@@ -1232,6 +1289,7 @@ public class Body
                 world.contactManager.destroy(ce0.contact);
             }
             contactList = null;
+            world.removeFromIsland(this);
         }
     }
 
@@ -1364,9 +1422,19 @@ public class Body
         xf1.p.y = sweep.c0.y - xf1.q.s * sweep.localCenter.x
                 - xf1.q.c * sweep.localCenter.y;
         // end inline
+        // Speculative bullets also cover the distance of the next step, so
+        // their contacts exist before they arrive.
+        float dx = 0.0f;
+        float dy = 0.0f;
+        if ((flags & bulletFlag) == bulletFlag)
+        {
+            final float time = world.getSpeculativeTime();
+            dx = linearVelocity.x * time;
+            dy = linearVelocity.y * time;
+        }
         for (Fixture f = fixtureList; f != null; f = f.next)
         {
-            f.synchronize(world.contactManager.broadPhase, xf1, xf);
+            f.synchronize(world.contactManager.broadPhase, xf1, xf, dx, dy);
         }
     }
 
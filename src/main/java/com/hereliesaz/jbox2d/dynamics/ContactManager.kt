@@ -26,7 +26,10 @@ package de.pirckheimer_gymnasium.jbox2d.dynamics;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ContactFilter;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ContactListener;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.PairCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.BroadPhase;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.Contact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.ContactEdge;
 
@@ -49,6 +52,10 @@ public class ContactManager implements PairCallback
 
     private final World pool;
 
+    private final ChildPairCallback childPairCallback = new ChildPairCallback();
+
+    private final AABB childAABB = new AABB();
+
     public ContactManager(World argPool, BroadPhase broadPhase)
     {
         contactList = null;
@@ -66,10 +73,65 @@ public class ContactManager implements PairCallback
     {
         FixtureProxy proxyA = (FixtureProxy) proxyUserDataA;
         FixtureProxy proxyB = (FixtureProxy) proxyUserDataB;
-        Fixture fixtureA = proxyA.fixture;
-        Fixture fixtureB = proxyB.fixture;
-        int indexA = proxyA.childIndex;
-        int indexB = proxyB.childIndex;
+        if (proxyA.childIndex == Shape.ALL_CHILDREN)
+        {
+            // Shapes that resolve their children through an own tree are
+            // static geometry and do not collide with each other.
+            if (proxyB.childIndex != Shape.ALL_CHILDREN)
+            {
+                addChildPairs(proxyA, proxyB);
+            }
+            return;
+        }
+        if (proxyB.childIndex == Shape.ALL_CHILDREN)
+        {
+            addChildPairs(proxyB, proxyA);
+            return;
+        }
+        addPair(proxyA.fixture, proxyA.childIndex, proxyB.fixture,
+                proxyB.childIndex);
+    }
+
+    /**
+     * Add a pair for each child of a shared proxy that overlaps the fat AABB
+     * of the other proxy.
+     */
+    private void addChildPairs(FixtureProxy shared, FixtureProxy other)
+    {
+        final Fixture fixture = shared.fixture;
+        if (fixture.getBody() == other.fixture.getBody())
+        {
+            return;
+        }
+        childPairCallback.fixture = fixture;
+        childPairCallback.other = other;
+        fixture.getShape().queryChildren(childPairCallback,
+                broadPhase.getFatAABB(other.proxyId),
+                fixture.getBody().getTransform());
+        childPairCallback.fixture = null;
+        childPairCallback.other = null;
+    }
+
+    /**
+     * Adds the pairs of the children found by
+     * {@link ContactManager#addChildPairs(FixtureProxy, FixtureProxy)}.
+     */
+    private class ChildPairCallback implements TreeCallback
+    {
+        Fixture fixture;
+
+        FixtureProxy other;
+
+        public boolean treeCallback(int childIndex)
+        {
+            addPair(fixture, childIndex, other.fixture, other.childIndex);
+            return true;
+        }
+    }
+
+    private void addPair(Fixture fixtureA, int indexA, Fixture fixtureB,
+            int indexB)
+    {
         Body bodyA = fixtureA.getBody();
         Body bodyB = fixtureB.getBody();
         // Are the fixtures on the same body?
@@ -157,6 +219,7 @@ public class ContactManager implements PairCallback
             bodyB.contactList.prev = c.nodeB;
         }
         bodyB.contactList = c.nodeB;
+        updateAwakeContact(c);
         // wake up the bodies
         if (!fixtureA.isSensor() && !fixtureB.isSensor())
         {
@@ -181,6 +244,14 @@ public class ContactManager implements PairCallback
         {
             contactListener.endContact(c);
         }
+        if ((c.flags & ISLAND_CONTACT_FLAGS) != 0)
+        {
+            pool.constraintRemoved(bodyA, bodyB);
+        }
+        if (c.awakeIndex >= 0)
+        {
+            removeAwakeContact(c);
+        }
         // Remove from the world.
         if (c.prev != null)
         {
@@ -231,10 +302,12 @@ public class ContactManager implements PairCallback
      */
     public void collide()
     {
-        // Update awake contacts.
-        Contact c = contactList;
-        while (c != null)
+        // Update awake contacts. A destroyed contact is replaced by the last
+        // one.
+        int i = 0;
+        while (i < awakeContactCount)
         {
+            final Contact c = awakeContacts[i];
             Fixture fixtureA = c.getFixtureA();
             Fixture fixtureB = c.getFixtureB();
             int indexA = c.getChildIndexA();
@@ -247,47 +320,133 @@ public class ContactManager implements PairCallback
                 // Should these bodies collide?
                 if (!bodyB.shouldCollide(bodyA))
                 {
-                    Contact cNuke = c;
-                    c = cNuke.getNext();
-                    destroy(cNuke);
+                    destroy(c);
                     continue;
                 }
                 // Check user filtering.
                 if (contactFilter != null
                         && !contactFilter.shouldCollide(fixtureA, fixtureB))
                 {
-                    Contact cNuke = c;
-                    c = cNuke.getNext();
-                    destroy(cNuke);
+                    destroy(c);
                     continue;
                 }
                 // Clear the filtering flag.
                 c.flags &= ~Contact.FILTER_FLAG;
             }
-            boolean activeA = bodyA.isAwake() && bodyA.type != BodyType.STATIC;
-            boolean activeB = bodyB.isAwake() && bodyB.type != BodyType.STATIC;
-            // At least one body must be awake, and it must be dynamic or
-            // kinematic.
-            if (!activeA && !activeB)
+            // At least one body is awake, and it is dynamic or kinematic.
+            assert (bodyA.awakeIndex >= 0 || bodyB.awakeIndex >= 0);
+            boolean overlap;
+            if (fixtureA.hasSharedProxy())
             {
-                c = c.getNext();
-                continue;
+                overlap = testChildOverlap(fixtureA, indexA, fixtureB, indexB);
+            }
+            else if (fixtureB.hasSharedProxy())
+            {
+                overlap = testChildOverlap(fixtureB, indexB, fixtureA, indexA);
+            }
+            else
+            {
+                int proxyIdA = fixtureA.proxies[indexA].proxyId;
+                int proxyIdB = fixtureB.proxies[indexB].proxyId;
+                overlap = broadPhase.testOverlap(proxyIdA, proxyIdB);
             }
-            int proxyIdA = fixtureA.proxies[indexA].proxyId;
-            int proxyIdB = fixtureB.proxies[indexB].proxyId;
-            boolean overlap = broadPhase.testOverlap(proxyIdA, proxyIdB);
             // Here we destroy contacts that cease to overlap in the
             // broad-phase.
             if (!overlap)
             {
-                Contact cNuke = c;
-                c = cNuke.getNext();
-                destroy(cNuke);
+                destroy(c);
                 continue;
             }
             // The contact persists.
-            c.update(contactListener);
-            c = c.getNext();
+            updateContact(c);
+            ++i;
         }
     }
+
+    /**
+     * The contacts with at least one awake dynamic or kinematic body.
+     */
+    Contact[] awakeContacts = new Contact[16];
+
+    int awakeContactCount;
+
+    /**
+     * Add the contact to the awake contacts or remove it, after a body of the
+     * contact woke up or fell asleep.
+     */
+    void updateAwakeContact(Contact c)
+    {
+        final boolean awake = c.getFixtureA().getBody().awakeIndex >= 0
+                || c.getFixtureB().getBody().awakeIndex >= 0;
+        if (awake == c.awakeIndex >= 0)
+        {
+            return;
+        }
+        if (!awake)
+        {
+            removeAwakeContact(c);
+            return;
+        }
+        if (awakeContactCount == awakeContacts.length)
+        {
+            final Contact[] old = awakeContacts;
+            awakeContacts = new Contact[awakeContactCount * 2];
+            System.arraycopy(old, 0, awakeContacts, 0, awakeContactCount);
+        }
+        c.awakeIndex = awakeContactCount;
+        awakeContacts[awakeContactCount++] = c;
+    }
+
+    private void removeAwakeContact(Contact c)
+    {
+        final Contact last = awakeContacts[--awakeContactCount];
+        awakeContacts[c.awakeIndex] = last;
+        last.awakeIndex = c.awakeIndex;
+        awakeContacts[awakeContactCount] = null;
+        c.awakeIndex = -1;
+    }
+
+    /**
+     * Get the number of contacts with at least one awake dynamic or kinematic
+     * body.
+     */
+    public int getAwakeContactCount()
+    {
+        return awakeContactCount;
+    }
+
+    /**
+     * The flags of contacts that connect the islands of their bodies.
+     */
+    private static final int ISLAND_CONTACT_FLAGS = Contact.TOUCHING_FLAG
+            | Contact.SPECULATIVE_FLAG;
+
+    /**
+     * Update the contact and let the world know when it stops connecting the
+     * islands of its bodies.
+     */
+    void updateContact(Contact c)
+    {
+        final int islandFlags = c.flags & ISLAND_CONTACT_FLAGS;
+        c.update(contactListener);
+        if (islandFlags != 0 && (c.flags & ISLAND_CONTACT_FLAGS) == 0)
+        {
+            pool.constraintRemoved(c.getFixtureA().getBody(),
+                    c.getFixtureB().getBody());
+        }
+    }
+
+    /**
+     * Test the child of a fixture with a shared proxy against the fat AABB of
+     * the other proxy, like the child was found in
+     * {@link #addChildPairs(FixtureProxy, FixtureProxy)}.
+     */
+    private boolean testChildOverlap(Fixture shared, int childIndex,
+            Fixture other, int otherIndex)
+    {
+        shared.getShape().computeAABB(childAABB,
+                shared.getBody().getTransform(), childIndex);
+        return AABB.testOverlap(childAABB,
+                broadPhase.getFatAABB(other.proxies[otherIndex].proxyId));
+    }
 }
@@ -29,6 +29,7 @@ import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
 import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.BroadPhase;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.MassData;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeQueryPool;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeType;
 import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
 import de.pirckheimer_gymnasium.jbox2d.common.Transform;
@@ -276,6 +277,18 @@ public class Fixture
         return shape.raycast(output, input, body.xf, childIndex);
     }
 
+    /**
+     * Cast a ray against this shape with the scratch objects of the caller,
+     * so that several threads can cast rays against the fixture at once.
+     *
+     * @see #raycast(RayCastOutput, RayCastInput, int)
+     */
+    public boolean raycast(RayCastOutput output, RayCastInput input,
+            int childIndex, ShapeQueryPool pool)
+    {
+        return shape.raycast(output, input, body.xf, childIndex, pool);
+    }
+
     /**
      * Get the mass data for this fixture. The mass data is based on the density
      * and the shape. The rotational inertia is about the shape's origin.
@@ -326,10 +339,27 @@ public class Fixture
      */
     public AABB getAABB(int childIndex)
     {
+        if (hasSharedProxy())
+        {
+            // The children have no proxies of their own.
+            shape.computeAABB(childAABB, body.getTransform(), childIndex);
+            return childAABB;
+        }
         assert (childIndex >= 0 && childIndex < proxyCount);
         return proxies[childIndex].aabb;
     }
 
+    private final AABB childAABB = new AABB();
+
+    /**
+     * Does a single proxy cover all children of the shape? See
+     * {@link Shape#getProxyCount()}.
+     */
+    public boolean hasSharedProxy()
+    {
+        return proxyCount == 1 && proxies[0].childIndex == Shape.ALL_CHILDREN;
+    }
+
     /**
      * Compute the distance from this fixture.
      *
@@ -358,7 +388,7 @@ public class Fixture
         isSensor = def.isSensor;
         shape = def.shape.clone();
         // Reserve proxy space
-        int childCount = shape.getChildCount();
+        int childCount = shape.getProxyCount();
         if (proxies == null)
         {
             proxies = new FixtureProxy[childCount];
@@ -406,14 +436,16 @@ public class Fixture
     {
         assert (proxyCount == 0);
         // Create proxies in the broad-phase.
-        proxyCount = shape.getChildCount();
+        proxyCount = shape.getProxyCount();
+        final boolean shared = proxyCount < shape.getChildCount();
         for (int i = 0; i < proxyCount; ++i)
         {
             FixtureProxy proxy = proxies[i];
-            shape.computeAABB(proxy.aabb, xf, i);
-            proxy.proxyId = broadPhase.createProxy(proxy.aabb, proxy);
+            proxy.childIndex = shared ? Shape.ALL_CHILDREN : i;
+            shape.computeAABB(proxy.aabb, xf, proxy.childIndex);
+            proxy.proxyId = broadPhase.createProxy(proxy.aabb, proxy,
+                    body.getType() == BodyType.STATIC);
             proxy.fixture = this;
-            proxy.childIndex = i;
         }
     }
 
@@ -443,6 +475,17 @@ public class Fixture
      */
     protected void synchronize(BroadPhase broadPhase,
             final Transform transform1, final Transform transform2)
+    {
+        synchronize(broadPhase, transform1, transform2, 0.0f, 0.0f);
+    }
+
+    /**
+     * Synchronize the proxies with a swept shape that is extended by the
+     * translation (dx, dy) beyond transform2.
+     */
+    protected void synchronize(BroadPhase broadPhase,
+            final Transform transform1, final Transform transform2, float dx,
+            float dy)
     {
         if (proxyCount == 0)
         {
@@ -465,6 +508,26 @@ public class Fixture
                     aab.upperBound.x);
             proxy.aabb.upperBound.y = Math.max(aabb1.upperBound.y,
                     aab.upperBound.y);
+            if (dx < 0.0f)
+            {
+                proxy.aabb.lowerBound.x = Math.min(proxy.aabb.lowerBound.x,
+                        aab.lowerBound.x + dx);
+            }
+            else
+            {
+                proxy.aabb.upperBound.x = Math.max(proxy.aabb.upperBound.x,
+                        aab.upperBound.x + dx);
+            }
+            if (dy < 0.0f)
+            {
+                proxy.aabb.lowerBound.y = Math.min(proxy.aabb.lowerBound.y,
+                        aab.lowerBound.y + dy);
+            }
+            else
+            {
+                proxy.aabb.upperBound.y = Math.max(proxy.aabb.upperBound.y,
+                        aab.upperBound.y + dy);
+            }
             displacement.x = transform2.p.x - transform1.p.x;
             displacement.y = transform2.p.y - transform1.p.y;
             broadPhase.moveProxy(proxy.proxyId, proxy.aabb, displacement);
@@ -244,6 +244,12 @@ public class Island
         jointCount = 0;
     }
 
+    /**
+     * Set by {@link #solve(Profile, TimeStep, Vec2, boolean)} if some bodies
+     * could fall asleep, but maybe not the whole island.
+     */
+    public boolean hasSleepyBody;
+
     private final ContactSolver contactSolver = new ContactSolver();
 
     private final Timer timer = new Timer();
@@ -252,7 +258,14 @@ public class Island
 
     private final ContactSolverDef solverDef = new ContactSolverDef();
 
-    public void solve(Profile profile, TimeStep step, Vec2 gravity,
+    /**
+     * Solve the island.
+     *
+     * @return True if the bodies are ready to fall asleep, see {@link #sleep()}.
+     *
+     * @see #hasSleepyBody
+     */
+    public boolean solve(Profile profile, TimeStep step, Vec2 gravity,
             boolean allowSleep)
     {
         // System.out.println("Solving Island");
@@ -401,6 +414,7 @@ public class Island
         }
         profile.solvePosition.accum(timer.getMilliseconds());
         report(contactSolver.velocityConstraints);
+        hasSleepyBody = false;
         if (allowSleep)
         {
             float minSleepTime = Float.MAX_VALUE;
@@ -427,17 +441,30 @@ public class Island
                 {
                     b.sleepTime += h;
                     minSleepTime = MathUtils.min(minSleepTime, b.sleepTime);
+                    if (b.sleepTime >= Settings.timeToSleep)
+                    {
+                        hasSleepyBody = true;
+                    }
                 }
             }
             if (minSleepTime >= Settings.timeToSleep && positionSolved)
             {
-                for (int i = 0; i < bodyCount; ++i)
-                {
-                    Body b = bodies[i];
-                    b.setAwake(false);
-                }
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * Put the bodies of the island to sleep.
+     */
+    public void sleep()
+    {
+        for (int i = 0; i < bodyCount; ++i)
+        {
+            Body b = bodies[i];
+            b.setAwake(false);
+        }
     }
 
     private final ContactSolver toiContactSolver = new ContactSolver();
@@ -601,6 +628,11 @@ public class Island
         for (int i = 0; i < contactCount; ++i)
         {
             Contact c = contacts[i];
+            // Speculative contacts are not touching.
+            if (!c.isTouching())
+            {
+                continue;
+            }
             ContactVelocityConstraint vc = constraints[i];
             impulse.count = vc.pointCount;
             for (int j = 0; j < vc.pointCount; ++j)
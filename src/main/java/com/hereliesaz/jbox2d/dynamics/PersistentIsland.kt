@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.dynamics;
+
+/**
+ * The dynamic and kinematic bodies that are connected by touching contacts or
+ * joints, kept from step to step. Islands are merged when a contact or joint
+ * connects their bodies. Removed contacts and joints are only counted, the
+ * island is split when it tries to fall asleep.
+ */
+class PersistentIsland
+{
+    Body[] bodies = new Body[4];
+
+    int bodyCount;
+
+    /**
+     * The number of contacts, joints and bodies removed since the island was
+     * built. If it is positive, the island may fall apart into several ones.
+     */
+    int constraintRemoveCount;
+
+    /**
+     * The index in the array of awake islands of the world, or -1 if the
+     * island sleeps. All bodies of a sleeping island are asleep.
+     */
+    int index = -1;
+
+    void add(Body body)
+    {
+        if (bodyCount == bodies.length)
+        {
+            final Body[] old = bodies;
+            bodies = new Body[bodyCount * 2];
+            System.arraycopy(old, 0, bodies, 0, bodyCount);
+        }
+        body.persistentIsland = this;
+        body.persistentIslandIndex = bodyCount;
+        bodies[bodyCount++] = body;
+    }
+
+    void remove(Body body)
+    {
+        assert (body.persistentIsland == this);
+        final Body last = bodies[--bodyCount];
+        bodies[body.persistentIslandIndex] = last;
+        last.persistentIslandIndex = body.persistentIslandIndex;
+        bodies[bodyCount] = null;
+        body.persistentIsland = null;
+        // The body may have connected the others.
+        ++constraintRemoveCount;
+    }
+
+    /**
+     * Move the bodies of another island to this one.
+     */
+    void merge(PersistentIsland other)
+    {
+        for (int i = 0; i < other.bodyCount; ++i)
+        {
+            add(other.bodies[i]);
+            other.bodies[i] = null;
+        }
+        other.bodyCount = 0;
+        constraintRemoveCount += other.constraintRemoveCount;
+    }
+
+    boolean hasAwakeBody()
+    {
+        for (int i = 0; i < bodyCount; ++i)
+        {
+            if (bodies[i].isAwake())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
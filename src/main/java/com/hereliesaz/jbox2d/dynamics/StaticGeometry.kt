@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.dynamics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ChainShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CircleShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CompoundShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.EdgeShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+
+/**
+ * Bakes the static geometry of a level into a few fixtures with
+ * {@link CompoundShape}s. Add the fixture definitions of the static bodies,
+ * then call {@link #bake()} once, e.g. when the level is built, and
+ * {@link #createBody(World)} when it is loaded.
+ *
+ * <p>
+ * Polygons, edges and chains become parts of a compound shape per material
+ * (friction, restitution, filter, sensor flag and user data). Axis aligned
+ * boxes that share a full side are merged, and so are collinear edges that
+ * continue each other. Edges that meet end to end get adjacent vertices for
+ * smooth collision. The trees of the compound shapes are built by the bake
+ * step, so loading inserts a single broad-phase proxy per material. Other
+ * shapes are kept as they are.
+ * </p>
+ */
+public class StaticGeometry
+{
+    /**
+     * The tolerance for coordinates that are treated as equal.
+     */
+    private static final float TOLERANCE = 0.1f * Settings.linearSlop;
+
+    /**
+     * The tolerance of the sine of the angle between collinear edges.
+     */
+    private static final float ANGLE_TOLERANCE = 1e-4f;
+
+    private final List<Group> groups = new ArrayList<>();
+
+    /**
+     * The fixtures of shapes that cannot be baked and their transforms.
+     */
+    private final List<FixtureDef> otherDefs = new ArrayList<>();
+
+    private final List<Transform> otherTransforms = new ArrayList<>();
+
+    private final Transform xf = new Transform();
+
+    private FixtureDef[] bakedDefs;
+
+    /**
+     * Add a fixture of a static body.
+     *
+     * @param def The fixture definition. Its shape is copied.
+     * @param position The position of the body.
+     * @param angle The angle of the body.
+     */
+    public void add(FixtureDef def, Vec2 position, float angle)
+    {
+        assert (bakedDefs == null);
+        xf.set(position, angle);
+        final Shape shape = def.shape;
+        switch (shape.getType())
+        {
+        case POLYGON:
+            addPolygon(getGroup(def), (PolygonShape) shape);
+            break;
+
+        case EDGE:
+        {
+            final EdgeShape edge = new EdgeShape();
+            final EdgeShape source = (EdgeShape) shape;
+            transformEdge(source, edge);
+            getGroup(def).edges.add(edge);
+        }
+            break;
+
+        case CHAIN:
+        {
+            final ChainShape chain = (ChainShape) shape;
+            final EdgeShape source = new EdgeShape();
+            final Group group = getGroup(def);
+            for (int i = 0; i < chain.getChildCount(); ++i)
+            {
+                chain.getChildEdge(source, i);
+                final EdgeShape edge = new EdgeShape();
+                transformEdge(source, edge);
+                group.edges.add(edge);
+            }
+        }
+            break;
+
+        case CIRCLE:
+        {
+            final CircleShape circle = (CircleShape) shape.clone();
+            Transform.mulToOut(xf, circle.p, circle.p);
+            otherDefs.add(copyDef(def, circle));
+            otherTransforms.add(new Transform());
+        }
+            break;
+
+        default:
+            otherDefs.add(copyDef(def, shape.clone()));
+            otherTransforms.add(new Transform().set(xf));
+            break;
+        }
+    }
+
+    private void addPolygon(Group group, PolygonShape polygon)
+    {
+        final int count = polygon.count;
+        final Vec2[] vertices = new Vec2[count];
+        float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE;
+        float ux = -Float.MAX_VALUE, uy = -Float.MAX_VALUE;
+        for (int i = 0; i < count; ++i)
+        {
+            vertices[i] = Transform.mul(xf, polygon.vertices[i]);
+            lx = Math.min(lx, vertices[i].x);
+            ly = Math.min(ly, vertices[i].y);
+            ux = Math.max(ux, vertices[i].x);
+            uy = Math.max(uy, vertices[i].y);
+        }
+        boolean box = count == 4;
+        for (int i = 0; box && i < count; ++i)
+        {
+            final Vec2 v = vertices[i];
+            box = (near(v.x, lx) || near(v.x, ux))
+                    && (near(v.y, ly) || near(v.y, uy));
+        }
+        if (box)
+        {
+            group.boxes.add(new float[] { lx, ly, ux, uy });
+            return;
+        }
+        final PolygonShape copy = new PolygonShape();
+        copy.set(vertices, count);
+        copy.radius = polygon.radius;
+        group.polygons.add(copy);
+    }
+
+    private void transformEdge(EdgeShape source, EdgeShape edge)
+    {
+        Transform.mulToOut(xf, source.vertex0, edge.vertex0);
+        Transform.mulToOut(xf, source.vertex1, edge.vertex1);
+        Transform.mulToOut(xf, source.vertex2, edge.vertex2);
+        Transform.mulToOut(xf, source.vertex3, edge.vertex3);
+        edge.hasVertex0 = source.hasVertex0;
+        edge.hasVertex3 = source.hasVertex3;
+        edge.radius = source.radius;
+    }
+
+    private static boolean near(float a, float b)
+    {
+        return MathUtils.abs(a - b) <= TOLERANCE;
+    }
+
+    private static FixtureDef copyDef(FixtureDef def, Shape shape)
+    {
+        final FixtureDef copy = new FixtureDef();
+        copy.shape = shape;
+        copy.userData = def.userData;
+        copy.friction = def.friction;
+        copy.restitution = def.restitution;
+        copy.density = def.density;
+        copy.isSensor = def.isSensor;
+        copy.filter.set(def.filter);
+        return copy;
+    }
+
+    private Group getGroup(FixtureDef def)
+    {
+        for (Group group : groups)
+        {
+            if (group.matches(def))
+            {
+                return group;
+            }
+        }
+        final Group group = new Group(copyDef(def, null), def.shape.radius);
+        groups.add(group);
+        return group;
+    }
+
+    /**
+     * Merge the added geometry and build the compound shapes. Nothing can be
+     * added afterwards.
+     */
+    public void bake()
+    {
+        if (bakedDefs != null)
+        {
+            return;
+        }
+        bakedDefs = new FixtureDef[groups.size()];
+        for (int i = 0; i < bakedDefs.length; ++i)
+        {
+            final Group group = groups.get(i);
+            // Merge rows of boxes, then stack the rows.
+            mergeBoxes(group.boxes, 0);
+            mergeBoxes(group.boxes, 1);
+            mergeBoxes(group.boxes, 0);
+            final List<PolygonShape> polygons = group.polygons;
+            for (float[] b : group.boxes)
+            {
+                final PolygonShape box = new PolygonShape();
+                box.setAsBox((b[2] - b[0]) * .5f, (b[3] - b[1]) * .5f,
+                        new Vec2((b[0] + b[2]) * .5f, (b[1] + b[3]) * .5f),
+                        0.0f);
+                box.radius = group.radius;
+                polygons.add(box);
+            }
+            final List<EdgeShape> edges = mergeEdges(group.edges);
+            final CompoundShape compound = new CompoundShape();
+            compound.radius = group.radius;
+            compound.create(polygons.toArray(new PolygonShape[0]),
+                    polygons.size(), edges.toArray(new EdgeShape[0]),
+                    edges.size());
+            bakedDefs[i] = copyDef(group.def, compound);
+        }
+        groups.clear();
+    }
+
+    /**
+     * Merge boxes with the same extent on one axis that touch or overlap on
+     * the other one.
+     *
+     * @param axis 0 to merge along x, 1 to merge along y.
+     */
+    private static void mergeBoxes(List<float[]> boxes, final int axis)
+    {
+        if (boxes.size() < 2)
+        {
+            return;
+        }
+        final int other = 1 - axis;
+        final float[][] sorted = boxes.toArray(new float[0][]);
+        Arrays.sort(sorted, new Comparator<float[]>()
+        {
+            @Override
+            public int compare(float[] a, float[] b)
+            {
+                int c = Float.compare(a[other], b[other]);
+                if (c == 0)
+                {
+                    c = Float.compare(a[other + 2], b[other + 2]);
+                }
+                return c != 0 ? c : Float.compare(a[axis], b[axis]);
+            }
+        });
+        boxes.clear();
+        float[] current = sorted[0];
+        for (int i = 1; i < sorted.length; ++i)
+        {
+            final float[] next = sorted[i];
+            if (near(next[other], current[other])
+                    && near(next[other + 2], current[other + 2])
+                    && next[axis] <= current[axis + 2] + TOLERANCE)
+            {
+                current[axis + 2] = Math.max(current[axis + 2],
+                        next[axis + 2]);
+            }
+            else
+            {
+                boxes.add(current);
+                current = next;
+            }
+        }
+        boxes.add(current);
+    }
+
+    private static long key(Vec2 v)
+    {
+        final long x = Math.round(v.x / TOLERANCE);
+        final long y = Math.round(v.y / TOLERANCE);
+        return x << 32 ^ (y & 0xFFFFFFFFL);
+    }
+
+    private static boolean isCollinear(EdgeShape a, EdgeShape b)
+    {
+        final float ax = a.vertex2.x - a.vertex1.x;
+        final float ay = a.vertex2.y - a.vertex1.y;
+        final float bx = b.vertex2.x - b.vertex1.x;
+        final float by = b.vertex2.y - b.vertex1.y;
+        final float lengths = MathUtils.sqrt((ax * ax + ay * ay)
+                * (bx * bx + by * by));
+        return ax * bx + ay * by > 0.0f
+                && MathUtils.abs(ax * by - ay * bx) <= ANGLE_TOLERANCE
+                        * lengths;
+    }
+
+    /**
+     * Merge collinear edges that continue each other and connect edges that
+     * meet end to end.
+     */
+    private static List<EdgeShape> mergeEdges(List<EdgeShape> edges)
+    {
+        final HashMap<Long, List<EdgeShape>> starts = mapEdges(edges, true);
+        final List<EdgeShape> merged = new ArrayList<>();
+        final HashMap<EdgeShape, Boolean> absorbed = new HashMap<>();
+        for (EdgeShape edge : edges)
+        {
+            if (absorbed.containsKey(edge))
+            {
+                continue;
+            }
+            for (;;)
+            {
+                final List<EdgeShape> next = starts.get(key(edge.vertex2));
+                if (next == null || next.size() != 1)
+                {
+                    break;
+                }
+                final EdgeShape successor = next.get(0);
+                if (successor == edge || absorbed.containsKey(successor)
+                        || !isCollinear(edge, successor))
+                {
+                    break;
+                }
+                edge.vertex2.set(successor.vertex2);
+                edge.vertex3.set(successor.vertex3);
+                edge.hasVertex3 = successor.hasVertex3;
+                absorbed.put(successor, Boolean.TRUE);
+            }
+        }
+        for (EdgeShape edge : edges)
+        {
+            if (!absorbed.containsKey(edge))
+            {
+                merged.add(edge);
+            }
+        }
+        final HashMap<Long, List<EdgeShape>> mergedStarts = mapEdges(merged,
+                true);
+        final HashMap<Long, List<EdgeShape>> mergedEnds = mapEdges(merged,
+                false);
+        for (EdgeShape edge : merged)
+        {
+            if (!edge.hasVertex3)
+            {
+                final List<EdgeShape> next = mergedStarts
+                        .get(key(edge.vertex2));
+                if (next != null && next.size() == 1 && next.get(0) != edge)
+                {
+                    edge.vertex3.set(next.get(0).vertex2);
+                    edge.hasVertex3 = true;
+                }
+            }
+            if (!edge.hasVertex0)
+            {
+                final List<EdgeShape> previous = mergedEnds
+                        .get(key(edge.vertex1));
+                if (previous != null && previous.size() == 1
+                        && previous.get(0) != edge)
+                {
+                    edge.vertex0.set(previous.get(0).vertex1);
+                    edge.hasVertex0 = true;
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static HashMap<Long, List<EdgeShape>> mapEdges(
+            List<EdgeShape> edges, boolean byStart)
+    {
+        final HashMap<Long, List<EdgeShape>> map = new HashMap<>();
+        for (EdgeShape edge : edges)
+        {
+            final Long key = key(byStart ? edge.vertex1 : edge.vertex2);
+            List<EdgeShape> list = map.get(key);
+            if (list == null)
+            {
+                list = new ArrayList<>(1);
+                map.put(key, list);
+            }
+            list.add(edge);
+        }
+        return map;
+    }
+
+    /**
+     * Get the number of fixtures the baked geometry creates.
+     */
+    public int getFixtureCount()
+    {
+        bake();
+        return bakedDefs.length + otherDefs.size();
+    }
+
+    /**
+     * Create a static body with the baked geometry. The body is at the origin.
+     * Shapes that could not be baked and are not at the origin get static
+     * bodies of their own. This bakes the geometry if that has not happened
+     * yet. The geometry can be loaded into several worlds.
+     *
+     * @return The body with the baked geometry.
+     */
+    public Body createBody(World world)
+    {
+        bake();
+        final BodyDef bodyDef = new BodyDef();
+        bodyDef.type = BodyType.STATIC;
+        final Body body = world.createBody(bodyDef);
+        for (FixtureDef def : bakedDefs)
+        {
+            body.createFixture(def);
+        }
+        for (int i = 0; i < otherDefs.size(); ++i)
+        {
+            final Transform transform = otherTransforms.get(i);
+            Body other = body;
+            if (transform.p.x != 0.0f || transform.p.y != 0.0f
+                    || transform.q.s != 0.0f || transform.q.c != 1.0f)
+            {
+                final BodyDef otherDef = new BodyDef();
+                otherDef.type = BodyType.STATIC;
+                otherDef.position.set(transform.p);
+                otherDef.angle = transform.q.getAngle();
+                other = world.createBody(otherDef);
+            }
+            other.createFixture(otherDefs.get(i));
+        }
+        return body;
+    }
+
+    /**
+     * The geometry of one material.
+     */
+    private static class Group
+    {
+        final FixtureDef def;
+
+        final float radius;
+
+        final List<float[]> boxes = new ArrayList<>();
+
+        final List<PolygonShape> polygons = new ArrayList<>();
+
+        final List<EdgeShape> edges = new ArrayList<>();
+
+        Group(FixtureDef def, float radius)
+        {
+            this.def = def;
+            this.radius = radius;
+        }
+
+        boolean matches(FixtureDef other)
+        {
+            return def.friction == other.friction
+                    && def.restitution == other.restitution
+                    && def.isSensor == other.isSensor
+                    && def.userData == other.userData
+                    && def.filter.categoryBits == other.filter.categoryBits
+                    && def.filter.maskBits == other.filter.maskBits
+                    && def.filter.groupIndex == other.filter.groupIndex
+                    && radius == other.shape.radius;
+        }
+    }
+}
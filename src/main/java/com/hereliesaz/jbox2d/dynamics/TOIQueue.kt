@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.dynamics;
+
+import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.Contact;
+
+/**
+ * An indexed binary min-heap of contacts keyed by their time of impact. Each
+ * queued contact stores its heap position, so a contact can be removed or
+ * requeued in logarithmic time when the TOI of one of its bodies changes.
+ */
+class TOIQueue
+{
+    private Contact[] heap = new Contact[16];
+
+    private int count;
+
+    /**
+     * @return The contact with the earliest time of impact, or null if the
+     *     queue is empty.
+     */
+    public Contact peek()
+    {
+        return count == 0 ? null : heap[0];
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Queue a contact that is not queued yet, keyed by its current TOI.
+     */
+    public void add(Contact c)
+    {
+        assert (c.toiIndex == -1);
+        if (count == heap.length)
+        {
+            final Contact[] old = heap;
+            heap = new Contact[count * 2];
+            System.arraycopy(old, 0, heap, 0, count);
+        }
+        heap[count] = c;
+        c.toiIndex = count;
+        ++count;
+        siftUp(count - 1);
+    }
+
+    /**
+     * Remove a contact from the queue. Does nothing if it is not queued.
+     */
+    public void remove(Contact c)
+    {
+        final int index = c.toiIndex;
+        if (index == -1)
+        {
+            return;
+        }
+        assert (heap[index] == c);
+        c.toiIndex = -1;
+        --count;
+        if (index == count)
+        {
+            heap[count] = null;
+            return;
+        }
+        final Contact last = heap[count];
+        heap[count] = null;
+        heap[index] = last;
+        last.toiIndex = index;
+        siftUp(index);
+        siftDown(last.toiIndex);
+    }
+
+    /**
+     * Remove all contacts from the queue.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            heap[i].toiIndex = -1;
+            heap[i] = null;
+        }
+        count = 0;
+    }
+
+    private void siftUp(int index)
+    {
+        final Contact c = heap[index];
+        while (index > 0)
+        {
+            final int parent = (index - 1) >> 1;
+            final Contact p = heap[parent];
+            if (p.toi <= c.toi)
+            {
+                break;
+            }
+            heap[index] = p;
+            p.toiIndex = index;
+            index = parent;
+        }
+        heap[index] = c;
+        c.toiIndex = index;
+    }
+
+    private void siftDown(int index)
+    {
+        final Contact c = heap[index];
+        final int half = count >> 1;
+        while (index < half)
+        {
+            int child = 2 * index + 1;
+            if (child + 1 < count && heap[child + 1].toi < heap[child].toi)
+            {
+                ++child;
+            }
+            final Contact ch = heap[child];
+            if (c.toi <= ch.toi)
+            {
+                break;
+            }
+            heap[index] = ch;
+            ch.toiIndex = index;
+            index = child;
+        }
+        heap[index] = c;
+        c.toiIndex = index;
+    }
+}
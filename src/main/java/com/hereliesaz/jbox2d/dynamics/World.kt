@@ -23,6 +23,12 @@
  */
 package de.pirckheimer_gymnasium.jbox2d.dynamics;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.BatchQueryCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ContactFilter;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ContactListener;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.DebugDraw;
@@ -33,10 +39,17 @@ import de.pirckheimer_gymnasium.jbox2d.callbacks.ParticleRaycastCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.QueryCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.RayCastCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeQueryPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayPacketCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
+import de.pirckheimer_gymnasium.jbox2d.collision.Distance;
+import de.pirckheimer_gymnasium.jbox2d.collision.Distance.SimplexCache;
+import de.pirckheimer_gymnasium.jbox2d.collision.DistanceInput;
+import de.pirckheimer_gymnasium.jbox2d.collision.DistanceOutput;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
+import de.pirckheimer_gymnasium.jbox2d.collision.TimeOfImpact;
 import de.pirckheimer_gymnasium.jbox2d.collision.TimeOfImpact.TOIInput;
 import de.pirckheimer_gymnasium.jbox2d.collision.TimeOfImpact.TOIOutput;
 import de.pirckheimer_gymnasium.jbox2d.collision.TimeOfImpact.TOIOutputState;
@@ -46,14 +59,18 @@ import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.DefaultBroadPhaseBuf
 import de.pirckheimer_gymnasium.jbox2d.collision.broadphase.DynamicTree;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ChainShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CircleShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CompoundShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.EdgeShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeQueryPool;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeType;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.TileMapShape;
 import de.pirckheimer_gymnasium.jbox2d.common.Color3f;
 import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
 import de.pirckheimer_gymnasium.jbox2d.common.Settings;
 import de.pirckheimer_gymnasium.jbox2d.common.Sweep;
+import de.pirckheimer_gymnasium.jbox2d.common.TaskBatch;
 import de.pirckheimer_gymnasium.jbox2d.common.Timer;
 import de.pirckheimer_gymnasium.jbox2d.common.Transform;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
@@ -70,6 +87,7 @@ import de.pirckheimer_gymnasium.jbox2d.particle.ParticleContact;
 import de.pirckheimer_gymnasium.jbox2d.particle.ParticleDef;
 import de.pirckheimer_gymnasium.jbox2d.particle.ParticleGroup;
 import de.pirckheimer_gymnasium.jbox2d.particle.ParticleGroupDef;
+import de.pirckheimer_gymnasium.jbox2d.particle.ParticleLattice;
 import de.pirckheimer_gymnasium.jbox2d.particle.ParticleSystem;
 import de.pirckheimer_gymnasium.jbox2d.pooling.DynamicStack;
 import de.pirckheimer_gymnasium.jbox2d.pooling.WorldPool;
@@ -141,6 +159,10 @@ public class World
 
     private boolean continuousPhysics;
 
+    private boolean speculativeContacts;
+
+    private float speculativeTime;
+
     private boolean subStepping;
 
     private boolean stepComplete;
@@ -199,6 +221,7 @@ public class World
     public World(Vec2 gravity, WorldPool pool, BroadPhase broadPhase)
     {
         this.pool = pool;
+        serialTOIWorker = new TOIWorker(pool.getTimeOfImpact());
         destructionListener = null;
         debugDraw = null;
         bodyList = null;
@@ -282,6 +305,14 @@ public class World
                 ShapeType.CIRCLE);
         addType(pool.getChainPolyContactStack(), ShapeType.CHAIN,
                 ShapeType.POLYGON);
+        addType(pool.getTileMapCircleContactStack(), ShapeType.TILEMAP,
+                ShapeType.CIRCLE);
+        addType(pool.getTileMapPolyContactStack(), ShapeType.TILEMAP,
+                ShapeType.POLYGON);
+        addType(pool.getCompoundCircleContactStack(), ShapeType.COMPOUND,
+                ShapeType.CIRCLE);
+        addType(pool.getCompoundPolyContactStack(), ShapeType.COMPOUND,
+                ShapeType.POLYGON);
     }
 
     public DestructionListener getDestructionListener()
@@ -401,6 +432,11 @@ public class World
         }
         // TODO djm pooling
         Body b = new Body(def, this);
+        updateAwakeBody(b);
+        if (b.type != BodyType.STATIC && b.isActive())
+        {
+            createIsland(b);
+        }
         // add to the world a doubly linked list
         b.prev = null;
         b.next = bodyList;
@@ -450,6 +486,8 @@ public class World
             contactManager.destroy(ce0.contact);
         }
         body.contactList = null;
+        // Wake the particles that rest on the body.
+        particleSystem.wakeBodyContacts(body);
         Fixture f = body.fixtureList;
         while (f != null)
         {
@@ -466,6 +504,11 @@ public class World
             body.fixtureCount -= 1;
         }
         body.fixtureCount = 0;
+        removeFromIsland(body);
+        if (body.awakeIndex >= 0)
+        {
+            removeAwakeBody(body);
+        }
         // Remove world body list.
         if (body.prev != null)
         {
@@ -578,6 +621,7 @@ public class World
         // Disconnect from island graph.
         Body bodyA = j.getBodyA();
         Body bodyB = j.getBodyB();
+        constraintRemoved(bodyA, bodyB);
         // Wake up connected bodies.
         bodyA.setAwake(true);
         bodyB.setAwake(true);
@@ -676,6 +720,7 @@ public class World
             step.inverseDt = 0.0f;
         }
         step.dtRatio = invDt0 * timeStep;
+        speculativeTime = speculativeContacts ? timeStep : 0.0f;
         step.warmStarting = warmStarting;
         profile.stepInit.record(tempTimer.getMilliseconds());
         // Update contacts. This is where some contacts are destroyed.
@@ -725,13 +770,98 @@ public class World
      */
     public void clearForces()
     {
-        for (Body body = bodyList; body != null; body = body.getNext())
+        // Only awake bodies have forces.
+        for (int i = 0; i < awakeBodyCount; ++i)
         {
+            final Body body = awakeBodies[i];
             body.force.setZero();
             body.torque = 0.0f;
         }
     }
 
+    /**
+     * The awake dynamic and kinematic bodies.
+     */
+    private Body[] awakeBodies = new Body[16];
+
+    private int awakeBodyCount;
+
+    /**
+     * The bodies that moved in the last step or were moved by
+     * {@link Body#setTransform(Vec2, float)} since. Their previous transforms
+     * catch up at the start of the next step. While the islands are solved,
+     * the list holds the bodies of this step.
+     */
+    private Body[] movedBodies = new Body[16];
+
+    private int movedBodyCount;
+
+    /**
+     * Add the body to the awake bodies or remove it, after it woke up, fell
+     * asleep or changed its type.
+     */
+    void updateAwakeBody(Body body)
+    {
+        final boolean awake = body.isAwake()
+                && body.type != BodyType.STATIC;
+        if (awake == body.awakeIndex >= 0)
+        {
+            return;
+        }
+        if (awake)
+        {
+            if (awakeBodyCount == awakeBodies.length)
+            {
+                final Body[] old = awakeBodies;
+                awakeBodies = new Body[awakeBodyCount * 2];
+                System.arraycopy(old, 0, awakeBodies, 0, awakeBodyCount);
+            }
+            body.awakeIndex = awakeBodyCount;
+            awakeBodies[awakeBodyCount++] = body;
+        }
+        else
+        {
+            removeAwakeBody(body);
+        }
+        for (ContactEdge ce = body.contactList; ce != null; ce = ce.next)
+        {
+            contactManager.updateAwakeContact(ce.contact);
+        }
+    }
+
+    private void removeAwakeBody(Body body)
+    {
+        final Body last = awakeBodies[--awakeBodyCount];
+        awakeBodies[body.awakeIndex] = last;
+        last.awakeIndex = body.awakeIndex;
+        awakeBodies[awakeBodyCount] = null;
+        body.awakeIndex = -1;
+    }
+
+    /**
+     * Get the number of awake dynamic and kinematic bodies.
+     */
+    public int getAwakeBodyCount()
+    {
+        return awakeBodyCount;
+    }
+
+    void addMovedBody(Body body)
+    {
+        if ((body.flags & Body.movedFlag) != 0)
+        {
+            return;
+        }
+        if (movedBodyCount == movedBodies.length)
+        {
+            final Body[] old = movedBodies;
+            movedBodies = new Body[movedBodyCount * 2];
+            System.arraycopy(old, 0, movedBodies, 0, movedBodyCount);
+        }
+        body.flags |= Body.movedFlag;
+        movedBodies[movedBodyCount++] = body;
+    }
+
     private final Color3f color = new Color3f();
 
     private final Transform xf = new Transform();
@@ -903,6 +1033,49 @@ public class World
 
     private final WorldRayCastWrapper wrcwrapper = new WorldRayCastWrapper();
 
+    private final DistanceInput distanceInput = new DistanceInput();
+
+    private final DistanceOutput distanceOutput = new DistanceOutput();
+
+    /**
+     * Compute the distance between the first children of the shapes of two
+     * fixtures, see
+     * {@link #distance(DistanceOutput, Fixture, int, Fixture, int, SimplexCache)}.
+     *
+     * @return The distance between the shapes, zero if they overlap.
+     */
+    public float distance(Fixture fixtureA, Fixture fixtureB,
+            SimplexCache cache)
+    {
+        distance(distanceOutput, fixtureA, 0, fixtureB, 0, cache);
+        return distanceOutput.distance;
+    }
+
+    /**
+     * Compute the closest points of the shapes of two fixtures at the current
+     * body transforms. Keep one simplex cache per pair of fixtures and pass it
+     * to every query of the pair. The query starts from the simplex of the
+     * previous one, so it converges in one or two iterations when the bodies
+     * move coherently. A new cache starts from scratch.
+     *
+     * @param output Receives the closest points and their distance.
+     * @param childIndexA The child index of the shape of fixture A.
+     * @param childIndexB The child index of the shape of fixture B.
+     * @param cache The simplex cache of the pair, updated by the query.
+     */
+    public void distance(DistanceOutput output, Fixture fixtureA,
+            int childIndexA, Fixture fixtureB, int childIndexB,
+            SimplexCache cache)
+    {
+        final DistanceInput input = distanceInput;
+        input.proxyA.set(fixtureA.getShape(), childIndexA);
+        input.proxyB.set(fixtureB.getShape(), childIndexB);
+        input.transformA.set(fixtureA.getBody().getTransform());
+        input.transformB.set(fixtureB.getBody().getTransform());
+        input.useRadii = true;
+        pool.getDistance().distance(output, cache, input);
+    }
+
     private final RayCastInput input = new RayCastInput();
 
     /**
@@ -946,6 +1119,116 @@ public class World
         particleSystem.raycast(particleCallback, point1, point2);
     }
 
+    /**
+     * The number of rays or AABBs of a batch that form one task for the
+     * executor.
+     */
+    private static final int BATCH_CHUNK_SIZE = 256;
+
+    /**
+     * Ray-cast a batch of rays and report the closest hit of each. Ray i runs
+     * from (rays[4i], rays[4i + 1]) to (rays[4i + 2], rays[4i + 3]). Bundles
+     * of neighboring rays traverse the broad-phase together, so coherent rays,
+     * like those of a vision cone, share most of the work. Sensors are
+     * ignored. Rays that hit nothing get a null fixture and a fraction of 1.
+     *
+     * @param rays The packed start and end points.
+     * @param count The number of rays.
+     * @param fractions Receives the hit fraction of each ray.
+     * @param points Receives the hit point of each ray, packed as x, y.
+     * @param normals Receives the surface normal at each hit, packed as x, y.
+     * @param fixtures Receives the fixture hit by each ray.
+     */
+    public void raycastBatch(float[] rays, int count, float[] fractions,
+            float[] points, float[] normals, Fixture[] fixtures)
+    {
+        raycastBatch(rays, count, fractions, points, normals, fixtures, null);
+    }
+
+    /**
+     * Ray-cast a batch of rays, see
+     * {@link #raycastBatch(float[], int, float[], float[], float[], Fixture[])}.
+     * The batch is split into chunks that run on the given executor. This
+     * call blocks until all chunks are done, the world must not be modified
+     * meanwhile.
+     *
+     * @param executor The executor for the chunks, or null to run them on the
+     *     calling thread.
+     */
+    public void raycastBatch(float[] rays, int count, float[] fractions,
+            float[] points, float[] normals, Fixture[] fixtures,
+            Executor executor)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            fractions[i] = 1.0f;
+            fixtures[i] = null;
+        }
+        final int chunkCount = executor == null ? 1
+                : (count + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE;
+        final Runnable[] chunks = new Runnable[chunkCount];
+        for (int i = 0; i < chunkCount; ++i)
+        {
+            final WorldRayPacketWrapper chunk = new WorldRayPacketWrapper();
+            chunk.broadPhase = contactManager.broadPhase;
+            chunk.rays = rays;
+            chunk.fractions = fractions;
+            chunk.points = points;
+            chunk.normals = normals;
+            chunk.fixtures = fixtures;
+            chunk.start = executor == null ? 0 : i * BATCH_CHUNK_SIZE;
+            chunk.end = executor == null ? count
+                    : MathUtils.min(count, chunk.start + BATCH_CHUNK_SIZE);
+            chunks[i] = chunk;
+        }
+        TaskBatch.run(executor, chunks, chunkCount);
+    }
+
+    /**
+     * Query the world for the fixtures that potentially overlap each AABB of
+     * a batch. AABB i is packed as lower x, lower y, upper x, upper y at index
+     * 4i of the array. Bundles of neighboring AABBs traverse the broad-phase
+     * together.
+     *
+     * @param callback A user implemented callback class.
+     * @param aabbs The packed query boxes.
+     * @param count The number of query boxes.
+     */
+    public void queryAABBBatch(BatchQueryCallback callback, float[] aabbs,
+            int count)
+    {
+        queryAABBBatch(callback, aabbs, count, null);
+    }
+
+    /**
+     * Query the world for a batch of AABBs, see
+     * {@link #queryAABBBatch(BatchQueryCallback, float[], int)}. The batch is
+     * split into chunks that run on the given executor, so the callback has
+     * to be thread-safe. This call blocks until all chunks are done.
+     *
+     * @param executor The executor for the chunks, or null to run them on the
+     *     calling thread.
+     */
+    public void queryAABBBatch(BatchQueryCallback callback, float[] aabbs,
+            int count, Executor executor)
+    {
+        final int chunkCount = executor == null ? 1
+                : (count + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE;
+        final Runnable[] chunks = new Runnable[chunkCount];
+        for (int i = 0; i < chunkCount; ++i)
+        {
+            final WorldQueryPacketWrapper chunk = new WorldQueryPacketWrapper();
+            chunk.broadPhase = contactManager.broadPhase;
+            chunk.callback = callback;
+            chunk.aabbs = aabbs;
+            chunk.start = executor == null ? 0 : i * BATCH_CHUNK_SIZE;
+            chunk.end = executor == null ? count
+                    : MathUtils.min(count, chunk.start + BATCH_CHUNK_SIZE);
+            chunks[i] = chunk;
+        }
+        TaskBatch.run(executor, chunks, chunkCount);
+    }
+
     /**
      * Ray-cast the world for all particles in the path of the ray. Your
      * callback controls whether you get the closest point, any point, or
@@ -1036,6 +1319,32 @@ public class World
         return continuousPhysics;
     }
 
+    /**
+     * Enable/disable speculative contacts for bullets. Bullets then get a
+     * manifold point as soon as they may reach another shape within the next
+     * step, and the regular contact solver keeps them from passing it. Their
+     * contacts skip the time of impact sub-stepping, so the cost of a step no
+     * longer depends on the number of impacts.
+     */
+    public void setSpeculativeContacts(boolean flag)
+    {
+        speculativeContacts = flag;
+    }
+
+    public boolean isSpeculativeContacts()
+    {
+        return speculativeContacts;
+    }
+
+    /**
+     * Get the time speculative contacts look ahead, which is the length of the
+     * current step, or zero if speculative contacts are disabled.
+     */
+    public float getSpeculativeTime()
+    {
+        return speculativeTime;
+    }
+
     /**
      * Get the number of broad-phase proxies.
      */
@@ -1160,179 +1469,435 @@ public class World
 
     private final Timer broadphaseTimer = new Timer();
 
-    private void solve(TimeStep step)
+    /**
+     * The awake persistent islands. Islands that were merged into others stay
+     * empty in the array until the next step.
+     */
+    private PersistentIsland[] awakeIslands = new PersistentIsland[16];
+
+    private int awakeIslandCount;
+
+    /**
+     * The number of persistent islands, including the sleeping ones.
+     */
+    private int islandCount;
+
+    /**
+     * The islands that lost contacts or joints and are ready to fall asleep.
+     */
+    private PersistentIsland[] splitCandidates = new PersistentIsland[4];
+
+    private int splitCandidateCount;
+
+    private Body[] splitBodies = new Body[16];
+
+    /**
+     * Create an island for a dynamic or kinematic body.
+     */
+    void createIsland(Body body)
     {
-        profile.solveInit.startAccum();
-        profile.solveVelocity.startAccum();
-        profile.solvePosition.startAccum();
-        // update previous transforms
-        for (Body b = bodyList; b != null; b = b.next)
+        assert (body.persistentIsland == null);
+        final PersistentIsland island = new PersistentIsland();
+        ++islandCount;
+        island.add(body);
+        if (body.isAwake())
         {
-            b.xf0.set(b.xf);
+            wakeIsland(island);
         }
-        // Size the island for the worst case.
-        island.init(bodyCount, contactManager.contactCount, jointCount,
-                contactManager.contactListener);
-        // Clear all the island flags.
-        for (Body b = bodyList; b != null; b = b.next)
+    }
+
+    private PersistentIsland addIsland()
+    {
+        final PersistentIsland island = new PersistentIsland();
+        ++islandCount;
+        wakeIsland(island);
+        return island;
+    }
+
+    /**
+     * Add a sleeping island to the awake islands.
+     */
+    void wakeIsland(PersistentIsland island)
+    {
+        assert (island.index < 0);
+        if (awakeIslandCount == awakeIslands.length)
+        {
+            final PersistentIsland[] old = awakeIslands;
+            awakeIslands = new PersistentIsland[awakeIslandCount * 2];
+            System.arraycopy(old, 0, awakeIslands, 0, awakeIslandCount);
+        }
+        island.index = awakeIslandCount;
+        awakeIslands[awakeIslandCount++] = island;
+    }
+
+    private void sleepIsland(PersistentIsland island)
+    {
+        final PersistentIsland last = awakeIslands[--awakeIslandCount];
+        awakeIslands[island.index] = last;
+        last.index = island.index;
+        awakeIslands[awakeIslandCount] = null;
+        island.index = -1;
+    }
+
+    /**
+     * Remove a body from its island, e.g. when it is destroyed or becomes
+     * static.
+     */
+    void removeFromIsland(Body body)
+    {
+        final PersistentIsland island = body.persistentIsland;
+        if (island == null)
         {
-            b.flags &= ~Body.islandFlag;
+            return;
         }
-        for (Contact c = contactManager.contactList; c != null; c = c.next)
+        island.remove(body);
+        if (island.bodyCount == 0)
         {
-            c.flags &= ~Contact.ISLAND_FLAG;
+            --islandCount;
+            if (island.index >= 0)
+            {
+                sleepIsland(island);
+            }
         }
-        for (Joint j = jointList; j != null; j = j.next)
+    }
+
+    /**
+     * Called when a contact or joint between two bodies is removed. The island
+     * is split the next time it tries to fall asleep.
+     */
+    void constraintRemoved(Body bodyA, Body bodyB)
+    {
+        final PersistentIsland island = bodyA.persistentIsland != null
+                ? bodyA.persistentIsland
+                : bodyB.persistentIsland;
+        if (island != null)
         {
-            j.islandFlag = false;
+            ++island.constraintRemoveCount;
         }
-        // Build and simulate all awake islands.
-        int stackSize = bodyCount;
-        if (stack.length < stackSize)
+    }
+
+    /**
+     * Does the contact connect the islands of its bodies?
+     */
+    private static boolean isIslandContact(Contact contact)
+    {
+        // Is this contact solid and touching?
+        if (!contact.isEnabled() || (contact.flags
+                & (Contact.TOUCHING_FLAG | Contact.SPECULATIVE_FLAG)) == 0)
         {
-            stack = new Body[stackSize];
+            return false;
         }
-        for (Body seed = bodyList; seed != null; seed = seed.next)
+        // Skip sensors.
+        return !contact.fixtureA.isSensor && !contact.fixtureB.isSensor;
+    }
+
+    /**
+     * Get the number of persistent islands, including the sleeping ones.
+     */
+    public int getIslandCount()
+    {
+        return islandCount;
+    }
+
+    /**
+     * Get the number of awake persistent islands.
+     */
+    public int getAwakeIslandCount()
+    {
+        return awakeIslandCount;
+    }
+
+    private void solve(TimeStep step)
+    {
+        profile.solveInit.startAccum();
+        profile.solveVelocity.startAccum();
+        profile.solvePosition.startAccum();
+        // update previous transforms, the other bodies did not move
+        for (int i = 0; i < movedBodyCount; ++i)
         {
-            if ((seed.flags & Body.islandFlag) == Body.islandFlag)
+            final Body b = movedBodies[i];
+            b.xf0.set(b.xf);
+            b.flags &= ~Body.movedFlag;
+            movedBodies[i] = null;
+        }
+        movedBodyCount = 0;
+        // Size the island for the worst case.
+        island.init(bodyCount, contactManager.contactCount, jointCount,
+                contactManager.contactListener);
+        splitCandidateCount = 0;
+        // Simulate all awake islands. An island that is removed from the
+        // array is replaced by the last one.
+        int i = 0;
+        while (i < awakeIslandCount)
+        {
+            final PersistentIsland seed = awakeIslands[i];
+            if (seed.bodyCount == 0)
             {
+                // The island was merged into another one.
+                sleepIsland(seed);
                 continue;
             }
-            if (!seed.isAwake() || !seed.isActive())
+            if (!seed.hasAwakeBody())
             {
+                sleepIsland(seed);
                 continue;
             }
-            // The seed can be dynamic or kinematic.
-            if (seed.getType() == BodyType.STATIC)
+            buildIsland(seed);
+            final boolean sleepy = island.solve(profile, step, gravity,
+                    allowSleep);
+            if (seed.constraintRemoveCount > 0 && island.hasSleepyBody)
             {
-                continue;
+                // The island may consist of several ones, and the resting
+                // ones should fall asleep without the others.
+                addSplitCandidate(seed);
+                ++i;
             }
-            // Reset island and stack.
-            island.clear();
-            int stackCount = 0;
-            stack[stackCount++] = seed;
-            seed.flags |= Body.islandFlag;
-            // Perform a depth first search (DFS) on the constraint graph.
-            while (stackCount > 0)
+            else if (sleepy)
             {
-                // Grab the next body off the stack and add it to the island.
-                Body b = stack[--stackCount];
-                assert (b.isActive());
-                island.add(b);
-                // Make sure the body is awake.
-                b.setAwake(true);
-                // To keep islands as small as possible, we don't
-                // propagate islands across static bodies.
-                if (b.getType() == BodyType.STATIC)
-                {
-                    continue;
-                }
-                // Search all contacts connected to this body.
-                for (ContactEdge ce = b.contactList; ce != null; ce = ce.next)
-                {
-                    Contact contact = ce.contact;
-                    // Has this contact already been added to an island?
-                    if ((contact.flags
-                            & Contact.ISLAND_FLAG) == Contact.ISLAND_FLAG)
-                    {
-                        continue;
-                    }
-                    // Is this contact solid and touching?
-                    if (!contact.isEnabled() || !contact.isTouching())
-                    {
-                        continue;
-                    }
-                    // Skip sensors.
-                    boolean sensorA = contact.fixtureA.isSensor;
-                    boolean sensorB = contact.fixtureB.isSensor;
-                    if (sensorA || sensorB)
-                    {
-                        continue;
-                    }
-                    island.add(contact);
-                    contact.flags |= Contact.ISLAND_FLAG;
-                    Body other = ce.other;
-                    // Was the other body already added to this island?
-                    if ((other.flags & Body.islandFlag) == Body.islandFlag)
-                    {
-                        continue;
-                    }
-                    assert (stackCount < stackSize);
-                    stack[stackCount++] = other;
-                    other.flags |= Body.islandFlag;
-                }
-                // Search all joints connect to this body.
-                for (JointEdge je = b.jointList; je != null; je = je.next)
-                {
-                    if (je.joint.islandFlag)
-                    {
-                        continue;
-                    }
-                    Body other = je.other;
-                    // Don't simulate joints connected to inactive bodies.
-                    if (!other.isActive())
-                    {
-                        continue;
-                    }
-                    island.add(je.joint);
-                    je.joint.islandFlag = true;
-                    if ((other.flags & Body.islandFlag) == Body.islandFlag)
-                    {
-                        continue;
-                    }
-                    assert (stackCount < stackSize);
-                    stack[stackCount++] = other;
-                    other.flags |= Body.islandFlag;
-                }
+                island.sleep();
+                sleepIsland(seed);
+            }
+            else
+            {
+                ++i;
             }
-            island.solve(profile, step, gravity, allowSleep);
             // Post solve cleanup.
-            for (int i = 0; i < island.bodyCount; ++i)
+            for (int j = 0; j < island.contactCount; ++j)
+            {
+                island.contacts[j].flags &= ~Contact.ISLAND_FLAG;
+            }
+            for (int j = 0; j < island.jointCount; ++j)
+            {
+                island.joints[j].islandFlag = false;
+            }
+            for (int j = 0; j < island.bodyCount; ++j)
             {
                 // Allow static bodies to participate in other islands.
-                Body b = island.bodies[i];
+                Body b = island.bodies[j];
                 if (b.getType() == BodyType.STATIC)
                 {
                     b.flags &= ~Body.islandFlag;
                 }
             }
         }
+        for (int j = 0; j < splitCandidateCount; ++j)
+        {
+            splitIsland(splitCandidates[j]);
+            splitCandidates[j] = null;
+        }
         profile.solveInit.endAccum();
         profile.solveVelocity.endAccum();
         profile.solvePosition.endAccum();
         broadphaseTimer.reset();
-        // Synchronize fixtures, check for out of range bodies.
-        for (Body b = bodyList; b != null; b = b.getNext())
+        // Synchronize fixtures of the bodies that were solved, the others
+        // did not move.
+        for (int j = 0; j < movedBodyCount; ++j)
         {
-            // If a body was not in an island then it did not move.
-            if ((b.flags & Body.islandFlag) == 0)
-            {
-                continue;
-            }
-            if (b.getType() == BodyType.STATIC)
-            {
-                continue;
-            }
             // Update fixtures (for broad-phase).
-            b.synchronizeFixtures();
+            movedBodies[j].synchronizeFixtures();
         }
         // Look for new contacts.
         contactManager.findNewContacts();
         profile.broadphase.record(broadphaseTimer.getMilliseconds());
     }
 
-    private final Island toiIsland = new Island();
-
-    private final TOIInput toiInput = new TOIInput();
-
-    private final TOIOutput toiOutput = new TOIOutput();
-
-    private final TimeStep subStep = new TimeStep();
-
-    private final Body[] tempBodies = new Body[2];
-
-    private final Sweep backup1 = new Sweep();
-
+    /**
+     * Gather the bodies, contacts and joints of an island into the solver
+     * island. Contacts and joints that connect the island to another one merge
+     * the other island into this one.
+     */
+    private void buildIsland(PersistentIsland seed)
+    {
+        island.clear();
+        // The island grows while it is walked.
+        for (int i = 0; i < seed.bodyCount; ++i)
+        {
+            Body b = seed.bodies[i];
+            assert (b.isActive() && b.getType() != BodyType.STATIC);
+            island.add(b);
+            // Make sure the body is awake.
+            b.setAwake(true);
+            addMovedBody(b);
+            // Search all contacts connected to this body.
+            for (ContactEdge ce = b.contactList; ce != null; ce = ce.next)
+            {
+                Contact contact = ce.contact;
+                // Has this contact already been added to the island?
+                if ((contact.flags
+                        & Contact.ISLAND_FLAG) == Contact.ISLAND_FLAG)
+                {
+                    continue;
+                }
+                if (!isIslandContact(contact))
+                {
+                    continue;
+                }
+                island.add(contact);
+                contact.flags |= Contact.ISLAND_FLAG;
+                addToIsland(seed, ce.other);
+            }
+            // Search all joints connect to this body.
+            for (JointEdge je = b.jointList; je != null; je = je.next)
+            {
+                if (je.joint.islandFlag)
+                {
+                    continue;
+                }
+                Body other = je.other;
+                // Don't simulate joints connected to inactive bodies.
+                if (!other.isActive())
+                {
+                    continue;
+                }
+                island.add(je.joint);
+                je.joint.islandFlag = true;
+                addToIsland(seed, other);
+            }
+        }
+    }
+
+    private void addToIsland(PersistentIsland seed, Body other)
+    {
+        // To keep islands as small as possible, we don't propagate islands
+        // across static bodies.
+        if (other.getType() == BodyType.STATIC)
+        {
+            if ((other.flags & Body.islandFlag) == 0)
+            {
+                island.add(other);
+                other.setAwake(true);
+                other.flags |= Body.islandFlag;
+            }
+        }
+        else if (other.persistentIsland != seed)
+        {
+            final PersistentIsland linked = other.persistentIsland;
+            assert (linked != null);
+            // An empty awake island is removed from the array when the loop
+            // reaches it.
+            seed.merge(linked);
+            --islandCount;
+        }
+    }
+
+    private void addSplitCandidate(PersistentIsland island)
+    {
+        if (splitCandidateCount == splitCandidates.length)
+        {
+            final PersistentIsland[] old = splitCandidates;
+            splitCandidates = new PersistentIsland[splitCandidateCount * 2];
+            System.arraycopy(old, 0, splitCandidates, 0, splitCandidateCount);
+        }
+        splitCandidates[splitCandidateCount++] = island;
+    }
+
+    /**
+     * Rebuild the islands of the bodies of an island by a depth first search
+     * (DFS) on the constraint graph. The new islands fall asleep on their own.
+     */
+    private void splitIsland(PersistentIsland base)
+    {
+        final int bodyCount = base.bodyCount;
+        if (splitBodies.length < bodyCount)
+        {
+            splitBodies = new Body[bodyCount];
+        }
+        if (stack.length < bodyCount)
+        {
+            stack = new Body[bodyCount];
+        }
+        for (int i = 0; i < bodyCount; ++i)
+        {
+            splitBodies[i] = base.bodies[i];
+            base.bodies[i].persistentIsland = null;
+            base.bodies[i] = null;
+        }
+        base.bodyCount = 0;
+        base.constraintRemoveCount = 0;
+        PersistentIsland target = base;
+        for (int i = 0; i < bodyCount; ++i)
+        {
+            final Body seed = splitBodies[i];
+            splitBodies[i] = null;
+            if (seed.persistentIsland != null)
+            {
+                continue;
+            }
+            if (target == null)
+            {
+                target = addIsland();
+            }
+            int stackCount = 0;
+            stack[stackCount++] = seed;
+            target.add(seed);
+            while (stackCount > 0)
+            {
+                Body b = stack[--stackCount];
+                for (ContactEdge ce = b.contactList; ce != null; ce = ce.next)
+                {
+                    Body other = ce.other;
+                    if (other.persistentIsland != null
+                            || other.getType() == BodyType.STATIC
+                            || !isIslandContact(ce.contact))
+                    {
+                        continue;
+                    }
+                    target.add(other);
+                    stack[stackCount++] = other;
+                }
+                for (JointEdge je = b.jointList; je != null; je = je.next)
+                {
+                    Body other = je.other;
+                    if (other.persistentIsland != null
+                            || other.getType() == BodyType.STATIC
+                            || !other.isActive())
+                    {
+                        continue;
+                    }
+                    target.add(other);
+                    stack[stackCount++] = other;
+                }
+            }
+            target = null;
+        }
+    }
+
+    private final Island toiIsland = new Island();
+
+    private final TOIQueue toiQueue = new TOIQueue();
+
+    /**
+     * Contacts whose TOI has to be computed, with the start of the common
+     * time interval of their sweeps and copies of the sweeps of both bodies
+     * on that interval. Later candidates can advance the sweeps of the bodies
+     * further, so the TOIs are computed from the copies.
+     */
+    private Contact[] toiCandidates = new Contact[16];
+
+    private float[] toiAlpha0 = new float[16];
+
+    private Sweep[] toiSweeps = newSweeps(new Sweep[0], 32);
+
+    private int toiCandidateCount;
+
+    /**
+     * The minimum number of TOI candidates per worker, below that the TOIs are
+     * computed on the calling thread.
+     */
+    private static final int MIN_TOI_CANDIDATES_PER_WORKER = 32;
+
+    private final TOIWorker serialTOIWorker;
+
+    private Executor toiExecutor;
+
+    private TOIWorker[] toiWorkers = new TOIWorker[0];
+
+    private final TimeStep subStep = new TimeStep();
+
+    private final Body[] tempBodies = new Body[2];
+
+    private final Sweep backup1 = new Sweep();
+
     private final Sweep backup2 = new Sweep();
 
     private void solveTOI(final TimeStep step)
@@ -1340,129 +1905,52 @@ public class World
         final Island island = toiIsland;
         island.init(2 * Settings.maxTOIContacts, Settings.maxTOIContacts, 0,
                 contactManager.contactListener);
+        final Contact[] awakeContacts = contactManager.awakeContacts;
         if (stepComplete)
         {
-            for (Body b = bodyList; b != null; b = b.next)
+            // Only the bodies that were solved in this step have moved.
+            for (int i = 0; i < movedBodyCount; ++i)
             {
+                final Body b = movedBodies[i];
                 b.flags &= ~Body.islandFlag;
                 b.sweep.alpha0 = 0.0f;
             }
-            for (Contact c = contactManager.contactList; c != null; c = c.next)
+            for (int i = 0; i < contactManager.awakeContactCount; ++i)
             {
+                final Contact c = awakeContacts[i];
                 // Invalidate TOI
                 c.flags &= ~(Contact.TOI_FLAG | Contact.ISLAND_FLAG);
                 c.toiCount = 0;
                 c.toi = 1.0f;
+                // Static and kinematic bodies are advanced to the TOIs of
+                // their contacts but never join the moved bodies.
+                c.fixtureA.body.sweep.alpha0 = 0.0f;
+                c.fixtureB.body.sweep.alpha0 = 0.0f;
             }
         }
-        // Find TOI events and solve them.
+        // Queue the TOI events of all contacts.
+        toiQueue.clear();
+        toiCandidateCount = 0;
+        // The contacts of sleeping bodies have no TOI.
+        for (int i = 0; i < contactManager.awakeContactCount; ++i)
+        {
+            addTOICandidate(awakeContacts[i]);
+        }
+        computeTOICandidates();
+        // Solve the TOI events in order.
         for (;;)
         {
             // Find the first TOI.
-            Contact minContact = null;
-            float minAlpha = 1.0f;
-            for (Contact c = contactManager.contactList; c != null; c = c.next)
-            {
-                // Is this contact disabled?
-                if (!c.isEnabled())
-                {
-                    continue;
-                }
-                // Prevent excessive sub-stepping.
-                if (c.toiCount > Settings.maxSubSteps)
-                {
-                    continue;
-                }
-                float alpha;
-                if ((c.flags & Contact.TOI_FLAG) != 0)
-                {
-                    // This contact has a valid cached TOI.
-                    alpha = c.toi;
-                }
-                else
-                {
-                    Fixture fA = c.getFixtureA();
-                    Fixture fB = c.getFixtureB();
-                    // Is there a sensor?
-                    if (fA.isSensor() || fB.isSensor())
-                    {
-                        continue;
-                    }
-                    Body bA = fA.getBody();
-                    Body bB = fB.getBody();
-                    BodyType typeA = bA.type;
-                    BodyType typeB = bB.type;
-                    assert (typeA == BodyType.DYNAMIC
-                            || typeB == BodyType.DYNAMIC);
-                    boolean activeA = bA.isAwake() && typeA != BodyType.STATIC;
-                    boolean activeB = bB.isAwake() && typeB != BodyType.STATIC;
-                    // Is at least one body active (awake and dynamic or
-                    // kinematic)?
-                    if (!activeA && !activeB)
-                    {
-                        continue;
-                    }
-                    boolean collideA = bA.isBullet()
-                            || typeA != BodyType.DYNAMIC;
-                    boolean collideB = bB.isBullet()
-                            || typeB != BodyType.DYNAMIC;
-                    // Are these two non-bullet dynamic bodies?
-                    if (!collideA && !collideB)
-                    {
-                        continue;
-                    }
-                    // Compute the TOI for this contact.
-                    // Put the sweeps onto the same time interval.
-                    float alpha0 = bA.sweep.alpha0;
-                    if (bA.sweep.alpha0 < bB.sweep.alpha0)
-                    {
-                        alpha0 = bB.sweep.alpha0;
-                        bA.sweep.advance(alpha0);
-                    }
-                    else if (bB.sweep.alpha0 < bA.sweep.alpha0)
-                    {
-                        alpha0 = bA.sweep.alpha0;
-                        bB.sweep.advance(alpha0);
-                    }
-                    assert (alpha0 < 1.0f);
-                    int indexA = c.getChildIndexA();
-                    int indexB = c.getChildIndexB();
-                    // Compute the time of impact in interval [0, minTOI]
-                    final TOIInput input = toiInput;
-                    input.proxyA.set(fA.getShape(), indexA);
-                    input.proxyB.set(fB.getShape(), indexB);
-                    input.sweepA.set(bA.sweep);
-                    input.sweepB.set(bB.sweep);
-                    input.tMax = 1.0f;
-                    pool.getTimeOfImpact().timeOfImpact(toiOutput, input);
-                    // Beta is the fraction of the remaining portion of the .
-                    float beta = toiOutput.t;
-                    if (toiOutput.state == TOIOutputState.TOUCHING)
-                    {
-                        alpha = MathUtils.min(alpha0 + (1.0f - alpha0) * beta,
-                                1.0f);
-                    }
-                    else
-                    {
-                        alpha = 1.0f;
-                    }
-                    c.toi = alpha;
-                    c.flags |= Contact.TOI_FLAG;
-                }
-                if (alpha < minAlpha)
-                {
-                    // This is the minimum TOI found so far.
-                    minContact = c;
-                    minAlpha = alpha;
-                }
-            }
+            Contact minContact = toiQueue.peek();
             if (minContact == null
-                    || 1.0f - 10.0f * Settings.EPSILON < minAlpha)
+                    || 1.0f - 10.0f * Settings.EPSILON < minContact.toi)
             {
                 // No more TOI events. Done!
                 stepComplete = true;
                 break;
             }
+            final float minAlpha = minContact.toi;
+            toiQueue.remove(minContact);
             // Advance the bodies to the TOI.
             Fixture fA = minContact.getFixtureA();
             Fixture fB = minContact.getFixtureB();
@@ -1473,7 +1961,7 @@ public class World
             bA.advance(minAlpha);
             bB.advance(minAlpha);
             // The TOI contact likely has some new contact points.
-            minContact.update(contactManager.contactListener);
+            contactManager.updateContact(minContact);
             minContact.flags &= ~Contact.TOI_FLAG;
             ++minContact.toiCount;
             // Is the contact solid?
@@ -1542,7 +2030,7 @@ public class World
                             other.advance(minAlpha);
                         }
                         // Update the contact points
-                        contact.update(contactManager.contactListener);
+                        contactManager.updateContact(contact);
                         // Was the contact disabled by the user?
                         if (!contact.isEnabled())
                         {
@@ -1592,23 +2080,217 @@ public class World
                     continue;
                 }
                 body.synchronizeFixtures();
+                addMovedBody(body);
                 // Invalidate all contact TOIs on this displaced body.
                 for (ContactEdge ce = body.contactList; ce != null; ce = ce.next)
                 {
                     ce.contact.flags &= ~(Contact.TOI_FLAG
                             | Contact.ISLAND_FLAG);
+                    toiQueue.remove(ce.contact);
                 }
             }
             // Commit fixture proxy movements to the broad-phase so that new
             // contacts are created.
             // Also, some contacts can be destroyed.
             contactManager.findNewContacts();
+            // Only the contacts of the displaced bodies, including the new
+            // ones, need a new TOI.
+            for (int i = 0; i < island.bodyCount; ++i)
+            {
+                Body body = island.bodies[i];
+                if (body.type != BodyType.DYNAMIC)
+                {
+                    continue;
+                }
+                for (ContactEdge ce = body.contactList; ce != null; ce = ce.next)
+                {
+                    // Skip contacts shared with a body visited before.
+                    if ((ce.contact.flags & Contact.TOI_FLAG) == 0)
+                    {
+                        addTOICandidate(ce.contact);
+                    }
+                }
+            }
+            computeTOICandidates();
             if (subStepping)
             {
                 stepComplete = false;
                 break;
             }
         }
+        toiQueue.clear();
+    }
+
+    /**
+     * Compute the TOIs of continuous collision on the given executor when
+     * there are many candidate contacts, e.g. in scenes with many bullets.
+     * Each TOI computation only reads its own copies of the sweeps of its
+     * bodies, so the result does not depend on the number of workers.
+     *
+     * @param executor The executor for the workers, or null to compute all
+     *     TOIs on the calling thread.
+     * @param workerCount The maximum number of workers.
+     */
+    public void setTOIExecutor(Executor executor, int workerCount)
+    {
+        toiExecutor = executor;
+        toiWorkers = new TOIWorker[executor == null ? 0 : workerCount];
+        for (int i = 0; i < toiWorkers.length; ++i)
+        {
+            toiWorkers[i] = new TOIWorker(
+                    new TimeOfImpact(new Distance(true)));
+        }
+    }
+
+    /**
+     * Queue a contact with a valid cached TOI or make it a candidate for a new
+     * TOI computation. Contacts that cannot have a TOI event are skipped.
+     */
+    private void addTOICandidate(Contact c)
+    {
+        // Is this contact disabled?
+        if (!c.isEnabled())
+        {
+            return;
+        }
+        // Prevent excessive sub-stepping.
+        if (c.toiCount > Settings.maxSubSteps)
+        {
+            return;
+        }
+        // Bullets are handled by speculative contacts.
+        if (speculativeContacts && (c.getFixtureA().getBody().isBullet()
+                || c.getFixtureB().getBody().isBullet()))
+        {
+            return;
+        }
+        if ((c.flags & Contact.TOI_FLAG) != 0)
+        {
+            // This contact has a valid cached TOI.
+            if (c.toi < 1.0f)
+            {
+                toiQueue.add(c);
+            }
+            return;
+        }
+        Fixture fA = c.getFixtureA();
+        Fixture fB = c.getFixtureB();
+        // Is there a sensor?
+        if (fA.isSensor() || fB.isSensor())
+        {
+            return;
+        }
+        Body bA = fA.getBody();
+        Body bB = fB.getBody();
+        BodyType typeA = bA.type;
+        BodyType typeB = bB.type;
+        assert (typeA == BodyType.DYNAMIC || typeB == BodyType.DYNAMIC);
+        boolean activeA = bA.isAwake() && typeA != BodyType.STATIC;
+        boolean activeB = bB.isAwake() && typeB != BodyType.STATIC;
+        // Is at least one body active (awake and dynamic or kinematic)?
+        if (!activeA && !activeB)
+        {
+            return;
+        }
+        boolean collideA = bA.isBullet() || typeA != BodyType.DYNAMIC;
+        boolean collideB = bB.isBullet() || typeB != BodyType.DYNAMIC;
+        // Are these two non-bullet dynamic bodies?
+        if (!collideA && !collideB)
+        {
+            return;
+        }
+        // Put the sweeps onto the same time interval.
+        float alpha0 = bA.sweep.alpha0;
+        if (bA.sweep.alpha0 < bB.sweep.alpha0)
+        {
+            alpha0 = bB.sweep.alpha0;
+            bA.sweep.advance(alpha0);
+        }
+        else if (bB.sweep.alpha0 < bA.sweep.alpha0)
+        {
+            alpha0 = bA.sweep.alpha0;
+            bB.sweep.advance(alpha0);
+        }
+        assert (alpha0 < 1.0f);
+        if (toiCandidateCount == toiCandidates.length)
+        {
+            final Contact[] oldCandidates = toiCandidates;
+            final float[] oldAlpha0 = toiAlpha0;
+            toiCandidates = new Contact[toiCandidateCount * 2];
+            toiAlpha0 = new float[toiCandidateCount * 2];
+            System.arraycopy(oldCandidates, 0, toiCandidates, 0,
+                    toiCandidateCount);
+            System.arraycopy(oldAlpha0, 0, toiAlpha0, 0, toiCandidateCount);
+            toiSweeps = newSweeps(toiSweeps, toiCandidateCount * 4);
+        }
+        toiCandidates[toiCandidateCount] = c;
+        toiAlpha0[toiCandidateCount] = alpha0;
+        toiSweeps[2 * toiCandidateCount].set(bA.sweep);
+        toiSweeps[2 * toiCandidateCount + 1].set(bB.sweep);
+        ++toiCandidateCount;
+        c.flags |= Contact.TOI_FLAG;
+    }
+
+    /**
+     * Copy sweeps into a larger array and fill the rest with new sweeps.
+     */
+    private static Sweep[] newSweeps(Sweep[] sweeps, int length)
+    {
+        final Sweep[] result = Arrays.copyOf(sweeps, length);
+        for (int i = sweeps.length; i < length; ++i)
+        {
+            result[i] = new Sweep();
+        }
+        return result;
+    }
+
+    /**
+     * Compute the TOI of all candidate contacts and queue the ones with an
+     * event in this step.
+     */
+    private void computeTOICandidates()
+    {
+        final int count = toiCandidateCount;
+        final int workerCount = MathUtils.min(toiWorkers.length,
+                count / MIN_TOI_CANDIDATES_PER_WORKER);
+        if (workerCount > 1)
+        {
+            final int sliceSize = (count + workerCount - 1) / workerCount;
+            for (int i = 0; i < workerCount; ++i)
+            {
+                final TOIWorker worker = toiWorkers[i];
+                worker.candidates = toiCandidates;
+                worker.alpha0 = toiAlpha0;
+                worker.sweeps = toiSweeps;
+                worker.start = i * sliceSize;
+                worker.end = MathUtils.min(count, worker.start + sliceSize);
+            }
+            TaskBatch.run(toiExecutor, toiWorkers, workerCount);
+            for (int i = 0; i < workerCount; ++i)
+            {
+                toiWorkers[i].timeOfImpact.mergeCounters();
+            }
+        }
+        else
+        {
+            final TOIWorker worker = serialTOIWorker;
+            worker.candidates = toiCandidates;
+            worker.alpha0 = toiAlpha0;
+            worker.sweeps = toiSweeps;
+            worker.start = 0;
+            worker.end = count;
+            worker.run();
+        }
+        for (int i = 0; i < count; ++i)
+        {
+            final Contact c = toiCandidates[i];
+            toiCandidates[i] = null;
+            if (c.toi < 1.0f)
+            {
+                toiQueue.add(c);
+            }
+        }
+        toiCandidateCount = 0;
     }
 
     private void drawJoint(Joint joint)
@@ -1677,6 +2359,8 @@ public class World
 
     private final Vec2Array tlvertices = new Vec2Array();
 
+    private final PolygonShape tileBox = new PolygonShape();
+
     private void drawShape(Fixture fixture, Transform xf, Color3f color,
             boolean wireframe)
     {
@@ -1769,6 +2453,62 @@ public class World
         }
             break;
 
+        case TILEMAP:
+        {
+            TileMapShape map = (TileMapShape) fixture.getShape();
+            PolygonShape box = tileBox;
+            Vec2[] vertices = tlvertices.get(Settings.maxPolygonVertices);
+            int childCount = map.getChildCount();
+            for (int i = 0; i < childCount; ++i)
+            {
+                if (!map.getCellBox(box, i))
+                {
+                    continue;
+                }
+                for (int j = 0; j < 4; ++j)
+                {
+                    Transform.mulToOutUnsafe(xf, box.vertices[j], vertices[j]);
+                }
+                if (wireframe)
+                {
+                    debugDraw.drawPolygon(vertices, 4, color);
+                }
+                else
+                {
+                    debugDraw.drawSolidPolygon(vertices, 4, color);
+                }
+            }
+        }
+            break;
+
+        case COMPOUND:
+        {
+            CompoundShape compound = (CompoundShape) fixture.getShape();
+            Vec2[] vertices = tlvertices.get(Settings.maxPolygonVertices);
+            int childCount = compound.getChildCount();
+            for (int i = 0; i < childCount; ++i)
+            {
+                int count = compound.getChildVertices(i, vertices);
+                for (int j = 0; j < count; ++j)
+                {
+                    Transform.mulToOut(xf, vertices[j], vertices[j]);
+                }
+                if (count == 2)
+                {
+                    debugDraw.drawSegment(vertices[0], vertices[1], color);
+                }
+                else if (wireframe)
+                {
+                    debugDraw.drawPolygon(vertices, count, color);
+                }
+                else
+                {
+                    debugDraw.drawSolidPolygon(vertices, count, color);
+                }
+            }
+        }
+            break;
+
         default:
             break;
         }
@@ -1784,7 +2524,7 @@ public class World
             float particleRadius = system.getParticleRadius();
             Vec2[] positionBuffer = system.getParticlePositionBuffer();
             ParticleColor[] colorBuffer = null;
-            if (system.colorBuffer.data != null)
+            if (system.getParticleColorValueBuffer() != null)
             {
                 colorBuffer = system.getParticleColorBuffer();
             }
@@ -1903,6 +2643,15 @@ public class World
         return particleSystem.createParticleGroup(def);
     }
 
+    /**
+     * Fill a shape with particles once to create many particle groups of the
+     * shape, see {@link ParticleSystem#createParticleLattice(Shape)}.
+     */
+    public ParticleLattice createParticleLattice(Shape shape)
+    {
+        return particleSystem.createParticleLattice(shape);
+    }
+
     /**
      * Join two particle groups.
      *
@@ -2067,6 +2816,64 @@ public class World
         return particleSystem.getParticleRadius();
     }
 
+    /**
+     * Keep the particle contact candidates for several steps, see
+     * {@link ParticleSystem#setParticleNeighborSkin(float)}.
+     *
+     * @param skin The extra distance of the neighbor list, or 0 to find the
+     *     contacts in every step.
+     */
+    public void setParticleNeighborSkin(float skin)
+    {
+        particleSystem.setParticleNeighborSkin(skin);
+    }
+
+    public float getParticleNeighborSkin()
+    {
+        return particleSystem.getParticleNeighborSkin();
+    }
+
+    /**
+     * Allow particles to fall asleep when they rest, see
+     * {@link ParticleSystem#setParticleSleepingAllowed(boolean)}.
+     */
+    public void setParticleSleepingAllowed(boolean flag)
+    {
+        particleSystem.setParticleSleepingAllowed(flag);
+    }
+
+    public boolean isParticleSleepingAllowed()
+    {
+        return particleSystem.isParticleSleepingAllowed();
+    }
+
+    /**
+     * Set the lifetime of a particle in seconds, see
+     * {@link ParticleSystem#setParticleLifetime(int, float)}.
+     */
+    public void setParticleLifetime(int index, float lifetime)
+    {
+        particleSystem.setParticleLifetime(index, lifetime);
+    }
+
+    public float getParticleLifetime(int index)
+    {
+        return particleSystem.getParticleLifetime(index);
+    }
+
+    /**
+     * Solve the particles on the given executor when there are many of them,
+     * see {@link ParticleSystem#setExecutor(Executor, int)}.
+     *
+     * @param executor The executor for the workers, or null to solve the
+     *     particles on the calling thread.
+     * @param workerCount The maximum number of workers.
+     */
+    public void setParticleExecutor(Executor executor, int workerCount)
+    {
+        particleSystem.setExecutor(executor, workerCount);
+    }
+
     /**
      * Get the particle data.
      *
@@ -2102,6 +2909,97 @@ public class World
         return particleSystem.getParticleUserDataBuffer();
     }
 
+    /**
+     * Get the first particle of the range that changed since the last
+     * {@link #clearParticleDirtyRange()}.
+     *
+     * @see ParticleSystem#getDirtyStart()
+     */
+    public int getParticleDirtyStart()
+    {
+        return particleSystem.getDirtyStart();
+    }
+
+    /**
+     * Get the end of the range of particles that changed since the last
+     * {@link #clearParticleDirtyRange()}.
+     *
+     * @see ParticleSystem#getDirtyEnd()
+     */
+    public int getParticleDirtyEnd()
+    {
+        return particleSystem.getDirtyEnd();
+    }
+
+    public void clearParticleDirtyRange()
+    {
+        particleSystem.clearDirtyRange();
+    }
+
+    /**
+     * Write the particle positions of the range [start, end) to a buffer.
+     *
+     * @see ParticleSystem#exportParticlePositions(FloatBuffer, int, int, int,
+     *     int)
+     */
+    public void exportParticlePositions(FloatBuffer buffer, int offset,
+            int stride, int start, int end)
+    {
+        particleSystem.exportParticlePositions(buffer, offset, stride, start,
+                end);
+    }
+
+    /**
+     * Write the particle positions of the range [start, end) to a buffer.
+     *
+     * @see ParticleSystem#exportParticlePositions(ByteBuffer, int, int, int,
+     *     int)
+     */
+    public void exportParticlePositions(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
+    {
+        particleSystem.exportParticlePositions(buffer, offset, stride, start,
+                end);
+    }
+
+    /**
+     * Write the particle velocities of the range [start, end) to a buffer.
+     *
+     * @see ParticleSystem#exportParticleVelocities(FloatBuffer, int, int, int,
+     *     int)
+     */
+    public void exportParticleVelocities(FloatBuffer buffer, int offset,
+            int stride, int start, int end)
+    {
+        particleSystem.exportParticleVelocities(buffer, offset, stride, start,
+                end);
+    }
+
+    /**
+     * Write the particle velocities of the range [start, end) to a buffer.
+     *
+     * @see ParticleSystem#exportParticleVelocities(ByteBuffer, int, int, int,
+     *     int)
+     */
+    public void exportParticleVelocities(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
+    {
+        particleSystem.exportParticleVelocities(buffer, offset, stride, start,
+                end);
+    }
+
+    /**
+     * Write the particle colors of the range [start, end) to a buffer.
+     *
+     * @see ParticleSystem#exportParticleColors(ByteBuffer, int, int, int, int)
+     */
+    public void exportParticleColors(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
+    {
+        particleSystem.exportParticleColors(buffer, offset, stride, start,
+                end);
+    }
+
     /**
      * Set a buffer for particle data.
      *
@@ -2138,7 +3036,7 @@ public class World
      */
     public ParticleContact[] getParticleContacts()
     {
-        return particleSystem.contactBuffer;
+        return particleSystem.getParticleContacts();
     }
 
     public int getParticleContactCount()
@@ -2151,7 +3049,7 @@ public class World
      */
     public ParticleBodyContact[] getParticleBodyContacts()
     {
-        return particleSystem.bodyContactBuffer;
+        return particleSystem.getParticleBodyContacts();
     }
 
     public int getParticleBodyContactCount()
@@ -2213,3 +3111,141 @@ class WorldRayCastWrapper implements TreeRayCastCallback
 
     RayCastCallback callback;
 }
+
+class WorldQueryPacketWrapper implements TreeQueryPacketCallback, Runnable
+{
+    public boolean treeCallback(int proxyId, int queryIndex)
+    {
+        FixtureProxy proxy = (FixtureProxy) broadPhase.getUserData(proxyId);
+        return callback.reportFixture(queryIndex, proxy.fixture);
+    }
+
+    public void run()
+    {
+        broadPhase.query(this, aabbs, start, end);
+    }
+
+    BroadPhase broadPhase;
+
+    BatchQueryCallback callback;
+
+    float[] aabbs;
+
+    int start;
+
+    int end;
+}
+
+/**
+ * Keeps the closest hit of each ray in a batch. One instance per chunk, so
+ * chunks can run concurrently.
+ */
+class WorldRayPacketWrapper implements TreeRayPacketCallback, Runnable
+{
+    private final RayCastOutput output = new RayCastOutput();
+
+    private final ShapeQueryPool queryPool = new ShapeQueryPool();
+
+    public float raycastCallback(RayCastInput input, int proxyId, int rayIndex)
+    {
+        FixtureProxy proxy = (FixtureProxy) broadPhase.getUserData(proxyId);
+        Fixture fixture = proxy.fixture;
+        if (fixture.isSensor())
+        {
+            return -1.0f;
+        }
+        if (!fixture.raycast(output, input, proxy.childIndex, queryPool))
+        {
+            return -1.0f;
+        }
+        final float fraction = output.fraction;
+        fixtures[rayIndex] = fixture;
+        points[2 * rayIndex] = (1 - fraction) * input.p1.x
+                + fraction * input.p2.x;
+        points[2 * rayIndex + 1] = (1 - fraction) * input.p1.y
+                + fraction * input.p2.y;
+        normals[2 * rayIndex] = output.normal.x;
+        normals[2 * rayIndex + 1] = output.normal.y;
+        // Clip the ray, so only closer hits are reported from now on.
+        return fraction;
+    }
+
+    public void run()
+    {
+        broadPhase.raycast(this, rays, fractions, start, end);
+    }
+
+    BroadPhase broadPhase;
+
+    float[] rays;
+
+    float[] fractions;
+
+    float[] points;
+
+    float[] normals;
+
+    Fixture[] fixtures;
+
+    int start;
+
+    int end;
+}
+
+/**
+ * Computes the TOIs of a slice of the candidate contacts of the world.
+ */
+class TOIWorker implements Runnable
+{
+    private final TOIInput input = new TOIInput();
+
+    private final TOIOutput output = new TOIOutput();
+
+    final TimeOfImpact timeOfImpact;
+
+    Contact[] candidates;
+
+    float[] alpha0;
+
+    /**
+     * The sweeps of the bodies of candidate i at 2i and 2i + 1.
+     */
+    Sweep[] sweeps;
+
+    int start;
+
+    int end;
+
+    TOIWorker(TimeOfImpact timeOfImpact)
+    {
+        this.timeOfImpact = timeOfImpact;
+    }
+
+    public void run()
+    {
+        for (int i = start; i < end; ++i)
+        {
+            final Contact c = candidates[i];
+            final Fixture fA = c.getFixtureA();
+            final Fixture fB = c.getFixtureB();
+            // Compute the time of impact in interval [0, minTOI]
+            input.proxyA.set(fA.getShape(), c.getChildIndexA());
+            input.proxyB.set(fB.getShape(), c.getChildIndexB());
+            input.sweepA.set(sweeps[2 * i]);
+            input.sweepB.set(sweeps[2 * i + 1]);
+            input.tMax = 1.0f;
+            timeOfImpact.timeOfImpact(output, input, c.simplexCache);
+            // Beta is the fraction of the remaining portion of the step.
+            final float beta = output.t;
+            final float a0 = alpha0[i];
+            if (output.state == TOIOutputState.TOUCHING)
+            {
+                c.toi = MathUtils.min(a0 + (1.0f - a0) * beta, 1.0f);
+            }
+            else
+            {
+                c.toi = 1.0f;
+            }
+        }
+    }
+}
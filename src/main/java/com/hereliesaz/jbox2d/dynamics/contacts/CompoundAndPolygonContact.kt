@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.dynamics.contacts;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.Manifold;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CompoundShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.EdgeShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeType;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.Fixture;
+import de.pirckheimer_gymnasium.jbox2d.pooling.WorldPool;
+
+/**
+ * A contact between a part of a compound shape and a polygon.
+ */
+public class CompoundAndPolygonContact extends Contact
+{
+    public CompoundAndPolygonContact(WorldPool argPool)
+    {
+        super(argPool);
+    }
+
+    @Override
+    public void init(Fixture fA, int indexA, Fixture fB, int indexB)
+    {
+        super.init(fA, indexA, fB, indexB);
+        assert (fixtureA.getType() == ShapeType.COMPOUND);
+        assert (fixtureB.getType() == ShapeType.POLYGON);
+    }
+
+    private final PolygonShape polygon = new PolygonShape();
+
+    private final EdgeShape edge = new EdgeShape();
+
+    @Override
+    public void evaluate(Manifold manifold, Transform xfA, Transform xfB)
+    {
+        CompoundShape compound = (CompoundShape) fixtureA.getShape();
+        PolygonShape polygonB = (PolygonShape) fixtureB.getShape();
+        if (compound.isEdge(indexA))
+        {
+            compound.getChildEdge(edge, indexA);
+            pool.getCollision().collideEdgeAndPolygon(manifold, edge, xfA,
+                    polygonB, xfB);
+        }
+        else
+        {
+            compound.getChildPolygon(polygon, indexA);
+            pool.getCollision().collidePolygons(manifold, polygon, xfA,
+                    polygonB, xfB);
+        }
+    }
+}
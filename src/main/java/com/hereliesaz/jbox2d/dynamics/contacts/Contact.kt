@@ -24,7 +24,9 @@
 package de.pirckheimer_gymnasium.jbox2d.dynamics.contacts;
 
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ContactListener;
+import de.pirckheimer_gymnasium.jbox2d.collision.Collision;
 import de.pirckheimer_gymnasium.jbox2d.collision.ContactID;
+import de.pirckheimer_gymnasium.jbox2d.collision.Distance.SimplexCache;
 import de.pirckheimer_gymnasium.jbox2d.collision.Manifold;
 import de.pirckheimer_gymnasium.jbox2d.collision.ManifoldPoint;
 import de.pirckheimer_gymnasium.jbox2d.collision.WorldManifold;
@@ -72,6 +74,18 @@ public abstract class Contact
 
     public static final int TOI_FLAG = 0x0020;
 
+    /**
+     * Set when the shapes are apart but the manifold holds a speculative point
+     * because a bullet may close the gap within the next step.
+     */
+    public static final int SPECULATIVE_FLAG = 0x0040;
+
+    /**
+     * The index in the array of awake contacts of the contact manager, or -1
+     * if both bodies sleep or are static.
+     */
+    public int awakeIndex = -1;
+
     public int flags;
 
     //
@@ -103,6 +117,18 @@ public abstract class Contact
 
     public float toi;
 
+    /**
+     * The position of this contact in the time of impact queue of the world,
+     * or -1 if it is not queued.
+     */
+    public int toiIndex = -1;
+
+    /**
+     * The simplex of the last distance query of the shapes, which warm starts
+     * the next time of impact or overlap query.
+     */
+    public final SimplexCache simplexCache = new SimplexCache();
+
     public float friction;
 
     public float restitution;
@@ -143,6 +169,8 @@ public abstract class Contact
         nodeB.next = null;
         nodeB.other = null;
         toiCount = 0;
+        toiIndex = -1;
+        simplexCache.count = 0;
         friction = Contact.mixFriction(fA.friction, fB.friction);
         restitution = Contact.mixRestitution(fA.restitution, fB.restitution);
         tangentSpeed = 0;
@@ -179,6 +207,16 @@ public abstract class Contact
         return (flags & TOUCHING_FLAG) == TOUCHING_FLAG;
     }
 
+    /**
+     * Is this contact speculative? A speculative contact is not touching, but
+     * its manifold point keeps a bullet from passing the gap between the
+     * shapes in the next step.
+     */
+    public boolean isSpeculative()
+    {
+        return (flags & SPECULATIVE_FLAG) == SPECULATIVE_FLAG;
+    }
+
     /**
      * Enable/disable this contact. This can be used inside the pre-solve
      * contact listener. The contact is only disabled for the current time step
@@ -313,12 +351,13 @@ public abstract class Contact
         Transform xfB = bodyB.getTransform();
         // log.debug("TransformA: "+xfA);
         // log.debug("TransformB: "+xfB);
+        flags &= ~SPECULATIVE_FLAG;
         if (sensor)
         {
             Shape shapeA = fixtureA.getShape();
             Shape shapeB = fixtureB.getShape();
             touching = pool.getCollision().testOverlap(shapeA, indexA, shapeB,
-                    indexB, xfA, xfB);
+                    indexB, xfA, xfB, simplexCache);
             // Sensors don't generate manifolds.
             manifold.pointCount = 0;
         }
@@ -326,6 +365,23 @@ public abstract class Contact
         {
             evaluate(manifold, xfA, xfB);
             touching = manifold.pointCount > 0;
+            final float speculativeTime = bodyA.world.getSpeculativeTime();
+            if (!touching && speculativeTime > 0.0f
+                    && (bodyA.isBullet() || bodyB.isBullet()))
+            {
+                // Look for points the bodies can reach within the next step.
+                final float speculativeDistance = speculativeTime
+                        * MathUtils.distance(bodyA.linearVelocity,
+                                bodyB.linearVelocity);
+                final Collision collision = pool.getCollision();
+                collision.setSpeculativeDistance(speculativeDistance);
+                evaluate(manifold, xfA, xfB);
+                collision.setSpeculativeDistance(0.0f);
+                if (manifold.pointCount > 0)
+                {
+                    flags |= SPECULATIVE_FLAG;
+                }
+            }
             // Match old contact ids to new contact ids and copy the
             // stored impulses to warm start the solver.
             for (int i = 0; i < manifold.pointCount; ++i)
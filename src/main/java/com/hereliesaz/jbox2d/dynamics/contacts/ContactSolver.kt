@@ -275,6 +275,8 @@ public class ContactSolver
             final Vec2 vcNormal = vc.normal;
             vcNormal.x = worldManifold.normal.x;
             vcNormal.y = worldManifold.normal.y;
+            final boolean speculative = contacts[vc.contactIndex]
+                    .isSpeculative();
             int pointCount = vc.pointCount;
             for (int j = 0; j < pointCount; ++j)
             {
@@ -305,6 +307,19 @@ public class ContactSolver
                 {
                     vcp.velocityBias = -vc.restitution * vRel;
                 }
+                if (speculative)
+                {
+                    // A speculative point lets the bodies approach until they
+                    // overlap by the linear slop, like resting contacts, so
+                    // the next step finds them touching. They only bounce if
+                    // they close the gap within this step.
+                    final float gapSpeed = -(worldManifold.separations[j]
+                            + Settings.linearSlop) * step.inverseDt;
+                    if (vRel >= gapSpeed || vcp.velocityBias == 0.0f)
+                    {
+                        vcp.velocityBias = gapSpeed;
+                    }
+                }
             }
             // If we have two points, then prepare the block solver.
             if (vc.pointCount == 2)
@@ -23,6 +23,7 @@
  */
 package de.pirckheimer_gymnasium.jbox2d.dynamics.contacts;
 
+import de.pirckheimer_gymnasium.jbox2d.collision.Collision.SeparationCache;
 import de.pirckheimer_gymnasium.jbox2d.collision.Manifold;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeType;
@@ -35,6 +36,8 @@ import de.pirckheimer_gymnasium.jbox2d.pooling.WorldPool;
  */
 public class PolygonContact extends Contact
 {
+    private final SeparationCache separationCache = new SeparationCache();
+
     public PolygonContact(WorldPool argPool)
     {
         super(argPool);
@@ -43,6 +46,7 @@ public class PolygonContact extends Contact
     public void init(Fixture fixtureA, Fixture fixtureB)
     {
         super.init(fixtureA, 0, fixtureB, 0);
+        separationCache.reset();
         assert (this.fixtureA.getType() == ShapeType.POLYGON);
         assert (this.fixtureB.getType() == ShapeType.POLYGON);
     }
@@ -52,6 +56,6 @@ public class PolygonContact extends Contact
     {
         pool.getCollision().collidePolygons(manifold,
                 (PolygonShape) fixtureA.getShape(), xfA,
-                (PolygonShape) fixtureB.getShape(), xfB);
+                (PolygonShape) fixtureB.getShape(), xfB, separationCache);
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.dynamics.contacts;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.Manifold;
+import de.pirckheimer_gymnasium.jbox2d.collision.WorldManifold;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CircleShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeType;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.TileMapShape;
+import de.pirckheimer_gymnasium.jbox2d.common.Transform;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.Fixture;
+import de.pirckheimer_gymnasium.jbox2d.pooling.WorldPool;
+
+/**
+ * A contact between a cell of a tile map and a circle.
+ */
+public class TileMapAndCircleContact extends Contact
+{
+    public TileMapAndCircleContact(WorldPool argPool)
+    {
+        super(argPool);
+    }
+
+    @Override
+    public void init(Fixture fA, int indexA, Fixture fB, int indexB)
+    {
+        super.init(fA, indexA, fB, indexB);
+        assert (fixtureA.getType() == ShapeType.TILEMAP);
+        assert (fixtureB.getType() == ShapeType.CIRCLE);
+    }
+
+    private final PolygonShape box = new PolygonShape();
+
+    private final WorldManifold worldManifold = new WorldManifold();
+
+    @Override
+    public void evaluate(Manifold manifold, Transform xfA, Transform xfB)
+    {
+        TileMapShape map = (TileMapShape) fixtureA.getShape();
+        if (!map.getCellBox(box, indexA))
+        {
+            manifold.pointCount = 0;
+            return;
+        }
+        CircleShape circle = (CircleShape) fixtureB.getShape();
+        pool.getCollision().collidePolygonAndCircle(manifold, box, xfA,
+                circle, xfB);
+        if (manifold.pointCount > 0)
+        {
+            worldManifold.initialize(manifold, xfA, box.radius, xfB,
+                    circle.radius);
+            if (map.isInternalNormal(indexA, xfA.q, worldManifold.normal))
+            {
+                manifold.pointCount = 0;
+            }
+        }
+    }
+}
@@ -111,4 +111,38 @@ public class ParticleColor
         this.b = b;
         this.a = a;
     }
+
+    /**
+     * Pack the color into an int with 8 bits per element, the alpha channel
+     * in the highest bits, then red, green and blue.
+     *
+     * @return The packed color.
+     */
+    public int toArgb()
+    {
+        return toArgb(r, g, b, a);
+    }
+
+    /**
+     * Pack four elements like {@link #toArgb()}. Only the lowest 8 bits of
+     * each element are used.
+     */
+    public static int toArgb(int r, int g, int b, int a)
+    {
+        return (a & 0xFF) << 24 | (r & 0xFF) << 16 | (g & 0xFF) << 8
+                | (b & 0xFF);
+    }
+
+    /**
+     * Set the color from a color packed with {@link #toArgb()}.
+     *
+     * @param argb The packed color.
+     */
+    public void setArgb(int argb)
+    {
+        a = (byte) (argb >>> 24);
+        r = (byte) (argb >> 16);
+        g = (byte) (argb >> 8);
+        b = (byte) argb;
+    }
 }
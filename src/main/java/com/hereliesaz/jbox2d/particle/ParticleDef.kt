@@ -49,6 +49,13 @@ public class ParticleDef
      */
     public ParticleColor color;
 
+    /**
+     * The lifetime of the particle in seconds, after which it is destroyed. A
+     * value of 0 or less lets the particle live until it is destroyed
+     * explicitly.
+     */
+    public float lifetime;
+
     /**
      * Use this to store application-specific body data.
      */
@@ -67,6 +67,14 @@ public class ParticleGroup
 
     boolean toBeSplit;
 
+    /**
+     * Whether the particles fall asleep and wake up together, as of the step
+     * {@link #sleepTimestamp} of the particle system.
+     */
+    boolean sleepsAsWhole;
+
+    int sleepTimestamp;
+
     /**
      * Use this to store application-specific group data.
      */
@@ -87,6 +95,7 @@ public class ParticleGroup
         destroyAutomatically = true;
         toBeDestroyed = false;
         toBeSplit = false;
+        sleepTimestamp = -1;
     }
 
     /**
@@ -275,6 +284,41 @@ public class ParticleGroup
         userData = data;
     }
 
+    /**
+     * Whether any particle of the group is awake, see
+     * {@link ParticleSystem#setParticleSleepingAllowed(boolean)}.
+     */
+    public boolean isAwake()
+    {
+        for (int i = firstIndex; i < lastIndex; i++)
+        {
+            if (system.isParticleAwake(i))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wake the particles of the group or put them to sleep. Particles only
+     * sleep while sleeping is allowed.
+     *
+     * @param flag Set to true to wake the particles, false to put them to
+     *     sleep.
+     */
+    public void setAwake(boolean flag)
+    {
+        if (flag)
+        {
+            system.wakeParticles(firstIndex, lastIndex);
+        }
+        else
+        {
+            system.sleepParticles(firstIndex, lastIndex);
+        }
+    }
+
     public void updateStatistics()
     {
         if (timestamp != system.timestamp)
@@ -283,15 +327,17 @@ public class ParticleGroup
             mass = 0;
             center.setZero();
             linearVelocity.setZero();
+            final float[] positionX = system.positionXBuffer;
+            final float[] positionY = system.positionYBuffer;
+            final float[] velocityX = system.velocityXBuffer;
+            final float[] velocityY = system.velocityYBuffer;
             for (int i = firstIndex; i < lastIndex; i++)
             {
                 mass += m;
-                Vec2 pos = system.positionBuffer.data[i];
-                center.x += m * pos.x;
-                center.y += m * pos.y;
-                Vec2 vel = system.velocityBuffer.data[i];
-                linearVelocity.x += m * vel.x;
-                linearVelocity.y += m * vel.y;
+                center.x += m * positionX[i];
+                center.y += m * positionY[i];
+                linearVelocity.x += m * velocityX[i];
+                linearVelocity.y += m * velocityY[i];
             }
             if (mass > 0)
             {
@@ -304,12 +350,10 @@ public class ParticleGroup
             angularVelocity = 0;
             for (int i = firstIndex; i < lastIndex; i++)
             {
-                Vec2 pos = system.positionBuffer.data[i];
-                Vec2 vel = system.velocityBuffer.data[i];
-                float px = pos.x - center.x;
-                float py = pos.y - center.y;
-                float vx = vel.x - linearVelocity.x;
-                float vy = vel.y - linearVelocity.y;
+                float px = positionX[i] - center.x;
+                float py = positionY[i] - center.y;
+                float vx = velocityX[i] - linearVelocity.x;
+                float vy = velocityY[i] - linearVelocity.y;
                 inertia += m * (px * px + py * py);
                 angularVelocity += m * (px * vy - py * vx);
             }
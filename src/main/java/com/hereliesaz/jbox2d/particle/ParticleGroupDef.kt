@@ -80,6 +80,14 @@ public class ParticleGroupDef
      */
     public Shape shape;
 
+    /**
+     * The particles of the shape precomputed with
+     * {@link ParticleSystem#createParticleLattice(Shape)}, or null to fill the
+     * shape when the group is created. The shape is not used if a lattice is
+     * given.
+     */
+    public ParticleLattice lattice;
+
     /**
      * If true, destroy the group automatically after its last particle has been
      * destroyed.
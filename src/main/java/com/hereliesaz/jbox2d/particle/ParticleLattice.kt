@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.particle;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+
+/**
+ * The particles that fill a shape on the grid of a particle group, together
+ * with the pairs and triads between them. Create it once with
+ * {@link ParticleSystem#createParticleLattice(Shape)} and pass it in
+ * {@link ParticleGroupDef#lattice} to create many groups of the same shape
+ * without testing the grid points and triangulating them again.
+ */
+public class ParticleLattice
+{
+    /**
+     * The spacing of the grid, the particle stride of the system the lattice
+     * was created for.
+     */
+    final float stride;
+
+    final int count;
+
+    /**
+     * The positions of the particles relative to the origin of the group.
+     */
+    final float[] positionX;
+
+    final float[] positionY;
+
+    final int pairCount;
+
+    /**
+     * The pairs as two particle indices each, the lower index first.
+     */
+    final int[] pairs;
+
+    final int triadCount;
+
+    /**
+     * The triads as three particle indices each.
+     */
+    final int[] triads;
+
+    ParticleLattice(float stride, int count, float[] positionX,
+            float[] positionY, int pairCount, int[] pairs, int triadCount,
+            int[] triads)
+    {
+        this.stride = stride;
+        this.count = count;
+        this.positionX = positionX;
+        this.positionY = positionY;
+        this.pairCount = pairCount;
+        this.pairs = pairs;
+        this.triadCount = triadCount;
+        this.triads = triads;
+    }
+
+    /**
+     * The number of particles of a group created from the lattice.
+     */
+    public int getParticleCount()
+    {
+        return count;
+    }
+}
@@ -24,20 +24,27 @@
 package de.pirckheimer_gymnasium.jbox2d.particle;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ParticleDestructionListener;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ParticleQueryCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.ParticleRaycastCallback;
 import de.pirckheimer_gymnasium.jbox2d.callbacks.QueryCallback;
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback;
 import de.pirckheimer_gymnasium.jbox2d.collision.AABB;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput;
 import de.pirckheimer_gymnasium.jbox2d.collision.RayCastOutput;
 import de.pirckheimer_gymnasium.jbox2d.collision.shapes.Shape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ShapeQueryPool;
 import de.pirckheimer_gymnasium.jbox2d.common.BufferUtils;
 import de.pirckheimer_gymnasium.jbox2d.common.MathUtils;
+import de.pirckheimer_gymnasium.jbox2d.common.RadixSort;
 import de.pirckheimer_gymnasium.jbox2d.common.Rot;
 import de.pirckheimer_gymnasium.jbox2d.common.Settings;
+import de.pirckheimer_gymnasium.jbox2d.common.TaskBatch;
 import de.pirckheimer_gymnasium.jbox2d.common.Transform;
 import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.Body;
@@ -117,6 +124,12 @@ public class ParticleSystem
 
     float squaredDiameter;
 
+    /**
+     * The inverse size of the grid cells of the proxy tags, which is the
+     * diameter plus the neighbor skin.
+     */
+    float inverseCellSize;
+
     int count;
 
     int internalAllocatedCapacity;
@@ -125,16 +138,41 @@ public class ParticleSystem
 
     ParticleBufferInt flagsBuffer;
 
+    /**
+     * The particle positions and velocities, with one column per coordinate.
+     */
+    float[] positionXBuffer;
+
+    float[] positionYBuffer;
+
+    float[] velocityXBuffer;
+
+    float[] velocityYBuffer;
+
+    /**
+     * The position and velocity views, see {@link #getParticlePositionBuffer()}.
+     */
     ParticleBuffer<Vec2> positionBuffer;
 
     ParticleBuffer<Vec2> velocityBuffer;
 
     float[] accumulationBuffer; // temporary values
 
-    Vec2[] accumulation2Buffer; // temporary vector values
+    float[] accumulation2XBuffer; // temporary vector values
+
+    float[] accumulation2YBuffer;
 
     float[] depthBuffer; // distance from the surface
 
+    /**
+     * The particle colors packed with {@link ParticleColor#toArgb()}, or null
+     * if no particle has a color.
+     */
+    int[] colorValueBuffer;
+
+    /**
+     * The color view, see {@link #getParticleColorBuffer()}.
+     */
     public ParticleBuffer<ParticleColor> colorBuffer;
 
     ParticleGroup[] groupBuffer;
@@ -145,18 +183,76 @@ public class ParticleSystem
 
     int proxyCapacity;
 
-    Proxy[] proxyBuffer;
+    /**
+     * The proxies used for detecting particle contacts, sorted by tag.
+     */
+    long[] proxyTagBuffer;
+
+    int[] proxyIndexBuffer;
+
+    /**
+     * Scratch buffers of the proxy sort.
+     */
+    long[] sortTagBuffer;
+
+    int[] sortIndexBuffer;
+
+    /**
+     * Scratch buffer of the radix sorts of the proxies and query cells.
+     */
+    private final int[] sortHistogramBuffer =
+            new int[RadixSort.HISTOGRAM_LENGTH];
 
     public int contactCount;
 
     int contactCapacity;
 
+    /**
+     * The particle contacts as columns. The normal points from particle A to
+     * particle B.
+     */
+    int[] contactIndexABuffer;
+
+    int[] contactIndexBBuffer;
+
+    int[] contactFlagsBuffer;
+
+    float[] contactWeightBuffer;
+
+    float[] contactNormalXBuffer;
+
+    float[] contactNormalYBuffer;
+
+    /**
+     * A view of the particle contacts, filled by
+     * {@link #getParticleContacts()}.
+     */
     public ParticleContact[] contactBuffer;
 
     public int bodyContactCount;
 
     int bodyContactCapacity;
 
+    /**
+     * The particle-body contacts as columns. The normal points from the
+     * particle to the body.
+     */
+    int[] bodyContactIndexBuffer;
+
+    Body[] bodyContactBodyBuffer;
+
+    float[] bodyContactWeightBuffer;
+
+    float[] bodyContactNormalXBuffer;
+
+    float[] bodyContactNormalYBuffer;
+
+    float[] bodyContactMassBuffer;
+
+    /**
+     * A view of the particle-body contacts, filled by
+     * {@link #getParticleBodyContacts()}.
+     */
     public ParticleBodyContact[] bodyContactBuffer;
 
     int pairCount;
@@ -209,6 +305,7 @@ public class ParticleSystem
         particleDiameter = 1;
         inverseDiameter = 1;
         squaredDiameter = 1;
+        inverseCellSize = 1;
         count = 0;
         internalAllocatedCapacity = 0;
         maxCount = 0;
@@ -253,53 +350,48 @@ public class ParticleSystem
     {
         if (count >= internalAllocatedCapacity)
         {
-            int capacity = getCapacity();
-            if (internalAllocatedCapacity < capacity)
-            {
-                flagsBuffer.data = reallocateBuffer(flagsBuffer,
-                        internalAllocatedCapacity, capacity, false);
-                positionBuffer.data = reallocateBuffer(positionBuffer,
-                        internalAllocatedCapacity, capacity, false);
-                velocityBuffer.data = reallocateBuffer(velocityBuffer,
-                        internalAllocatedCapacity, capacity, false);
-                accumulationBuffer = BufferUtils.reallocateBuffer(
-                        accumulationBuffer, 0, internalAllocatedCapacity,
-                        capacity, false);
-                accumulation2Buffer = BufferUtils.reallocateBuffer(Vec2.class,
-                        accumulation2Buffer, 0, internalAllocatedCapacity,
-                        capacity, true);
-                depthBuffer = BufferUtils.reallocateBuffer(depthBuffer, 0,
-                        internalAllocatedCapacity, capacity, true);
-                colorBuffer.data = reallocateBuffer(colorBuffer,
-                        internalAllocatedCapacity, capacity, true);
-                groupBuffer = BufferUtils.reallocateBuffer(ParticleGroup.class,
-                        groupBuffer, 0, internalAllocatedCapacity, capacity,
-                        false);
-                userDataBuffer.data = reallocateBuffer(userDataBuffer,
-                        internalAllocatedCapacity, capacity, true);
-                internalAllocatedCapacity = capacity;
-            }
+            requestParticleCapacity(count + 1);
         }
         if (count >= internalAllocatedCapacity)
         {
             return Settings.invalidParticleIndex;
         }
         int index = count++;
+        neighborsValid = false;
+        markDirty(index, count);
         flagsBuffer.data[index] = def.flags;
-        positionBuffer.data[index].set(def.position);
+        positionXBuffer[index] = def.position.x;
+        positionYBuffer[index] = def.position.y;
         // assertNotSamePosition();
-        velocityBuffer.data[index].set(def.velocity);
+        velocityXBuffer[index] = def.velocity.x;
+        velocityYBuffer[index] = def.velocity.y;
         groupBuffer[index] = null;
         if (depthBuffer != null)
         {
             depthBuffer[index] = 0;
         }
-        if (colorBuffer.data != null || def.color != null)
+        if (sleepTimeBuffer != null)
         {
-            colorBuffer.data = requestParticleBuffer(colorBuffer.dataClass,
-                    colorBuffer.data);
-            colorBuffer.data[index].set(def.color);
+            sleepTimeBuffer[index] = 0;
+            sleepPositionXBuffer[index] = def.position.x;
+            sleepPositionYBuffer[index] = def.position.y;
+            sleepWeightBuffer[index] = 0;
         }
+        if (expirationTickBuffer != null)
+        {
+            expirationTickBuffer[index] = 0;
+        }
+        if (def.lifetime > 0)
+        {
+            setParticleLifetime(index, def.lifetime);
+        }
+        if (colorValueBuffer != null || def.color != null)
+        {
+            requestColorValueBuffer();
+            colorValueBuffer[index] = def.color != null ? def.color.toArgb()
+                    : defaultColorValue;
+        }
+        writeBufferViews(index, index + 1);
         if (userDataBuffer.data != null || def.userData != null)
         {
             userDataBuffer.data = requestParticleBuffer(
@@ -311,18 +403,98 @@ public class ParticleSystem
             int oldCapacity = proxyCapacity;
             int newCapacity = proxyCount != 0 ? 2 * proxyCount
                     : Settings.minParticleBufferCapacity;
-            proxyBuffer = BufferUtils.reallocateBuffer(Proxy.class, proxyBuffer,
+            proxyTagBuffer = BufferUtils.reallocateBuffer(proxyTagBuffer,
+                    oldCapacity, newCapacity);
+            proxyIndexBuffer = BufferUtils.reallocateBuffer(proxyIndexBuffer,
                     oldCapacity, newCapacity);
             proxyCapacity = newCapacity;
         }
-        proxyBuffer[proxyCount++].index = index;
+        proxyTagBuffer[proxyCount] = 0;
+        proxyIndexBuffer[proxyCount++] = index;
         return index;
     }
 
-    private int getCapacity()
+    /**
+     * Grow the particle buffers to hold at least the given number of
+     * particles, as far as the maximum count and the user supplied buffers
+     * allow.
+     */
+    private void requestParticleCapacity(int minCapacity)
+    {
+        int capacity = getCapacity(minCapacity);
+        if (internalAllocatedCapacity < capacity)
+        {
+            flagsBuffer.data = reallocateBuffer(flagsBuffer,
+                    internalAllocatedCapacity, capacity, false);
+            positionXBuffer = BufferUtils.reallocateBuffer(positionXBuffer,
+                    internalAllocatedCapacity, capacity);
+            positionYBuffer = BufferUtils.reallocateBuffer(positionYBuffer,
+                    internalAllocatedCapacity, capacity);
+            velocityXBuffer = BufferUtils.reallocateBuffer(velocityXBuffer,
+                    internalAllocatedCapacity, capacity);
+            velocityYBuffer = BufferUtils.reallocateBuffer(velocityYBuffer,
+                    internalAllocatedCapacity, capacity);
+            positionBuffer.data = reallocateBuffer(positionBuffer,
+                    internalAllocatedCapacity, capacity, true);
+            velocityBuffer.data = reallocateBuffer(velocityBuffer,
+                    internalAllocatedCapacity, capacity, true);
+            accumulationBuffer = BufferUtils.reallocateBuffer(
+                    accumulationBuffer, 0, internalAllocatedCapacity,
+                    capacity, false);
+            accumulation2XBuffer = BufferUtils.reallocateBuffer(
+                    accumulation2XBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            accumulation2YBuffer = BufferUtils.reallocateBuffer(
+                    accumulation2YBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            depthBuffer = BufferUtils.reallocateBuffer(depthBuffer, 0,
+                    internalAllocatedCapacity, capacity, true);
+            neighborPositionXBuffer = BufferUtils.reallocateBuffer(
+                    neighborPositionXBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            neighborPositionYBuffer = BufferUtils.reallocateBuffer(
+                    neighborPositionYBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            colorValueBuffer = BufferUtils.reallocateBuffer(
+                    colorValueBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            sleepTimeBuffer = BufferUtils.reallocateBuffer(
+                    sleepTimeBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            sleepPositionXBuffer = BufferUtils.reallocateBuffer(
+                    sleepPositionXBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            sleepPositionYBuffer = BufferUtils.reallocateBuffer(
+                    sleepPositionYBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            sleepWeightBuffer = BufferUtils.reallocateBuffer(
+                    sleepWeightBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            expirationTickBuffer = BufferUtils.reallocateBuffer(
+                    expirationTickBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            expiryNextBuffer = BufferUtils.reallocateBuffer(
+                    expiryNextBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            expiryPrevBuffer = BufferUtils.reallocateBuffer(
+                    expiryPrevBuffer, 0, internalAllocatedCapacity,
+                    capacity, true);
+            colorBuffer.data = reallocateBuffer(colorBuffer,
+                    internalAllocatedCapacity, capacity, true);
+            groupBuffer = BufferUtils.reallocateBuffer(ParticleGroup.class,
+                    groupBuffer, 0, internalAllocatedCapacity, capacity,
+                    false);
+            userDataBuffer.data = reallocateBuffer(userDataBuffer,
+                    internalAllocatedCapacity, capacity, true);
+            internalAllocatedCapacity = capacity;
+        }
+    }
+
+    private int getCapacity(int minCapacity)
     {
         int capacity = count != 0 ? 2 * count
                 : Settings.minParticleBufferCapacity;
+        capacity = MathUtils.max(capacity, minCapacity);
         capacity = limitCapacity(capacity, maxCount);
         capacity = limitCapacity(capacity, flagsBuffer.userSuppliedCapacity);
         capacity = limitCapacity(capacity, positionBuffer.userSuppliedCapacity);
@@ -378,59 +550,19 @@ public class ParticleSystem
 
     public ParticleGroup createParticleGroup(ParticleGroupDef groupDef)
     {
-        float stride = getParticleStride();
-        final Transform identity = tempTransform;
-        identity.setIdentity();
         Transform transform = tempTransform2;
         transform.setIdentity();
         int firstIndex = count;
-        if (groupDef.shape != null)
+        ParticleLattice lattice = groupDef.lattice;
+        if (lattice == null && groupDef.shape != null)
+        {
+            lattice = createParticleLattice(groupDef.shape);
+        }
+        if (lattice != null)
         {
-            final ParticleDef particleDef = tempParticleDef;
-            particleDef.flags = groupDef.flags;
-            particleDef.color = groupDef.color;
-            particleDef.userData = groupDef.userData;
-            Shape shape = groupDef.shape;
+            assert (lattice.stride == getParticleStride());
             transform.set(groupDef.position, groupDef.angle);
-            AABB aabb = temp;
-            int childCount = shape.getChildCount();
-            for (int childIndex = 0; childIndex < childCount; childIndex++)
-            {
-                if (childIndex == 0)
-                {
-                    shape.computeAABB(aabb, identity, childIndex);
-                }
-                else
-                {
-                    AABB childAABB = temp2;
-                    shape.computeAABB(childAABB, identity, childIndex);
-                    aabb.combine(childAABB);
-                }
-            }
-            final float upperBoundY = aabb.upperBound.y;
-            final float upperBoundX = aabb.upperBound.x;
-            for (float y = MathUtils.floor(aabb.lowerBound.y / stride)
-                    * stride; y < upperBoundY; y += stride)
-            {
-                for (float x = MathUtils.floor(aabb.lowerBound.x / stride)
-                        * stride; x < upperBoundX; x += stride)
-                {
-                    Vec2 p = tempVec;
-                    p.x = x;
-                    p.y = y;
-                    if (shape.testPoint(identity, p))
-                    {
-                        Transform.mulToOut(transform, p, p);
-                        particleDef.position.x = p.x;
-                        particleDef.position.y = p.y;
-                        p.subLocal(groupDef.position);
-                        Vec2.crossToOutUnsafe(groupDef.angularVelocity, p,
-                                particleDef.velocity);
-                        particleDef.velocity.addLocal(groupDef.linearVelocity);
-                        createParticle(particleDef);
-                    }
-                }
-            }
+            createParticles(groupDef, lattice, transform);
         }
         int lastIndex = count;
         ParticleGroup group = new ParticleGroup();
@@ -454,65 +586,405 @@ public class ParticleSystem
         {
             groupBuffer[i] = group;
         }
-        updateContacts(true);
-        if ((groupDef.flags & pairFlags) != 0)
+        if (lattice != null && (groupDef.flags & pairFlags) != 0)
         {
-            for (int k = 0; k < contactCount; k++)
+            createLatticePairs(lattice, firstIndex, lastIndex,
+                    groupDef.strength);
+        }
+        if (lattice != null && (groupDef.flags & triadFlags) != 0)
+        {
+            createParticleGroupCallback.system = this;
+            createParticleGroupCallback.def = groupDef;
+            createParticleGroupCallback.firstIndex = firstIndex;
+            if (triadCount + lattice.triadCount > triadCapacity)
             {
-                ParticleContact contact = contactBuffer[k];
-                int a = contact.indexA;
-                int b = contact.indexB;
-                if (a > b)
+                int oldCapacity = triadCapacity;
+                int newCapacity = MathUtils.max(
+                        triadCount != 0 ? 2 * triadCount
+                                : Settings.minParticleBufferCapacity,
+                        triadCount + lattice.triadCount);
+                triadBuffer = BufferUtils.reallocateBuffer(Triad.class,
+                        triadBuffer, oldCapacity, newCapacity);
+                triadCapacity = newCapacity;
+            }
+            final int[] triads = lattice.triads;
+            for (int k = 0; k < 3 * lattice.triadCount; k += 3)
+            {
+                final int a = firstIndex + triads[k];
+                final int b = firstIndex + triads[k + 1];
+                final int c = firstIndex + triads[k + 2];
+                if (a < lastIndex && b < lastIndex && c < lastIndex)
                 {
-                    int temp = a;
-                    a = b;
-                    b = temp;
+                    createParticleGroupCallback.callback(a, b, c);
                 }
-                if (firstIndex <= a && b < lastIndex)
+            }
+        }
+        if ((groupDef.groupFlags & ParticleGroupType.solidParticleGroup) != 0)
+        {
+            // the depth is computed from the contacts
+            updateContacts(true);
+            computeDepthForGroup(group);
+        }
+        return group;
+    }
+
+    /**
+     * Create the particles of a lattice at once, writing them directly into
+     * the particle buffers. The particles that do not fit into the buffers
+     * are left out.
+     */
+    private void createParticles(ParticleGroupDef groupDef,
+            ParticleLattice lattice, Transform transform)
+    {
+        requestParticleCapacity(count + lattice.count);
+        final int first = count;
+        final int last = MathUtils.min(count + lattice.count,
+                internalAllocatedCapacity);
+        if (first == last)
+        {
+            return;
+        }
+        count = last;
+        neighborsValid = false;
+        markDirty(first, last);
+        final Rot q = transform.q;
+        final Vec2 p = transform.p;
+        final float angularVelocity = groupDef.angularVelocity;
+        final Vec2 linearVelocity = groupDef.linearVelocity;
+        final Vec2 position = groupDef.position;
+        for (int i = first; i < last; i++)
+        {
+            final float lx = lattice.positionX[i - first];
+            final float ly = lattice.positionY[i - first];
+            final float x = (q.c * lx - q.s * ly) + p.x;
+            final float y = (q.s * lx + q.c * ly) + p.y;
+            flagsBuffer.data[i] = groupDef.flags;
+            positionXBuffer[i] = x;
+            positionYBuffer[i] = y;
+            velocityXBuffer[i] = -angularVelocity * (y - position.y)
+                    + linearVelocity.x;
+            velocityYBuffer[i] = angularVelocity * (x - position.x)
+                    + linearVelocity.y;
+            groupBuffer[i] = null;
+        }
+        if (depthBuffer != null)
+        {
+            Arrays.fill(depthBuffer, first, last, 0);
+        }
+        if (sleepTimeBuffer != null)
+        {
+            Arrays.fill(sleepTimeBuffer, first, last, 0);
+            System.arraycopy(positionXBuffer, first, sleepPositionXBuffer,
+                    first, last - first);
+            System.arraycopy(positionYBuffer, first, sleepPositionYBuffer,
+                    first, last - first);
+            Arrays.fill(sleepWeightBuffer, first, last, 0);
+        }
+        if (expirationTickBuffer != null)
+        {
+            Arrays.fill(expirationTickBuffer, first, last, 0);
+        }
+        if (colorValueBuffer != null || groupDef.color != null)
+        {
+            requestColorValueBuffer();
+            Arrays.fill(colorValueBuffer, first, last,
+                    groupDef.color != null ? groupDef.color.toArgb()
+                            : defaultColorValue);
+        }
+        writeBufferViews(first, last);
+        if (userDataBuffer.data != null || groupDef.userData != null)
+        {
+            userDataBuffer.data = requestParticleBuffer(
+                    userDataBuffer.dataClass, userDataBuffer.data);
+            Arrays.fill(userDataBuffer.data, first, last, groupDef.userData);
+        }
+        if (proxyCount + last - first > proxyCapacity)
+        {
+            int oldCapacity = proxyCapacity;
+            int newCapacity = MathUtils.max(
+                    proxyCount != 0 ? 2 * proxyCount
+                            : Settings.minParticleBufferCapacity,
+                    proxyCount + last - first);
+            proxyTagBuffer = BufferUtils.reallocateBuffer(proxyTagBuffer,
+                    oldCapacity, newCapacity);
+            proxyIndexBuffer = BufferUtils.reallocateBuffer(proxyIndexBuffer,
+                    oldCapacity, newCapacity);
+            proxyCapacity = newCapacity;
+        }
+        // tag and sort the new proxies so that queries find the particles
+        // before the next step
+        for (int i = first; i < last; i++)
+        {
+            proxyTagBuffer[proxyCount] = computeTag(
+                    inverseCellSize * positionXBuffer[i],
+                    inverseCellSize * positionYBuffer[i]);
+            proxyIndexBuffer[proxyCount++] = i;
+        }
+        sortProxies();
+    }
+
+    private void createLatticePairs(ParticleLattice lattice, int first,
+            int last, float strength)
+    {
+        if (pairCount + lattice.pairCount > pairCapacity)
+        {
+            int oldCapacity = pairCapacity;
+            int newCapacity = MathUtils.max(
+                    pairCount != 0 ? 2 * pairCount
+                            : Settings.minParticleBufferCapacity,
+                    pairCount + lattice.pairCount);
+            pairBuffer = BufferUtils.reallocateBuffer(Pair.class, pairBuffer,
+                    oldCapacity, newCapacity);
+            pairCapacity = newCapacity;
+        }
+        final int[] pairs = lattice.pairs;
+        for (int k = 0; k < 2 * lattice.pairCount; k += 2)
+        {
+            final int a = first + pairs[k];
+            final int b = first + pairs[k + 1];
+            if (b >= last)
+            {
+                continue;
+            }
+            Pair pair = pairBuffer[pairCount];
+            pair.indexA = a;
+            pair.indexB = b;
+            pair.flags = flagsBuffer.data[a] | flagsBuffer.data[b];
+            pair.strength = strength;
+            pair.distance = distance(a, b);
+            pairCount++;
+        }
+    }
+
+    /**
+     * The shape and the grid of {@link #createParticleLattice(Shape)} while
+     * its points are tested, and whether each point is inside the shape.
+     */
+    private Shape latticeShape;
+
+    private float[] latticeGridX;
+
+    private float[] latticeGridY;
+
+    private boolean[] latticeInside;
+
+    /**
+     * Fill a shape with particles on the grid of the particle groups and
+     * connect neighboring particles to pairs and triads, see
+     * {@link ParticleGroupDef#lattice}. The pairs join the particles closer
+     * than the diameter and the triads split each grid cell into two
+     * triangles, which is a Delaunay triangulation of the grid. The grid
+     * points are tested on the executor of the system, if any, so the shape
+     * has to allow {@link Shape#testPoint(Transform, Vec2, ShapeQueryPool)}
+     * from several threads, like the shapes of this library do.
+     */
+    public ParticleLattice createParticleLattice(Shape shape)
+    {
+        final float stride = getParticleStride();
+        final Transform identity = tempTransform;
+        identity.setIdentity();
+        AABB aabb = temp;
+        int childCount = shape.getChildCount();
+        for (int childIndex = 0; childIndex < childCount; childIndex++)
+        {
+            if (childIndex == 0)
+            {
+                shape.computeAABB(aabb, identity, childIndex);
+            }
+            else
+            {
+                AABB childAABB = temp2;
+                shape.computeAABB(childAABB, identity, childIndex);
+                aabb.combine(childAABB);
+            }
+        }
+        final float lowerX = MathUtils.floor(aabb.lowerBound.x / stride)
+                * stride;
+        final float lowerY = MathUtils.floor(aabb.lowerBound.y / stride)
+                * stride;
+        final float upperX = aabb.upperBound.x;
+        final float upperY = aabb.upperBound.y;
+        // the grid coordinates are summed up step by step like in a loop over
+        // the grid, so the particles are placed as before
+        int columns = 0;
+        for (float x = lowerX; x < upperX; x += stride)
+        {
+            columns++;
+        }
+        int rows = 0;
+        for (float y = lowerY; y < upperY; y += stride)
+        {
+            rows++;
+        }
+        final float[] gridX = new float[columns];
+        columns = 0;
+        for (float x = lowerX; x < upperX; x += stride)
+        {
+            gridX[columns++] = x;
+        }
+        final float[] gridY = new float[rows];
+        rows = 0;
+        for (float y = lowerY; y < upperY; y += stride)
+        {
+            gridY[rows++] = y;
+        }
+        final int cells = columns * rows;
+        final boolean[] inside = new boolean[cells];
+        latticeShape = shape;
+        latticeGridX = gridX;
+        latticeGridY = gridY;
+        latticeInside = inside;
+        try
+        {
+            runStage(STAGE_LATTICE_FILL, 0, cells, null);
+        }
+        finally
+        {
+            latticeShape = null;
+            latticeGridX = null;
+            latticeGridY = null;
+            latticeInside = null;
+        }
+        final int[] cellIndices = new int[cells];
+        int n = 0;
+        for (int k = 0; k < cells; k++)
+        {
+            cellIndices[k] = inside[k] ? n++ : Settings.invalidParticleIndex;
+        }
+        final float[] positionX = new float[n];
+        final float[] positionY = new float[n];
+        for (int k = 0; k < cells; k++)
+        {
+            final int i = cellIndices[k];
+            if (i >= 0)
+            {
+                positionX[i] = gridX[k % columns];
+                positionY[i] = gridY[k / columns];
+            }
+        }
+        // pairs with the following neighbors: right, upper left, up and upper
+        // right
+        int[] pairs = new int[8 * n];
+        int pairCount = 0;
+        for (int k = 0; k < cells; k++)
+        {
+            final int a = cellIndices[k];
+            if (a < 0)
+            {
+                continue;
+            }
+            final int ix = k % columns;
+            final int iy = k / columns;
+            for (int dy = 0; dy <= 1; dy++)
+            {
+                for (int dx = dy == 0 ? 1 : -1; dx <= 1; dx++)
                 {
-                    if (pairCount >= pairCapacity)
+                    final int jx = ix + dx;
+                    final int jy = iy + dy;
+                    if (jx < 0 || jx >= columns || jy >= rows)
                     {
-                        int oldCapacity = pairCapacity;
-                        int newCapacity = pairCount != 0 ? 2 * pairCount
-                                : Settings.minParticleBufferCapacity;
-                        pairBuffer = BufferUtils.reallocateBuffer(Pair.class,
-                                pairBuffer, oldCapacity, newCapacity);
-                        pairCapacity = newCapacity;
+                        continue;
+                    }
+                    final int b = cellIndices[jy * columns + jx];
+                    final float ex = gridX[jx] - gridX[ix];
+                    final float ey = gridY[jy] - gridY[iy];
+                    if (b >= 0 && ex * ex + ey * ey < squaredDiameter)
+                    {
+                        pairs[2 * pairCount] = a;
+                        pairs[2 * pairCount + 1] = b;
+                        pairCount++;
                     }
-                    Pair pair = pairBuffer[pairCount];
-                    pair.indexA = a;
-                    pair.indexB = b;
-                    pair.flags = contact.flags;
-                    pair.strength = groupDef.strength;
-                    pair.distance = MathUtils.distance(positionBuffer.data[a],
-                            positionBuffer.data[b]);
-                    pairCount++;
                 }
             }
         }
-        if ((groupDef.flags & triadFlags) != 0)
+        pairs = Arrays.copyOf(pairs, 2 * pairCount);
+        // triads in each cell of the grid, with the diagonal alternating
+        // between the cells so the group is equally stiff in all directions;
+        // a particle is the lower left corner of one cell with up to two
+        // triads and the lower right corner of one with at most one more
+        int[] triads = new int[9 * n];
+        int triadCount = 0;
+        for (int iy = 0; iy + 1 < rows; iy++)
         {
-            VoronoiDiagram diagram = new VoronoiDiagram(lastIndex - firstIndex);
-            for (int i = firstIndex; i < lastIndex; i++)
+            for (int ix = 0; ix + 1 < columns; ix++)
             {
-                diagram.addGenerator(positionBuffer.data[i], i);
+                final int k = iy * columns + ix;
+                final int a = cellIndices[k];
+                final int b = cellIndices[k + 1];
+                final int c = cellIndices[k + columns + 1];
+                final int d = cellIndices[k + columns];
+                if (a >= 0 && b >= 0 && c >= 0 && d >= 0)
+                {
+                    if (((ix + iy) & 1) == 0)
+                    {
+                        triadCount = addTriad(triads, triadCount, a, b, c);
+                        triadCount = addTriad(triads, triadCount, a, c, d);
+                    }
+                    else
+                    {
+                        triadCount = addTriad(triads, triadCount, a, b, d);
+                        triadCount = addTriad(triads, triadCount, b, c, d);
+                    }
+                }
+                else if (a >= 0 && b >= 0 && c >= 0)
+                {
+                    triadCount = addTriad(triads, triadCount, a, b, c);
+                }
+                else if (a >= 0 && b >= 0 && d >= 0)
+                {
+                    triadCount = addTriad(triads, triadCount, a, b, d);
+                }
+                else if (a >= 0 && c >= 0 && d >= 0)
+                {
+                    triadCount = addTriad(triads, triadCount, a, c, d);
+                }
+                else if (b >= 0 && c >= 0 && d >= 0)
+                {
+                    triadCount = addTriad(triads, triadCount, b, c, d);
+                }
             }
-            diagram.generate(stride / 2);
-            createParticleGroupCallback.system = this;
-            createParticleGroupCallback.def = groupDef;
-            createParticleGroupCallback.firstIndex = firstIndex;
-            diagram.getNodes(createParticleGroupCallback);
         }
-        if ((groupDef.groupFlags & ParticleGroupType.solidParticleGroup) != 0)
+        triads = Arrays.copyOf(triads, 3 * triadCount);
+        return new ParticleLattice(stride, n, positionX, positionY, pairCount,
+                pairs, triadCount, triads);
+    }
+
+    private static int addTriad(int[] triads, int triadCount, int a, int b,
+            int c)
+    {
+        triads[3 * triadCount] = a;
+        triads[3 * triadCount + 1] = b;
+        triads[3 * triadCount + 2] = c;
+        return triadCount + 1;
+    }
+
+    /**
+     * Test the grid points in [start, end) of
+     * {@link #createParticleLattice(Shape)}.
+     */
+    void fillLattice(int start, int end)
+    {
+        final Shape shape = latticeShape;
+        final float[] gridX = latticeGridX;
+        final float[] gridY = latticeGridY;
+        final boolean[] inside = latticeInside;
+        final int columns = gridX.length;
+        final Transform identity = new Transform();
+        final Vec2 p = new Vec2();
+        final ShapeQueryPool queryPool = new ShapeQueryPool();
+        for (int k = start; k < end; k++)
         {
-            computeDepthForGroup(group);
+            p.x = gridX[k % columns];
+            p.y = gridY[k / columns];
+            inside[k] = shape.testPoint(identity, p, queryPool);
         }
-        return group;
     }
 
     public void joinParticleGroups(ParticleGroup groupA, ParticleGroup groupB)
     {
         assert (groupA != groupB);
+        wakeParticles(groupA.firstIndex, groupA.lastIndex);
+        wakeParticles(groupB.firstIndex, groupB.lastIndex);
         RotateBuffer(groupB.firstIndex, groupB.lastIndex, count);
         assert (groupB.lastIndex == count);
         RotateBuffer(groupA.firstIndex, groupA.lastIndex, groupB.firstIndex);
@@ -527,9 +999,8 @@ public class ParticleSystem
         {
             for (int k = 0; k < contactCount; k++)
             {
-                final ParticleContact contact = contactBuffer[k];
-                int a = contact.indexA;
-                int b = contact.indexB;
+                int a = contactIndexABuffer[k];
+                int b = contactIndexBBuffer[k];
                 if (a > b)
                 {
                     int temp = a;
@@ -551,11 +1022,10 @@ public class ParticleSystem
                     Pair pair = pairBuffer[pairCount];
                     pair.indexA = a;
                     pair.indexB = b;
-                    pair.flags = contact.flags;
+                    pair.flags = contactFlagsBuffer[k];
                     pair.strength = MathUtils.min(groupA.strength,
                             groupB.strength);
-                    pair.distance = MathUtils.distance(positionBuffer.data[a],
-                            positionBuffer.data[b]);
+                    pair.distance = distance(a, b);
                     pairCount++;
                 }
             }
@@ -564,11 +1034,14 @@ public class ParticleSystem
         {
             VoronoiDiagram diagram = new VoronoiDiagram(
                     groupB.lastIndex - groupA.firstIndex);
+            final Vec2 generator = tempVec;
             for (int i = groupA.firstIndex; i < groupB.lastIndex; i++)
             {
                 if ((flagsBuffer.data[i] & ParticleType.zombieParticle) == 0)
                 {
-                    diagram.addGenerator(positionBuffer.data[i], i);
+                    generator.x = positionXBuffer[i];
+                    generator.y = positionYBuffer[i];
+                    diagram.addGenerator(generator, i);
                 }
             }
             diagram.generate(getParticleStride() / 2);
@@ -629,13 +1102,12 @@ public class ParticleSystem
         }
         for (int k = 0; k < contactCount; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
             if (a >= group.firstIndex && a < group.lastIndex
                     && b >= group.firstIndex && b < group.lastIndex)
             {
-                float w = contact.weight;
+                float w = contactWeightBuffer[k];
                 accumulationBuffer[a] += w;
                 accumulationBuffer[b] += w;
             }
@@ -652,13 +1124,12 @@ public class ParticleSystem
             boolean updated = false;
             for (int k = 0; k < contactCount; k++)
             {
-                final ParticleContact contact = contactBuffer[k];
-                int a = contact.indexA;
-                int b = contact.indexB;
+                int a = contactIndexABuffer[k];
+                int b = contactIndexBBuffer[k];
                 if (a >= group.firstIndex && a < group.lastIndex
                         && b >= group.firstIndex && b < group.lastIndex)
                 {
-                    float r = 1 - contact.weight;
+                    float r = 1 - contactWeightBuffer[k];
                     float ap0 = depthBuffer[a];
                     float bp0 = depthBuffer[b];
                     float ap1 = bp0 + r;
@@ -694,83 +1165,297 @@ public class ParticleSystem
         }
     }
 
-    public void addContact(int a, int b)
-    {
-        assert (a != b);
-        Vec2 pa = positionBuffer.data[a];
-        Vec2 pb = positionBuffer.data[b];
-        float dx = pb.x - pa.x;
-        float dy = pb.y - pa.y;
-        float d2 = dx * dx + dy * dy;
-        // assert(d2 != 0);
-        if (d2 < squaredDiameter)
-        {
-            if (contactCount >= contactCapacity)
-            {
-                int oldCapacity = contactCapacity;
-                int newCapacity = contactCount != 0 ? 2 * contactCount
-                        : Settings.minParticleBufferCapacity;
-                contactBuffer = BufferUtils.reallocateBuffer(
-                        ParticleContact.class, contactBuffer, oldCapacity,
-                        newCapacity);
-                contactCapacity = newCapacity;
-            }
-            float invD = d2 != 0 ? MathUtils.sqrt(1 / d2) : Float.MAX_VALUE;
-            ParticleContact contact = contactBuffer[contactCount];
-            contact.indexA = a;
-            contact.indexB = b;
-            contact.flags = flagsBuffer.data[a] | flagsBuffer.data[b];
-            contact.weight = 1 - d2 * invD * inverseDiameter;
-            contact.normal.x = invD * dx;
-            contact.normal.y = invD * dy;
-            contactCount++;
-        }
-    }
+    float neighborSkin;
 
-    public void updateContacts(boolean exceptZombie)
-    {
-        for (int p = 0; p < proxyCount; p++)
-        {
-            Proxy proxy = proxyBuffer[p];
-            int i = proxy.index;
-            Vec2 pos = positionBuffer.data[i];
-            proxy.tag = computeTag(inverseDiameter * pos.x,
-                    inverseDiameter * pos.y);
-        }
-        Arrays.sort(proxyBuffer, 0, proxyCount);
-        contactCount = 0;
-        int c_index = 0;
-        for (int i = 0; i < proxyCount; i++)
-        {
-            Proxy a = proxyBuffer[i];
-            long rightTag = computeRelativeTag(a.tag, 1, 0);
-            for (int j = i + 1; j < proxyCount; j++)
-            {
-                Proxy b = proxyBuffer[j];
-                if (rightTag < b.tag)
+    /**
+     * Pairs of particles in contact or close to it, see
+     * {@link #setParticleNeighborSkin(float)}. Particle A of the pair n is at
+     * 2n, particle B at 2n + 1.
+     */
+    int[] neighborBuffer;
+
+    int neighborCount;
+
+    int neighborCapacity;
+
+    /**
+     * The positions of the particles when the neighbor list was built.
+     */
+    float[] neighborPositionXBuffer;
+
+    float[] neighborPositionYBuffer;
+
+    boolean neighborsValid;
+
+    /**
+     * The rest time of a sleeping particle. Sleeping particles do not move
+     * until they are woken, and the contacts between two sleeping particles
+     * are neither found nor solved.
+     */
+    private static final float ASLEEP = Float.POSITIVE_INFINITY;
+
+    /**
+     * How far a particle may move away from its sleep position without
+     * resetting its rest time, relative to the particle diameter. The
+     * particles of a fluid at rest still move by a few percent of the
+     * diameter.
+     */
+    private static final float SLEEP_TOLERANCE = 0.25f;
+
+    /**
+     * How long each particle has stayed close to its sleep position, or
+     * {@link #ASLEEP}. Null unless sleeping is allowed, see
+     * {@link #setParticleSleepingAllowed(boolean)}.
+     */
+    float[] sleepTimeBuffer;
+
+    float[] sleepPositionXBuffer;
+
+    float[] sleepPositionYBuffer;
+
+    /**
+     * The weight of the contacts of each sleeping particle with other sleeping
+     * particles. These contacts are not found, so their weight is kept for the
+     * pressure. It changes when a neighbor falls asleep or wakes up.
+     */
+    float[] sleepWeightBuffer;
+
+    int sleepingCount;
+
+    /**
+     * The particles [dirtyStart, dirtyEnd) may have changed since the last
+     * {@link #clearDirtyRange()}. The range is empty if dirtyStart is not
+     * less than dirtyEnd.
+     */
+    private int dirtyStart;
+
+    private int dirtyEnd;
+
+    /**
+     * The sleeping particles to wake at the end of a step.
+     */
+    int[] wakeBuffer;
+
+    private final WakeCallback wakeCallback = new WakeCallback();
+
+    private final SleepWeightCallback sleepWeightCallback = new SleepWeightCallback();
+
+    /**
+     * The length of a tick of the particle lifetimes in seconds.
+     */
+    private static final float LIFETIME_GRANULARITY = 1.0f / 60.0f;
+
+    /**
+     * The number of buckets of the expiry queue, a power of two. A particle
+     * expiring in tick t is kept in bucket t modulo this number.
+     */
+    private static final int EXPIRY_BUCKETS = 256;
+
+    /**
+     * The time the particle system has been stepped for in seconds.
+     */
+    double timeElapsed;
+
+    /**
+     * All particles expiring up to this tick have been destroyed.
+     */
+    int expiredTick;
+
+    /**
+     * The tick at the end of the lifetime of each particle, or 0 if it lives
+     * forever. Null unless a particle has a lifetime.
+     */
+    int[] expirationTickBuffer;
+
+    /**
+     * The particles with a lifetime as doubly linked lists, one per bucket.
+     */
+    int[] expiryNextBuffer;
+
+    int[] expiryPrevBuffer;
+
+    int[] expiryBuckets;
+
+    /**
+     * Whether the lists of the expiry queue match the particle indices. The
+     * queue is rebuilt after the particles have been reordered.
+     */
+    boolean expiryValid;
+
+    /**
+     * Scratch buffers of {@link #solveZombieBySwap()}: the indices of the
+     * zombies and the new indices of the last particles.
+     */
+    int[] zombieIndexBuffer;
+
+    int[] zombieMoveBuffer;
+
+    public void addContact(int a, int b)
+    {
+        assert (a != b);
+        if (sleepingCount > 0 && sleepTimeBuffer[a] == ASLEEP
+                && sleepTimeBuffer[b] == ASLEEP)
+        {
+            return;
+        }
+        float dx = positionXBuffer[b] - positionXBuffer[a];
+        float dy = positionYBuffer[b] - positionYBuffer[a];
+        float d2 = dx * dx + dy * dy;
+        // assert(d2 != 0);
+        if (d2 < squaredDiameter)
+        {
+            if (contactCount >= contactCapacity)
+            {
+                int oldCapacity = contactCapacity;
+                int newCapacity = contactCount != 0 ? 2 * contactCount
+                        : Settings.minParticleBufferCapacity;
+                contactIndexABuffer = BufferUtils.reallocateBuffer(
+                        contactIndexABuffer, oldCapacity, newCapacity);
+                contactIndexBBuffer = BufferUtils.reallocateBuffer(
+                        contactIndexBBuffer, oldCapacity, newCapacity);
+                contactFlagsBuffer = BufferUtils.reallocateBuffer(
+                        contactFlagsBuffer, oldCapacity, newCapacity);
+                contactWeightBuffer = BufferUtils.reallocateBuffer(
+                        contactWeightBuffer, oldCapacity, newCapacity);
+                contactNormalXBuffer = BufferUtils.reallocateBuffer(
+                        contactNormalXBuffer, oldCapacity, newCapacity);
+                contactNormalYBuffer = BufferUtils.reallocateBuffer(
+                        contactNormalYBuffer, oldCapacity, newCapacity);
+                contactCapacity = newCapacity;
+            }
+            float invD = d2 != 0 ? MathUtils.sqrt(1 / d2) : Float.MAX_VALUE;
+            contactIndexABuffer[contactCount] = a;
+            contactIndexBBuffer[contactCount] = b;
+            contactFlagsBuffer[contactCount] = flagsBuffer.data[a]
+                    | flagsBuffer.data[b];
+            contactWeightBuffer[contactCount] = 1 - d2 * invD * inverseDiameter;
+            contactNormalXBuffer[contactCount] = invD * dx;
+            contactNormalYBuffer[contactCount] = invD * dy;
+            contactCount++;
+        }
+    }
+
+    /**
+     * Move the contact at index from to index to, overwriting the contact
+     * there.
+     */
+    void moveContact(int from, int to)
+    {
+        contactIndexABuffer[to] = contactIndexABuffer[from];
+        contactIndexBBuffer[to] = contactIndexBBuffer[from];
+        contactFlagsBuffer[to] = contactFlagsBuffer[from];
+        contactWeightBuffer[to] = contactWeightBuffer[from];
+        contactNormalXBuffer[to] = contactNormalXBuffer[from];
+        contactNormalYBuffer[to] = contactNormalYBuffer[from];
+    }
+
+    void addBodyContact(int index, Body body, float weight, float normalX,
+            float normalY, float mass)
+    {
+        if (bodyContactCount >= bodyContactCapacity)
+        {
+            int oldCapacity = bodyContactCapacity;
+            int newCapacity = bodyContactCount != 0 ? 2 * bodyContactCount
+                    : Settings.minParticleBufferCapacity;
+            bodyContactIndexBuffer = BufferUtils.reallocateBuffer(
+                    bodyContactIndexBuffer, oldCapacity, newCapacity);
+            final Body[] bodies = new Body[newCapacity];
+            if (bodyContactBodyBuffer != null)
+            {
+                System.arraycopy(bodyContactBodyBuffer, 0, bodies, 0,
+                        oldCapacity);
+            }
+            bodyContactBodyBuffer = bodies;
+            bodyContactWeightBuffer = BufferUtils.reallocateBuffer(
+                    bodyContactWeightBuffer, oldCapacity, newCapacity);
+            bodyContactNormalXBuffer = BufferUtils.reallocateBuffer(
+                    bodyContactNormalXBuffer, oldCapacity, newCapacity);
+            bodyContactNormalYBuffer = BufferUtils.reallocateBuffer(
+                    bodyContactNormalYBuffer, oldCapacity, newCapacity);
+            bodyContactMassBuffer = BufferUtils.reallocateBuffer(
+                    bodyContactMassBuffer, oldCapacity, newCapacity);
+            bodyContactCapacity = newCapacity;
+        }
+        bodyContactIndexBuffer[bodyContactCount] = index;
+        bodyContactBodyBuffer[bodyContactCount] = body;
+        bodyContactWeightBuffer[bodyContactCount] = weight;
+        bodyContactNormalXBuffer[bodyContactCount] = normalX;
+        bodyContactNormalYBuffer[bodyContactCount] = normalY;
+        bodyContactMassBuffer[bodyContactCount] = mass;
+        bodyContactCount++;
+    }
+
+    /**
+     * Move the body contact at index from to index to, overwriting the contact
+     * there.
+     */
+    void moveBodyContact(int from, int to)
+    {
+        bodyContactIndexBuffer[to] = bodyContactIndexBuffer[from];
+        bodyContactBodyBuffer[to] = bodyContactBodyBuffer[from];
+        bodyContactWeightBuffer[to] = bodyContactWeightBuffer[from];
+        bodyContactNormalXBuffer[to] = bodyContactNormalXBuffer[from];
+        bodyContactNormalYBuffer[to] = bodyContactNormalYBuffer[from];
+        bodyContactMassBuffer[to] = bodyContactMassBuffer[from];
+    }
+
+    public void updateContacts(boolean exceptZombie)
+    {
+        final long[] tags = proxyTagBuffer;
+        final int[] indices = proxyIndexBuffer;
+        for (int p = 0; p < proxyCount; p++)
+        {
+            int i = indices[p];
+            tags[p] = computeTag(inverseCellSize * positionXBuffer[i],
+                    inverseCellSize * positionYBuffer[i]);
+        }
+        sortProxies();
+        contactCount = 0;
+        incidenceValid = false;
+        batchesValid = false;
+        if (neighborSkin > 0 && !exceptZombie)
+        {
+            if (!neighborsValid || isNeighborSkinExceeded())
+            {
+                updateNeighbors();
+            }
+            final int[] neighbors = neighborBuffer;
+            for (int n = 0; n < 2 * neighborCount; n += 2)
+            {
+                addContact(neighbors[n], neighbors[n + 1]);
+            }
+            return;
+        }
+        int c_index = 0;
+        for (int i = 0; i < proxyCount; i++)
+        {
+            final long tag = tags[i];
+            final int a = indices[i];
+            long rightTag = computeRelativeTag(tag, 1, 0);
+            for (int j = i + 1; j < proxyCount; j++)
+            {
+                if (rightTag < tags[j])
                 {
                     break;
                 }
-                addContact(a.index, b.index);
+                addContact(a, indices[j]);
             }
-            long bottomLeftTag = computeRelativeTag(a.tag, -1, 1);
+            long bottomLeftTag = computeRelativeTag(tag, -1, 1);
             for (; c_index < proxyCount; c_index++)
             {
-                Proxy c = proxyBuffer[c_index];
-                if (bottomLeftTag <= c.tag)
+                if (bottomLeftTag <= tags[c_index])
                 {
                     break;
                 }
             }
-            long bottomRightTag = computeRelativeTag(a.tag, 1, 1);
+            long bottomRightTag = computeRelativeTag(tag, 1, 1);
             for (int b_index = c_index; b_index < proxyCount; b_index++)
             {
-                Proxy b = proxyBuffer[b_index];
-                if (bottomRightTag < b.tag)
+                if (bottomRightTag < tags[b_index])
                 {
                     break;
                 }
-                addContact(a.index, b.index);
+                addContact(a, indices[b_index]);
             }
         }
         if (exceptZombie)
@@ -778,12 +1463,10 @@ public class ParticleSystem
             int j = contactCount;
             for (int i = 0; i < j; i++)
             {
-                if ((contactBuffer[i].flags & ParticleType.zombieParticle) != 0)
+                if ((contactFlagsBuffer[i] & ParticleType.zombieParticle) != 0)
                 {
                     --j;
-                    ParticleContact temp = contactBuffer[j];
-                    contactBuffer[j] = contactBuffer[i];
-                    contactBuffer[i] = temp;
+                    moveContact(j, i);
                     --i;
                 }
             }
@@ -791,6 +1474,183 @@ public class ParticleSystem
         }
     }
 
+    /**
+     * Whether the two particles that moved farthest since the neighbor list
+     * was built have together moved more than the skin. Until then no two
+     * particles can have approached each other by more than the skin, so all
+     * contacts are still in the list.
+     */
+    boolean isNeighborSkinExceeded()
+    {
+        float max1 = 0;
+        float max2 = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final float dx = positionXBuffer[i] - neighborPositionXBuffer[i];
+            final float dy = positionYBuffer[i] - neighborPositionYBuffer[i];
+            final float d2 = dx * dx + dy * dy;
+            if (d2 > max2)
+            {
+                if (d2 > max1)
+                {
+                    max2 = max1;
+                    max1 = d2;
+                }
+                else
+                {
+                    max2 = d2;
+                }
+            }
+        }
+        return MathUtils.sqrt(max1) + MathUtils.sqrt(max2) > neighborSkin;
+    }
+
+    /**
+     * Rebuild the neighbor list from the sorted proxies. It holds all pairs of
+     * particles closer than the diameter plus the skin, which is the size of
+     * the cells of the proxy tags.
+     */
+    void updateNeighbors()
+    {
+        final long[] tags = proxyTagBuffer;
+        final int[] indices = proxyIndexBuffer;
+        final float reach = particleDiameter + neighborSkin;
+        final float reachSquared = reach * reach;
+        neighborCount = 0;
+        int c_index = 0;
+        for (int i = 0; i < proxyCount; i++)
+        {
+            final long tag = tags[i];
+            final int a = indices[i];
+            long rightTag = computeRelativeTag(tag, 1, 0);
+            for (int j = i + 1; j < proxyCount; j++)
+            {
+                if (rightTag < tags[j])
+                {
+                    break;
+                }
+                addNeighbor(a, indices[j], reachSquared);
+            }
+            long bottomLeftTag = computeRelativeTag(tag, -1, 1);
+            for (; c_index < proxyCount; c_index++)
+            {
+                if (bottomLeftTag <= tags[c_index])
+                {
+                    break;
+                }
+            }
+            long bottomRightTag = computeRelativeTag(tag, 1, 1);
+            for (int b_index = c_index; b_index < proxyCount; b_index++)
+            {
+                if (bottomRightTag < tags[b_index])
+                {
+                    break;
+                }
+                addNeighbor(a, indices[b_index], reachSquared);
+            }
+        }
+        neighborPositionXBuffer = requestParticleBuffer(
+                neighborPositionXBuffer);
+        neighborPositionYBuffer = requestParticleBuffer(
+                neighborPositionYBuffer);
+        System.arraycopy(positionXBuffer, 0, neighborPositionXBuffer, 0,
+                count);
+        System.arraycopy(positionYBuffer, 0, neighborPositionYBuffer, 0,
+                count);
+        neighborsValid = true;
+    }
+
+    private void addNeighbor(int a, int b, float reachSquared)
+    {
+        float dx = positionXBuffer[b] - positionXBuffer[a];
+        float dy = positionYBuffer[b] - positionYBuffer[a];
+        if (dx * dx + dy * dy < reachSquared)
+        {
+            if (2 * neighborCount >= neighborCapacity)
+            {
+                int oldCapacity = neighborCapacity;
+                int newCapacity = neighborCount != 0 ? 4 * neighborCount
+                        : 2 * Settings.minParticleBufferCapacity;
+                neighborBuffer = BufferUtils.reallocateBuffer(neighborBuffer,
+                        oldCapacity, newCapacity);
+                neighborCapacity = newCapacity;
+            }
+            neighborBuffer[2 * neighborCount] = a;
+            neighborBuffer[2 * neighborCount + 1] = b;
+            neighborCount++;
+        }
+    }
+
+    /**
+     * Sort the proxies by tag. Particles barely move between steps, so the
+     * proxies are usually still sorted except for a few neighbors. An
+     * insertion sort handles that in linear time. It gives up after about one
+     * move per proxy, and a radix sort takes over. Both sorts are stable.
+     */
+    void sortProxies()
+    {
+        final long[] tags = proxyTagBuffer;
+        final int[] indices = proxyIndexBuffer;
+        int budget = proxyCount;
+        for (int i = 1; i < proxyCount; i++)
+        {
+            final long tag = tags[i];
+            if (tags[i - 1] <= tag)
+            {
+                continue;
+            }
+            final int index = indices[i];
+            int j = i - 1;
+            do
+            {
+                tags[j + 1] = tags[j];
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            while (j >= 0 && tags[j] > tag);
+            tags[j + 1] = tag;
+            indices[j + 1] = index;
+            budget -= i - 1 - j;
+            if (budget < 0)
+            {
+                if (sortTagBuffer == null || sortTagBuffer.length < proxyCount)
+                {
+                    sortTagBuffer = new long[proxyCapacity];
+                    sortIndexBuffer = new int[proxyCapacity];
+                }
+                RadixSort.sort(tags, indices, sortTagBuffer, sortIndexBuffer,
+                        sortHistogramBuffer, proxyCount);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The query cells are 2^QUERY_CELL_SHIFT tag cells wide and high.
+     */
+    private static final int QUERY_CELL_SHIFT = 3;
+
+    /**
+     * The particles grouped by query cells, see {@link #updateQueryCells()}.
+     * The particles of cell c start at queryCellStartBuffer[c].
+     */
+    int[] queryCellParticleBuffer;
+
+    int[] queryCellStartBuffer;
+
+    int queryCellCount;
+
+    /**
+     * The number of particles when the query cells were built.
+     */
+    int queryCellParticleCount = -1;
+
+    long[] queryCellKeyBuffer;
+
+    long[] queryCellTempKeyBuffer;
+
+    int[] queryCellTempParticleBuffer;
+
     private final UpdateBodyContactsCallback ubcCallback = new UpdateBodyContactsCallback();
 
     /**
@@ -798,24 +1658,85 @@ public class ParticleSystem
      */
     public void updateBodyContacts()
     {
-        final AABB aabb = temp;
-        aabb.lowerBound.x = Float.MAX_VALUE;
-        aabb.lowerBound.y = Float.MAX_VALUE;
-        aabb.upperBound.x = -Float.MAX_VALUE;
-        aabb.upperBound.y = -Float.MAX_VALUE;
-        for (int i = 0; i < count; i++)
+        if (queryCellParticleCount != count)
         {
-            Vec2 p = positionBuffer.data[i];
-            Vec2.minToOut(aabb.lowerBound, p, aabb.lowerBound);
-            Vec2.maxToOut(aabb.upperBound, p, aabb.upperBound);
+            updateQueryCells();
         }
-        aabb.lowerBound.x -= particleDiameter;
-        aabb.lowerBound.y -= particleDiameter;
-        aabb.upperBound.x += particleDiameter;
-        aabb.upperBound.y += particleDiameter;
         bodyContactCount = 0;
         ubcCallback.system = this;
-        world.queryAABB(ubcCallback, aabb);
+        final AABB aabb = temp;
+        for (int c = 0; c < queryCellCount; c++)
+        {
+            final int start = queryCellStartBuffer[c];
+            final int end = queryCellStartBuffer[c + 1];
+            aabb.lowerBound.x = Float.MAX_VALUE;
+            aabb.lowerBound.y = Float.MAX_VALUE;
+            aabb.upperBound.x = -Float.MAX_VALUE;
+            aabb.upperBound.y = -Float.MAX_VALUE;
+            for (int j = start; j < end; j++)
+            {
+                final int i = queryCellParticleBuffer[j];
+                final float px = positionXBuffer[i];
+                final float py = positionYBuffer[i];
+                aabb.lowerBound.x = Math.min(aabb.lowerBound.x, px);
+                aabb.lowerBound.y = Math.min(aabb.lowerBound.y, py);
+                aabb.upperBound.x = Math.max(aabb.upperBound.x, px);
+                aabb.upperBound.y = Math.max(aabb.upperBound.y, py);
+            }
+            aabb.lowerBound.x -= particleDiameter;
+            aabb.lowerBound.y -= particleDiameter;
+            aabb.upperBound.x += particleDiameter;
+            aabb.upperBound.y += particleDiameter;
+            ubcCallback.start = start;
+            ubcCallback.end = end;
+            ubcCallback.cellBox = aabb;
+            world.queryAABB(ubcCallback, aabb);
+        }
+    }
+
+    /**
+     * Group the particles by cells of the tag grid that are
+     * 2^QUERY_CELL_SHIFT tag cells wide, so that the world is queried for
+     * fixtures near each group instead of near all particles. Any grouping is
+     * correct, since the boxes of the queries are computed from the current
+     * positions, so the groups of the last step may be reused while the
+     * number of particles stays the same.
+     */
+    void updateQueryCells()
+    {
+        if (queryCellKeyBuffer == null
+                || queryCellKeyBuffer.length < internalAllocatedCapacity)
+        {
+            queryCellKeyBuffer = new long[internalAllocatedCapacity];
+            queryCellParticleBuffer = new int[internalAllocatedCapacity];
+            queryCellTempKeyBuffer = new long[internalAllocatedCapacity];
+            queryCellTempParticleBuffer = new int[internalAllocatedCapacity];
+            queryCellStartBuffer = new int[internalAllocatedCapacity + 1];
+        }
+        final long[] keys = queryCellKeyBuffer;
+        final int[] particles = queryCellParticleBuffer;
+        final long xMaskBits = (1L << yShift) - 1;
+        for (int i = 0; i < count; i++)
+        {
+            final long tag = computeTag(inverseCellSize * positionXBuffer[i],
+                    inverseCellSize * positionYBuffer[i]);
+            final long cellY = tag >> (yShift + QUERY_CELL_SHIFT);
+            final long cellX = (tag & xMaskBits) >> (xShift + QUERY_CELL_SHIFT);
+            keys[i] = cellY << 32 | cellX;
+            particles[i] = i;
+        }
+        RadixSort.sort(keys, particles, queryCellTempKeyBuffer,
+                queryCellTempParticleBuffer, sortHistogramBuffer, count);
+        queryCellCount = 0;
+        for (int j = 0; j < count; j++)
+        {
+            if (j == 0 || keys[j] != keys[j - 1])
+            {
+                queryCellStartBuffer[queryCellCount++] = j;
+            }
+        }
+        queryCellStartBuffer[queryCellCount] = count;
+        queryCellParticleCount = count;
     }
 
     private final SolveCollisionCallback scCallback = new SolveCollisionCallback();
@@ -825,33 +1746,41 @@ public class ParticleSystem
      */
     public void solveCollision(TimeStep step)
     {
+        updateQueryCells();
+        scCallback.step = step;
+        scCallback.system = this;
         final AABB aabb = temp;
         final Vec2 lowerBound = aabb.lowerBound;
         final Vec2 upperBound = aabb.upperBound;
-        lowerBound.x = Float.MAX_VALUE;
-        lowerBound.y = Float.MAX_VALUE;
-        upperBound.x = -Float.MAX_VALUE;
-        upperBound.y = -Float.MAX_VALUE;
-        for (int i = 0; i < count; i++)
+        for (int c = 0; c < queryCellCount; c++)
         {
-            final Vec2 v = velocityBuffer.data[i];
-            final Vec2 p1 = positionBuffer.data[i];
-            final float p1x = p1.x;
-            final float p1y = p1.y;
-            final float p2x = p1x + step.dt * v.x;
-            final float p2y = p1y + step.dt * v.y;
-            final float bx = Math.min(p1x, p2x);
-            final float by = Math.min(p1y, p2y);
-            lowerBound.x = Math.min(lowerBound.x, bx);
-            lowerBound.y = Math.min(lowerBound.y, by);
-            final float b1x = Math.max(p1x, p2x);
-            final float b1y = Math.max(p1y, p2y);
-            upperBound.x = Math.max(upperBound.x, b1x);
-            upperBound.y = Math.max(upperBound.y, b1y);
+            final int start = queryCellStartBuffer[c];
+            final int end = queryCellStartBuffer[c + 1];
+            lowerBound.x = Float.MAX_VALUE;
+            lowerBound.y = Float.MAX_VALUE;
+            upperBound.x = -Float.MAX_VALUE;
+            upperBound.y = -Float.MAX_VALUE;
+            for (int j = start; j < end; j++)
+            {
+                final int i = queryCellParticleBuffer[j];
+                final float p1x = positionXBuffer[i];
+                final float p1y = positionYBuffer[i];
+                final float p2x = p1x + step.dt * velocityXBuffer[i];
+                final float p2y = p1y + step.dt * velocityYBuffer[i];
+                final float bx = Math.min(p1x, p2x);
+                final float by = Math.min(p1y, p2y);
+                lowerBound.x = Math.min(lowerBound.x, bx);
+                lowerBound.y = Math.min(lowerBound.y, by);
+                final float b1x = Math.max(p1x, p2x);
+                final float b1y = Math.max(p1y, p2y);
+                upperBound.x = Math.max(upperBound.x, b1x);
+                upperBound.y = Math.max(upperBound.y, b1y);
+            }
+            scCallback.start = start;
+            scCallback.end = end;
+            scCallback.cellBox = aabb;
+            world.queryAABB(scCallback, aabb);
         }
-        scCallback.step = step;
-        scCallback.system = this;
-        world.queryAABB(scCallback, aabb);
     }
 
     /**
@@ -864,14 +1793,30 @@ public class ParticleSystem
         {
             return;
         }
+        readBufferViews(0, count);
         allParticleFlags = 0;
         for (int i = 0; i < count; i++)
         {
             allParticleFlags |= flagsBuffer.data[i];
         }
+        if (sleepingCount > 0)
+        {
+            wakeMovedParticles();
+        }
+        if (expirationTickBuffer != null)
+        {
+            solveLifetimes(step);
+        }
         if ((allParticleFlags & ParticleType.zombieParticle) != 0)
         {
-            solveZombie();
+            if (sleepingCount > 0)
+            {
+                wakeZombieNeighbors();
+            }
+            if (!solveZombieBySwap())
+            {
+                solveZombie();
+            }
         }
         if (count == 0)
         {
@@ -883,23 +1828,7 @@ public class ParticleSystem
         {
             allGroupFlags |= group.groupFlags;
         }
-        final float gravityX = step.dt * gravityScale * world.getGravity().x;
-        final float gravityY = step.dt * gravityScale * world.getGravity().y;
-        float criticalVelocityYSquared = getCriticalVelocitySquared(step);
-        for (int i = 0; i < count; i++)
-        {
-            Vec2 v = velocityBuffer.data[i];
-            v.x += gravityX;
-            v.y += gravityY;
-            float v2 = v.x * v.x + v.y * v.y;
-            if (v2 > criticalVelocityYSquared)
-            {
-                float a = v2 == 0 ? Float.MAX_VALUE
-                        : MathUtils.sqrt(criticalVelocityYSquared / v2);
-                v.x *= a;
-                v.y *= a;
-            }
-        }
+        runStage(STAGE_GRAVITY, 0, count, step);
         solveCollision(step);
         if ((allGroupFlags & ParticleGroupType.rigidParticleGroup) != 0)
         {
@@ -909,13 +1838,7 @@ public class ParticleSystem
         {
             solveWall(step);
         }
-        for (int i = 0; i < count; i++)
-        {
-            Vec2 pos = positionBuffer.data[i];
-            Vec2 vel = velocityBuffer.data[i];
-            pos.x += step.dt * vel.x;
-            pos.y += step.dt * vel.y;
-        }
+        runStage(STAGE_INTEGRATE, 0, count, step);
         updateBodyContacts();
         updateContacts(false);
         if ((allParticleFlags & ParticleType.viscousParticle) != 0)
@@ -948,544 +1871,1574 @@ public class ParticleSystem
         }
         solvePressure(step);
         solveDamping(step);
+        if (sleepTimeBuffer != null)
+        {
+            updateSleep(step);
+        }
+        markSolvedDirty();
+        writeBufferViews(0, count);
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3195-L3258
+     * Mark the particles that the solver may have changed in this step. The
+     * sleeping particles keep their positions and a velocity of zero, so
+     * only the range of the awake particles is marked, unless colors were
+     * mixed. The particles that fell asleep in this step are marked by
+     * {@link #sleepParticles(int, int)}.
      */
-    void solvePressure(TimeStep step)
+    private void markSolvedDirty()
     {
-        // calculates the sum of contact-weights for each particle
-        // that means dimensionless density
-        for (int i = 0; i < count; i++)
+        if (sleepingCount == 0
+                || (allParticleFlags & ParticleType.colorMixingParticle) != 0)
         {
-            accumulationBuffer[i] = 0;
+            markDirty(0, count);
+            return;
         }
-        for (int k = 0; k < bodyContactCount; k++)
+        final float[] times = sleepTimeBuffer;
+        int first = 0;
+        while (first < count && times[first] == ASLEEP)
         {
-            ParticleBodyContact contact = bodyContactBuffer[k];
-            int a = contact.index;
-            float w = contact.weight;
-            accumulationBuffer[a] += w;
+            first++;
         }
-        for (int k = 0; k < contactCount; k++)
+        int last = count;
+        while (last > first && times[last - 1] == ASLEEP)
         {
-            ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            float w = contact.weight;
-            accumulationBuffer[a] += w;
-            accumulationBuffer[b] += w;
+            last--;
         }
-        // ignores powder particles
-        if ((allParticleFlags & noPressureFlags) != 0)
+        markDirty(first, last);
+    }
+
+    /**
+     * The minimum number of particles, contacts, pairs or triads per worker,
+     * below that a stage of the solver runs on the calling thread.
+     */
+    private static final int MIN_ITEMS_PER_WORKER = 1024;
+
+    /**
+     * The number of batches of contacts without a common particle. Contacts
+     * that fit in none of them are solved one after another at the end.
+     */
+    private static final int MAX_BATCHES = 64;
+
+    private static final int STAGE_GRAVITY = 0;
+
+    private static final int STAGE_INTEGRATE = 1;
+
+    private static final int STAGE_PRESSURE_WEIGHTS = 2;
+
+    private static final int STAGE_PRESSURE_DELTAS = 3;
+
+    private static final int STAGE_POWDER_DELTAS = 4;
+
+    private static final int STAGE_SOLID_DELTAS = 5;
+
+    private static final int STAGE_TENSILE_WEIGHTS = 6;
+
+    private static final int STAGE_TENSILE_ACCUMULATION = 7;
+
+    private static final int STAGE_TENSILE_DELTAS = 8;
+
+    private static final int STAGE_SPRING_DELTAS = 9;
+
+    private static final int STAGE_ELASTIC_DELTAS = 10;
+
+    private static final int STAGE_APPLY_DELTAS = 11;
+
+    private static final int STAGE_DAMPING = 12;
+
+    private static final int STAGE_VISCOUS = 13;
+
+    private static final int STAGE_LATTICE_FILL = 14;
+
+    private Executor executor;
+
+    private ParticleWorker[] workers = new ParticleWorker[0];
+
+    /**
+     * The impulses of the contacts, pairs or triads of the current stage.
+     */
+    float[] deltaXBuffer;
+
+    float[] deltaYBuffer;
+
+    float[] weightBuffer;
+
+    /**
+     * The contacts of each particle in ascending order, as index shifted by
+     * one with the lowest bit set if the particle is particle B of the
+     * contact. The contacts of particle i start at incidenceStartBuffer[i].
+     */
+    int[] incidenceBuffer;
+
+    int[] incidenceStartBuffer;
+
+    boolean incidenceValid;
+
+    /**
+     * The contacts of the batches in ascending order. The contacts of batch
+     * i start at batchStartBuffer[i].
+     */
+    int[] batchContactBuffer;
+
+    final int[] batchStartBuffer = new int[MAX_BATCHES + 2];
+
+    long[] batchMaskBuffer;
+
+    boolean batchesValid;
+
+    /**
+     * Run the stages of {@link #solve(TimeStep)} on the given executor when
+     * there are many particles or contacts. Stages that sum up the impulses of
+     * the contacts of a particle do so in the order of the contacts, so they
+     * give the same result as on the calling thread. Damping and viscosity
+     * between particles are solved in batches of contacts without a common
+     * particle, so their result does not depend on the number of workers, but
+     * differs slightly from the result on the calling thread.
+     *
+     * @param executor The executor for the workers, e.g. a
+     *     {@link java.util.concurrent.ForkJoinPool}, or null to solve on the
+     *     calling thread.
+     * @param workerCount The maximum number of workers.
+     */
+    public void setExecutor(Executor executor, int workerCount)
+    {
+        this.executor = executor;
+        workers = new ParticleWorker[executor == null ? 0 : workerCount];
+        for (int i = 0; i < workers.length; ++i)
         {
-            for (int i = 0; i < count; i++)
+            workers[i] = new ParticleWorker();
+        }
+    }
+
+    /**
+     * Whether a stage over the given number of items is split among workers.
+     */
+    boolean useWorkers(int itemCount)
+    {
+        return MathUtils.min(workers.length,
+                itemCount / MIN_ITEMS_PER_WORKER) > 1;
+    }
+
+    /**
+     * Run a stage over the items in [start, end), split among the workers if
+     * there are enough items.
+     */
+    void runStage(int stage, int start, int end, TimeStep step)
+    {
+        final int itemCount = end - start;
+        final int workerCount = MathUtils.min(workers.length,
+                itemCount / MIN_ITEMS_PER_WORKER);
+        if (workerCount > 1)
+        {
+            final int sliceSize = (itemCount + workerCount - 1) / workerCount;
+            for (int i = 0; i < workerCount; ++i)
             {
-                if ((flagsBuffer.data[i] & noPressureFlags) != 0)
-                {
-                    accumulationBuffer[i] = 0;
-                }
+                final ParticleWorker worker = workers[i];
+                worker.stage = stage;
+                worker.step = step;
+                worker.start = start + i * sliceSize;
+                worker.end = MathUtils.min(end, worker.start + sliceSize);
             }
+            TaskBatch.run(executor, workers, workerCount);
         }
-        // calculates pressure as a linear function of density
-        float pressurePerWeight = pressureStrength * getCriticalPressure(step);
-        for (int i = 0; i < count; i++)
+        else
         {
-            float w = accumulationBuffer[i];
-            float h = pressurePerWeight * MathUtils.max(0.0f,
-                    MathUtils.min(w, Settings.maxParticleWeight)
-                            - Settings.minParticleWeight);
-            accumulationBuffer[i] = h;
+            runRange(stage, start, end, step);
         }
-        // applies pressure between each particle in contact
-        float velocityPerPressure = step.dt / (density * particleDiameter);
-        for (int k = 0; k < bodyContactCount; k++)
+    }
+
+    void runRange(int stage, int start, int end, TimeStep step)
+    {
+        switch (stage)
         {
-            ParticleBodyContact contact = bodyContactBuffer[k];
-            int a = contact.index;
-            Body b = contact.body;
-            float w = contact.weight;
-            float m = contact.mass;
-            Vec2 n = contact.normal;
-            Vec2 p = positionBuffer.data[a];
-            float h = accumulationBuffer[a] + pressurePerWeight * w;
-            final Vec2 f = tempVec;
-            final float coef = velocityPerPressure * w * m * h;
-            f.x = coef * n.x;
-            f.y = coef * n.y;
-            final Vec2 velData = velocityBuffer.data[a];
-            final float particleInvMass = getParticleInvMass();
-            velData.x -= particleInvMass * f.x;
-            velData.y -= particleInvMass * f.y;
-            b.applyLinearImpulse(f, p, true);
+        case STAGE_GRAVITY:
+            applyGravity(step, start, end);
+            break;
+
+        case STAGE_INTEGRATE:
+            integratePositions(step, start, end);
+            break;
+
+        case STAGE_PRESSURE_WEIGHTS:
+            gatherPressureWeights(start, end);
+            computePressure(step, start, end);
+            break;
+
+        case STAGE_PRESSURE_DELTAS:
+            computePressureDeltas(step, start, end);
+            break;
+
+        case STAGE_POWDER_DELTAS:
+            computePowderDeltas(step, start, end);
+            break;
+
+        case STAGE_SOLID_DELTAS:
+            computeSolidDeltas(step, start, end);
+            break;
+
+        case STAGE_TENSILE_WEIGHTS:
+            computeTensileWeights(start, end);
+            break;
+
+        case STAGE_TENSILE_ACCUMULATION:
+            gatherTensileWeights(start, end);
+            break;
+
+        case STAGE_TENSILE_DELTAS:
+            computeTensileDeltas(step, start, end);
+            break;
+
+        case STAGE_SPRING_DELTAS:
+            computeSpringDeltas(step, start, end);
+            break;
+
+        case STAGE_ELASTIC_DELTAS:
+            computeElasticDeltas(step, start, end);
+            break;
+
+        case STAGE_APPLY_DELTAS:
+            gatherContactDeltas(start, end);
+            break;
+
+        case STAGE_DAMPING:
+            for (int j = start; j < end; j++)
+            {
+                solveDamping(batchContactBuffer[j], dampingStrength);
+            }
+            break;
+
+        case STAGE_VISCOUS:
+            for (int j = start; j < end; j++)
+            {
+                solveViscous(batchContactBuffer[j], viscousStrength);
+            }
+            break;
+
+        case STAGE_LATTICE_FILL:
+            fillLattice(start, end);
+            break;
         }
-        for (int k = 0; k < contactCount; k++)
+    }
+
+    void requestDeltaBuffers(int capacity)
+    {
+        if (deltaXBuffer == null || deltaXBuffer.length < capacity)
         {
-            ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            float w = contact.weight;
-            Vec2 n = contact.normal;
-            float h = accumulationBuffer[a] + accumulationBuffer[b];
-            final float fx = velocityPerPressure * w * h * n.x;
-            final float fy = velocityPerPressure * w * h * n.y;
-            final Vec2 velDataA = velocityBuffer.data[a];
-            final Vec2 velDataB = velocityBuffer.data[b];
-            velDataA.x -= fx;
-            velDataA.y -= fy;
-            velDataB.x += fx;
-            velDataB.y += fy;
+            final int oldCapacity = deltaXBuffer == null ? 0
+                    : deltaXBuffer.length;
+            final int newCapacity = MathUtils.max(
+                    MathUtils.max(capacity, 2 * oldCapacity),
+                    Settings.minParticleBufferCapacity);
+            deltaXBuffer = BufferUtils.reallocateBuffer(deltaXBuffer,
+                    oldCapacity, newCapacity);
+            deltaYBuffer = BufferUtils.reallocateBuffer(deltaYBuffer,
+                    oldCapacity, newCapacity);
+            weightBuffer = BufferUtils.reallocateBuffer(weightBuffer,
+                    oldCapacity, newCapacity);
         }
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3260-L3304
+     * Sort the contacts by particle, see {@link #incidenceBuffer}.
      */
-    void solveDamping(TimeStep step)
+    void updateIncidence()
     {
-        // reduces the normal velocity of each contact
-        float damping = dampingStrength;
-        for (int k = 0; k < bodyContactCount; k++)
+        if (incidenceValid)
         {
-            final ParticleBodyContact contact = bodyContactBuffer[k];
-            int a = contact.index;
-            Body b = contact.body;
-            float w = contact.weight;
-            float m = contact.mass;
-            Vec2 n = contact.normal;
-            Vec2 p = positionBuffer.data[a];
-            final float tempX = p.x - b.sweep.c.x;
-            final float tempY = p.y - b.sweep.c.y;
-            final Vec2 velA = velocityBuffer.data[a];
-            // getLinearVelocityFromWorldPointToOut, with -= velA
-            float vx = -b.angularVelocity * tempY + b.linearVelocity.x - velA.x;
-            float vy = b.angularVelocity * tempX + b.linearVelocity.y - velA.y;
-            // done
-            float vn = vx * n.x + vy * n.y;
-            if (vn < 0)
-            {
-                final Vec2 f = tempVec;
-                f.x = damping * w * m * vn * n.x;
-                f.y = damping * w * m * vn * n.y;
-                final float invMass = getParticleInvMass();
-                velA.x += invMass * f.x;
-                velA.y += invMass * f.y;
-                f.x = -f.x;
-                f.y = -f.y;
-                b.applyLinearImpulse(f, p, true);
-            }
+            return;
+        }
+        if (incidenceStartBuffer == null
+                || incidenceStartBuffer.length < count + 1)
+        {
+            incidenceStartBuffer = new int[internalAllocatedCapacity + 1];
+        }
+        if (incidenceBuffer == null
+                || incidenceBuffer.length < 2 * contactCount)
+        {
+            incidenceBuffer = new int[2 * contactCapacity];
         }
+        final int[] start = incidenceStartBuffer;
+        Arrays.fill(start, 0, count + 1, 0);
         for (int k = 0; k < contactCount; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            float w = contact.weight;
-            Vec2 n = contact.normal;
-            final Vec2 velA = velocityBuffer.data[a];
-            final Vec2 velB = velocityBuffer.data[b];
-            final float vx = velB.x - velA.x;
-            final float vy = velB.y - velA.y;
-            float vn = vx * n.x + vy * n.y;
-            if (vn < 0)
-            {
-                float fx = damping * w * vn * n.x;
-                float fy = damping * w * vn * n.y;
-                velA.x += fx;
-                velA.y += fy;
-                velB.x -= fx;
-                velB.y -= fy;
-            }
+            start[contactIndexABuffer[k]]++;
+            start[contactIndexBBuffer[k]]++;
+        }
+        for (int i = 1; i <= count; i++)
+        {
+            start[i] += start[i - 1];
+        }
+        // fill backwards so that the contacts of each particle are ascending
+        for (int k = contactCount - 1; k >= 0; k--)
+        {
+            incidenceBuffer[--start[contactIndexABuffer[k]]] = k << 1;
+            incidenceBuffer[--start[contactIndexBBuffer[k]]] = k << 1 | 1;
         }
+        incidenceValid = true;
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3506-L3515
+     * Add the contact weights to the particles in [start, end).
      */
-    public void solveWall(TimeStep step)
+    void gatherPressureWeights(int start, int end)
     {
-        for (int i = 0; i < count; i++)
+        for (int i = start; i < end; i++)
         {
-            if ((flagsBuffer.data[i] & ParticleType.wallParticle) != 0)
+            float w = accumulationBuffer[i];
+            for (int j = incidenceStartBuffer[i]; j < incidenceStartBuffer[i
+                    + 1]; j++)
             {
-                final Vec2 r = velocityBuffer.data[i];
-                r.x = 0.0f;
-                r.y = 0.0f;
+                w += contactWeightBuffer[incidenceBuffer[j] >> 1];
             }
+            accumulationBuffer[i] = w;
         }
     }
 
-    private final Vec2 tempVec2 = new Vec2();
-
-    private final Rot tempRot = new Rot();
-
-    private final Transform tempXf = new Transform();
-
-    private final Transform tempXf2 = new Transform();
-
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3517-L3541
+     * Sum up the tensile weights and weighted normals of the particles in
+     * [start, end).
      */
-    void solveRigid(final TimeStep step)
+    void gatherTensileWeights(int start, int end)
     {
-        for (ParticleGroup group = groupList; group != null; group = group
-                .getNext())
+        for (int i = start; i < end; i++)
         {
-            if ((group.groupFlags & ParticleGroupType.rigidParticleGroup) != 0)
+            float w = 0;
+            float sx = 0;
+            float sy = 0;
+            for (int j = incidenceStartBuffer[i]; j < incidenceStartBuffer[i
+                    + 1]; j++)
             {
-                group.updateStatistics();
-                Vec2 temp = tempVec;
-                Vec2 cross = tempVec2;
-                Rot rotation = tempRot;
-                rotation.set(step.dt * group.angularVelocity);
-                Rot.mulToOutUnsafe(rotation, group.center, cross);
-                temp.set(group.linearVelocity).mulLocal(step.dt)
-                        .addLocal(group.center).subLocal(cross);
-                tempXf.p.set(temp);
-                tempXf.q.set(rotation);
-                Transform.mulToOut(tempXf, group.transform, group.transform);
-                final Transform velocityTransform = tempXf2;
-                velocityTransform.p.x = step.inverseDt * tempXf.p.x;
-                velocityTransform.p.y = step.inverseDt * tempXf.p.y;
-                velocityTransform.q.s = step.inverseDt * tempXf.q.s;
-                velocityTransform.q.c = step.inverseDt * (tempXf.q.c - 1);
-                for (int i = group.firstIndex; i < group.lastIndex; i++)
+                final int k = incidenceBuffer[j] >> 1;
+                w += weightBuffer[k];
+                if ((incidenceBuffer[j] & 1) == 0)
+                {
+                    sx -= deltaXBuffer[k];
+                    sy -= deltaYBuffer[k];
+                }
+                else
                 {
-                    Transform.mulToOutUnsafe(velocityTransform,
-                            positionBuffer.data[i], velocityBuffer.data[i]);
+                    sx += deltaXBuffer[k];
+                    sy += deltaYBuffer[k];
                 }
             }
+            accumulationBuffer[i] = w;
+            accumulation2XBuffer[i] = sx;
+            accumulation2YBuffer[i] = sy;
         }
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3543-L3583
+     * Apply the contact impulses to the particles in [start, end).
      */
-    void solveElastic(final TimeStep step)
+    void gatherContactDeltas(int start, int end)
     {
-        float elasticStrength = step.inverseDt * this.elasticStrength;
-        for (int k = 0; k < triadCount; k++)
+        for (int i = start; i < end; i++)
         {
-            final Triad triad = triadBuffer[k];
-            if ((triad.flags & ParticleType.elasticParticle) != 0)
+            float vx = velocityXBuffer[i];
+            float vy = velocityYBuffer[i];
+            for (int j = incidenceStartBuffer[i]; j < incidenceStartBuffer[i
+                    + 1]; j++)
             {
-                int a = triad.indexA;
-                int b = triad.indexB;
-                int c = triad.indexC;
-                final Vec2 oa = triad.pa;
-                final Vec2 ob = triad.pb;
-                final Vec2 oc = triad.pc;
-                final Vec2 pa = positionBuffer.data[a];
-                final Vec2 pb = positionBuffer.data[b];
-                final Vec2 pc = positionBuffer.data[c];
-                final float px = 1f / 3 * (pa.x + pb.x + pc.x);
-                final float py = 1f / 3 * (pa.y + pb.y + pc.y);
-                float rs = Vec2.cross(oa, pa) + Vec2.cross(ob, pb)
-                        + Vec2.cross(oc, pc);
-                float rc = Vec2.dot(oa, pa) + Vec2.dot(ob, pb)
-                        + Vec2.dot(oc, pc);
-                float r2 = rs * rs + rc * rc;
-                float invR = r2 == 0 ? Float.MAX_VALUE
-                        : MathUtils.sqrt(1f / r2);
-                rs *= invR;
-                rc *= invR;
-                final float strength = elasticStrength * triad.strength;
-                final float roax = rc * oa.x - rs * oa.y;
-                final float roay = rs * oa.x + rc * oa.y;
-                final float robx = rc * ob.x - rs * ob.y;
-                final float roby = rs * ob.x + rc * ob.y;
-                final float rocx = rc * oc.x - rs * oc.y;
-                final float rocy = rs * oc.x + rc * oc.y;
-                final Vec2 va = velocityBuffer.data[a];
-                final Vec2 vb = velocityBuffer.data[b];
-                final Vec2 vc = velocityBuffer.data[c];
-                va.x += strength * (roax - (pa.x - px));
-                va.y += strength * (roay - (pa.y - py));
-                vb.x += strength * (robx - (pb.x - px));
-                vb.y += strength * (roby - (pb.y - py));
-                vc.x += strength * (rocx - (pc.x - px));
-                vc.y += strength * (rocy - (pc.y - py));
+                final int k = incidenceBuffer[j] >> 1;
+                if ((incidenceBuffer[j] & 1) == 0)
+                {
+                    vx -= deltaXBuffer[k];
+                    vy -= deltaYBuffer[k];
+                }
+                else
+                {
+                    vx += deltaXBuffer[k];
+                    vy += deltaYBuffer[k];
+                }
             }
+            velocityXBuffer[i] = vx;
+            velocityYBuffer[i] = vy;
         }
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3585-L3610
+     * Apply the impulses of the contacts to their particles, in the order of
+     * the contacts.
      */
-    void solveSpring(final TimeStep step)
+    void applyContactDeltas(TimeStep step)
     {
-        float springStrength = step.inverseDt * this.springStrength;
-        for (int k = 0; k < pairCount; k++)
+        if (useWorkers(contactCount))
         {
-            final Pair pair = pairBuffer[k];
-            if ((pair.flags & ParticleType.springParticle) != 0)
-            {
-                int a = pair.indexA;
-                int b = pair.indexB;
-                final Vec2 pa = positionBuffer.data[a];
-                final Vec2 pb = positionBuffer.data[b];
-                final float dx = pb.x - pa.x;
-                final float dy = pb.y - pa.y;
-                float r0 = pair.distance;
-                float r1 = MathUtils.sqrt(dx * dx + dy * dy);
-                if (r1 == 0)
-                    r1 = Float.MAX_VALUE;
-                float strength = springStrength * pair.strength;
-                final float fx = strength * (r0 - r1) / r1 * dx;
-                final float fy = strength * (r0 - r1) / r1 * dy;
-                final Vec2 va = velocityBuffer.data[a];
-                final Vec2 vb = velocityBuffer.data[b];
-                va.x -= fx;
-                va.y -= fy;
-                vb.x += fx;
-                vb.y += fy;
-            }
+            updateIncidence();
+            runStage(STAGE_APPLY_DELTAS, 0, count, step);
+            return;
+        }
+        for (int k = 0; k < contactCount; k++)
+        {
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            velocityXBuffer[a] -= deltaXBuffer[k];
+            velocityYBuffer[a] -= deltaYBuffer[k];
+            velocityXBuffer[b] += deltaXBuffer[k];
+            velocityYBuffer[b] += deltaYBuffer[k];
         }
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3612-L3658
+     * Distribute the contacts to batches without a common particle. Each
+     * contact goes to the first batch that none of its particles is in yet.
      */
-    void solveTensile(final TimeStep step)
+    void updateBatches()
     {
-        accumulation2Buffer = requestParticleBuffer(Vec2.class,
-                accumulation2Buffer);
-        for (int i = 0; i < count; i++)
+        if (batchesValid)
         {
-            accumulationBuffer[i] = 0;
-            accumulation2Buffer[i].setZero();
+            return;
+        }
+        if (batchMaskBuffer == null || batchMaskBuffer.length < count)
+        {
+            batchMaskBuffer = new long[internalAllocatedCapacity];
+        }
+        if (batchContactBuffer == null
+                || batchContactBuffer.length < 2 * contactCount)
+        {
+            batchContactBuffer = new int[2 * contactCapacity];
         }
+        final long[] masks = batchMaskBuffer;
+        // the batch of each contact is kept in the upper half for now
+        final int[] batches = batchContactBuffer;
+        final int[] start = batchStartBuffer;
+        Arrays.fill(masks, 0, count, 0);
+        Arrays.fill(start, 0);
         for (int k = 0; k < contactCount; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            if ((contact.flags & ParticleType.tensileParticle) != 0)
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            final long free = ~(masks[a] | masks[b]);
+            int batch = MAX_BATCHES;
+            if (free != 0)
+            {
+                batch = Long.numberOfTrailingZeros(free);
+                masks[a] |= 1L << batch;
+                masks[b] |= 1L << batch;
+            }
+            batches[contactCount + k] = batch;
+            start[batch]++;
+        }
+        for (int i = 1; i <= MAX_BATCHES + 1; i++)
+        {
+            start[i] += start[i - 1];
+        }
+        // fill backwards so that the contacts of each batch are ascending
+        for (int k = contactCount - 1; k >= 0; k--)
+        {
+            batches[--start[batches[contactCount + k]]] = k;
+        }
+        batchesValid = true;
+    }
+
+    /**
+     * Solve the contacts batch by batch with a contact stage. The contacts of
+     * a batch are solved in parallel.
+     */
+    void solveContactBatches(int stage, TimeStep step)
+    {
+        updateBatches();
+        for (int i = 0; i < MAX_BATCHES; i++)
+        {
+            runStage(stage, batchStartBuffer[i], batchStartBuffer[i + 1],
+                    step);
+        }
+        runRange(stage, batchStartBuffer[MAX_BATCHES],
+                batchStartBuffer[MAX_BATCHES + 1], step);
+    }
+
+    /**
+     * Runs a stage of the solver over a slice of its items.
+     */
+    private class ParticleWorker implements Runnable
+    {
+        int stage;
+
+        int start;
+
+        int end;
+
+        TimeStep step;
+
+        public void run()
+        {
+            runRange(stage, start, end, step);
+        }
+    }
+
+    /**
+     * Apply gravity to the particles in [start, end) and limit their speed.
+     */
+    void applyGravity(TimeStep step, int start, int end)
+    {
+        final float gravityX = step.dt * gravityScale * world.getGravity().x;
+        final float gravityY = step.dt * gravityScale * world.getGravity().y;
+        float criticalVelocityYSquared = getCriticalVelocitySquared(step);
+        final float[] velocityX = velocityXBuffer;
+        final float[] velocityY = velocityYBuffer;
+        final float[] sleepTimes = sleepingCount > 0 ? sleepTimeBuffer : null;
+        for (int i = start; i < end; i++)
+        {
+            if (sleepTimes != null && sleepTimes[i] == ASLEEP)
+            {
+                continue;
+            }
+            final float vx = velocityX[i] + gravityX;
+            final float vy = velocityY[i] + gravityY;
+            float v2 = vx * vx + vy * vy;
+            if (v2 > criticalVelocityYSquared)
+            {
+                float a = v2 == 0 ? Float.MAX_VALUE
+                        : MathUtils.sqrt(criticalVelocityYSquared / v2);
+                velocityX[i] = vx * a;
+                velocityY[i] = vy * a;
+            }
+            else
+            {
+                velocityX[i] = vx;
+                velocityY[i] = vy;
+            }
+        }
+    }
+
+    /**
+     * Move the particles in [start, end) by their velocities.
+     */
+    void integratePositions(TimeStep step, int start, int end)
+    {
+        final float[] positionX = positionXBuffer;
+        final float[] positionY = positionYBuffer;
+        final float[] velocityX = velocityXBuffer;
+        final float[] velocityY = velocityYBuffer;
+        for (int i = start; i < end; i++)
+        {
+            positionX[i] += step.dt * velocityX[i];
+            positionY[i] += step.dt * velocityY[i];
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3195-L3258
+     */
+    void solvePressure(TimeStep step)
+    {
+        // calculates the sum of contact-weights for each particle
+        // that means dimensionless density
+        for (int i = 0; i < count; i++)
+        {
+            accumulationBuffer[i] = 0;
+        }
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            int a = bodyContactIndexBuffer[k];
+            float w = bodyContactWeightBuffer[k];
+            accumulationBuffer[a] += w;
+        }
+        if (useWorkers(contactCount))
+        {
+            updateIncidence();
+            runStage(STAGE_PRESSURE_WEIGHTS, 0, count, step);
+        }
+        else
+        {
+            for (int k = 0; k < contactCount; k++)
+            {
+                int a = contactIndexABuffer[k];
+                int b = contactIndexBBuffer[k];
+                float w = contactWeightBuffer[k];
+                accumulationBuffer[a] += w;
+                accumulationBuffer[b] += w;
+            }
+            computePressure(step, 0, count);
+        }
+        float pressurePerWeight = pressureStrength * getCriticalPressure(step);
+        // applies pressure between each particle in contact
+        float velocityPerPressure = step.dt / (density * particleDiameter);
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            int a = bodyContactIndexBuffer[k];
+            Body b = bodyContactBodyBuffer[k];
+            float w = bodyContactWeightBuffer[k];
+            float m = bodyContactMassBuffer[k];
+            final float nx = bodyContactNormalXBuffer[k];
+            final float ny = bodyContactNormalYBuffer[k];
+            final Vec2 p = tempVec2;
+            p.x = positionXBuffer[a];
+            p.y = positionYBuffer[a];
+            float h = accumulationBuffer[a] + pressurePerWeight * w;
+            final Vec2 f = tempVec;
+            final float coef = velocityPerPressure * w * m * h;
+            f.x = coef * nx;
+            f.y = coef * ny;
+            final float particleInvMass = getParticleInvMass();
+            velocityXBuffer[a] -= particleInvMass * f.x;
+            velocityYBuffer[a] -= particleInvMass * f.y;
+            b.applyLinearImpulse(f, p, true);
+        }
+        requestDeltaBuffers(contactCount);
+        runStage(STAGE_PRESSURE_DELTAS, 0, contactCount, step);
+        applyContactDeltas(step);
+    }
+
+    /**
+     * Turn the summed contact weights of the particles in [start, end) into
+     * pressures.
+     */
+    void computePressure(TimeStep step, int start, int end)
+    {
+        // ignores powder particles
+        if ((allParticleFlags & noPressureFlags) != 0)
+        {
+            for (int i = start; i < end; i++)
+            {
+                if ((flagsBuffer.data[i] & noPressureFlags) != 0)
+                {
+                    accumulationBuffer[i] = 0;
+                }
+            }
+        }
+        // calculates pressure as a linear function of density
+        float pressurePerWeight = pressureStrength * getCriticalPressure(step);
+        final float[] sleepWeights = sleepWeightBuffer;
+        for (int i = start; i < end; i++)
+        {
+            float w = accumulationBuffer[i];
+            if (sleepWeights != null && sleepTimeBuffer[i] == ASLEEP)
+            {
+                w += sleepWeights[i];
+            }
+            float h = pressurePerWeight * MathUtils.max(0.0f,
+                    MathUtils.min(w, Settings.maxParticleWeight)
+                            - Settings.minParticleWeight);
+            accumulationBuffer[i] = h;
+        }
+    }
+
+    /**
+     * Compute the pressure impulses of the contacts in [start, end).
+     */
+    void computePressureDeltas(TimeStep step, int start, int end)
+    {
+        float velocityPerPressure = step.dt / (density * particleDiameter);
+        for (int k = start; k < end; k++)
+        {
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            float w = contactWeightBuffer[k];
+            final float nx = contactNormalXBuffer[k];
+            final float ny = contactNormalYBuffer[k];
+            float h = accumulationBuffer[a] + accumulationBuffer[b];
+            deltaXBuffer[k] = velocityPerPressure * w * h * nx;
+            deltaYBuffer[k] = velocityPerPressure * w * h * ny;
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3260-L3304
+     */
+    void solveDamping(TimeStep step)
+    {
+        // reduces the normal velocity of each contact
+        float damping = dampingStrength;
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            int a = bodyContactIndexBuffer[k];
+            Body b = bodyContactBodyBuffer[k];
+            float w = bodyContactWeightBuffer[k];
+            float m = bodyContactMassBuffer[k];
+            final float nx = bodyContactNormalXBuffer[k];
+            final float ny = bodyContactNormalYBuffer[k];
+            final Vec2 p = tempVec2;
+            p.x = positionXBuffer[a];
+            p.y = positionYBuffer[a];
+            final float tempX = p.x - b.sweep.c.x;
+            final float tempY = p.y - b.sweep.c.y;
+            // getLinearVelocityFromWorldPointToOut, with -= velA
+            float vx = -b.angularVelocity * tempY + b.linearVelocity.x
+                    - velocityXBuffer[a];
+            float vy = b.angularVelocity * tempX + b.linearVelocity.y
+                    - velocityYBuffer[a];
+            // done
+            float vn = vx * nx + vy * ny;
+            if (vn < 0)
+            {
+                final Vec2 f = tempVec;
+                f.x = damping * w * m * vn * nx;
+                f.y = damping * w * m * vn * ny;
+                final float invMass = getParticleInvMass();
+                velocityXBuffer[a] += invMass * f.x;
+                velocityYBuffer[a] += invMass * f.y;
+                f.x = -f.x;
+                f.y = -f.y;
+                b.applyLinearImpulse(f, p, true);
+            }
+        }
+        if (useWorkers(contactCount))
+        {
+            solveContactBatches(STAGE_DAMPING, step);
+            return;
+        }
+        for (int k = 0; k < contactCount; k++)
+        {
+            solveDamping(k, damping);
+        }
+    }
+
+    private void solveDamping(int k, float damping)
+    {
+        int a = contactIndexABuffer[k];
+        int b = contactIndexBBuffer[k];
+        float w = contactWeightBuffer[k];
+        final float nx = contactNormalXBuffer[k];
+        final float ny = contactNormalYBuffer[k];
+        final float vx = velocityXBuffer[b] - velocityXBuffer[a];
+        final float vy = velocityYBuffer[b] - velocityYBuffer[a];
+        float vn = vx * nx + vy * ny;
+        if (vn < 0)
+        {
+            float fx = damping * w * vn * nx;
+            float fy = damping * w * vn * ny;
+            velocityXBuffer[a] += fx;
+            velocityYBuffer[a] += fy;
+            velocityXBuffer[b] -= fx;
+            velocityYBuffer[b] -= fy;
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3506-L3515
+     */
+    public void solveWall(TimeStep step)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if ((flagsBuffer.data[i] & ParticleType.wallParticle) != 0)
+            {
+                velocityXBuffer[i] = 0.0f;
+                velocityYBuffer[i] = 0.0f;
+            }
+        }
+    }
+
+    private final Vec2 tempVec2 = new Vec2();
+
+    private final Rot tempRot = new Rot();
+
+    private final Transform tempXf = new Transform();
+
+    private final Transform tempXf2 = new Transform();
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3517-L3541
+     */
+    void solveRigid(final TimeStep step)
+    {
+        for (ParticleGroup group = groupList; group != null; group = group
+                .getNext())
+        {
+            if ((group.groupFlags & ParticleGroupType.rigidParticleGroup) != 0)
+            {
+                group.updateStatistics();
+                Vec2 temp = tempVec;
+                Vec2 cross = tempVec2;
+                Rot rotation = tempRot;
+                rotation.set(step.dt * group.angularVelocity);
+                Rot.mulToOutUnsafe(rotation, group.center, cross);
+                temp.set(group.linearVelocity).mulLocal(step.dt)
+                        .addLocal(group.center).subLocal(cross);
+                tempXf.p.set(temp);
+                tempXf.q.set(rotation);
+                Transform.mulToOut(tempXf, group.transform, group.transform);
+                final Transform velocityTransform = tempXf2;
+                velocityTransform.p.x = step.inverseDt * tempXf.p.x;
+                velocityTransform.p.y = step.inverseDt * tempXf.p.y;
+                velocityTransform.q.s = step.inverseDt * tempXf.q.s;
+                velocityTransform.q.c = step.inverseDt * (tempXf.q.c - 1);
+                final Rot q = velocityTransform.q;
+                final Vec2 p = velocityTransform.p;
+                for (int i = group.firstIndex; i < group.lastIndex; i++)
+                {
+                    final float x = positionXBuffer[i];
+                    final float y = positionYBuffer[i];
+                    velocityXBuffer[i] = (q.c * x - q.s * y) + p.x;
+                    velocityYBuffer[i] = (q.s * x + q.c * y) + p.y;
+                }
+            }
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3543-L3583
+     */
+    void solveElastic(final TimeStep step)
+    {
+        requestDeltaBuffers(3 * triadCount);
+        runStage(STAGE_ELASTIC_DELTAS, 0, triadCount, step);
+        for (int k = 0; k < triadCount; k++)
+        {
+            final Triad triad = triadBuffer[k];
+            if ((triad.flags & ParticleType.elasticParticle) != 0)
+            {
+                velocityXBuffer[triad.indexA] += deltaXBuffer[3 * k];
+                velocityYBuffer[triad.indexA] += deltaYBuffer[3 * k];
+                velocityXBuffer[triad.indexB] += deltaXBuffer[3 * k + 1];
+                velocityYBuffer[triad.indexB] += deltaYBuffer[3 * k + 1];
+                velocityXBuffer[triad.indexC] += deltaXBuffer[3 * k + 2];
+                velocityYBuffer[triad.indexC] += deltaYBuffer[3 * k + 2];
+            }
+        }
+    }
+
+    /**
+     * Compute the elastic impulses of the triads in [start, end), three per
+     * triad.
+     */
+    void computeElasticDeltas(TimeStep step, int start, int end)
+    {
+        float elasticStrength = step.inverseDt * this.elasticStrength;
+        for (int k = start; k < end; k++)
+        {
+            final Triad triad = triadBuffer[k];
+            if ((triad.flags & ParticleType.elasticParticle) != 0)
+            {
+                int a = triad.indexA;
+                int b = triad.indexB;
+                int c = triad.indexC;
+                final Vec2 oa = triad.pa;
+                final Vec2 ob = triad.pb;
+                final Vec2 oc = triad.pc;
+                final float pax = positionXBuffer[a];
+                final float pay = positionYBuffer[a];
+                final float pbx = positionXBuffer[b];
+                final float pby = positionYBuffer[b];
+                final float pcx = positionXBuffer[c];
+                final float pcy = positionYBuffer[c];
+                final float px = 1f / 3 * (pax + pbx + pcx);
+                final float py = 1f / 3 * (pay + pby + pcy);
+                float rs = (oa.x * pay - oa.y * pax) + (ob.x * pby - ob.y * pbx)
+                        + (oc.x * pcy - oc.y * pcx);
+                float rc = (oa.x * pax + oa.y * pay) + (ob.x * pbx + ob.y * pby)
+                        + (oc.x * pcx + oc.y * pcy);
+                float r2 = rs * rs + rc * rc;
+                float invR = r2 == 0 ? Float.MAX_VALUE
+                        : MathUtils.sqrt(1f / r2);
+                rs *= invR;
+                rc *= invR;
+                final float strength = elasticStrength * triad.strength;
+                final float roax = rc * oa.x - rs * oa.y;
+                final float roay = rs * oa.x + rc * oa.y;
+                final float robx = rc * ob.x - rs * ob.y;
+                final float roby = rs * ob.x + rc * ob.y;
+                final float rocx = rc * oc.x - rs * oc.y;
+                final float rocy = rs * oc.x + rc * oc.y;
+                deltaXBuffer[3 * k] = strength * (roax - (pax - px));
+                deltaYBuffer[3 * k] = strength * (roay - (pay - py));
+                deltaXBuffer[3 * k + 1] = strength * (robx - (pbx - px));
+                deltaYBuffer[3 * k + 1] = strength * (roby - (pby - py));
+                deltaXBuffer[3 * k + 2] = strength * (rocx - (pcx - px));
+                deltaYBuffer[3 * k + 2] = strength * (rocy - (pcy - py));
+            }
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3585-L3610
+     */
+    void solveSpring(final TimeStep step)
+    {
+        requestDeltaBuffers(pairCount);
+        runStage(STAGE_SPRING_DELTAS, 0, pairCount, step);
+        for (int k = 0; k < pairCount; k++)
+        {
+            final Pair pair = pairBuffer[k];
+            if ((pair.flags & ParticleType.springParticle) != 0)
+            {
+                velocityXBuffer[pair.indexA] -= deltaXBuffer[k];
+                velocityYBuffer[pair.indexA] -= deltaYBuffer[k];
+                velocityXBuffer[pair.indexB] += deltaXBuffer[k];
+                velocityYBuffer[pair.indexB] += deltaYBuffer[k];
+            }
+        }
+    }
+
+    /**
+     * Compute the spring impulses of the pairs in [start, end).
+     */
+    void computeSpringDeltas(TimeStep step, int start, int end)
+    {
+        float springStrength = step.inverseDt * this.springStrength;
+        for (int k = start; k < end; k++)
+        {
+            final Pair pair = pairBuffer[k];
+            if ((pair.flags & ParticleType.springParticle) != 0)
+            {
+                int a = pair.indexA;
+                int b = pair.indexB;
+                final float dx = positionXBuffer[b] - positionXBuffer[a];
+                final float dy = positionYBuffer[b] - positionYBuffer[a];
+                float r0 = pair.distance;
+                float r1 = MathUtils.sqrt(dx * dx + dy * dy);
+                if (r1 == 0)
+                    r1 = Float.MAX_VALUE;
+                float strength = springStrength * pair.strength;
+                deltaXBuffer[k] = strength * (r0 - r1) / r1 * dx;
+                deltaYBuffer[k] = strength * (r0 - r1) / r1 * dy;
+            }
+        }
+    }
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3612-L3658
+     */
+    void solveTensile(final TimeStep step)
+    {
+        accumulation2XBuffer = requestParticleBuffer(accumulation2XBuffer);
+        accumulation2YBuffer = requestParticleBuffer(accumulation2YBuffer);
+        requestDeltaBuffers(contactCount);
+        runStage(STAGE_TENSILE_WEIGHTS, 0, contactCount, step);
+        if (useWorkers(contactCount))
+        {
+            updateIncidence();
+            runStage(STAGE_TENSILE_ACCUMULATION, 0, count, step);
+        }
+        else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                accumulationBuffer[i] = 0;
+                accumulation2XBuffer[i] = 0;
+                accumulation2YBuffer[i] = 0;
+            }
+            for (int k = 0; k < contactCount; k++)
+            {
+                int a = contactIndexABuffer[k];
+                int b = contactIndexBBuffer[k];
+                accumulationBuffer[a] += weightBuffer[k];
+                accumulationBuffer[b] += weightBuffer[k];
+                accumulation2XBuffer[a] -= deltaXBuffer[k];
+                accumulation2YBuffer[a] -= deltaYBuffer[k];
+                accumulation2XBuffer[b] += deltaXBuffer[k];
+                accumulation2YBuffer[b] += deltaYBuffer[k];
+            }
+        }
+        runStage(STAGE_TENSILE_DELTAS, 0, contactCount, step);
+        applyContactDeltas(step);
+    }
+
+    /**
+     * Compute the weights and the weighted normals of the tensile contacts in
+     * [start, end), which are summed up per particle.
+     */
+    void computeTensileWeights(int start, int end)
+    {
+        for (int k = start; k < end; k++)
+        {
+            if ((contactFlagsBuffer[k] & ParticleType.tensileParticle) != 0)
+            {
+                float w = contactWeightBuffer[k];
+                final float nx = contactNormalXBuffer[k];
+                final float ny = contactNormalYBuffer[k];
+                final float inter = (1 - w) * w;
+                weightBuffer[k] = w;
+                deltaXBuffer[k] = inter * nx;
+                deltaYBuffer[k] = inter * ny;
+            }
+            else
+            {
+                weightBuffer[k] = 0;
+                deltaXBuffer[k] = 0;
+                deltaYBuffer[k] = 0;
+            }
+        }
+    }
+
+    /**
+     * Compute the surface tension impulses of the contacts in [start, end).
+     */
+    void computeTensileDeltas(TimeStep step, int start, int end)
+    {
+        float strengthA = surfaceTensionStrengthA * getCriticalVelocity(step);
+        float strengthB = surfaceTensionStrengthB * getCriticalVelocity(step);
+        for (int k = start; k < end; k++)
+        {
+            if ((contactFlagsBuffer[k] & ParticleType.tensileParticle) != 0)
+            {
+                int a = contactIndexABuffer[k];
+                int b = contactIndexBBuffer[k];
+                float w = contactWeightBuffer[k];
+                final float nx = contactNormalXBuffer[k];
+                final float ny = contactNormalYBuffer[k];
+                float h = accumulationBuffer[a] + accumulationBuffer[b];
+                final float sx = accumulation2XBuffer[b]
+                        - accumulation2XBuffer[a];
+                final float sy = accumulation2YBuffer[b]
+                        - accumulation2YBuffer[a];
+                float fn = (strengthA * (h - 2)
+                        + strengthB * (sx * nx + sy * ny)) * w;
+                deltaXBuffer[k] = fn * nx;
+                deltaYBuffer[k] = fn * ny;
+            }
+            else
+            {
+                deltaXBuffer[k] = 0;
+                deltaYBuffer[k] = 0;
+            }
+        }
+    }
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3660-L3694
+     */
+    void solveViscous(final TimeStep step)
+    {
+        float viscousStrength = this.viscousStrength;
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            int a = bodyContactIndexBuffer[k];
+            if ((flagsBuffer.data[a] & ParticleType.viscousParticle) != 0)
+            {
+                Body b = bodyContactBodyBuffer[k];
+                float w = bodyContactWeightBuffer[k];
+                float m = bodyContactMassBuffer[k];
+                final Vec2 p = tempVec2;
+                p.x = positionXBuffer[a];
+                p.y = positionYBuffer[a];
+                final float tempX = p.x - b.sweep.c.x;
+                final float tempY = p.y - b.sweep.c.y;
+                final float vx = -b.angularVelocity * tempY + b.linearVelocity.x
+                        - velocityXBuffer[a];
+                final float vy = b.angularVelocity * tempX + b.linearVelocity.y
+                        - velocityYBuffer[a];
+                final Vec2 f = tempVec;
+                final float pInvMass = getParticleInvMass();
+                f.x = viscousStrength * m * w * vx;
+                f.y = viscousStrength * m * w * vy;
+                velocityXBuffer[a] += pInvMass * f.x;
+                velocityYBuffer[a] += pInvMass * f.y;
+                f.x = -f.x;
+                f.y = -f.y;
+                b.applyLinearImpulse(f, p, true);
+            }
+        }
+        if (useWorkers(contactCount))
+        {
+            solveContactBatches(STAGE_VISCOUS, step);
+            return;
+        }
+        for (int k = 0; k < contactCount; k++)
+        {
+            solveViscous(k, viscousStrength);
+        }
+    }
+
+    private void solveViscous(int k, float viscousStrength)
+    {
+        if ((contactFlagsBuffer[k] & ParticleType.viscousParticle) != 0)
+        {
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            float w = contactWeightBuffer[k];
+            final float vx = velocityXBuffer[b] - velocityXBuffer[a];
+            final float vy = velocityYBuffer[b] - velocityYBuffer[a];
+            final float fx = viscousStrength * w * vx;
+            final float fy = viscousStrength * w * vy;
+            velocityXBuffer[a] += fx;
+            velocityYBuffer[a] += fy;
+            velocityXBuffer[b] -= fx;
+            velocityYBuffer[b] -= fy;
+        }
+    }
+
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3719-L3740
+     */
+    void solvePowder(final TimeStep step)
+    {
+        float powderStrength = this.powderStrength * getCriticalVelocity(step);
+        float minWeight = 1.0f - Settings.particleStride;
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            int a = bodyContactIndexBuffer[k];
+            if ((flagsBuffer.data[a] & ParticleType.powderParticle) != 0)
+            {
+                float w = bodyContactWeightBuffer[k];
+                if (w > minWeight)
+                {
+                    Body b = bodyContactBodyBuffer[k];
+                    float m = bodyContactMassBuffer[k];
+                    final Vec2 p = tempVec2;
+                    p.x = positionXBuffer[a];
+                    p.y = positionYBuffer[a];
+                    final float nx = bodyContactNormalXBuffer[k];
+                    final float ny = bodyContactNormalYBuffer[k];
+                    final Vec2 f = tempVec;
+                    final float inter = powderStrength * m * (w - minWeight);
+                    final float pInvMass = getParticleInvMass();
+                    f.x = inter * nx;
+                    f.y = inter * ny;
+                    velocityXBuffer[a] -= pInvMass * f.x;
+                    velocityYBuffer[a] -= pInvMass * f.y;
+                    b.applyLinearImpulse(f, p, true);
+                }
+            }
+        }
+        requestDeltaBuffers(contactCount);
+        runStage(STAGE_POWDER_DELTAS, 0, contactCount, step);
+        applyContactDeltas(step);
+    }
+
+    /**
+     * Compute the powder impulses of the contacts in [start, end).
+     */
+    void computePowderDeltas(TimeStep step, int start, int end)
+    {
+        float powderStrength = this.powderStrength * getCriticalVelocity(step);
+        float minWeight = 1.0f - Settings.particleStride;
+        for (int k = start; k < end; k++)
+        {
+            float w = contactWeightBuffer[k];
+            if ((contactFlagsBuffer[k] & ParticleType.powderParticle) != 0
+                    && w > minWeight)
+            {
+                final float nx = contactNormalXBuffer[k];
+                final float ny = contactNormalYBuffer[k];
+                final float inter = powderStrength * (w - minWeight);
+                deltaXBuffer[k] = inter * nx;
+                deltaYBuffer[k] = inter * ny;
+            }
+            else
+            {
+                deltaXBuffer[k] = 0;
+                deltaYBuffer[k] = 0;
+            }
+        }
+    }
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3742-L3762
+     */
+    void solveSolid(final TimeStep step)
+    {
+        // applies extra repulsive force from solid particle groups
+        depthBuffer = requestParticleBuffer(depthBuffer);
+        requestDeltaBuffers(contactCount);
+        runStage(STAGE_SOLID_DELTAS, 0, contactCount, step);
+        applyContactDeltas(step);
+    }
+
+    /**
+     * Compute the ejection impulses of the contacts in [start, end).
+     */
+    void computeSolidDeltas(TimeStep step, int start, int end)
+    {
+        float ejectionStrength = step.inverseDt * this.ejectionStrength;
+        for (int k = start; k < end; k++)
+        {
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            if (groupBuffer[a] != groupBuffer[b])
+            {
+                float w = contactWeightBuffer[k];
+                final float nx = contactNormalXBuffer[k];
+                final float ny = contactNormalYBuffer[k];
+                float h = depthBuffer[a] + depthBuffer[b];
+                final float inter = ejectionStrength * h * w;
+                deltaXBuffer[k] = inter * nx;
+                deltaYBuffer[k] = inter * ny;
+            }
+            else
+            {
+                deltaXBuffer[k] = 0;
+                deltaYBuffer[k] = 0;
+            }
+        }
+    }
+    /**
+     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3774-L3796
+     */
+    void solveColorMixing(final TimeStep step)
+    {
+        // mixes color between contacting particles
+        requestColorValueBuffer();
+        final int[] colors = colorValueBuffer;
+        int colorMixing256 = (int) (256 * colorMixingStrength);
+        for (int k = 0; k < contactCount; k++)
+        {
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            if ((flagsBuffer.data[a] & flagsBuffer.data[b]
+                    & ParticleType.colorMixingParticle) != 0)
+            {
+                final int colorA = colors[a];
+                final int colorB = colors[b];
+                final int ra = (colorA >> 16) & 0xFF;
+                final int ga = (colorA >> 8) & 0xFF;
+                final int ba = colorA & 0xFF;
+                final int aa = colorA >>> 24;
+                final int rb = (colorB >> 16) & 0xFF;
+                final int gb = (colorB >> 8) & 0xFF;
+                final int bb = colorB & 0xFF;
+                final int ab = colorB >>> 24;
+                int dr = (colorMixing256 * (rb - ra)) >> 8;
+                int dg = (colorMixing256 * (gb - ga)) >> 8;
+                int db = (colorMixing256 * (bb - ba)) >> 8;
+                int da = (colorMixing256 * (ab - aa)) >> 8;
+                // The channels wrap around like the bytes of a ParticleColor.
+                colors[a] = ParticleColor.toArgb(ra + dr, ga + dg, ba + db,
+                        aa + da);
+                colors[b] = ParticleColor.toArgb(rb - dr, gb - dg, bb - db,
+                        ab - da);
+            }
+        }
+    }
+
+    /**
+     * Destroy the particles whose lifetime has ended. Only the buckets of the
+     * ticks that passed in this step are visited, so the cost depends on the
+     * number of expiring particles rather than on the number of particles.
+     */
+    void solveLifetimes(TimeStep step)
+    {
+        if (!expiryValid)
+        {
+            rebuildExpiryQueue();
+        }
+        timeElapsed += step.dt;
+        final int tick = (int) (timeElapsed / LIFETIME_GRANULARITY);
+        final int ticks = MathUtils.min(tick - expiredTick, EXPIRY_BUCKETS);
+        final int[] expirationTicks = expirationTickBuffer;
+        for (int t = tick - ticks + 1; t <= tick; t++)
+        {
+            int i = expiryBuckets[t & (EXPIRY_BUCKETS - 1)];
+            while (i != Settings.invalidParticleIndex)
+            {
+                final int next = expiryNextBuffer[i];
+                // the bucket also holds particles of later rounds
+                if (expirationTicks[i] <= tick)
+                {
+                    unlinkExpiry(i);
+                    expirationTicks[i] = 0;
+                    destroyParticle(i, false);
+                    allParticleFlags |= ParticleType.zombieParticle;
+                }
+                i = next;
+            }
+        }
+        expiredTick = tick;
+    }
+
+    private void rebuildExpiryQueue()
+    {
+        if (expiryBuckets == null)
+        {
+            expiryBuckets = new int[EXPIRY_BUCKETS];
+        }
+        Arrays.fill(expiryBuckets, Settings.invalidParticleIndex);
+        for (int i = 0; i < count; i++)
+        {
+            if (expirationTickBuffer[i] != 0)
+            {
+                linkExpiry(i);
+            }
+        }
+        expiryValid = true;
+    }
+
+    private void linkExpiry(int index)
+    {
+        final int bucket = expirationTickBuffer[index] & (EXPIRY_BUCKETS - 1);
+        final int head = expiryBuckets[bucket];
+        expiryNextBuffer[index] = head;
+        expiryPrevBuffer[index] = Settings.invalidParticleIndex;
+        if (head != Settings.invalidParticleIndex)
+        {
+            expiryPrevBuffer[head] = index;
+        }
+        expiryBuckets[bucket] = index;
+    }
+
+    private void unlinkExpiry(int index)
+    {
+        final int next = expiryNextBuffer[index];
+        final int prev = expiryPrevBuffer[index];
+        if (prev != Settings.invalidParticleIndex)
+        {
+            expiryNextBuffer[prev] = next;
+        }
+        else
+        {
+            expiryBuckets[expirationTickBuffer[index]
+                    & (EXPIRY_BUCKETS - 1)] = next;
+        }
+        if (next != Settings.invalidParticleIndex)
+        {
+            expiryPrevBuffer[next] = prev;
+        }
+    }
+
+    /**
+     * Move the expiry of a particle to another index, keeping its place in
+     * the queue.
+     */
+    private void moveExpiry(int from, int to)
+    {
+        final int tick = expirationTickBuffer[from];
+        expirationTickBuffer[to] = tick;
+        if (tick == 0 || !expiryValid)
+        {
+            return;
+        }
+        final int next = expiryNextBuffer[from];
+        final int prev = expiryPrevBuffer[from];
+        expiryNextBuffer[to] = next;
+        expiryPrevBuffer[to] = prev;
+        if (prev != Settings.invalidParticleIndex)
+        {
+            expiryNextBuffer[prev] = to;
+        }
+        else
+        {
+            expiryBuckets[tick & (EXPIRY_BUCKETS - 1)] = to;
+        }
+        if (next != Settings.invalidParticleIndex)
+        {
+            expiryPrevBuffer[next] = to;
+        }
+    }
+
+    /**
+     * Remove the zombie particles by moving the last particles into their
+     * places. Unlike {@link #solveZombie()}, only the moved particles and the
+     * entries that refer to them or to the zombies are rewritten. The order of
+     * the particles is not kept, so this is only done if neither the zombies
+     * nor the moved particles belong to a group.
+     *
+     * @return Whether the zombies have been removed.
+     */
+    boolean solveZombieBySwap()
+    {
+        final int[] flags = flagsBuffer.data;
+        if (zombieIndexBuffer == null || zombieIndexBuffer.length < count)
+        {
+            zombieIndexBuffer = new int[internalAllocatedCapacity];
+            zombieMoveBuffer = new int[internalAllocatedCapacity];
+        }
+        final int[] zombies = zombieIndexBuffer;
+        int zombieCount = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if ((flags[i] & ParticleType.zombieParticle) != 0)
+            {
+                if (groupBuffer[i] != null)
+                {
+                    return false;
+                }
+                zombies[zombieCount++] = i;
+            }
+        }
+        final int newCount = count - zombieCount;
+        for (int i = newCount; i < count; i++)
+        {
+            if (groupBuffer[i] != null)
+            {
+                return false;
+            }
+        }
+        // the last particles fill the places of the zombies in front of them,
+        // the zombies among them are dropped
+        final int[] moves = zombieMoveBuffer;
+        int hole = 0;
+        for (int i = newCount; i < count; i++)
+        {
+            moves[i - newCount] = (flags[i] & ParticleType.zombieParticle) != 0
+                    ? Settings.invalidParticleIndex
+                    : zombies[hole++];
+        }
+        ParticleDestructionListener destructionListener = world
+                .getParticleDestructionListener();
+        for (int k = 0; k < zombieCount; k++)
+        {
+            final int i = zombies[k];
+            if ((flags[i] & ParticleType.destructionListener) != 0
+                    && destructionListener != null)
+            {
+                destructionListener.sayGoodbye(i);
+            }
+            if (sleepTimeBuffer != null && sleepTimeBuffer[i] == ASLEEP)
+            {
+                sleepingCount--;
+            }
+            if (expirationTickBuffer != null && expiryValid
+                    && expirationTickBuffer[i] != 0)
+            {
+                unlinkExpiry(i);
+            }
+        }
+        // update proxies, keeping them sorted
+        int j = 0;
+        for (int k = 0; k < proxyCount; k++)
+        {
+            final int index = getSwappedIndex(proxyIndexBuffer[k], newCount);
+            if (index >= 0)
+            {
+                proxyTagBuffer[j] = proxyTagBuffer[k];
+                proxyIndexBuffer[j] = index;
+                j++;
+            }
+        }
+        proxyCount = j;
+        // update contacts
+        j = contactCount;
+        for (int k = 0; k < j; k++)
+        {
+            final int a = getSwappedIndex(contactIndexABuffer[k], newCount);
+            final int b = getSwappedIndex(contactIndexBBuffer[k], newCount);
+            if (a < 0 || b < 0)
+            {
+                --j;
+                moveContact(j, k);
+                --k;
+            }
+            else
             {
-                int a = contact.indexA;
-                int b = contact.indexB;
-                float w = contact.weight;
-                Vec2 n = contact.normal;
-                accumulationBuffer[a] += w;
-                accumulationBuffer[b] += w;
-                final Vec2 a2A = accumulation2Buffer[a];
-                final Vec2 a2B = accumulation2Buffer[b];
-                final float inter = (1 - w) * w;
-                a2A.x -= inter * n.x;
-                a2A.y -= inter * n.y;
-                a2B.x += inter * n.x;
-                a2B.y += inter * n.y;
+                contactIndexABuffer[k] = a;
+                contactIndexBBuffer[k] = b;
             }
         }
-        float strengthA = surfaceTensionStrengthA * getCriticalVelocity(step);
-        float strengthB = surfaceTensionStrengthB * getCriticalVelocity(step);
-        for (int k = 0; k < contactCount; k++)
+        contactCount = j;
+        // update particle-body contacts
+        j = bodyContactCount;
+        for (int k = 0; k < j; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            if ((contact.flags & ParticleType.tensileParticle) != 0)
-            {
-                int a = contact.indexA;
-                int b = contact.indexB;
-                float w = contact.weight;
-                Vec2 n = contact.normal;
-                final Vec2 a2A = accumulation2Buffer[a];
-                final Vec2 a2B = accumulation2Buffer[b];
-                float h = accumulationBuffer[a] + accumulationBuffer[b];
-                final float sx = a2B.x - a2A.x;
-                final float sy = a2B.y - a2A.y;
-                float fn = (strengthA * (h - 2)
-                        + strengthB * (sx * n.x + sy * n.y)) * w;
-                final float fx = fn * n.x;
-                final float fy = fn * n.y;
-                final Vec2 va = velocityBuffer.data[a];
-                final Vec2 vb = velocityBuffer.data[b];
-                va.x -= fx;
-                va.y -= fy;
-                vb.x += fx;
-                vb.y += fy;
+            final int a = getSwappedIndex(bodyContactIndexBuffer[k], newCount);
+            if (a < 0)
+            {
+                --j;
+                moveBodyContact(j, k);
+                --k;
+            }
+            else
+            {
+                bodyContactIndexBuffer[k] = a;
             }
         }
-    }
-
-    /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3660-L3694
-     */
-    void solveViscous(final TimeStep step)
-    {
-        float viscousStrength = this.viscousStrength;
-        for (int k = 0; k < bodyContactCount; k++)
+        bodyContactCount = j;
+        // update the neighbor list, which stays valid
+        if (neighborsValid)
         {
-            final ParticleBodyContact contact = bodyContactBuffer[k];
-            int a = contact.index;
-            if ((flagsBuffer.data[a] & ParticleType.viscousParticle) != 0)
+            final int[] neighbors = neighborBuffer;
+            j = neighborCount;
+            for (int k = 0; k < j; k++)
             {
-                Body b = contact.body;
-                float w = contact.weight;
-                float m = contact.mass;
-                Vec2 p = positionBuffer.data[a];
-                final Vec2 va = velocityBuffer.data[a];
-                final float tempX = p.x - b.sweep.c.x;
-                final float tempY = p.y - b.sweep.c.y;
-                final float vx = -b.angularVelocity * tempY + b.linearVelocity.x
-                        - va.x;
-                final float vy = b.angularVelocity * tempX + b.linearVelocity.y
-                        - va.y;
-                final Vec2 f = tempVec;
-                final float pInvMass = getParticleInvMass();
-                f.x = viscousStrength * m * w * vx;
-                f.y = viscousStrength * m * w * vy;
-                va.x += pInvMass * f.x;
-                va.y += pInvMass * f.y;
-                f.x = -f.x;
-                f.y = -f.y;
-                b.applyLinearImpulse(f, p, true);
+                final int a = getSwappedIndex(neighbors[2 * k], newCount);
+                final int b = getSwappedIndex(neighbors[2 * k + 1], newCount);
+                if (a < 0 || b < 0)
+                {
+                    --j;
+                    neighbors[2 * k] = neighbors[2 * j];
+                    neighbors[2 * k + 1] = neighbors[2 * j + 1];
+                    --k;
+                }
+                else
+                {
+                    neighbors[2 * k] = a;
+                    neighbors[2 * k + 1] = b;
+                }
             }
+            neighborCount = j;
         }
-        for (int k = 0; k < contactCount; k++)
+        // update pairs and triads of particles whose group was destroyed
+        j = pairCount;
+        for (int k = 0; k < j; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            if ((contact.flags & ParticleType.viscousParticle) != 0)
+            Pair pair = pairBuffer[k];
+            pair.indexA = getSwappedIndex(pair.indexA, newCount);
+            pair.indexB = getSwappedIndex(pair.indexB, newCount);
+            if (Test.IsPairInvalid(pair))
             {
-                int a = contact.indexA;
-                int b = contact.indexB;
-                float w = contact.weight;
-                final Vec2 va = velocityBuffer.data[a];
-                final Vec2 vb = velocityBuffer.data[b];
-                final float vx = vb.x - va.x;
-                final float vy = vb.y - va.y;
-                final float fx = viscousStrength * w * vx;
-                final float fy = viscousStrength * w * vy;
-                va.x += fx;
-                va.y += fy;
-                vb.x -= fx;
-                vb.y -= fy;
+                --j;
+                pairBuffer[k] = pairBuffer[j];
+                pairBuffer[j] = pair;
+                --k;
             }
         }
-    }
-
-    /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3719-L3740
-     */
-    void solvePowder(final TimeStep step)
-    {
-        float powderStrength = this.powderStrength * getCriticalVelocity(step);
-        float minWeight = 1.0f - Settings.particleStride;
-        for (int k = 0; k < bodyContactCount; k++)
+        pairCount = j;
+        j = triadCount;
+        for (int k = 0; k < j; k++)
         {
-            final ParticleBodyContact contact = bodyContactBuffer[k];
-            int a = contact.index;
-            if ((flagsBuffer.data[a] & ParticleType.powderParticle) != 0)
+            Triad triad = triadBuffer[k];
+            triad.indexA = getSwappedIndex(triad.indexA, newCount);
+            triad.indexB = getSwappedIndex(triad.indexB, newCount);
+            triad.indexC = getSwappedIndex(triad.indexC, newCount);
+            if (Test.IsTriadInvalid(triad))
             {
-                float w = contact.weight;
-                if (w > minWeight)
-                {
-                    Body b = contact.body;
-                    float m = contact.mass;
-                    Vec2 p = positionBuffer.data[a];
-                    Vec2 n = contact.normal;
-                    final Vec2 f = tempVec;
-                    final Vec2 va = velocityBuffer.data[a];
-                    final float inter = powderStrength * m * (w - minWeight);
-                    final float pInvMass = getParticleInvMass();
-                    f.x = inter * n.x;
-                    f.y = inter * n.y;
-                    va.x -= pInvMass * f.x;
-                    va.y -= pInvMass * f.y;
-                    b.applyLinearImpulse(f, p, true);
-                }
+                --j;
+                triadBuffer[k] = triadBuffer[j];
+                triadBuffer[j] = triad;
+                --k;
             }
         }
-        for (int k = 0; k < contactCount; k++)
+        triadCount = j;
+        for (int i = newCount; i < count; i++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            if ((contact.flags & ParticleType.powderParticle) != 0)
+            final int to = moves[i - newCount];
+            if (to >= 0)
             {
-                float w = contact.weight;
-                if (w > minWeight)
-                {
-                    int a = contact.indexA;
-                    int b = contact.indexB;
-                    Vec2 n = contact.normal;
-                    final Vec2 va = velocityBuffer.data[a];
-                    final Vec2 vb = velocityBuffer.data[b];
-                    final float inter = powderStrength * (w - minWeight);
-                    final float fx = inter * n.x;
-                    final float fy = inter * n.y;
-                    va.x -= fx;
-                    va.y -= fy;
-                    vb.x += fx;
-                    vb.y += fy;
-                }
+                moveParticle(i, to);
             }
         }
+        count = newCount;
+        return true;
     }
 
     /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3742-L3762
+     * The index of a particle after {@link #solveZombieBySwap()}, or
+     * {@link Settings#invalidParticleIndex} for a zombie.
      */
-    void solveSolid(final TimeStep step)
+    private int getSwappedIndex(int index, int newCount)
     {
-        // applies extra repulsive force from solid particle groups
-        depthBuffer = requestParticleBuffer(depthBuffer);
-        float ejectionStrength = step.inverseDt * this.ejectionStrength;
-        for (int k = 0; k < contactCount; k++)
+        if (index >= newCount)
         {
-            final ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            if (groupBuffer[a] != groupBuffer[b])
-            {
-                float w = contact.weight;
-                Vec2 n = contact.normal;
-                float h = depthBuffer[a] + depthBuffer[b];
-                final Vec2 va = velocityBuffer.data[a];
-                final Vec2 vb = velocityBuffer.data[b];
-                final float inter = ejectionStrength * h * w;
-                final float fx = inter * n.x;
-                final float fy = inter * n.y;
-                va.x -= fx;
-                va.y -= fy;
-                vb.x += fx;
-                vb.y += fy;
-            }
+            return zombieMoveBuffer[index - newCount];
         }
+        return (flagsBuffer.data[index] & ParticleType.zombieParticle) != 0
+                ? Settings.invalidParticleIndex
+                : index;
     }
 
-    /**
-     * @repolink https://github.com/google/liquidfun/blob/7f20402173fd143a3988c921bc384459c6a858f2/liquidfun/Box2D/Box2D/Particle/b2ParticleSystem.cpp#L3774-L3796
-     */
-    void solveColorMixing(final TimeStep step)
+    private void moveParticle(int from, int to)
     {
-        // mixes color between contacting particles
-        colorBuffer.data = requestParticleBuffer(ParticleColor.class,
-                colorBuffer.data);
-        int colorMixing256 = (int) (256 * colorMixingStrength);
-        for (int k = 0; k < contactCount; k++)
+        markDirty(to, to + 1);
+        flagsBuffer.data[to] = flagsBuffer.data[from];
+        positionXBuffer[to] = positionXBuffer[from];
+        positionYBuffer[to] = positionYBuffer[from];
+        velocityXBuffer[to] = velocityXBuffer[from];
+        velocityYBuffer[to] = velocityYBuffer[from];
+        groupBuffer[to] = groupBuffer[from];
+        if (depthBuffer != null)
         {
-            final ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            if ((flagsBuffer.data[a] & flagsBuffer.data[b]
-                    & ParticleType.colorMixingParticle) != 0)
-            {
-                ParticleColor colorA = colorBuffer.data[a];
-                ParticleColor colorB = colorBuffer.data[b];
-                int dr = (colorMixing256
-                        * ((colorB.r & 0xFF) - (colorA.r & 0xFF))) >> 8;
-                int dg = (colorMixing256
-                        * ((colorB.g & 0xFF) - (colorA.g & 0xFF))) >> 8;
-                int db = (colorMixing256
-                        * ((colorB.b & 0xFF) - (colorA.b & 0xFF))) >> 8;
-                int da = (colorMixing256
-                        * ((colorB.a & 0xFF) - (colorA.a & 0xFF))) >> 8;
-                colorA.r += (byte) dr;
-                colorA.g += (byte) dg;
-                colorA.b += (byte) db;
-                colorA.a += (byte) da;
-                colorB.r -= (byte) dr;
-                colorB.g -= (byte) dg;
-                colorB.b -= (byte) db;
-                colorB.a -= (byte) da;
-            }
+            depthBuffer[to] = depthBuffer[from];
+        }
+        if (colorValueBuffer != null)
+        {
+            colorValueBuffer[to] = colorValueBuffer[from];
+        }
+        if (sleepTimeBuffer != null)
+        {
+            sleepTimeBuffer[to] = sleepTimeBuffer[from];
+            sleepPositionXBuffer[to] = sleepPositionXBuffer[from];
+            sleepPositionYBuffer[to] = sleepPositionYBuffer[from];
+            sleepWeightBuffer[to] = sleepWeightBuffer[from];
+        }
+        if (expirationTickBuffer != null)
+        {
+            moveExpiry(from, to);
+        }
+        if (neighborsValid)
+        {
+            neighborPositionXBuffer[to] = neighborPositionXBuffer[from];
+            neighborPositionYBuffer[to] = neighborPositionYBuffer[from];
+        }
+        if (userDataBuffer.data != null)
+        {
+            userDataBuffer.data[to] = userDataBuffer.data[from];
         }
     }
 
@@ -1494,6 +3447,8 @@ public class ParticleSystem
      */
     void solveZombie()
     {
+        neighborsValid = false;
+        expiryValid = false;
         // removes particles with a zombie flag
         int newCount = 0;
         int[] newIndices = new int[count];
@@ -1509,6 +3464,10 @@ public class ParticleSystem
                 {
                     destructionListener.sayGoodbye(i);
                 }
+                if (sleepTimeBuffer != null && sleepTimeBuffer[i] == ASLEEP)
+                {
+                    sleepingCount--;
+                }
                 newIndices[i] = Settings.invalidParticleIndex;
             }
             else
@@ -1516,17 +3475,32 @@ public class ParticleSystem
                 newIndices[i] = newCount;
                 if (i != newCount)
                 {
+                    markDirty(newCount, newCount + 1);
                     flagsBuffer.data[newCount] = flagsBuffer.data[i];
-                    positionBuffer.data[newCount].set(positionBuffer.data[i]);
-                    velocityBuffer.data[newCount].set(velocityBuffer.data[i]);
+                    positionXBuffer[newCount] = positionXBuffer[i];
+                    positionYBuffer[newCount] = positionYBuffer[i];
+                    velocityXBuffer[newCount] = velocityXBuffer[i];
+                    velocityYBuffer[newCount] = velocityYBuffer[i];
                     groupBuffer[newCount] = groupBuffer[i];
                     if (depthBuffer != null)
                     {
                         depthBuffer[newCount] = depthBuffer[i];
                     }
-                    if (colorBuffer.data != null)
+                    if (colorValueBuffer != null)
+                    {
+                        colorValueBuffer[newCount] = colorValueBuffer[i];
+                    }
+                    if (sleepTimeBuffer != null)
                     {
-                        colorBuffer.data[newCount].set(colorBuffer.data[i]);
+                        sleepTimeBuffer[newCount] = sleepTimeBuffer[i];
+                        sleepPositionXBuffer[newCount] = sleepPositionXBuffer[i];
+                        sleepPositionYBuffer[newCount] = sleepPositionYBuffer[i];
+                        sleepWeightBuffer[newCount] = sleepWeightBuffer[i];
+                    }
+                    if (expirationTickBuffer != null)
+                    {
+                        expirationTickBuffer[newCount] =
+                                expirationTickBuffer[i];
                     }
                     if (userDataBuffer.data != null)
                     {
@@ -1536,35 +3510,24 @@ public class ParticleSystem
                 newCount++;
             }
         }
-        // update proxies
+        // update proxies, keeping them sorted
+        int j = 0;
         for (int k = 0; k < proxyCount; k++)
         {
-            Proxy proxy = proxyBuffer[k];
-            proxy.index = newIndices[proxy.index];
-        }
-        // Proxy lastProxy = std.remove_if(
-        // proxyBuffer, proxyBuffer + proxyCount,
-        // Test.IsProxyInvalid);
-        // proxyCount = (int) (lastProxy - proxyBuffer);
-        int j = proxyCount;
-        for (int i = 0; i < j; i++)
-        {
-            if (Test.IsProxyInvalid(proxyBuffer[i]))
+            final int index = newIndices[proxyIndexBuffer[k]];
+            if (index >= 0)
             {
-                --j;
-                Proxy temp = proxyBuffer[j];
-                proxyBuffer[j] = proxyBuffer[i];
-                proxyBuffer[i] = temp;
-                --i;
+                proxyTagBuffer[j] = proxyTagBuffer[k];
+                proxyIndexBuffer[j] = index;
+                j++;
             }
         }
         proxyCount = j;
         // update contacts
         for (int k = 0; k < contactCount; k++)
         {
-            ParticleContact contact = contactBuffer[k];
-            contact.indexA = newIndices[contact.indexA];
-            contact.indexB = newIndices[contact.indexB];
+            contactIndexABuffer[k] = newIndices[contactIndexABuffer[k]];
+            contactIndexBBuffer[k] = newIndices[contactIndexBBuffer[k]];
         }
         // ParticleContact lastContact = std.remove_if(
         // contactBuffer, contactBuffer + contactCount,
@@ -1573,12 +3536,10 @@ public class ParticleSystem
         j = contactCount;
         for (int i = 0; i < j; i++)
         {
-            if (Test.IsContactInvalid(contactBuffer[i]))
+            if (contactIndexABuffer[i] < 0 || contactIndexBBuffer[i] < 0)
             {
                 --j;
-                ParticleContact temp = contactBuffer[j];
-                contactBuffer[j] = contactBuffer[i];
-                contactBuffer[i] = temp;
+                moveContact(j, i);
                 --i;
             }
         }
@@ -1586,8 +3547,7 @@ public class ParticleSystem
         // update particle-body contacts
         for (int k = 0; k < bodyContactCount; k++)
         {
-            ParticleBodyContact contact = bodyContactBuffer[k];
-            contact.index = newIndices[contact.index];
+            bodyContactIndexBuffer[k] = newIndices[bodyContactIndexBuffer[k]];
         }
         // ParticleBodyContact lastBodyContact = std.remove_if(
         // bodyContactBuffer, bodyContactBuffer + bodyContactCount,
@@ -1596,12 +3556,10 @@ public class ParticleSystem
         j = bodyContactCount;
         for (int i = 0; i < j; i++)
         {
-            if (Test.IsBodyContactInvalid(bodyContactBuffer[i]))
+            if (bodyContactIndexBuffer[i] < 0)
             {
                 --j;
-                ParticleBodyContact temp = bodyContactBuffer[j];
-                bodyContactBuffer[j] = bodyContactBuffer[i];
-                bodyContactBuffer[i] = temp;
+                moveBodyContact(j, i);
                 --i;
             }
         }
@@ -1676,43 +3634,360 @@ public class ParticleSystem
             }
             if (firstIndex < lastIndex)
             {
-                group.firstIndex = firstIndex;
-                group.lastIndex = lastIndex;
-                if (modified)
-                {
-                    if ((group.groupFlags
-                            & ParticleGroupType.rigidParticleGroup) != 0)
-                    {
-                        group.toBeSplit = true;
-                    }
-                }
+                group.firstIndex = firstIndex;
+                group.lastIndex = lastIndex;
+                if (modified)
+                {
+                    if ((group.groupFlags
+                            & ParticleGroupType.rigidParticleGroup) != 0)
+                    {
+                        group.toBeSplit = true;
+                    }
+                }
+            }
+            else
+            {
+                group.firstIndex = 0;
+                group.lastIndex = 0;
+                if (group.destroyAutomatically)
+                {
+                    group.toBeDestroyed = true;
+                }
+            }
+        }
+        // update particle count
+        count = newCount;
+        // world.stackAllocator.Free(newIndices);
+        // destroy bodies with no particles
+        for (ParticleGroup group = groupList; group != null;)
+        {
+            ParticleGroup next = group.getNext();
+            if (group.toBeDestroyed)
+            {
+                destroyParticleGroup(group);
+            }
+            else if (group.toBeSplit)
+            {
+                // TODO: split the group
+            }
+            group = next;
+        }
+    }
+
+    /**
+     * Update the rest times of the particles, wake the sleeping particles
+     * that moving particles or bodies touch, and put the particles to sleep
+     * that have rested for {@link Settings#timeToSleep}.
+     */
+    void updateSleep(TimeStep step)
+    {
+        final float tolerance = SLEEP_TOLERANCE * particleDiameter;
+        final float toleranceSquared = tolerance * tolerance;
+        final float[] times = sleepTimeBuffer;
+        for (int i = 0; i < count; i++)
+        {
+            if (times[i] != ASLEEP)
+            {
+                final float dx = positionXBuffer[i] - sleepPositionXBuffer[i];
+                final float dy = positionYBuffer[i] - sleepPositionYBuffer[i];
+                if (dx * dx + dy * dy > toleranceSquared)
+                {
+                    times[i] = 0;
+                    sleepPositionXBuffer[i] = positionXBuffer[i];
+                    sleepPositionYBuffer[i] = positionYBuffer[i];
+                }
+                else
+                {
+                    times[i] += step.dt;
+                }
+            }
+        }
+        if (sleepingCount > 0)
+        {
+            // drop the one-sided impulses of the contacts with awake
+            // particles, also for the particles that wake up below
+            for (int i = 0; i < count; i++)
+            {
+                if (times[i] == ASLEEP)
+                {
+                    velocityXBuffer[i] = 0;
+                    velocityYBuffer[i] = 0;
+                }
+            }
+            wakeTouchedParticles(tolerance / Settings.timeToSleep);
+        }
+        for (int i = 0; i < count;)
+        {
+            final ParticleGroup group = groupBuffer[i];
+            if (group != null && sleepsAsWhole(group))
+            {
+                float time = ASLEEP;
+                for (int j = i; j < group.lastIndex; j++)
+                {
+                    time = MathUtils.min(time, times[j]);
+                }
+                if (time >= Settings.timeToSleep && time != ASLEEP)
+                {
+                    sleepParticles(i, group.lastIndex);
+                }
+                i = group.lastIndex;
+            }
+            else
+            {
+                if (times[i] >= Settings.timeToSleep && times[i] != ASLEEP)
+                {
+                    sleepParticles(i, i + 1);
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Wake the sleeping particles in contact with particles that left their
+     * sleep position in this step, or with bodies faster than the given
+     * speed.
+     */
+    private void wakeTouchedParticles(float speed)
+    {
+        final float[] times = sleepTimeBuffer;
+        final int capacity = contactCount + bodyContactCount;
+        if (wakeBuffer == null || wakeBuffer.length < capacity)
+        {
+            wakeBuffer = new int[capacity];
+        }
+        // collect them first, a woken particle has not moved
+        int wakeCount = 0;
+        for (int k = 0; k < contactCount; k++)
+        {
+            final int a = contactIndexABuffer[k];
+            final int b = contactIndexBBuffer[k];
+            if (times[a] == ASLEEP && times[b] == 0)
+            {
+                wakeBuffer[wakeCount++] = a;
+            }
+            else if (times[b] == ASLEEP && times[a] == 0)
+            {
+                wakeBuffer[wakeCount++] = b;
+            }
+        }
+        final float speedSquared = speed * speed;
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            final int a = bodyContactIndexBuffer[k];
+            if (times[a] == ASLEEP)
+            {
+                final Body b = bodyContactBodyBuffer[k];
+                final float rx = positionXBuffer[a] - b.sweep.c.x;
+                final float ry = positionYBuffer[a] - b.sweep.c.y;
+                final float vx = -b.angularVelocity * ry + b.linearVelocity.x;
+                final float vy = b.angularVelocity * rx + b.linearVelocity.y;
+                if (vx * vx + vy * vy > speedSquared)
+                {
+                    wakeBuffer[wakeCount++] = a;
+                }
+            }
+        }
+        for (int n = 0; n < wakeCount; n++)
+        {
+            wakeParticle(wakeBuffer[n]);
+        }
+    }
+
+    /**
+     * Wake the sleeping particles whose position or velocity has been set
+     * since the last step.
+     */
+    private void wakeMovedParticles()
+    {
+        final float[] times = sleepTimeBuffer;
+        for (int i = 0; i < count; i++)
+        {
+            if (times[i] == ASLEEP && (velocityXBuffer[i] != 0
+                    || velocityYBuffer[i] != 0
+                    || positionXBuffer[i] != sleepPositionXBuffer[i]
+                    || positionYBuffer[i] != sleepPositionYBuffer[i]))
+            {
+                wakeParticle(i);
+            }
+        }
+    }
+
+    /**
+     * Wake the sleeping particles next to the particles that are about to be
+     * destroyed, since they may rest on them.
+     */
+    private void wakeZombieNeighbors()
+    {
+        final AABB aabb = temp2;
+        for (int i = 0; i < count; i++)
+        {
+            if ((flagsBuffer.data[i] & ParticleType.zombieParticle) != 0)
+            {
+                aabb.lowerBound.x = positionXBuffer[i] - particleDiameter;
+                aabb.lowerBound.y = positionYBuffer[i] - particleDiameter;
+                aabb.upperBound.x = positionXBuffer[i] + particleDiameter;
+                aabb.upperBound.y = positionYBuffer[i] + particleDiameter;
+                queryAABB(wakeCallback, aabb);
+            }
+        }
+    }
+
+    /**
+     * Whether the particles of a group fall asleep and wake up together. This
+     * holds for rigid groups and for groups with spring or elastic particles,
+     * whose shape would be torn otherwise.
+     */
+    boolean sleepsAsWhole(ParticleGroup group)
+    {
+        if (group.sleepTimestamp != timestamp)
+        {
+            int particleFlags = 0;
+            for (int i = group.firstIndex; i < group.lastIndex; i++)
+            {
+                particleFlags |= flagsBuffer.data[i];
             }
-            else
+            group.sleepsAsWhole = (group.groupFlags
+                    & ParticleGroupType.rigidParticleGroup) != 0
+                    || (particleFlags & (pairFlags | triadFlags)) != 0;
+            group.sleepTimestamp = timestamp;
+        }
+        return group.sleepsAsWhole;
+    }
+
+    /**
+     * Wake a sleeping particle, together with its group if the group sleeps
+     * as a whole.
+     */
+    void wakeParticle(int index)
+    {
+        if (sleepTimeBuffer[index] != ASLEEP)
+        {
+            return;
+        }
+        final ParticleGroup group = groupBuffer[index];
+        if (group != null && sleepsAsWhole(group))
+        {
+            wakeParticles(group.firstIndex, group.lastIndex);
+        }
+        else
+        {
+            wakeParticles(index, index + 1);
+        }
+    }
+
+    /**
+     * Wake the sleeping particles in [start, end).
+     */
+    void wakeParticles(int start, int end)
+    {
+        if (sleepingCount == 0)
+        {
+            return;
+        }
+        for (int i = start; i < end; i++)
+        {
+            if (sleepTimeBuffer[i] == ASLEEP)
             {
-                group.firstIndex = 0;
-                group.lastIndex = 0;
-                if (group.destroyAutomatically)
-                {
-                    group.toBeDestroyed = true;
-                }
+                sleepTimeBuffer[i] = 0;
+                sleepPositionXBuffer[i] = positionXBuffer[i];
+                sleepPositionYBuffer[i] = positionYBuffer[i];
+                sleepWeightBuffer[i] = 0;
+                updateSleepWeights(i, -1);
+                sleepingCount--;
             }
         }
-        // update particle count
-        count = newCount;
-        // world.stackAllocator.Free(newIndices);
-        // destroy bodies with no particles
-        for (ParticleGroup group = groupList; group != null;)
+    }
+
+    /**
+     * Put the particles in [start, end) to sleep, if sleeping is allowed.
+     */
+    void sleepParticles(int start, int end)
+    {
+        if (sleepTimeBuffer == null)
         {
-            ParticleGroup next = group.getNext();
-            if (group.toBeDestroyed)
+            return;
+        }
+        for (int i = start; i < end; i++)
+        {
+            if (sleepTimeBuffer[i] != ASLEEP)
             {
-                destroyParticleGroup(group);
+                markDirty(i, i + 1);
+                sleepTimeBuffer[i] = ASLEEP;
+                sleepPositionXBuffer[i] = positionXBuffer[i];
+                sleepPositionYBuffer[i] = positionYBuffer[i];
+                sleepWeightBuffer[i] = updateSleepWeights(i, 1);
+                velocityXBuffer[i] = 0;
+                velocityYBuffer[i] = 0;
+                sleepingCount++;
             }
-            else if (group.toBeSplit)
+        }
+    }
+
+    /**
+     * Add the weights of the contacts between a particle and its sleeping
+     * neighbors to the kept weights of the neighbors, or subtract them.
+     *
+     * @param sign 1 when the particle falls asleep, -1 when it wakes up.
+     *
+     * @return The sum of the weights.
+     */
+    private float updateSleepWeights(int index, float sign)
+    {
+        final AABB aabb = temp;
+        aabb.lowerBound.x = positionXBuffer[index] - particleDiameter;
+        aabb.lowerBound.y = positionYBuffer[index] - particleDiameter;
+        aabb.upperBound.x = positionXBuffer[index] + particleDiameter;
+        aabb.upperBound.y = positionYBuffer[index] + particleDiameter;
+        sleepWeightCallback.index = index;
+        sleepWeightCallback.sign = sign;
+        sleepWeightCallback.weight = 0;
+        queryAABB(sleepWeightCallback, aabb);
+        return sleepWeightCallback.weight;
+    }
+
+    /**
+     * Wakes the particles found by a query.
+     */
+    private class WakeCallback implements ParticleQueryCallback
+    {
+        public boolean reportParticle(int index)
+        {
+            wakeParticle(index);
+            return true;
+        }
+    }
+
+    /**
+     * Sums the weights of the contacts of a particle with the sleeping
+     * particles found by a query, see {@link #updateSleepWeights(int, float)}.
+     */
+    private class SleepWeightCallback implements ParticleQueryCallback
+    {
+        int index;
+
+        float sign;
+
+        float weight;
+
+        public boolean reportParticle(int other)
+        {
+            if (other != index && sleepTimeBuffer[other] == ASLEEP)
             {
-                // TODO: split the group
+                float dx = positionXBuffer[other] - positionXBuffer[index];
+                float dy = positionYBuffer[other] - positionYBuffer[index];
+                float d2 = dx * dx + dy * dy;
+                if (d2 < squaredDiameter)
+                {
+                    // the same weight as in addContact
+                    float invD = d2 != 0 ? MathUtils.sqrt(1 / d2)
+                            : Float.MAX_VALUE;
+                    float w = 1 - d2 * invD * inverseDiameter;
+                    sleepWeightBuffer[other] += sign * w;
+                    weight += w;
+                }
             }
-            group = next;
+            return true;
         }
     }
 
@@ -1751,17 +4026,46 @@ public class ParticleSystem
         {
             return;
         }
+        neighborsValid = false;
+        markDirty(start, end);
         newIndices.start = start;
         newIndices.mid = mid;
         newIndices.end = end;
         BufferUtils.rotate(flagsBuffer.data, start, mid, end);
-        BufferUtils.rotate(positionBuffer.data, start, mid, end);
-        BufferUtils.rotate(velocityBuffer.data, start, mid, end);
+        BufferUtils.rotate(positionXBuffer, start, mid, end);
+        BufferUtils.rotate(positionYBuffer, start, mid, end);
+        BufferUtils.rotate(velocityXBuffer, start, mid, end);
+        BufferUtils.rotate(velocityYBuffer, start, mid, end);
         BufferUtils.rotate(groupBuffer, start, mid, end);
         if (depthBuffer != null)
         {
             BufferUtils.rotate(depthBuffer, start, mid, end);
         }
+        if (colorValueBuffer != null)
+        {
+            BufferUtils.rotate(colorValueBuffer, start, mid, end);
+        }
+        if (sleepTimeBuffer != null)
+        {
+            BufferUtils.rotate(sleepTimeBuffer, start, mid, end);
+            BufferUtils.rotate(sleepPositionXBuffer, start, mid, end);
+            BufferUtils.rotate(sleepPositionYBuffer, start, mid, end);
+            BufferUtils.rotate(sleepWeightBuffer, start, mid, end);
+        }
+        if (expirationTickBuffer != null)
+        {
+            BufferUtils.rotate(expirationTickBuffer, start, mid, end);
+            expiryValid = false;
+        }
+        // The views keep pending writes of the user with their particles.
+        if (positionBuffer.data != null)
+        {
+            BufferUtils.rotate(positionBuffer.data, start, mid, end);
+        }
+        if (velocityBuffer.data != null)
+        {
+            BufferUtils.rotate(velocityBuffer.data, start, mid, end);
+        }
         if (colorBuffer.data != null)
         {
             BufferUtils.rotate(colorBuffer.data, start, mid, end);
@@ -1773,21 +4077,21 @@ public class ParticleSystem
         // update proxies
         for (int k = 0; k < proxyCount; k++)
         {
-            Proxy proxy = proxyBuffer[k];
-            proxy.index = newIndices.getIndex(proxy.index);
+            proxyIndexBuffer[k] = newIndices.getIndex(proxyIndexBuffer[k]);
         }
         // update contacts
         for (int k = 0; k < contactCount; k++)
         {
-            ParticleContact contact = contactBuffer[k];
-            contact.indexA = newIndices.getIndex(contact.indexA);
-            contact.indexB = newIndices.getIndex(contact.indexB);
+            contactIndexABuffer[k] = newIndices
+                    .getIndex(contactIndexABuffer[k]);
+            contactIndexBBuffer[k] = newIndices
+                    .getIndex(contactIndexBBuffer[k]);
         }
         // update particle-body contacts
         for (int k = 0; k < bodyContactCount; k++)
         {
-            ParticleBodyContact contact = bodyContactBuffer[k];
-            contact.index = newIndices.getIndex(contact.index);
+            bodyContactIndexBuffer[k] = newIndices
+                    .getIndex(bodyContactIndexBuffer[k]);
         }
         // update pairs
         for (int k = 0; k < pairCount; k++)
@@ -1818,96 +4122,524 @@ public class ParticleSystem
         particleDiameter = 2 * radius;
         squaredDiameter = particleDiameter * particleDiameter;
         inverseDiameter = 1 / particleDiameter;
+        inverseCellSize = 1 / (particleDiameter + neighborSkin);
+        neighborsValid = false;
+        // the kept weights of sleeping particles depend on the diameter
+        wakeParticles(0, count);
+    }
+
+    /**
+     * Keep the contact candidates in a neighbor list for several steps instead
+     * of finding them again in every step. The list holds all pairs closer
+     * than the particle diameter plus the skin and is rebuilt once a particle
+     * has moved more than half the skin. The contacts are the same as without
+     * the list, but in another order. This only pays off if the particles move
+     * much less than the skin in a step, e.g. in a fluid at rest.
+     *
+     * @param skin The extra distance of the neighbor list, about the distance
+     *     that a particle travels in a few steps, or 0 to find the contacts
+     *     in every step.
+     */
+    public void setParticleNeighborSkin(float skin)
+    {
+        neighborSkin = skin;
+        inverseCellSize = 1 / (particleDiameter + neighborSkin);
+        neighborsValid = false;
+    }
+
+    public float getParticleNeighborSkin()
+    {
+        return neighborSkin;
+    }
+
+    /**
+     * Allow particles to fall asleep like bodies. A particle that stays within
+     * a quarter of the particle diameter of a position for
+     * {@link Settings#timeToSleep} falls asleep. Rigid groups and groups with
+     * spring or elastic particles fall asleep as a whole. Sleeping particles
+     * are not moved and the contacts between them are skipped. They wake up
+     * when a moving particle or body touches them, when their position or
+     * velocity is set, or when a particle next to them is destroyed.
+     */
+    public void setParticleSleepingAllowed(boolean flag)
+    {
+        if (flag == (sleepTimeBuffer != null))
+        {
+            return;
+        }
+        if (flag)
+        {
+            sleepTimeBuffer = new float[internalAllocatedCapacity];
+            sleepPositionXBuffer = new float[internalAllocatedCapacity];
+            sleepPositionYBuffer = new float[internalAllocatedCapacity];
+            sleepWeightBuffer = new float[internalAllocatedCapacity];
+            if (count > 0)
+            {
+                System.arraycopy(positionXBuffer, 0, sleepPositionXBuffer, 0,
+                        count);
+                System.arraycopy(positionYBuffer, 0, sleepPositionYBuffer, 0,
+                        count);
+            }
+        }
+        else
+        {
+            sleepTimeBuffer = null;
+            sleepPositionXBuffer = null;
+            sleepPositionYBuffer = null;
+            sleepWeightBuffer = null;
+            sleepingCount = 0;
+        }
+    }
+
+    public boolean isParticleSleepingAllowed()
+    {
+        return sleepTimeBuffer != null;
+    }
+
+    public boolean isParticleAwake(int index)
+    {
+        return sleepTimeBuffer == null || sleepTimeBuffer[index] != ASLEEP;
+    }
+
+    /**
+     * Wake the sleeping particles in contact with a body, e.g. before the
+     * body is destroyed.
+     */
+    public void wakeBodyContacts(Body body)
+    {
+        if (sleepingCount == 0)
+        {
+            return;
+        }
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            if (bodyContactBodyBuffer[k] == body)
+            {
+                wakeParticle(bodyContactIndexBuffer[k]);
+            }
+        }
+    }
+
+    /**
+     * Set the lifetime of a particle in seconds, after which the particle is
+     * destroyed. A lifetime of 0 or less lets the particle live until it is
+     * destroyed explicitly.
+     */
+    public void setParticleLifetime(int index, float lifetime)
+    {
+        assert (0 <= index && index < count);
+        if (expirationTickBuffer == null)
+        {
+            if (lifetime <= 0)
+            {
+                return;
+            }
+            expirationTickBuffer = new int[internalAllocatedCapacity];
+            expiryNextBuffer = new int[internalAllocatedCapacity];
+            expiryPrevBuffer = new int[internalAllocatedCapacity];
+            expiryValid = false;
+        }
+        if (expiryValid && expirationTickBuffer[index] != 0)
+        {
+            unlinkExpiry(index);
+        }
+        int tick = 0;
+        if (lifetime > 0)
+        {
+            tick = MathUtils.max((int) Math.ceil(
+                    (timeElapsed + lifetime) / LIFETIME_GRANULARITY),
+                    expiredTick + 1);
+        }
+        expirationTickBuffer[index] = tick;
+        if (expiryValid && tick != 0)
+        {
+            linkExpiry(index);
+        }
+    }
+
+    /**
+     * The remaining lifetime of a particle in seconds, or 0 if it lives until
+     * it is destroyed explicitly.
+     */
+    public float getParticleLifetime(int index)
+    {
+        if (expirationTickBuffer == null || expirationTickBuffer[index] == 0)
+        {
+            return 0;
+        }
+        return (float) (expirationTickBuffer[index] * LIFETIME_GRANULARITY
+                - timeElapsed);
+    }
+
+    public void setParticleDensity(float density)
+    {
+        this.density = density;
+        inverseDensity = 1 / this.density;
+    }
+
+    public float getParticleDensity()
+    {
+        return density;
+    }
+
+    public void setParticleGravityScale(float gravityScale)
+    {
+        this.gravityScale = gravityScale;
+    }
+
+    public float getParticleGravityScale()
+    {
+        return gravityScale;
+    }
+
+    public void setParticleDamping(float damping)
+    {
+        dampingStrength = damping;
+    }
+
+    public float getParticleDamping()
+    {
+        return dampingStrength;
+    }
+
+    public float getParticleRadius()
+    {
+        return particleDiameter / 2;
+    }
+
+    float getCriticalVelocity(final TimeStep step)
+    {
+        return particleDiameter * step.inverseDt;
+    }
+
+    float getCriticalVelocitySquared(final TimeStep step)
+    {
+        float velocity = getCriticalVelocity(step);
+        return velocity * velocity;
+    }
+
+    float getCriticalPressure(final TimeStep step)
+    {
+        return density * getCriticalVelocitySquared(step);
+    }
+
+    float getParticleStride()
+    {
+        return Settings.particleStride * particleDiameter;
+    }
+
+    float getParticleMass()
+    {
+        float stride = getParticleStride();
+        return density * stride * stride;
+    }
+
+    float getParticleInvMass()
+    {
+        return 1.777777f * inverseDensity * inverseDiameter * inverseDiameter;
+    }
+
+    public int[] getParticleFlagsBuffer()
+    {
+        return flagsBuffer.data;
+    }
+
+    /**
+     * Get the x coordinates of the particle positions. This is the storage of
+     * the particle system, so writes take effect immediately. The array is
+     * replaced when the capacity grows.
+     */
+    public float[] getParticlePositionXBuffer()
+    {
+        return positionXBuffer;
+    }
+
+    /**
+     * Get the y coordinates of the particle positions, see
+     * {@link #getParticlePositionXBuffer()}.
+     */
+    public float[] getParticlePositionYBuffer()
+    {
+        return positionYBuffer;
+    }
+
+    /**
+     * Get the x coordinates of the particle velocities, see
+     * {@link #getParticlePositionXBuffer()}.
+     */
+    public float[] getParticleVelocityXBuffer()
+    {
+        return velocityXBuffer;
+    }
+
+    /**
+     * Get the y coordinates of the particle velocities, see
+     * {@link #getParticlePositionXBuffer()}.
+     */
+    public float[] getParticleVelocityYBuffer()
+    {
+        return velocityYBuffer;
     }
 
-    public void setParticleDensity(float density)
+    /**
+     * Get the particle colors packed with {@link ParticleColor#toArgb()}, see
+     * {@link #getParticlePositionXBuffer()}.
+     *
+     * @return The colors, or null if no particle has a color.
+     */
+    public int[] getParticleColorValueBuffer()
     {
-        this.density = density;
-        inverseDensity = 1 / this.density;
+        return colorValueBuffer;
     }
 
-    public float getParticleDensity()
+    /**
+     * Get a view of the particle positions. The positions are stored in
+     * {@link #getParticlePositionXBuffer()} and
+     * {@link #getParticlePositionYBuffer()}. Once requested, the view is copied
+     * to the storage at the beginning of each step and updated at its end, so
+     * writes to the view take effect with the next step. The view takes
+     * precedence over writes to the storage and costs this copy until it is
+     * released with {@code setParticlePositionBuffer(null, 0)}.
+     */
+    public Vec2[] getParticlePositionBuffer()
     {
-        return density;
+        if (positionBuffer.data == null)
+        {
+            positionBuffer.data = requestParticleBuffer(Vec2.class, null);
+            writeBufferViews(0, count);
+        }
+        return positionBuffer.data;
     }
 
-    public void setParticleGravityScale(float gravityScale)
+    /**
+     * Get a view of the particle velocities, see
+     * {@link #getParticlePositionBuffer()}.
+     */
+    public Vec2[] getParticleVelocityBuffer()
     {
-        this.gravityScale = gravityScale;
+        if (velocityBuffer.data == null)
+        {
+            velocityBuffer.data = requestParticleBuffer(Vec2.class, null);
+            writeBufferViews(0, count);
+        }
+        return velocityBuffer.data;
     }
 
-    public float getParticleGravityScale()
+    /**
+     * Get a view of the particle colors, see
+     * {@link #getParticlePositionBuffer()}.
+     */
+    public ParticleColor[] getParticleColorBuffer()
     {
-        return gravityScale;
+        if (colorBuffer.data == null)
+        {
+            requestColorValueBuffer();
+            colorBuffer.data = requestParticleBuffer(ParticleColor.class,
+                    null);
+            writeBufferViews(0, count);
+        }
+        return colorBuffer.data;
     }
 
-    public void setParticleDamping(float damping)
+    /**
+     * Extend the dirty range by the particles [start, end).
+     */
+    private void markDirty(int start, int end)
     {
-        dampingStrength = damping;
+        if (start >= end)
+        {
+            return;
+        }
+        if (dirtyStart >= dirtyEnd)
+        {
+            dirtyStart = start;
+            dirtyEnd = end;
+        }
+        else
+        {
+            dirtyStart = MathUtils.min(dirtyStart, start);
+            dirtyEnd = MathUtils.max(dirtyEnd, end);
+        }
     }
 
-    public float getParticleDamping()
+    /**
+     * Get the first particle of the dirty range, see {@link #getDirtyEnd()}.
+     */
+    public int getDirtyStart()
     {
-        return dampingStrength;
+        return MathUtils.min(dirtyStart, getDirtyEnd());
     }
 
-    public float getParticleRadius()
+    /**
+     * Get the end of the dirty range. The particles in [{@link
+     * #getDirtyStart()}, getDirtyEnd()) may have changed their positions,
+     * velocities or colors since the last {@link #clearDirtyRange()}, by a
+     * step, by new particles or because particles were destroyed or moved in
+     * the buffers. The other particles are unchanged, so a renderer only has
+     * to export and upload the dirty range. Sleeping particles do not widen
+     * the range.
+     */
+    public int getDirtyEnd()
     {
-        return particleDiameter / 2;
+        return MathUtils.min(dirtyEnd, count);
     }
 
-    float getCriticalVelocity(final TimeStep step)
+    /**
+     * Empty the dirty range, e.g. after the renderer has exported it.
+     */
+    public void clearDirtyRange()
     {
-        return particleDiameter * step.inverseDt;
+        dirtyStart = 0;
+        dirtyEnd = 0;
     }
 
-    float getCriticalVelocitySquared(final TimeStep step)
+    /**
+     * Write the positions of the particles in the range [start, end) to a
+     * buffer, e.g. the direct buffer of a vertex array. The coordinates of
+     * particle i are written to the floats at offset + (i - start) * stride
+     * and the one after it, so a stride of 2 writes a plane of positions and
+     * a larger stride interleaves them with other vertex data. The position
+     * of the buffer is not changed. Passing the dirty range, see
+     * {@link #getDirtyEnd()}, copies only the particles that changed.
+     */
+    public void exportParticlePositions(FloatBuffer buffer, int offset,
+            int stride, int start, int end)
     {
-        float velocity = getCriticalVelocity(step);
-        return velocity * velocity;
+        exportColumns(positionXBuffer, positionYBuffer, buffer, offset, stride,
+                start, end);
     }
 
-    float getCriticalPressure(final TimeStep step)
+    /**
+     * Write the positions of the particles like
+     * {@link #exportParticlePositions(FloatBuffer, int, int, int, int)}. The
+     * offset and the stride are counted in bytes, the floats are written in
+     * the byte order of the buffer.
+     */
+    public void exportParticlePositions(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
     {
-        return density * getCriticalVelocitySquared(step);
+        exportColumns(positionXBuffer, positionYBuffer, buffer, offset, stride,
+                start, end);
     }
 
-    float getParticleStride()
+    /**
+     * Write the velocities of the particles like
+     * {@link #exportParticlePositions(FloatBuffer, int, int, int, int)}.
+     */
+    public void exportParticleVelocities(FloatBuffer buffer, int offset,
+            int stride, int start, int end)
     {
-        return Settings.particleStride * particleDiameter;
+        exportColumns(velocityXBuffer, velocityYBuffer, buffer, offset, stride,
+                start, end);
     }
 
-    float getParticleMass()
+    /**
+     * Write the velocities of the particles like
+     * {@link #exportParticlePositions(ByteBuffer, int, int, int, int)}.
+     */
+    public void exportParticleVelocities(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
     {
-        float stride = getParticleStride();
-        return density * stride * stride;
+        exportColumns(velocityXBuffer, velocityYBuffer, buffer, offset, stride,
+                start, end);
     }
 
-    float getParticleInvMass()
+    /**
+     * Write the colors of the particles in the range [start, end) to a
+     * buffer. The red, green, blue and alpha bytes of particle i are written
+     * to the bytes at offset + (i - start) * stride and the three after it.
+     * The position of the buffer is not changed.
+     */
+    public void exportParticleColors(ByteBuffer buffer, int offset,
+            int stride, int start, int end)
     {
-        return 1.777777f * inverseDensity * inverseDiameter * inverseDiameter;
+        assert (0 <= start && start <= end && end <= count);
+        final int[] colors = colorValueBuffer;
+        for (int i = start; i < end; i++)
+        {
+            final int argb = colors != null ? colors[i] : defaultColorValue;
+            final int index = offset + (i - start) * stride;
+            buffer.put(index, (byte) (argb >> 16));
+            buffer.put(index + 1, (byte) (argb >> 8));
+            buffer.put(index + 2, (byte) argb);
+            buffer.put(index + 3, (byte) (argb >>> 24));
+        }
     }
 
-    public int[] getParticleFlagsBuffer()
+    private void exportColumns(final float[] x, final float[] y,
+            FloatBuffer buffer, int offset, int stride, int start, int end)
     {
-        return flagsBuffer.data;
+        assert (0 <= start && start <= end && end <= count);
+        for (int i = start; i < end; i++)
+        {
+            final int index = offset + (i - start) * stride;
+            buffer.put(index, x[i]);
+            buffer.put(index + 1, y[i]);
+        }
     }
 
-    public Vec2[] getParticlePositionBuffer()
+    private void exportColumns(final float[] x, final float[] y,
+            ByteBuffer buffer, int offset, int stride, int start, int end)
     {
-        return positionBuffer.data;
+        assert (0 <= start && start <= end && end <= count);
+        for (int i = start; i < end; i++)
+        {
+            final int index = offset + (i - start) * stride;
+            buffer.putFloat(index, x[i]);
+            buffer.putFloat(index + 4, y[i]);
+        }
     }
 
-    public Vec2[] getParticleVelocityBuffer()
+    /**
+     * Get a copy of the particle contacts of the last step. The first
+     * {@link #contactCount} entries are valid until the next call.
+     */
+    public ParticleContact[] getParticleContacts()
     {
-        return velocityBuffer.data;
+        final int length = contactBuffer == null ? 0 : contactBuffer.length;
+        if (length < contactCapacity)
+        {
+            contactBuffer = BufferUtils.reallocateBuffer(ParticleContact.class,
+                    contactBuffer, length, contactCapacity);
+        }
+        for (int k = 0; k < contactCount; k++)
+        {
+            final ParticleContact contact = contactBuffer[k];
+            contact.indexA = contactIndexABuffer[k];
+            contact.indexB = contactIndexBBuffer[k];
+            contact.flags = contactFlagsBuffer[k];
+            contact.weight = contactWeightBuffer[k];
+            contact.normal.x = contactNormalXBuffer[k];
+            contact.normal.y = contactNormalYBuffer[k];
+        }
+        return contactBuffer;
     }
 
-    public ParticleColor[] getParticleColorBuffer()
+    /**
+     * Get a copy of the particle-body contacts of the last step, see
+     * {@link #getParticleContacts()}.
+     */
+    public ParticleBodyContact[] getParticleBodyContacts()
     {
-        colorBuffer.data = requestParticleBuffer(ParticleColor.class,
-                colorBuffer.data);
-        return colorBuffer.data;
+        final int length = bodyContactBuffer == null ? 0
+                : bodyContactBuffer.length;
+        if (length < bodyContactCapacity)
+        {
+            bodyContactBuffer = BufferUtils.reallocateBuffer(
+                    ParticleBodyContact.class, bodyContactBuffer, length,
+                    bodyContactCapacity);
+        }
+        for (int k = 0; k < bodyContactCount; k++)
+        {
+            final ParticleBodyContact contact = bodyContactBuffer[k];
+            contact.index = bodyContactIndexBuffer[k];
+            contact.body = bodyContactBodyBuffer[k];
+            contact.weight = bodyContactWeightBuffer[k];
+            contact.normal.x = bodyContactNormalXBuffer[k];
+            contact.normal.y = bodyContactNormalYBuffer[k];
+            contact.mass = bodyContactMassBuffer[k];
+        }
+        return bodyContactBuffer;
     }
 
     public Object[] getParticleUserDataBuffer()
@@ -1961,19 +4693,31 @@ public class ParticleSystem
         setParticleBuffer(flagsBuffer, buffer, capacity);
     }
 
+    /**
+     * Set the view of the particle positions, see
+     * {@link #getParticlePositionBuffer()}. The positions of the existing
+     * particles are read from the buffer. Null releases the view.
+     */
     public void setParticlePositionBuffer(Vec2[] buffer, int capacity)
     {
         setParticleBuffer(positionBuffer, buffer, capacity);
+        readBufferViews(0, count);
     }
 
     public void setParticleVelocityBuffer(Vec2[] buffer, int capacity)
     {
         setParticleBuffer(velocityBuffer, buffer, capacity);
+        readBufferViews(0, count);
     }
 
     public void setParticleColorBuffer(ParticleColor[] buffer, int capacity)
     {
+        if (buffer != null)
+        {
+            requestColorValueBuffer();
+        }
         setParticleBuffer(colorBuffer, buffer, capacity);
+        readBufferViews(0, count);
     }
 
     public ParticleGroup[] getParticleGroupBuffer()
@@ -2004,7 +4748,7 @@ public class ParticleSystem
         setParticleBuffer(userDataBuffer, buffer, capacity);
     }
 
-    private static int lowerBound(Proxy[] ray, int length, long tag)
+    private static int lowerBound(long[] ray, int length, long tag)
     {
         int left = 0;
         int step, curr;
@@ -2012,7 +4756,7 @@ public class ParticleSystem
         {
             step = length / 2;
             curr = left + step;
-            if (ray[curr].tag < tag)
+            if (ray[curr] < tag)
             {
                 left = curr + 1;
                 length -= step + 1;
@@ -2025,7 +4769,7 @@ public class ParticleSystem
         return left;
     }
 
-    private static int upperBound(Proxy[] ray, int length, long tag)
+    private static int upperBound(long[] ray, int length, long tag)
     {
         int left = 0;
         int step, curr;
@@ -2033,7 +4777,7 @@ public class ParticleSystem
         {
             step = length / 2;
             curr = left + step;
-            if (ray[curr].tag <= tag)
+            if (ray[curr] <= tag)
             {
                 left = curr + 1;
                 length -= step + 1;
@@ -2065,16 +4809,17 @@ public class ParticleSystem
         final float lowerBoundY = aabb.lowerBound.y;
         final float upperBoundX = aabb.upperBound.x;
         final float upperBoundY = aabb.upperBound.y;
-        int firstProxy = lowerBound(proxyBuffer, proxyCount, computeTag(
-                inverseDiameter * lowerBoundX, inverseDiameter * lowerBoundY));
-        int lastProxy = upperBound(proxyBuffer, proxyCount, computeTag(
-                inverseDiameter * upperBoundX, inverseDiameter * upperBoundY));
+        int firstProxy = lowerBound(proxyTagBuffer, proxyCount, computeTag(
+                inverseCellSize * lowerBoundX, inverseCellSize * lowerBoundY));
+        int lastProxy = upperBound(proxyTagBuffer, proxyCount, computeTag(
+                inverseCellSize * upperBoundX, inverseCellSize * upperBoundY));
         for (int proxy = firstProxy; proxy < lastProxy; ++proxy)
         {
-            int i = proxyBuffer[proxy].index;
-            final Vec2 p = positionBuffer.data[i];
-            if (lowerBoundX < p.x && p.x < upperBoundX && lowerBoundY < p.y
-                    && p.y < upperBoundY)
+            int i = proxyIndexBuffer[proxy];
+            final float px = positionXBuffer[i];
+            final float py = positionYBuffer[i];
+            if (lowerBoundX < px && px < upperBoundX && lowerBoundY < py
+                    && py < upperBoundY)
             {
                 if (!callback.reportParticle(i))
                 {
@@ -2102,12 +4847,12 @@ public class ParticleSystem
         {
             return;
         }
-        int firstProxy = lowerBound(proxyBuffer, proxyCount, computeTag(
-                inverseDiameter * MathUtils.min(point1.x, point2.x) - 1,
-                inverseDiameter * MathUtils.min(point1.y, point2.y) - 1));
-        int lastProxy = upperBound(proxyBuffer, proxyCount, computeTag(
-                inverseDiameter * MathUtils.max(point1.x, point2.x) + 1,
-                inverseDiameter * MathUtils.max(point1.y, point2.y) + 1));
+        int firstProxy = lowerBound(proxyTagBuffer, proxyCount, computeTag(
+                inverseCellSize * MathUtils.min(point1.x, point2.x) - 1,
+                inverseCellSize * MathUtils.min(point1.y, point2.y) - 1));
+        int lastProxy = upperBound(proxyTagBuffer, proxyCount, computeTag(
+                inverseCellSize * MathUtils.max(point1.x, point2.x) + 1,
+                inverseCellSize * MathUtils.max(point1.y, point2.y) + 1));
         float fraction = 1;
         // solving the following equation:
         // ((1-t)*point1+t*point2-position)^2=diameter^2
@@ -2119,10 +4864,9 @@ public class ParticleSystem
             v2 = Float.MAX_VALUE;
         for (int proxy = firstProxy; proxy < lastProxy; ++proxy)
         {
-            int i = proxyBuffer[proxy].index;
-            final Vec2 posI = positionBuffer.data[i];
-            final float px = point1.x - posI.x;
-            final float py = point1.y - posI.y;
+            int i = proxyIndexBuffer[proxy];
+            final float px = point1.x - positionXBuffer[i];
+            final float py = point1.y - positionYBuffer[i];
             float pv = px * vx + py * vy;
             float p2 = px * px + py * py;
             float determinant = pv * pv - v2 * (p2 - squaredDiameter);
@@ -2165,15 +4909,13 @@ public class ParticleSystem
         float sumV2 = 0;
         for (int k = 0; k < contactCount; k++)
         {
-            final ParticleContact contact = contactBuffer[k];
-            int a = contact.indexA;
-            int b = contact.indexB;
-            Vec2 n = contact.normal;
-            final Vec2 va = velocityBuffer.data[a];
-            final Vec2 vb = velocityBuffer.data[b];
-            final float vx = vb.x - va.x;
-            final float vy = vb.y - va.y;
-            float vn = vx * n.x + vy * n.y;
+            int a = contactIndexABuffer[k];
+            int b = contactIndexBBuffer[k];
+            final float nx = contactNormalXBuffer[k];
+            final float ny = contactNormalYBuffer[k];
+            final float vx = velocityXBuffer[b] - velocityXBuffer[a];
+            final float vy = velocityYBuffer[b] - velocityYBuffer[a];
+            float vn = vx * nx + vy * ny;
             if (vn < 0)
             {
                 sumV2 += vn * vn;
@@ -2231,6 +4973,105 @@ public class ParticleSystem
         return buffer;
     }
 
+    /**
+     * The packed color of particles that were created without a color.
+     */
+    private static final int defaultColorValue = new ParticleColor().toArgb();
+
+    void requestColorValueBuffer()
+    {
+        if (colorValueBuffer == null)
+        {
+            colorValueBuffer = new int[internalAllocatedCapacity];
+            Arrays.fill(colorValueBuffer, defaultColorValue);
+        }
+    }
+
+    /**
+     * Copy the views that were handed out to the storage.
+     */
+    void readBufferViews(int first, int last)
+    {
+        if (positionBuffer.data != null || velocityBuffer.data != null
+                || colorBuffer.data != null)
+        {
+            markDirty(first, last);
+        }
+        final Vec2[] positions = positionBuffer.data;
+        if (positions != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                positionXBuffer[i] = positions[i].x;
+                positionYBuffer[i] = positions[i].y;
+            }
+        }
+        final Vec2[] velocities = velocityBuffer.data;
+        if (velocities != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                velocityXBuffer[i] = velocities[i].x;
+                velocityYBuffer[i] = velocities[i].y;
+            }
+        }
+        final ParticleColor[] colors = colorBuffer.data;
+        if (colors != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                colorValueBuffer[i] = colors[i].toArgb();
+            }
+        }
+    }
+
+    /**
+     * Copy the storage to the views that were handed out.
+     */
+    void writeBufferViews(int first, int last)
+    {
+        final Vec2[] positions = positionBuffer.data;
+        if (positions != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                positions[i].x = positionXBuffer[i];
+                positions[i].y = positionYBuffer[i];
+            }
+        }
+        final Vec2[] velocities = velocityBuffer.data;
+        if (velocities != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                velocities[i].x = velocityXBuffer[i];
+                velocities[i].y = velocityYBuffer[i];
+            }
+        }
+        final ParticleColor[] colors = colorBuffer.data;
+        if (colors != null)
+        {
+            for (int i = first; i < last; i++)
+            {
+                colors[i].setArgb(colorValueBuffer[i]);
+            }
+        }
+    }
+
+    Vec2 positionToOut(int index, Vec2 out)
+    {
+        out.x = positionXBuffer[index];
+        out.y = positionYBuffer[index];
+        return out;
+    }
+
+    float distance(int a, int b)
+    {
+        final float dx = positionXBuffer[a] - positionXBuffer[b];
+        final float dy = positionYBuffer[a] - positionYBuffer[b];
+        return MathUtils.sqrt(dx * dx + dy * dy);
+    }
+
     public static class ParticleBuffer<T>
     {
         public T[] data;
@@ -2252,33 +5093,6 @@ public class ParticleSystem
         int userSuppliedCapacity;
     }
 
-    /** Used for detecting particle contacts */
-    public static class Proxy implements Comparable<Proxy>
-    {
-        int index;
-
-        long tag;
-
-        @Override
-        public int compareTo(Proxy o)
-        {
-            return (tag - o.tag) < 0 ? -1 : (o.tag == tag ? 0 : 1);
-        }
-
-        @Override
-        public boolean equals(Object obj)
-        {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Proxy other = (Proxy) obj;
-            return tag == other.tag;
-        }
-    }
-
     /**
      * Connection between two particles.
      *
@@ -2374,9 +5188,9 @@ public class ParticleSystem
     {
         public void callback(int a, int b, int c)
         {
-            final Vec2 pa = system.positionBuffer.data[a];
-            final Vec2 pb = system.positionBuffer.data[b];
-            final Vec2 pc = system.positionBuffer.data[c];
+            final Vec2 pa = system.positionToOut(a, tempA);
+            final Vec2 pb = system.positionToOut(b, tempB);
+            final Vec2 pc = system.positionToOut(c, tempC);
             final float dabx = pa.x - pb.x;
             final float daby = pa.y - pb.y;
             final float dbcx = pb.x - pc.x;
@@ -2430,6 +5244,12 @@ public class ParticleSystem
         ParticleGroupDef def; // pointer
 
         int firstIndex;
+
+        private final Vec2 tempA = new Vec2();
+
+        private final Vec2 tempB = new Vec2();
+
+        private final Vec2 tempC = new Vec2();
     }
 
     // Callback used with VoronoiDiagram.
@@ -2448,9 +5268,9 @@ public class ParticleSystem
                 int cf = system.flagsBuffer.data[c];
                 if ((af & bf & cf & triadFlags) != 0)
                 {
-                    final Vec2 pa = system.positionBuffer.data[a];
-                    final Vec2 pb = system.positionBuffer.data[b];
-                    final Vec2 pc = system.positionBuffer.data[c];
+                    final Vec2 pa = system.positionToOut(a, tempA);
+                    final Vec2 pb = system.positionToOut(b, tempB);
+                    final Vec2 pc = system.positionToOut(c, tempC);
                     final float dabx = pa.x - pb.x;
                     final float daby = pa.y - pb.y;
                     final float dbcx = pb.x - pc.x;
@@ -2507,6 +5327,12 @@ public class ParticleSystem
         ParticleGroup groupA;
 
         ParticleGroup groupB;
+
+        private final Vec2 tempA = new Vec2();
+
+        private final Vec2 tempB = new Vec2();
+
+        private final Vec2 tempC = new Vec2();
     }
 
     static class DestroyParticlesInShapeCallback
@@ -2522,6 +5348,8 @@ public class ParticleSystem
 
         int destroyed;
 
+        private final Vec2 tempVec = new Vec2();
+
         public DestroyParticlesInShapeCallback()
         {
             // TODO Auto-generated constructor stub
@@ -2541,7 +5369,7 @@ public class ParticleSystem
         public boolean reportParticle(int index)
         {
             assert (index >= 0 && index < system.count);
-            if (shape.testPoint(xf, system.positionBuffer.data[index]))
+            if (shape.testPoint(xf, system.positionToOut(index, tempVec)))
             {
                 system.destroyParticle(index, callDestructionListener);
                 destroyed++;
@@ -2550,12 +5378,37 @@ public class ParticleSystem
         }
     }
 
-    static class UpdateBodyContactsCallback implements QueryCallback
+    static class UpdateBodyContactsCallback
+            implements QueryCallback, TreeCallback
     {
         ParticleSystem system;
 
+        /**
+         * The range of the particles of the query cell.
+         */
+        int start;
+
+        int end;
+
+        /**
+         * The box of the query cell.
+         */
+        AABB cellBox;
+
+        private Fixture fixture;
+
+        private Body b;
+
+        private Vec2 bp;
+
+        private float invBm;
+
+        private float invBI;
+
         private final Vec2 tempVec = new Vec2();
 
+        private final Vec2 tempPosition = new Vec2();
+
         @Override
         public boolean reportFixture(Fixture fixture)
         {
@@ -2564,74 +5417,74 @@ public class ParticleSystem
                 return true;
             }
             final Shape shape = fixture.getShape();
-            Body b = fixture.getBody();
-            Vec2 bp = b.getWorldCenter();
+            this.fixture = fixture;
+            b = fixture.getBody();
+            bp = b.getWorldCenter();
             float bm = b.getMass();
             float bI = b.getInertia() - bm * b.getLocalCenter().lengthSquared();
-            float invBm = bm > 0 ? 1 / bm : 0;
-            float invBI = bI > 0 ? 1 / bI : 0;
-            int childCount = shape.getChildCount();
-            for (int childIndex = 0; childIndex < childCount; childIndex++)
-            {
-                AABB aabb = fixture.getAABB(childIndex);
-                final float aabblowerBoundx = aabb.lowerBound.x
-                        - system.particleDiameter;
-                final float aabblowerBoundy = aabb.lowerBound.y
-                        - system.particleDiameter;
-                final float aabbupperBoundx = aabb.upperBound.x
-                        + system.particleDiameter;
-                final float aabbupperBoundy = aabb.upperBound.y
-                        + system.particleDiameter;
-                int firstProxy = lowerBound(system.proxyBuffer,
-                        system.proxyCount,
-                        computeTag(system.inverseDiameter * aabblowerBoundx,
-                                system.inverseDiameter * aabblowerBoundy));
-                int lastProxy = upperBound(system.proxyBuffer,
-                        system.proxyCount,
-                        computeTag(system.inverseDiameter * aabbupperBoundx,
-                                system.inverseDiameter * aabbupperBoundy));
-                for (int proxy = firstProxy; proxy != lastProxy; ++proxy)
+            invBm = bm > 0 ? 1 / bm : 0;
+            invBI = bI > 0 ? 1 / bI : 0;
+            if (fixture.hasSharedProxy())
+            {
+                // Visit only the children near the cell, e.g. of a tile map.
+                shape.queryChildren(this, cellBox, b.getTransform());
+            }
+            else
+            {
+                int childCount = shape.getChildCount();
+                for (int childIndex = 0; childIndex < childCount;
+                        childIndex++)
+                {
+                    treeCallback(childIndex);
+                }
+            }
+            this.fixture = null;
+            return true;
+        }
+
+        /**
+         * Add the contacts of the cell particles with a child of the fixture.
+         */
+        @Override
+        public boolean treeCallback(int childIndex)
+        {
+            AABB aabb = fixture.getAABB(childIndex);
+            if (!aabb.isValid())
+            {
+                // Empty children, e.g. empty tiles, have empty boxes.
+                return true;
+            }
+            final float aabblowerBoundx = aabb.lowerBound.x
+                    - system.particleDiameter;
+            final float aabblowerBoundy = aabb.lowerBound.y
+                    - system.particleDiameter;
+            final float aabbupperBoundx = aabb.upperBound.x
+                    + system.particleDiameter;
+            final float aabbupperBoundy = aabb.upperBound.y
+                    + system.particleDiameter;
+            for (int j = start; j < end; ++j)
+            {
+                int a = system.queryCellParticleBuffer[j];
+                Vec2 ap = system.positionToOut(a, tempPosition);
+                if (aabblowerBoundx <= ap.x && ap.x <= aabbupperBoundx
+                        && aabblowerBoundy <= ap.y
+                        && ap.y <= aabbupperBoundy)
                 {
-                    int a = system.proxyBuffer[proxy].index;
-                    Vec2 ap = system.positionBuffer.data[a];
-                    if (aabblowerBoundx <= ap.x && ap.x <= aabbupperBoundx
-                            && aabblowerBoundy <= ap.y
-                            && ap.y <= aabbupperBoundy)
+                    float d;
+                    final Vec2 n = tempVec;
+                    d = fixture.computeDistance(ap, childIndex, n);
+                    if (d < system.particleDiameter)
                     {
-                        float d;
-                        final Vec2 n = tempVec;
-                        d = fixture.computeDistance(ap, childIndex, n);
-                        if (d < system.particleDiameter)
-                        {
-                            float invAm = (system.flagsBuffer.data[a]
-                                    & ParticleType.wallParticle) != 0 ? 0
-                                            : system.getParticleInvMass();
-                            final float rpx = ap.x - bp.x;
-                            final float rpy = ap.y - bp.y;
-                            float rpn = rpx * n.y - rpy * n.x;
-                            if (system.bodyContactCount >= system.bodyContactCapacity)
-                            {
-                                int oldCapacity = system.bodyContactCapacity;
-                                int newCapacity = system.bodyContactCount != 0
-                                        ? 2 * system.bodyContactCount
-                                        : Settings.minParticleBufferCapacity;
-                                system.bodyContactBuffer = BufferUtils
-                                        .reallocateBuffer(
-                                                ParticleBodyContact.class,
-                                                system.bodyContactBuffer,
-                                                oldCapacity, newCapacity);
-                                system.bodyContactCapacity = newCapacity;
-                            }
-                            ParticleBodyContact contact = system.bodyContactBuffer[system.bodyContactCount];
-                            contact.index = a;
-                            contact.body = b;
-                            contact.weight = 1 - d * system.inverseDiameter;
-                            contact.normal.x = -n.x;
-                            contact.normal.y = -n.y;
-                            contact.mass = 1
-                                    / (invAm + invBm + invBI * rpn * rpn);
-                            system.bodyContactCount++;
-                        }
+                        float invAm = (system.flagsBuffer.data[a]
+                                & ParticleType.wallParticle) != 0 ? 0
+                                        : system.getParticleInvMass();
+                        final float rpx = ap.x - bp.x;
+                        final float rpy = ap.y - bp.y;
+                        float rpn = rpx * n.y - rpy * n.x;
+                        system.addBodyContact(a, b,
+                                1 - d * system.inverseDiameter, -n.x,
+                                -n.y, 1 / (invAm + invBm
+                                        + invBI * rpn * rpn));
                     }
                 }
             }
@@ -2639,12 +5492,29 @@ public class ParticleSystem
         }
     }
 
-    static class SolveCollisionCallback implements QueryCallback
+    static class SolveCollisionCallback
+            implements QueryCallback, TreeCallback
     {
         ParticleSystem system;
 
         TimeStep step;
 
+        /**
+         * The range of the particles of the query cell.
+         */
+        int start;
+
+        int end;
+
+        /**
+         * The box of the query cell.
+         */
+        AABB cellBox;
+
+        private Fixture fixture;
+
+        private Body body;
+
         private final RayCastInput input = new RayCastInput();
 
         private final RayCastOutput output = new RayCastOutput();
@@ -2653,6 +5523,8 @@ public class ParticleSystem
 
         private final Vec2 tempVec2 = new Vec2();
 
+        private final Vec2 tempPosition = new Vec2();
+
         @Override
         public boolean reportFixture(Fixture fixture)
         {
@@ -2661,65 +5533,85 @@ public class ParticleSystem
                 return true;
             }
             final Shape shape = fixture.getShape();
-            Body body = fixture.getBody();
-            int childCount = shape.getChildCount();
-            for (int childIndex = 0; childIndex < childCount; childIndex++)
-            {
-                AABB aabb = fixture.getAABB(childIndex);
-                final float aabblowerBoundx = aabb.lowerBound.x
-                        - system.particleDiameter;
-                final float aabblowerBoundy = aabb.lowerBound.y
-                        - system.particleDiameter;
-                final float aabbupperBoundx = aabb.upperBound.x
-                        + system.particleDiameter;
-                final float aabbupperBoundy = aabb.upperBound.y
-                        + system.particleDiameter;
-                int firstProxy = lowerBound(system.proxyBuffer,
-                        system.proxyCount,
-                        computeTag(system.inverseDiameter * aabblowerBoundx,
-                                system.inverseDiameter * aabblowerBoundy));
-                int lastProxy = upperBound(system.proxyBuffer,
-                        system.proxyCount,
-                        computeTag(system.inverseDiameter * aabbupperBoundx,
-                                system.inverseDiameter * aabbupperBoundy));
-                for (int proxy = firstProxy; proxy != lastProxy; ++proxy)
+            this.fixture = fixture;
+            body = fixture.getBody();
+            if (fixture.hasSharedProxy())
+            {
+                // Visit only the children near the cell, e.g. of a tile map.
+                shape.queryChildren(this, cellBox, body.getTransform());
+            }
+            else
+            {
+                int childCount = shape.getChildCount();
+                for (int childIndex = 0; childIndex < childCount;
+                        childIndex++)
+                {
+                    treeCallback(childIndex);
+                }
+            }
+            this.fixture = null;
+            return true;
+        }
+
+        /**
+         * Move the cell particles that would pass a child of the fixture onto
+         * its surface.
+         */
+        @Override
+        public boolean treeCallback(int childIndex)
+        {
+            AABB aabb = fixture.getAABB(childIndex);
+            if (!aabb.isValid())
+            {
+                // Empty children, e.g. empty tiles, have empty boxes.
+                return true;
+            }
+            final float aabblowerBoundx = aabb.lowerBound.x
+                    - system.particleDiameter;
+            final float aabblowerBoundy = aabb.lowerBound.y
+                    - system.particleDiameter;
+            final float aabbupperBoundx = aabb.upperBound.x
+                    + system.particleDiameter;
+            final float aabbupperBoundy = aabb.upperBound.y
+                    + system.particleDiameter;
+            for (int j = start; j < end; ++j)
+            {
+                int a = system.queryCellParticleBuffer[j];
+                Vec2 ap = system.positionToOut(a, tempPosition);
+                if (aabblowerBoundx <= ap.x && ap.x <= aabbupperBoundx
+                        && aabblowerBoundy <= ap.y
+                        && ap.y <= aabbupperBoundy)
                 {
-                    int a = system.proxyBuffer[proxy].index;
-                    Vec2 ap = system.positionBuffer.data[a];
-                    if (aabblowerBoundx <= ap.x && ap.x <= aabbupperBoundx
-                            && aabblowerBoundy <= ap.y
-                            && ap.y <= aabbupperBoundy)
+                    final float[] avx = system.velocityXBuffer;
+                    final float[] avy = system.velocityYBuffer;
+                    final Vec2 temp = tempVec;
+                    Transform.mulTransToOutUnsafe(body.xf0, ap, temp);
+                    Transform.mulToOutUnsafe(body.xf, temp, input.p1);
+                    input.p2.x = ap.x + step.dt * avx[a];
+                    input.p2.y = ap.y + step.dt * avy[a];
+                    input.maxFraction = 1;
+                    if (fixture.raycast(output, input, childIndex))
                     {
-                        Vec2 av = system.velocityBuffer.data[a];
-                        final Vec2 temp = tempVec;
-                        Transform.mulTransToOutUnsafe(body.xf0, ap, temp);
-                        Transform.mulToOutUnsafe(body.xf, temp, input.p1);
-                        input.p2.x = ap.x + step.dt * av.x;
-                        input.p2.y = ap.y + step.dt * av.y;
-                        input.maxFraction = 1;
-                        if (fixture.raycast(output, input, childIndex))
-                        {
-                            final Vec2 p = tempVec;
-                            p.x = (1 - output.fraction) * input.p1.x
-                                    + output.fraction * input.p2.x
-                                    + Settings.linearSlop * output.normal.x;
-                            p.y = (1 - output.fraction) * input.p1.y
-                                    + output.fraction * input.p2.y
-                                    + Settings.linearSlop * output.normal.y;
-                            final float vx = step.inverseDt * (p.x - ap.x);
-                            final float vy = step.inverseDt * (p.y - ap.y);
-                            av.x = vx;
-                            av.y = vy;
-                            final float particleMass = system.getParticleMass();
-                            final float ax = particleMass * (av.x - vx);
-                            final float ay = particleMass * (av.y - vy);
-                            Vec2 b = output.normal;
-                            final float fdn = ax * b.x + ay * b.y;
-                            final Vec2 f = tempVec2;
-                            f.x = fdn * b.x;
-                            f.y = fdn * b.y;
-                            body.applyLinearImpulse(f, p, true);
-                        }
+                        final Vec2 p = tempVec;
+                        p.x = (1 - output.fraction) * input.p1.x
+                                + output.fraction * input.p2.x
+                                + Settings.linearSlop * output.normal.x;
+                        p.y = (1 - output.fraction) * input.p1.y
+                                + output.fraction * input.p2.y
+                                + Settings.linearSlop * output.normal.y;
+                        final float vx = step.inverseDt * (p.x - ap.x);
+                        final float vy = step.inverseDt * (p.y - ap.y);
+                        avx[a] = vx;
+                        avy[a] = vy;
+                        final float particleMass = system.getParticleMass();
+                        final float ax = particleMass * (avx[a] - vx);
+                        final float ay = particleMass * (avy[a] - vy);
+                        Vec2 b = output.normal;
+                        final float fdn = ax * b.x + ay * b.y;
+                        final Vec2 f = tempVec2;
+                        f.x = fdn * b.x;
+                        f.y = fdn * b.y;
+                        body.applyLinearImpulse(f, p, true);
                     }
                 }
             }
@@ -2729,21 +5621,6 @@ public class ParticleSystem
 
     static class Test
     {
-        static boolean IsProxyInvalid(final Proxy proxy)
-        {
-            return proxy.index < 0;
-        }
-
-        static boolean IsContactInvalid(final ParticleContact contact)
-        {
-            return contact.indexA < 0 || contact.indexB < 0;
-        }
-
-        static boolean IsBodyContactInvalid(final ParticleBodyContact contact)
-        {
-            return contact.index < 0;
-        }
-
         static boolean IsPairInvalid(final Pair pair)
         {
             return pair.indexA < 0 || pair.indexB < 0;
@@ -55,6 +55,14 @@ public interface WorldPool
 
     DynamicStack<Contact> getChainPolyContactStack();
 
+    DynamicStack<Contact> getTileMapCircleContactStack();
+
+    DynamicStack<Contact> getTileMapPolyContactStack();
+
+    DynamicStack<Contact> getCompoundCircleContactStack();
+
+    DynamicStack<Contact> getCompoundPolyContactStack();
+
     Vec2 popVec2();
 
     Vec2[] popVec2(int num);
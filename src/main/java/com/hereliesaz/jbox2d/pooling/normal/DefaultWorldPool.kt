@@ -38,11 +38,15 @@ import de.pirckheimer_gymnasium.jbox2d.common.Vec3;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.ChainAndCircleContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.ChainAndPolygonContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.CircleContact;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.CompoundAndCircleContact;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.CompoundAndPolygonContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.Contact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.EdgeAndCircleContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.EdgeAndPolygonContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.PolygonAndCircleContact;
 import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.PolygonContact;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.TileMapAndCircleContact;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.contacts.TileMapAndPolygonContact;
 import de.pirckheimer_gymnasium.jbox2d.pooling.DynamicStack;
 import de.pirckheimer_gymnasium.jbox2d.pooling.WorldPool;
 
@@ -173,6 +177,62 @@ public class DefaultWorldPool implements WorldPool
         }
     };
 
+    private final MutableStack<Contact> tmcstack = new MutableStack<>(
+            Settings.CONTACT_STACK_INIT_SIZE)
+    {
+        protected Contact newInstance()
+        {
+            return new TileMapAndCircleContact(world);
+        }
+
+        protected Contact[] newArray(int size)
+        {
+            return new TileMapAndCircleContact[size];
+        }
+    };
+
+    private final MutableStack<Contact> tmpstack = new MutableStack<>(
+            Settings.CONTACT_STACK_INIT_SIZE)
+    {
+        protected Contact newInstance()
+        {
+            return new TileMapAndPolygonContact(world);
+        }
+
+        protected Contact[] newArray(int size)
+        {
+            return new TileMapAndPolygonContact[size];
+        }
+    };
+
+    private final MutableStack<Contact> cocstack = new MutableStack<>(
+            Settings.CONTACT_STACK_INIT_SIZE)
+    {
+        protected Contact newInstance()
+        {
+            return new CompoundAndCircleContact(world);
+        }
+
+        protected Contact[] newArray(int size)
+        {
+            return new CompoundAndCircleContact[size];
+        }
+    };
+
+    private final MutableStack<Contact> copstack = new MutableStack<>(
+            Settings.CONTACT_STACK_INIT_SIZE)
+    {
+        protected Contact newInstance()
+        {
+            return new CompoundAndPolygonContact(world);
+        }
+
+        protected Contact[] newArray(int size)
+        {
+            return new CompoundAndPolygonContact[size];
+        }
+    };
+
     private final Collision collision;
 
     private final TimeOfImpact toi;
@@ -267,6 +327,30 @@ public class DefaultWorldPool implements WorldPool
         return chpstack;
     }
 
+    @Override
+    public DynamicStack<Contact> getTileMapCircleContactStack()
+    {
+        return tmcstack;
+    }
+
+    @Override
+    public DynamicStack<Contact> getTileMapPolyContactStack()
+    {
+        return tmpstack;
+    }
+
+    @Override
+    public DynamicStack<Contact> getCompoundCircleContactStack()
+    {
+        return cocstack;
+    }
+
+    @Override
+    public DynamicStack<Contact> getCompoundPolyContactStack()
+    {
+        return copstack;
+    }
+
     public final Vec2 popVec2()
     {
         return vecs.pop();
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.collision.broadphase
+
+import de.pirckheimer_gymnasium.jbox2d.callbacks.PairCallback
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeCallback
+import de.pirckheimer_gymnasium.jbox2d.callbacks.TreeRayCastCallback
+import de.pirckheimer_gymnasium.jbox2d.collision.AABB
+import de.pirckheimer_gymnasium.jbox2d.collision.RayCastInput
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2
+import java.util.Random
+
+/**
+ * Compares the broad-phase strategies on moving proxies with different size
+ * distributions. Every step moves all proxies, finds the new pairs and runs a
+ * batch of AABB queries and ray casts. Run with `main`, the results are
+ * printed as milliseconds per step.
+ */
+object BroadPhaseBenchmark {
+    private const val PROXY_COUNT = 20000
+    private const val WORLD_SIZE = 400f
+    private const val WARMUP_STEPS = 50
+    private const val STEPS = 200
+    private const val QUERIES = 200
+    private const val RAYS = 200
+
+    private enum class Distribution {
+        /** All proxies have the same small size. */
+        UNIFORM,
+
+        /** Sizes vary between 0.25 and 2. */
+        MIXED,
+
+        /** Mostly small proxies with a few large ones. */
+        HEAVY_TAILED;
+
+        fun sample(random: Random): Float = when (this) {
+            UNIFORM -> 1f
+            MIXED -> 0.25f + random.nextFloat() * 1.75f
+            HEAVY_TAILED -> if (random.nextInt(100) == 0) 8f + random.nextFloat() * 8f
+            else 0.5f + random.nextFloat() * 0.5f
+        }
+    }
+
+    private class Scene(distribution: Distribution, seed: Long) {
+        val random = Random(seed)
+        val x = FloatArray(PROXY_COUNT)
+        val y = FloatArray(PROXY_COUNT)
+        val vx = FloatArray(PROXY_COUNT)
+        val vy = FloatArray(PROXY_COUNT)
+        val halfSize = FloatArray(PROXY_COUNT)
+
+        init {
+            for (i in 0 until PROXY_COUNT) {
+                x[i] = random.nextFloat() * WORLD_SIZE
+                y[i] = random.nextFloat() * WORLD_SIZE
+                vx[i] = (random.nextFloat() - 0.5f) * 0.2f
+                vy[i] = (random.nextFloat() - 0.5f) * 0.2f
+                halfSize[i] = distribution.sample(random) * 0.5f
+            }
+        }
+
+        fun aabb(i: Int, out: AABB) {
+            out.lowerBound.set(x[i] - halfSize[i], y[i] - halfSize[i])
+            out.upperBound.set(x[i] + halfSize[i], y[i] + halfSize[i])
+        }
+
+        fun advance(i: Int) {
+            x[i] += vx[i]
+            y[i] += vy[i]
+            if (x[i] < 0 || x[i] > WORLD_SIZE) vx[i] = -vx[i]
+            if (y[i] < 0 || y[i] > WORLD_SIZE) vy[i] = -vy[i]
+        }
+    }
+
+    private class Counter : PairCallback, TreeCallback, TreeRayCastCallback {
+        var count = 0L
+
+        override fun addPair(userDataA: Any?, userDataB: Any?) {
+            count++
+        }
+
+        override fun treeCallback(proxyId: Int): Boolean {
+            count++
+            return true
+        }
+
+        override fun raycastCallback(input: RayCastInput, nodeId: Int): Float {
+            count++
+            return input.maxFraction
+        }
+    }
+
+    private fun run(name: String, strategy: BroadPhaseStrategy, distribution: Distribution) {
+        val broadPhase = DefaultBroadPhaseBuffer(strategy)
+        val scene = Scene(distribution, 1234L)
+        val aabb = AABB()
+        val displacement = Vec2()
+        val proxies = IntArray(PROXY_COUNT)
+        for (i in 0 until PROXY_COUNT) {
+            scene.aabb(i, aabb)
+            proxies[i] = broadPhase.createProxy(aabb, i)
+        }
+        val counter = Counter()
+        val queryRandom = Random(99L)
+        val input = RayCastInput()
+        var elapsed = 0L
+        for (step in 0 until WARMUP_STEPS + STEPS) {
+            val start = System.nanoTime()
+            for (i in 0 until PROXY_COUNT) {
+                scene.advance(i)
+                scene.aabb(i, aabb)
+                displacement.set(scene.vx[i], scene.vy[i])
+                broadPhase.moveProxy(proxies[i], aabb, displacement)
+            }
+            broadPhase.updatePairs(counter)
+            for (q in 0 until QUERIES) {
+                val qx = queryRandom.nextFloat() * WORLD_SIZE
+                val qy = queryRandom.nextFloat() * WORLD_SIZE
+                aabb.lowerBound.set(qx, qy)
+                aabb.upperBound.set(qx + 5f, qy + 5f)
+                broadPhase.query(counter, aabb)
+            }
+            for (r in 0 until RAYS) {
+                input.p1.set(queryRandom.nextFloat() * WORLD_SIZE, queryRandom.nextFloat() * WORLD_SIZE)
+                input.p2.set(queryRandom.nextFloat() * WORLD_SIZE, queryRandom.nextFloat() * WORLD_SIZE)
+                input.maxFraction = 1f
+                broadPhase.raycast(counter, input)
+            }
+            if (step >= WARMUP_STEPS) {
+                elapsed += System.nanoTime() - start
+            }
+        }
+        println(String.format("%-22s %-13s %8.3f ms/step  (%d callbacks)", name, distribution,
+                elapsed / 1e6 / STEPS, counter.count))
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        for (distribution in Distribution.values()) {
+            run("DynamicTree", DynamicTree(), distribution)
+            run("DynamicTreeFlatNodes", DynamicTreeFlatNodes(), distribution)
+            run("SweepAndPrune", SweepAndPrune(), distribution)
+            run("SweepAndPrune 4x4", SweepAndPrune(AABB(Vec2(0f, 0f), Vec2(WORLD_SIZE, WORLD_SIZE)), 4, 4),
+                    distribution)
+            run("SpatialHash", SpatialHash(3f), distribution)
+        }
+    }
+}
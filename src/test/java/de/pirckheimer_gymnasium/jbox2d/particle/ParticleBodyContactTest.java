@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.particle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.ChainShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.CircleShape;
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.Body;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.BodyDef;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.BodyType;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.Fixture;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.FixtureDef;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.World;
+
+/**
+ * Checks that the body contacts found with one world query per cell of
+ * particles are the contacts of testing every particle against every fixture,
+ * see {@link ParticleSystem#updateBodyContacts()}. The contacts are compared
+ * as sets, since a fixture with a proxy per child is reported once for each
+ * child proxy that overlaps the query box, as with a single query.
+ */
+public class ParticleBodyContactTest
+{
+    private static Vec2[] zigzag(float x, float y, int count)
+    {
+        final Vec2[] vertices = new Vec2[count];
+        for (int i = 0; i < count; i++)
+        {
+            vertices[i] = new Vec2(x + 0.3f * i, y + (i % 2) * 0.2f);
+        }
+        return vertices;
+    }
+
+    private static World createWorld()
+    {
+        final World world = new World(new Vec2(0, -10));
+        final Body ground = world.createBody(new BodyDef());
+        final PolygonShape box = new PolygonShape();
+        box.setAsBox(4, 0.2f, new Vec2(0, -1), 0.1f);
+        ground.createFixture(box, 0);
+        final ChainShape chain = new ChainShape();
+        chain.createChain(zigzag(-3, 0, 8), 8);
+        ground.createFixture(chain, 0);
+        // The edges of a terrain chain share a single proxy.
+        final ChainShape terrain = new ChainShape();
+        terrain.createChain(zigzag(0.5f, 1, 8), 8);
+        terrain.setTerrain(true);
+        ground.createFixture(terrain, 0);
+        final FixtureDef sensor = new FixtureDef();
+        final PolygonShape sensorBox = new PolygonShape();
+        sensorBox.setAsBox(1, 1, new Vec2(-1, 2), 0);
+        sensor.shape = sensorBox;
+        sensor.isSensor = true;
+        ground.createFixture(sensor);
+        final BodyDef bodyDef = new BodyDef();
+        bodyDef.type = BodyType.DYNAMIC;
+        bodyDef.position.set(1, 2.5f);
+        final Body ball = world.createBody(bodyDef);
+        final CircleShape circle = new CircleShape();
+        circle.setRadius(0.5f);
+        ball.createFixture(circle, 1);
+        return world;
+    }
+
+    private static String getKey(int index, Body body, float weight)
+    {
+        return index + " " + System.identityHashCode(body) + " " + weight;
+    }
+
+    /**
+     * Get the body contacts found by the system.
+     */
+    private static Set<String> getContacts(ParticleSystem system)
+    {
+        final Set<String> contacts = new TreeSet<String>();
+        for (int k = 0; k < system.bodyContactCount; k++)
+        {
+            contacts.add(getKey(system.bodyContactIndexBuffer[k],
+                    system.bodyContactBodyBuffer[k],
+                    system.bodyContactWeightBuffer[k]));
+        }
+        return contacts;
+    }
+
+    /**
+     * Test every particle against every child of every fixture.
+     */
+    private static Set<String> getExpectedContacts(World world,
+            ParticleSystem system)
+    {
+        final Set<String> contacts = new TreeSet<String>();
+        final Vec2 p = new Vec2();
+        final Vec2 normal = new Vec2();
+        for (Body body = world.getBodyList(); body != null; body = body
+                .getNext())
+        {
+            for (Fixture fixture = body.getFixtureList(); fixture != null;
+                    fixture = fixture.getNext())
+            {
+                if (fixture.isSensor())
+                {
+                    continue;
+                }
+                final int childCount = fixture.getShape().getChildCount();
+                for (int child = 0; child < childCount; child++)
+                {
+                    for (int i = 0; i < system.getParticleCount(); i++)
+                    {
+                        system.positionToOut(i, p);
+                        final float d = fixture.computeDistance(p, child,
+                                normal);
+                        if (d < system.particleDiameter)
+                        {
+                            contacts.add(getKey(i, body,
+                                    1 - d * system.inverseDiameter));
+                        }
+                    }
+                }
+            }
+        }
+        return contacts;
+    }
+
+    @Test
+    public void testContactsMatchSingleQuery()
+    {
+        final World world = createWorld();
+        final ParticleSystem system = new ParticleSystem(world);
+        system.setParticleRadius(0.05f);
+        final PolygonShape shape = new PolygonShape();
+        shape.setAsBox(3.5f, 2, new Vec2(0, 1), 0);
+        final ParticleGroupDef def = new ParticleGroupDef();
+        def.shape = shape;
+        system.createParticleGroup(def);
+        final Random random = new Random(1);
+        for (int round = 0; round < 20; round++)
+        {
+            // Later rounds reuse the cells of the first one.
+            for (int i = 0; i < system.getParticleCount(); i++)
+            {
+                system.positionXBuffer[i] += (random.nextFloat() - 0.5f)
+                        * 0.2f;
+                system.positionYBuffer[i] += (random.nextFloat() - 0.5f)
+                        * 0.2f;
+            }
+            system.updateBodyContacts();
+            final Set<String> expected = getExpectedContacts(world,
+                    system);
+            assertTrue(expected.size() > 0);
+            assertEquals(expected, getContacts(system));
+        }
+    }
+}
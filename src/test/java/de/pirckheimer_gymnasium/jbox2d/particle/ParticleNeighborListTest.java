@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2013, Daniel Murphy
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 	* Redistributions of source code must retain the above copyright notice,
+ * 	  this list of conditions and the following disclaimer.
+ * 	* Redistributions in binary form must reproduce the above copyright notice,
+ * 	  this list of conditions and the following disclaimer in the documentation
+ * 	  and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.pirckheimer_gymnasium.jbox2d.particle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.pirckheimer_gymnasium.jbox2d.collision.shapes.PolygonShape;
+import de.pirckheimer_gymnasium.jbox2d.common.Vec2;
+import de.pirckheimer_gymnasium.jbox2d.dynamics.World;
+
+/**
+ * Checks that the contacts found in the neighbor list are the contacts of a
+ * full search, see {@link ParticleSystem#setParticleNeighborSkin(float)}.
+ */
+public class ParticleNeighborListTest
+{
+    /**
+     * Get the contacts of the system by their particle pair, with the pair
+     * ordered so that the order of the contacts does not matter.
+     */
+    private static Map<Long, Float> getContacts(ParticleSystem system)
+    {
+        final Map<Long, Float> contacts = new HashMap<Long, Float>();
+        for (int k = 0; k < system.contactCount; k++)
+        {
+            final int a = system.contactIndexABuffer[k];
+            final int b = system.contactIndexBBuffer[k];
+            final long pair = (long) Math.min(a, b) << 32 | Math.max(a, b);
+            assertEquals(null,
+                    contacts.put(pair, system.contactWeightBuffer[k]));
+        }
+        return contacts;
+    }
+
+    @Test
+    public void testContactsMatchFullSearch()
+    {
+        final ParticleSystem system = new ParticleSystem(
+                new World(new Vec2(0, -10)));
+        system.setParticleRadius(0.05f);
+        system.setParticleNeighborSkin(0.03f);
+        final PolygonShape shape = new PolygonShape();
+        shape.setAsBox(2, 1);
+        final ParticleGroupDef def = new ParticleGroupDef();
+        def.shape = shape;
+        system.createParticleGroup(def);
+        final Random random = new Random(1);
+        int reused = 0;
+        int rebuilt = 0;
+        for (int step = 0; step < 200; step++)
+        {
+            // Drift the particles so that the list is rebuilt now and then.
+            for (int i = 0; i < system.getParticleCount(); i++)
+            {
+                system.positionXBuffer[i] += (random.nextFloat() - 0.5f)
+                        * 0.01f;
+                system.positionYBuffer[i] += (random.nextFloat() - 0.5f)
+                        * 0.01f;
+            }
+            if (system.neighborsValid && !system.isNeighborSkinExceeded())
+            {
+                reused++;
+            }
+            else
+            {
+                rebuilt++;
+            }
+            system.updateContacts(false);
+            final Map<Long, Float> listed = getContacts(system);
+            // Without zombie particles this is the full search.
+            system.updateContacts(true);
+            assertEquals(getContacts(system), listed);
+        }
+        assertTrue(reused > 0);
+        assertTrue(rebuilt > 1);
+    }
+}